@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Nasluch polaczen przychodzacych obslugiwany przez petle zdarzen. W odroznieniu od pojedynczego
+ * accept() przyjmuje kolejne polaczenia az do wywolania close() i przekazuje je do rejestru sesji Modelu.
+ * @author Kuba Jalowiec
+ */
+class Acceptor implements EventLoop.Handler{
+
+	private final Model model;
+	private final EventLoop loop;
+	private final ServerSocketChannel server;
+	private SelectionKey key;
+
+	/** Otwiera gniazdo nasluchujace. Przyjmowanie polaczen zaczyna sie po open().
+	 * @param _model Model, do ktorego trafiaja przyjete polaczenia.
+	 * @param _loop Petla zdarzen obslugujaca gniazdo.
+	 * @param port Port nasluchu.
+	 * @param backlog Dlugosc kolejki polaczen oczekujacych na accept().
+	 */
+	Acceptor(Model _model, EventLoop _loop, int port, int backlog) throws IOException{
+
+		model = _model;
+		loop = _loop;
+		server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(port), backlog);
+			server.configureBlocking(false);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+	}
+
+	/** Rejestruje gniazdo w petli zdarzen. */
+	void open(){
+
+		loop.execute(new Runnable(){
+			public void run(){
+				try {
+					key = loop.register(server, SelectionKey.OP_ACCEPT, Acceptor.this);
+				} catch (IOException e) {
+					model.updateLog(Log.Level.ERROR, "Blad podczas odbierania polaczenia.");
+					close();
+				}
+			}
+		});
+	}
+
+	/** Zwraca port, na ktorym nasluchujemy.
+	 * @return Numer portu.
+	 */
+	int getPort(){
+		return server.socket().getLocalPort();
+	}
+
+	/** Przyjmuje wszystkie oczekujace polaczenia. */
+	public void handle(SelectionKey _key){
+
+		while(true){
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				model.updateLog(Log.Level.ERROR, "Blad podczas odbierania polaczenia.");
+				return;
+			}
+			if(channel == null)
+				return;
+			model.accepted(channel);
+		}
+	}
+
+	/** Blad w handle() dotyczy jednego przyjmowanego polaczenia (zob. Model.accepted()) - nasluch trwa dalej,
+	 *  a pozostale oczekujace polaczenia przyjmie nastepne wywolanie handle(). */
+	public void failed(RuntimeException e){
+		// nic do zamkniecia
+	}
+
+	/** Konczy nasluchiwanie. Moze byc wywolane z dowolnego watku. */
+	void close(){
+
+		loop.execute(new Runnable(){
+			public void run(){
+				if(key != null)
+					key.cancel();
+				try {
+					server.close();
+				} catch (IOException e) {
+					model.updateLog(Log.Level.ERROR, "Blad podczas zamykania ServerSocket.");
+				}
+			}
+		});
+	}
+}
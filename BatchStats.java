@@ -0,0 +1,94 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statystyki zapisow wsadowych writer'a: ile ramek i bajtow trafia do jednego zapisu do kanalu.
+ * Rozmiary wsadow zliczane sa w przedzialach potegi dwojki (1, 2-3, 4-7, ...).
+ * Wspoldzielone przez wszystkie polaczenia Modelu.
+ * @author Kuba Jalowiec
+ */
+class BatchStats{
+
+	private static final int BUCKETS = 16;
+
+	private final LongAdder batches;
+	private final LongAdder frames;
+	private final LongAdder bytes;
+	private final AtomicLong maxFrames;
+	private final LongAdder[] histogram;
+
+	BatchStats(){
+
+		batches = new LongAdder();
+		frames = new LongAdder();
+		bytes = new LongAdder();
+		maxFrames = new AtomicLong();
+		histogram = new LongAdder[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++)
+			histogram[i] = new LongAdder();
+	}
+
+	/** Rejestruje jeden wsad.
+	 * @param _frames Liczba ramek we wsadzie.
+	 * @param _bytes Liczba bajtow we wsadzie.
+	 */
+	void record(int _frames, long _bytes){
+
+		batches.increment();
+		frames.add(_frames);
+		bytes.add(_bytes);
+		histogram[Math.min(BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(Math.max(1, _frames)))].increment();
+		long max;
+		while((max = maxFrames.get()) < _frames && !maxFrames.compareAndSet(max, _frames));
+	}
+
+	long getBatches(){
+		return batches.sum();
+	}
+
+	long getFrames(){
+		return frames.sum();
+	}
+
+	long getBytes(){
+		return bytes.sum();
+	}
+
+	long getMaxFrames(){
+		return maxFrames.get();
+	}
+
+	/** Zwraca srednia liczbe ramek na wsad.
+	 * @return Srednia, 0 jesli nie bylo jeszcze zadnego wsadu.
+	 */
+	double getAverageFrames(){
+
+		long b = batches.sum();
+		return b == 0 ? 0 : (double) frames.sum() / b;
+	}
+
+	/** Zwraca liczbe wsadow o rozmiarze z przedzialu [2^i, 2^(i+1)).
+	 * @param i Numer przedzialu.
+	 * @return Liczba wsadow.
+	 */
+	long getHistogram(int i){
+		return histogram[i].sum();
+	}
+
+	public String toString(){
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("wsady=").append(getBatches())
+			.append(" ramki=").append(getFrames())
+			.append(" bajty=").append(getBytes())
+			.append(" srednio=").append(String.format("%.2f", getAverageFrames()))
+			.append(" max=").append(getMaxFrames())
+			.append(" rozklad=[");
+		for(int i = 0; i < BUCKETS; i++){
+			long n = getHistogram(i);
+			if(n != 0)
+				sb.append(' ').append(1 << i).append(':').append(n);
+		}
+		return sb.append(" ]").toString();
+	}
+}
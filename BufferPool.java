@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pula bezposrednich (direct) buforow o stalym rozmiarze, wspoldzielona przez wszystkie polaczenia Modelu.
+ * Bufory direct sa drogie w tworzeniu, wiec zamiast je zwalniac oddajemy je do puli. Pula moze tez
+ * przechowywac bufory na stercie - dla kodu, ktory na buforach direct kopiuje dane do tymczasowych tablic.
+ * @author Kuba Jalowiec
+ */
+class BufferPool{
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final boolean direct;
+	private final Queue<ByteBuffer> pool;
+	private final AtomicInteger pooled;
+
+	/** Tworzy pusta pule buforow direct.
+	 * @param _bufferSize Rozmiar pojedynczego bufora.
+	 * @param _maxPooled Maksymalna liczba buforow przechowywanych w puli.
+	 */
+	BufferPool(int _bufferSize, int _maxPooled){
+		this(_bufferSize, _maxPooled, true);
+	}
+
+	/** Tworzy pusta pule.
+	 * @param _bufferSize Rozmiar pojedynczego bufora.
+	 * @param _maxPooled Maksymalna liczba buforow przechowywanych w puli.
+	 * @param _direct true dla buforow direct, false dla buforow na stercie.
+	 */
+	BufferPool(int _bufferSize, int _maxPooled, boolean _direct){
+
+		bufferSize = _bufferSize;
+		maxPooled = _maxPooled;
+		direct = _direct;
+		pool = new ConcurrentLinkedQueue<ByteBuffer>();
+		pooled = new AtomicInteger();
+	}
+
+	/** Pobiera wyczyszczony bufor z puli, lub tworzy nowy jesli pula jest pusta.
+	 * @return Bufor o rozmiarze getBufferSize().
+	 */
+	ByteBuffer acquire(){
+
+		ByteBuffer buf = pool.poll();
+		if(buf == null)
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		pooled.decrementAndGet();
+		return buf;
+	}
+
+	/** Oddaje bufor do puli. Po oddaniu bufor nie moze byc dalej uzywany.
+	 * @param buf Bufor pobrany wczesniej przez acquire().
+	 */
+	void release(ByteBuffer buf){
+
+		if(buf == null || buf.capacity() != bufferSize)
+			return;
+		buf.clear();
+		if(pooled.incrementAndGet() <= maxPooled)
+			pool.add(buf);
+		else
+			pooled.decrementAndGet();
+	}
+
+	/** Zwraca rozmiar buforow w puli.
+	 * @return Rozmiar bufora w bajtach.
+	 */
+	int getBufferSize(){
+		return bufferSize;
+	}
+}
@@ -0,0 +1,185 @@
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Kompresja danych ramek jednego polaczenia. Deflater, Inflater i bufor wyjsciowy sa tworzone raz
+ * i uzywane ponownie dla kazdej ramki, wiec kompresja nie alokuje niczego na wiadomosc
+ * (poza tablica na rozpakowane dane odebranej wiadomosci). Kazda ramka kompresowana jest osobno -
+ * mozna ja rozpakowac bez znajomosci poprzednich ramek. Opcjonalny slownik (np. wytrenowany na typowym
+ * ruchu czatu) poprawia kompresje krotkich wiadomosci, ale musi byc taki sam po obu stronach.
+ * <p>
+ * Skompresowane dane ramki maja postac:
+ * <pre>
+ * | dlugosc przed kompresja (int) | strumien deflate bez naglowka zlib |
+ * </pre>
+ * Obiekt nie jest bezpieczny watkowo - uzywa go tylko petla zdarzen polaczenia.
+ * @author Kuba Jalowiec
+ */
+final class Compressor{
+
+	/** Bit mozliwosci w ramce HELLO: strona przyjmuje ramki skompresowane deflate. */
+	static final byte DEFLATE = 0x01;
+
+	/** Rozmiar prefiksu z dlugoscia danych przed kompresja. */
+	static final int PREFIX_SIZE = 4;
+
+	/** Najwiekszy stosunek dlugosci danych do dlugosci strumienia deflate: dopasowanie 258 bajtow zajmuje
+	 *  co najmniej dwa bity. Dluzsza zapowiedz dlugosci jest falszywa i odrzucana przed alokacja. */
+	static final int MAX_RATIO = 1032;
+
+	private final Deflater deflater;
+	private final Inflater inflater;
+
+	/** Slownik lub null. */
+	private final byte[] dictionary;
+
+	/** Czy kompresowac ze slownikiem - ustalane w negocjacji, gdy peer ma ten sam slownik. */
+	private boolean useDictionary;
+
+	/** Bufor na skompresowane dane duzych ramek, powiekszany w razie potrzeby. */
+	private ByteBuffer output;
+
+	/** Tworzy kompresor.
+	 * @param level Poziom kompresji (Deflater.BEST_SPEED ... Deflater.BEST_COMPRESSION).
+	 * @param _dictionary Slownik lub null.
+	 */
+	Compressor(int level, byte[] _dictionary){
+
+		deflater = new Deflater(level, true);
+		inflater = new Inflater(true);
+		dictionary = _dictionary;
+	}
+
+	/** Zwraca identyfikator slownika ogloszony peer'owi - suma Adler-32 slownika.
+	 * @param dictionary Slownik lub null.
+	 * @return Identyfikator lub 0 jesli nie ma slownika.
+	 */
+	static int dictionaryId(byte[] dictionary){
+
+		if(dictionary == null || dictionary.length == 0)
+			return 0;
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		return (int) adler.getValue();
+	}
+
+	/** Wlacza lub wylacza slownik przy kompresji, po negocjacji z peer'em.
+	 * @param _useDictionary true jesli peer ogloszil ten sam slownik.
+	 */
+	void setUseDictionary(boolean _useDictionary){
+		useDictionary = _useDictionary && dictionary != null;
+	}
+
+	/** Sprawdza, czy kompresja uzywa slownika - ramki oznaczane sa wtedy flaga Frame.DICTIONARY.
+	 * @return true jesli slownik jest wlaczony.
+	 */
+	boolean usesDictionary(){
+		return useDictionary;
+	}
+
+	/** Kompresuje dane do bufora docelowego, od jego biezacej pozycji. Bufor danych nie jest
+	 *  modyfikowany, wiec ta sama ramka moze byc kompresowana rownolegle dla wielu polaczen.
+	 * @param payload Dane ramki (position..limit).
+	 * @param out Bufor docelowy.
+	 * @return true jesli dane zmiescily sie w buforze i po kompresji sa mniejsze niz przed nia;
+	 *  wtedy pozycja out jest za skompresowanymi danymi. Przy false pozycja out sie nie zmienia.
+	 */
+	boolean compress(ByteBuffer payload, ByteBuffer out){
+
+		int start = out.position();
+		int length = payload.remaining();
+		if(out.remaining() <= PREFIX_SIZE)
+			return false;
+		deflater.reset();
+		if(useDictionary)
+			deflater.setDictionary(dictionary);
+		if(payload.hasArray())
+			deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+		else
+			deflater.setInput(payload.duplicate());
+		deflater.finish();
+		int limit = out.limit();
+		// wynik musi byc mniejszy niz dane - nie ma sensu kompresowac dalej
+		out.limit(Math.min(limit, start + length));
+		out.position(start + PREFIX_SIZE);
+		deflater.deflate(out);
+		boolean done = deflater.finished();
+		out.limit(limit);
+		if(!done){
+			out.position(start);
+			return false;
+		}
+		out.putInt(start, length);
+		return true;
+	}
+
+	/** Kompresuje dane duzej ramki do wlasnego bufora kompresora.
+	 * @param payload Dane ramki (position..limit).
+	 * @return Skompresowane dane (wazne do nastepnego wywolania) lub null jesli kompresja sie nie oplaca.
+	 */
+	ByteBuffer compress(ByteBuffer payload){
+
+		int length = payload.remaining();
+		if(output == null || output.capacity() < length)
+			output = ByteBuffer.allocateDirect(Math.max(length, output == null ? 0 : output.capacity() * 2));
+		output.clear();
+		if(!compress(payload, output))
+			return null;
+		output.flip();
+		return output;
+	}
+
+	/** Rozpakowuje dane skompresowanej ramki.
+	 * @param payload Skompresowane dane (position..limit).
+	 * @param withDictionary true jesli nadawca kompresowal ze slownikiem (flaga Frame.DICTIONARY).
+	 * @return Dane przed kompresja.
+	 * @throws DataFormatException Jesli dane sa uszkodzone lub niezgodne ze slownikiem, lub jesli zapowiedziana
+	 * dlugosc przekracza to, co mogly dac skompresowane dane, albo rozni sie od dlugosci po rozpakowaniu.
+	 */
+	byte[] decompress(ByteBuffer payload, boolean withDictionary) throws DataFormatException{
+
+		if(payload.remaining() < PREFIX_SIZE)
+			throw new DataFormatException("brak dlugosci");
+		int length = payload.getInt(payload.position());
+		long limit = Math.min(Frame.MAX_PAYLOAD, (long) (payload.remaining() - PREFIX_SIZE) * MAX_RATIO);
+		if(length < 0 || length > limit)
+			throw new DataFormatException("bledna dlugosc " + length);
+		if(withDictionary && dictionary == null)
+			throw new DataFormatException("brak slownika");
+		byte[] bytes = new byte[length];
+		inflater.reset();
+		if(withDictionary)
+			inflater.setDictionary(dictionary);
+		int position = payload.position();
+		int n;
+		if(payload.hasArray()){
+			inflater.setInput(payload.array(), payload.arrayOffset() + position + PREFIX_SIZE,
+				payload.remaining() - PREFIX_SIZE);
+			n = inflater.inflate(bytes);
+		}
+		else{
+			// Inflater czyta bufor direct dopiero w inflate() i przesuwa jego pozycje
+			payload.position(position + PREFIX_SIZE);
+			inflater.setInput(payload);
+			try {
+				n = inflater.inflate(bytes);
+			} finally {
+				payload.position(position);
+			}
+		}
+		if(n != length || !inflater.finished())
+			throw new DataFormatException("niepelne dane");
+		return bytes;
+	}
+
+	/** Zwalnia pamiec natywna Deflater'a i Inflater'a. */
+	void end(){
+
+		deflater.end();
+		inflater.end();
+		output = null;
+	}
+}
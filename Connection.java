@@ -0,0 +1,1800 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/** Klasa do obslugi nawiazanego polaczenia z jednym peer'em. Kanal jest nieblokujacy i obslugiwany
+ *  przez jedna z petli zdarzen Modelu - polaczenie nie posiada wlasnych watkow.
+ *  Wiadomosci przesylane sa jako ramki (zob. Frame), kodowane i dekodowane bezposrednio
+ *  w buforach direct pobranych z puli Modelu. Odebrane wiadomosci trafiaja do Modelu jako Message
+ *  z surowymi bajtami - dekodowanie tekstu nalezy do widoku. Wyjscie jest wsadowe: writer budzi sie tylko gdy w kolejce
+ *  sa ramki i wysyla wiele ramek jednym zapisem zbierajacym (GatheringByteChannel.write(ByteBuffer[])).
+ *  Pierwsza ramka w kazda strone to HELLO z mozliwosciami strony - jesli peer przyjmuje kompresje,
+ *  wiadomosci od progu Model.getCompressionThreshold() wysylane sa skompresowane (flaga Frame.COMPRESSED).
+ *  Ruch dzielony jest na strumienie logiczne (zob. Stream) z osobnymi kolejkami: ramki kontrolne,
+ *  krotkie wiadomosci, duze wiadomosci dzielone na fragmenty i kawalki plikow (zob. FileTransfer).
+ *  Writer wybiera strumienie wg priorytetu i wag, wiec duza wiadomosc ani plik nie blokuja czatu.
+ *  Jesli Model ma wlaczony TLS, odczyt i zapis przechodza przez TlsChannel, a ramki wysylane sa dopiero
+ *  po zakonczeniu uzgadniania. Bicie serca (PING - PONG, planowane w kole czasowym Modelu) mierzy czas podrozy
+ *  i zamyka polaczenie z peer'em, od ktorego od kilku odstepow nic nie przyszlo.
+ *  Wiadomosci plyna w ramach przydzialow odbiorcy (Frame.CREDIT): writer wstrzymuje wiadomosci, gdy przydzial
+ *  sie skonczy, a przydzialy dla peer'a ogranicza wiadro zetonow (zob. Model.setRateLimit()).
+ *  Cykl zycia polaczenia opisuje State; zamkniecie - natychmiastowe (close()) lub po wyslaniu kolejek
+ *  (drain()) - konczy sie w watku petli i jest zglaszane przez CompletableFuture (zob. getCloseFuture()).
+ * @author Kuba Jalowiec
+ */
+class Connection implements EventLoop.Handler{
+
+	/** Stany polaczenia. Przejscia sa atomowe (compareAndSet) i tylko w kolejnosci deklaracji, przy czym
+	 *  kazdy stan moze przejsc od razu do CLOSED. */
+	enum State{
+		/** Kanal czeka na rejestracje w petli lub na zakonczenie uzgadniania TLS; ramki czekaja w kolejkach. */
+		CONNECTING,
+		/** Ramki sa wysylane. */
+		OPEN,
+		/** Nowe ramki sa odrzucane; polaczenie zamyka sie po wyslaniu kolejek lub po uplywie terminu. */
+		DRAINING,
+		/** Polaczenie jest zamkniete lub zamykane w watku petli. */
+		CLOSED
+	}
+
+	private final Model model;
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private SelectionKey key;
+
+	/** Szyfrowanie kanalu lub null, jesli polaczenie nie jest szyfrowane. */
+	private final TlsChannel tls;
+
+	/** Identyfikator peer'a (adres:port), klucz w rejestrze sesji Modelu. */
+	private final String peer;
+	private final InetAddress address;
+
+	/** Liczniki tego polaczenia w rejestrze metryk Modelu. */
+	private final Metrics.Peer metrics;
+
+	/** Czas (System.nanoTime()) ostatniej odebranej lub wyslanej ramki innej niz bicie serca - do zamykania
+	 *  bezczynnych sesji. */
+	private volatile long lastActivity;
+
+	/** Czas (System.nanoTime()) ostatniego odczytu z kanalu - do wykrywania martwych peer'ow. */
+	private volatile long lastReceived;
+
+	/** Wartosc lastReceived przy poprzednim biciu serca i liczba kolejnych odstepow, w ktorych nic nie
+	 *  przyszlo. Dostepne tylko z watku petli. */
+	private long beatReceived;
+	private int missedBeats;
+
+	/** Ustawiona od wyslania PING do odebrania PONG - kolejne PING nie gromadza sie w kolejce kontrolnej. */
+	private boolean pinging;
+
+	/** Zaplanowane bicie serca w kole czasowym Modelu lub null. Dostepne tylko z watku petli. */
+	private TimerWheel.Timeout beat;
+
+	/** Bicie serca - wykonywane w watku petli, i zadanie kola czasowego, ktore je tam przekazuje. */
+	private final Runnable heartbeat, heartbeatDue;
+
+	/** Liczba wiadomosci, ktore mozemy jeszcze wyslac (-1 - peer nie uzywa przydzialow), i ktore moze jeszcze
+	 *  wyslac peer. Zmieniane tylko w watku petli. */
+	private volatile int sendCredits, receiveCredits;
+
+	/** Ustawiona, gdy peer ogloszil w HELLO, ze przestrzega przydzialow - dopiero wtedy sa egzekwowane. */
+	private boolean peerFlowControl;
+
+	/** Przydzial utrzymywany dla peer'a i liczba odebranych wiadomosci, za ktore nie oddano jeszcze przydzialu.
+	 *  Dostepne tylko z watku petli. */
+	private final int creditWindow;
+	private int ungranted;
+
+	/** Ogranicza nowe przydzialy do predkosci z Model.setRateLimit() lub null. Peer'owi, ktory nie przestrzega
+	 *  przydzialow (takze przed HELLO), wiadro odlicza kazda wiadomosc. Dostepne tylko z watku petli. */
+	private final TokenBucket rateLimiter;
+
+	/** Ustawiona, gdy czytanie od peer'a bez przydzialow czeka na zeton. Dostepne tylko z watku petli. */
+	private boolean readPaused;
+
+	/** Ustawiona, gdy oddanie przydzialu czeka na zetony, i gdy writer czeka na przydzial. */
+	private boolean grantScheduled, creditStalled;
+
+	/** Ustawiona, gdy oproznianie wyslalo wszystko i zamknelo strone zapisu - polaczenie czeka na zamkniecie
+	 *  przez peer'a. Dostepne tylko z watku petli. */
+	private boolean outputShutdown;
+
+	/** Oddaje wstrzymany przydzial; wykonywane w watku petli. */
+	private final Runnable grantCredits;
+
+	/** Wznawia wstrzymane czytanie; wykonywane w watku petli. */
+	private final Runnable resumeReading;
+
+	/** Wygladzony czas podrozy PING - PONG i jego zmiennosc w nanosekundach, -1 przed pierwszym pomiarem.
+	 *  Ostatni pomiar dostepny tylko z watku petli. */
+	private volatile long smoothedRtt, jitter;
+	private long lastRtt;
+
+	/** Maksymalna liczba bajtow jednego wsadu - ogranicza czas, przez jaki nowa ramka czeka
+	 *  na zapisanie wsadu budowanego przed nia. */
+	private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+	/** Pojemnosc kolejki ramek kontrolnych. */
+	private static final int CONTROL_CAPACITY = 1024;
+
+	/** Strumienie logiczne polaczenia, indeksowane identyfikatorem (Stream.CONTROL ... Stream.FILES). */
+	private final Stream[] streams;
+
+	/** Strumien obslugiwany w biezacej rundzie harmonogramu i czy dostal juz na nia przydzial.
+	 *  Dostepne tylko z watku petli. */
+	private int round;
+	private boolean visiting;
+
+	/** Wysylane pliki, obslugiwane po kolei. Dostepne tylko z watku petli. */
+	private final List<FileTransfer> outgoing;
+	private int nextOutgoing;
+
+	/** Odbierane pliki wg identyfikatora. Dostepne tylko z watku petli. */
+	private final Map<Long, FileTransfer> incoming;
+
+	/** Wlacza OP_WRITE; wykonywane w watku petli. */
+	private final Runnable enableWrite;
+
+	/** Ustawiona, gdy zlecono juz petli wlaczenie OP_WRITE. */
+	private final AtomicBoolean writeScheduled;
+
+	/** Najmniejszy numer wiadomosci z dziennika wysylania, ktora nie zmiescila sie w kolejce (zob. resendLater()),
+	 *  lub 0. Writer wysyla ponownie niepotwierdzone wiadomosci od tego numeru, gdy kolejki sie oproznia. */
+	private final AtomicLong resendFrom;
+
+	/** Stan polaczenia i jego zamkniecie - spelniane w watku petli po zwolnieniu zasobow. */
+	private final AtomicReference<State> state;
+	private final CompletableFuture<Void> closeFuture;
+
+	/** Bufor odczytu z puli, trzymany przez caly czas zycia polaczenia. */
+	private ByteBuffer readBuffer;
+
+	/** Bufor dla ramki wiekszej niz readBuffer, czytanej bezposrednio z kanalu. */
+	private ByteBuffer largeFrame;
+	private byte largeType, largeFlags;
+
+	/** Bufor zapisu z puli - naglowki i male ramki kopiowane sa do niego. Pobierany tylko na czas
+	 *  oprozniania kolejki. */
+	private ByteBuffer writeBuffer;
+
+	/** Biezacy wsad: fragmenty writeBuffer przeplatane danymi duzych ramek, wysylanymi bez kopiowania.
+	 *  Elementy [gatherIndex, gatherCount) czekaja na zapis. */
+	private ByteBuffer[] gather;
+	private int gatherIndex, gatherCount;
+
+	/** Poczatek fragmentu writeBuffer, ktory nie zostal jeszcze dolaczony do gather. */
+	private int segmentStart;
+
+	/** Czy bufor kompresora zostal juz uzyty w biezacym wsadzie. */
+	private boolean bulkCompressed;
+
+	/** Kompresja danych ramek lub null, jesli jest wylaczona po tej stronie. */
+	private final Compressor compressor;
+	private final int compressionThreshold;
+	private final int dictionaryId;
+
+	/** Ustawiana po odebraniu HELLO, jesli peer przyjmuje ramki skompresowane. */
+	private boolean compress;
+
+	/** Numer kolejny ostatniej wiadomosci odebranej od peer'a. */
+	private long receivedSequence;
+
+	/** Skladana z fragmentow duza wiadomosc. */
+	private byte[] fragments;
+	private int fragmentLength;
+
+	/** Identyfikator wezla peer'a z HELLO lub 0, jesli peer go nie podal. */
+	private volatile long peerNode;
+
+	/** Maksymalna liczba przedzialow numerow w jednej ramce ACK. */
+	private static final int MAX_ACK_RANGES = 64;
+
+	/** Liczba odebranych wiadomosci, po ktorej potwierdzenie wysylane jest od razu. */
+	private static final int ACK_BATCH = 256;
+
+	/** Maksymalny czas, przez jaki odebrana wiadomosc czeka na potwierdzenie. */
+	private static final long ACK_DELAY_MILLIS = 20;
+
+	/** Numery wiadomosci do potwierdzenia - przedzialy od, do. Dostepne tylko z watku petli. */
+	private final long[] ackRanges;
+	private int ackCount, ackPending;
+	private boolean ackScheduled;
+
+	/** Wysyla zebrane potwierdzenia; wykonywane w watku petli. */
+	private final Runnable flushAcks;
+
+	/** Tworzy polaczenie na podstawie nieblokujacego kanalu. Rejestracje w petli wykonuje open().
+	 * @param _model Model wlasciciel polaczenia.
+	 * @param _loop Petla zdarzen obslugujaca kanal.
+	 * @param _channel Polaczony kanal.
+	 * @param client true dla polaczenia wychodzacego - rozpoczyna uzgadnianie TLS.
+	 */
+	Connection(Model _model, EventLoop _loop, SocketChannel _channel, boolean client) throws IOException{
+
+		model = _model;
+		loop = _loop;
+		channel = _channel;
+		channel.configureBlocking(false);
+		// writer sam sklada ramki we wsady, a algorytm Nagle'a z opoznionym ACK wstrzymywalby male ramki
+		// (przydzialy, tury uzgadniania TLS) nawet o 40 ms
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+		peer = remote.toString();
+		address = remote.getAddress();
+		SSLContext context = model.getTlsContext();
+		tls = context == null ? null : new TlsChannel(model, channel, context, client, remote);
+		lastActivity = lastReceived = beatReceived = System.nanoTime();
+		smoothedRtt = jitter = -1;
+		metrics = model.getMetricsRegistry().opened(peer);
+		streams = new Stream[Stream.COUNT];
+		streams[Stream.CONTROL] = new Stream(Stream.CONTROL,
+			new RingBuffer<Frame>(CONTROL_CAPACITY, RingBuffer.Policy.REJECT), 0);
+		for(int i = Stream.INTERACTIVE; i <= Stream.BULK; i++)
+			streams[i] = new Stream(i, new RingBuffer<Frame>(model.getSendQueueCapacity(), model.getSendQueuePolicy()),
+				model.getStreamWeight(i));
+		streams[Stream.FILES] = new Stream(Stream.FILES, null, model.getStreamWeight(Stream.FILES));
+		round = Stream.INTERACTIVE;
+		enableWrite = new Runnable(){
+			public void run(){
+				if(key != null && key.isValid())
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		};
+		writeScheduled = new AtomicBoolean(false);
+		resendFrom = new AtomicLong();
+		state = new AtomicReference<State>(State.CONNECTING);
+		closeFuture = new CompletableFuture<Void>();
+		gather = new ByteBuffer[0];
+		compressionThreshold = model.getCompressionThreshold();
+		byte[] dictionary = model.getCompressionDictionary();
+		dictionaryId = Compressor.dictionaryId(dictionary);
+		compressor = compressionThreshold > 0 ? new Compressor(Deflater.BEST_SPEED, dictionary) : null;
+		sendCredits = receiveCredits = Frame.INITIAL_CREDITS;
+		creditWindow = model.getCreditWindow();
+		rateLimiter = model.newRateLimiter();
+		streams[Stream.CONTROL].getQueue().offer(Frame.hello((byte) ((compressor != null ? Compressor.DEFLATE : 0) | Frame.FLOW_CONTROL),
+			dictionaryId, model.getNodeId()));
+		outgoing = new ArrayList<FileTransfer>();
+		incoming = new HashMap<Long, FileTransfer>();
+		ackRanges = new long[2 * MAX_ACK_RANGES];
+		flushAcks = new Runnable(){
+			public void run(){
+				ackScheduled = false;
+				sendAcks();
+			}
+		};
+		heartbeat = new Runnable(){
+			public void run(){
+				beat();
+			}
+		};
+		grantCredits = new Runnable(){
+			public void run(){
+				grantScheduled = false;
+				grant();
+			}
+		};
+		resumeReading = new Runnable(){
+			public void run(){
+				resumeReading();
+			}
+		};
+		heartbeatDue = new Runnable(){
+			public void run(){
+				loop.execute(heartbeat);
+			}
+		};
+	}
+
+	/** Rejestruje kanal w petli zdarzen. */
+	void open(){
+
+		loop.execute(new Runnable(){
+			public void run(){
+				try {
+					readBuffer = model.getBufferPool().acquire();
+					key = loop.register(channel, SelectionKey.OP_READ, Connection.this);
+					if(hasOutput() || tls != null)
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					if(tls == null)
+						state.compareAndSet(State.CONNECTING, State.OPEN);
+					long interval = model.getHeartbeatMillis();
+					if(interval > 0)
+						beat = model.getTimers().schedule(heartbeatDue, interval);
+				} catch (IOException e) {
+					model.updateLog(Log.Level.WARN, "Nie powiodlo sie zapisanie polaczenia.");
+					close();
+				}
+			}
+		});
+	}
+
+	/** Zwraca identyfikator peer'a.
+	 * @return Adres peer'a.
+	 */
+	String getPeer(){
+		return peer;
+	}
+
+	/** Zwraca identyfikator wezla peer'a.
+	 * @return Identyfikator z HELLO lub 0, jesli peer sie jeszcze nie przedstawil.
+	 */
+	long getPeerNode(){
+		return peerNode;
+	}
+
+	/** Zwraca sesje TLS polaczenia.
+	 * @return Sesja lub null, jesli polaczenie nie jest szyfrowane.
+	 */
+	SSLSession getTlsSession(){
+		return tls == null ? null : tls.getSession();
+	}
+
+	/** Zwraca adres IP peer'a.
+	 * @return Adres peer'a.
+	 */
+	InetAddress getAddress(){
+		return address;
+	}
+
+	/** Zwraca czas ostatniej aktywnosci na polaczeniu.
+	 * @return Wartosc System.nanoTime() z chwili odebrania lub wyslania ostatniej ramki innej niz bicie serca.
+	 */
+	long getLastActivity(){
+		return lastActivity;
+	}
+
+	/** Zwraca kolejke krotkich wiadomosci - do odczytu zajetosci i licznikow porzuconych ramek.
+	 * @return Kolejka strumienia INTERACTIVE.
+	 */
+	RingBuffer<Frame> getSendQueue(){
+		return streams[Stream.INTERACTIVE].getQueue();
+	}
+
+	/** Zwraca strumienie polaczenia - do odczytu zajetosci i czasow oczekiwania.
+	 * @return Strumienie indeksowane identyfikatorem.
+	 */
+	Stream[] getStreams(){
+		return streams;
+	}
+
+	/** Wstawia ramke do kolejki wysylania. Wiadomosci od Model.getBulkThreshold() bajtow trafiaja do strumienia BULK,
+	 *  pozostale ramki do INTERACTIVE. Moze byc wywolywane z dowolnego watku.
+	 * @param frame Ramka do wyslania. Ta sama ramka moze byc wyslana do wielu polaczen.
+	 * @return false jesli ramka zostala porzucona lub polaczenie jest zamkniete.
+	 * @throws InterruptedException Jesli watek zostal przerwany w czasie czekania na miejsce w kolejce.
+	 * @throws IllegalStateException Jesli kolejka jest pelna, a polityka to REJECT.
+	 */
+	boolean send(Frame frame) throws InterruptedException{
+		return send(frame, streamFor(frame));
+	}
+
+	/** Wstawia ramke do kolejki wysylania zgodnie z polityka kolejki, ale bez czekania - przy polityce BLOCK
+	 *  pelna kolejka porzuca ramke (zob. RingBuffer.putNow()). Dla wiadomosci rozsylanych do wszystkich sesji,
+	 *  ktorych jeden wolny peer nie moze wstrzymac. Moze byc wywolywane z dowolnego watku.
+	 * @param frame Ramka do wyslania. Ta sama ramka moze byc wyslana do wielu polaczen.
+	 * @return false jesli ramka zostala porzucona lub polaczenie jest oprozniane lub zamkniete.
+	 * @throws IllegalStateException Jesli kolejka jest pelna, a polityka to REJECT.
+	 */
+	boolean sendNow(Frame frame){
+
+		if(!isAccepting())
+			return false;
+		RingBuffer<Frame> queue = streams[streamFor(frame)].getQueue();
+		if(!queue.putNow(frame))
+			return false;
+		scheduleWrite(queue.size());
+		return true;
+	}
+
+	/** Wstawia ramke do kolejki wysylania, jesli jest w niej miejsce - bez czekania i bez stosowania polityki
+	 *  kolejki. Strumien wybierany jest tak jak w send(). Moze byc wywolywane z dowolnego watku.
+	 * @param frame Ramka do wyslania. Ta sama ramka moze byc wyslana do wielu polaczen.
+	 * @return false jesli kolejka jest pelna lub polaczenie jest zamkniete.
+	 */
+	boolean offer(Frame frame){
+		return offer(frame, streamFor(frame));
+	}
+
+	private int streamFor(Frame frame){
+		return frame.getType() == Frame.MESSAGE && frame.length() >= model.getBulkThreshold() ? Stream.BULK : Stream.INTERACTIVE;
+	}
+
+	/** Zwraca kolejke, do ktorej send() i offer() wstawilyby ramke - do odczytu zajetosci.
+	 * @param frame Ramka.
+	 * @return Kolejka strumienia INTERACTIVE lub BULK.
+	 */
+	RingBuffer<Frame> queueFor(Frame frame){
+		return streams[streamFor(frame)].getQueue();
+	}
+
+	/** Zwraca stan polaczenia.
+	 * @return Biezacy stan.
+	 */
+	State getState(){
+		return state.get();
+	}
+
+	boolean isClosed(){
+		return state.get() == State.CLOSED;
+	}
+
+	/** Sprawdza, czy polaczenie przyjmuje nowe ramki.
+	 * @return false od rozpoczecia oprozniania lub zamkniecia.
+	 */
+	boolean isAccepting(){
+		return state.get().compareTo(State.DRAINING) < 0;
+	}
+
+	/** Zwraca zamkniecie polaczenia.
+	 * @return Spelniane w watku petli po zamknieciu kanalu i usunieciu sesji z Modelu.
+	 */
+	CompletableFuture<Void> getCloseFuture(){
+		return closeFuture;
+	}
+
+	/** Wstawia ramke do kolejki wskazanego strumienia. Moze byc wywolywane z dowolnego watku.
+	 *  Przy pelnej kolejce stosowana jest polityka kolejki (zob. Model.setSendQueuePolicy()).
+	 *  Jesli ustawiono maksymalna zwloke, writer czeka na kolejne ramki az do jej uplywu
+	 *  lub do uzbierania pelnego wsadu.
+	 * @param frame Ramka do wyslania. Ta sama ramka moze byc wyslana do wielu polaczen.
+	 * @param stream Identyfikator strumienia z kolejka (Stream.CONTROL, Stream.INTERACTIVE lub Stream.BULK).
+	 * @return false jesli ramka zostala porzucona lub polaczenie jest oprozniane lub zamkniete.
+	 * @throws InterruptedException Jesli watek zostal przerwany w czasie czekania na miejsce w kolejce.
+	 * @throws IllegalStateException Jesli kolejka jest pelna, a polityka to REJECT.
+	 */
+	boolean send(Frame frame, int stream) throws InterruptedException{
+
+		if(!isAccepting())
+			return false;
+		RingBuffer<Frame> queue = streams[stream].getQueue();
+		if(!queue.put(frame))
+			return false;
+		scheduleWrite(queue.size());
+		return true;
+	}
+
+	/** Zapisuje, ze wiadomosc z dziennika wysylania nie trafila do kolejki, bo byla pelna. Gdy writer
+	 *  oprozni kolejki, wysyla ponownie niepotwierdzone wiadomosci od najmniejszego takiego numeru
+	 *  (zob. Model.resendDropped()) - bez tego wiadomosc czekalaby na ponowne polaczenie.
+	 *  Moze byc wywolywane z dowolnego watku.
+	 * @param sequence Numer porzuconej wiadomosci.
+	 */
+	void resendLater(long sequence){
+
+		long from;
+		do {
+			from = resendFrom.get();
+			if(from != 0 && from <= sequence)
+				break;
+		} while(!resendFrom.compareAndSet(from, sequence));
+		if(writeScheduled.compareAndSet(false, true))
+			loop.execute(enableWrite);
+	}
+
+	/** Wstawia ramke do kolejki strumienia, jesli jest w niej miejsce - bez czekania i bez stosowania
+	 *  polityki kolejki. Dla ramek wysylanych z petli zdarzen, ktora nie moze czekac na inne polaczenie.
+	 *  Moze byc wywolywane z dowolnego watku.
+	 * @param frame Ramka do wyslania.
+	 * @param stream Identyfikator strumienia z kolejka.
+	 * @return false jesli kolejka jest pelna lub polaczenie jest oprozniane lub zamkniete.
+	 */
+	boolean offer(Frame frame, int stream){
+
+		if(!isAccepting())
+			return false;
+		RingBuffer<Frame> queue = streams[stream].getQueue();
+		if(!queue.offer(frame))
+			return false;
+		scheduleWrite(queue.size());
+		return true;
+	}
+
+	/** Planuje wlaczenie zapisu po wstawieniu ramki do kolejki.
+	 * @param n Liczba ramek w kolejce po wstawieniu.
+	 */
+	private void scheduleWrite(int n){
+
+		int maxBatch = model.getMaxBatchSize();
+		if(writeScheduled.compareAndSet(false, true)){
+			long linger = model.getMaxLingerMillis();
+			if(linger > 0 && n < maxBatch)
+				loop.schedule(enableWrite, linger);
+			else
+				loop.execute(enableWrite);
+		}
+		else if(n == maxBatch)
+			loop.execute(enableWrite);
+	}
+
+	/** Rozpoczyna wysylanie pliku: wysyla oferte i czeka na odpowiedz peer'a.
+	 *  Moze byc wywolywane z dowolnego watku.
+	 * @param transfer Przesylanie utworzone przez FileTransfer.outgoing().
+	 */
+	void sendFile(final FileTransfer transfer){
+
+		loop.execute(new Runnable(){
+			public void run(){
+				if(!isAccepting() || findOutgoing(transfer.getId()) != null){
+					model.updateLog(Log.Level.WARN, "Plik " + transfer.getName() + " nie zostanie wyslany do " + peer + ".");
+					transfer.fail();
+					return;
+				}
+				outgoing.add(transfer);
+				control(transfer.offer());
+			}
+		});
+	}
+
+	public void handle(SelectionKey _key){
+
+		if(_key.isValid() && _key.isReadable()){
+			lastReceived = System.nanoTime();
+			onReadable();
+		}
+		if(_key.isValid() && _key.isWritable())
+			onWritable();
+		if(tls != null && state.get() == State.CONNECTING && tls.isEstablished())
+			state.compareAndSet(State.CONNECTING, State.OPEN);
+	}
+
+	/** Zamyka polaczenie po nieoczekiwanym bledzie w handle(), np. przy ramce, ktorej nie obsluzono poprawnie. */
+	public void failed(RuntimeException e){
+		close();
+	}
+
+	/** Czyta z kanalu wszystko co jest dostepne i dekoduje kompletne ramki. Przy TLS czyta dalej, dopoki
+	 *  w buforach TLS sa rekordy, i wlacza zapis, jesli wymaga tego uzgadnianie.
+	 */
+	private void onReadable(){
+
+		while(receive()){
+			if(tls == null || readPaused)
+				return;
+			if(tls.takeWantsWrite())
+				requestWrite();
+			if(!tls.hasBufferedInput())
+				return;
+		}
+	}
+
+	/** Czyta z kanalu do bufora odczytu i dekoduje kompletne ramki.
+	 * @return false jesli polaczenie zostalo zamkniete.
+	 */
+	private boolean receive(){
+
+		int n;
+		try {
+			ByteBuffer dst = largeFrame != null ? largeFrame : readBuffer;
+			n = tls != null ? tls.read(dst) : channel.read(dst);
+		} catch (SSLException e) {
+			model.updateLog(Log.Level.ERROR, "Blad TLS w polaczeniu z " + peer + ": " + e.getMessage());
+			n = -1;
+		} catch (IOException e) {
+			n = -1;
+		}
+		if(n < 0){
+			if(!isClosed() && !outputShutdown)
+				model.updateLog("Rozlaczono po drugiej stronie...");
+			close();
+			return false;
+		}
+		metrics.read(n);
+		if(largeFrame != null){
+			if(!largeFrame.hasRemaining()){
+				largeFrame.flip();
+				onFrame(largeType, largeFlags, largeFrame);
+				largeFrame = null;
+			}
+			return !isClosed();
+		}
+		return decode();
+	}
+
+	/** Dekoduje kompletne ramki z bufora odczytu. Konczy, gdy czytanie zostanie wstrzymane - ramka,
+	 *  na ktora zabraklo zetonu, zostaje w buforze.
+	 * @return false jesli polaczenie zostalo zamkniete.
+	 */
+	private boolean decode(){
+
+		readBuffer.flip();
+		while(readBuffer.remaining() >= Frame.HEADER_SIZE && !isClosed()){
+			int start = readBuffer.position();
+			int length = readBuffer.getInt(start);
+			if(length < 0 || length > Frame.MAX_PAYLOAD){
+				model.updateLog(Log.Level.ERROR, "Bledna ramka od " + peer + ".");
+				readBuffer.clear();
+				close();
+				return false;
+			}
+			byte type = readBuffer.get(start + 4);
+			byte flags = readBuffer.get(start + 5);
+			boolean large = Frame.HEADER_SIZE + length > readBuffer.capacity();
+			if(!large && readBuffer.remaining() < Frame.HEADER_SIZE + length)
+				break;
+			if(type == Frame.MESSAGE && !admit(flags)){
+				pauseReading();
+				break;
+			}
+			if(large){
+				// ramka nie zmiesci sie w buforze - reszte czytamy bezposrednio do docelowej tablicy
+				readBuffer.position(start + Frame.HEADER_SIZE);
+				largeFrame = ByteBuffer.allocate(length);
+				largeType = type;
+				largeFlags = flags;
+				int copy = Math.min(readBuffer.remaining(), length);
+				largeFrame.put(0, readBuffer, readBuffer.position(), copy);
+				largeFrame.position(copy);
+				readBuffer.position(readBuffer.position() + copy);
+				if(!largeFrame.hasRemaining()){
+					largeFrame.flip();
+					onFrame(largeType, largeFlags, largeFrame);
+					largeFrame = null;
+				}
+				continue;
+			}
+			int end = start + Frame.HEADER_SIZE + length;
+			int limit = readBuffer.limit();
+			readBuffer.position(start + Frame.HEADER_SIZE).limit(end);
+			onFrame(type, flags, readBuffer);
+			readBuffer.limit(limit).position(end);
+		}
+		if(isClosed())
+			return false;
+		readBuffer.compact();
+		return true;
+	}
+
+	/** Obsluguje odebrana ramke. Dane sa wazne tylko w czasie wywolania.
+	 * @param type Typ ramki.
+	 * @param flags Flagi ramki.
+	 * @param payload Dane ramki (position..limit).
+	 */
+	private void onFrame(byte type, byte flags, ByteBuffer payload){
+
+		if((flags & Frame.COMPRESSED) != 0){
+			try {
+				if(compressor == null)
+					throw new DataFormatException("kompresja wylaczona");
+				payload = ByteBuffer.wrap(compressor.decompress(payload, (flags & Frame.DICTIONARY) != 0));
+			} catch (DataFormatException e) {
+				model.updateLog(Log.Level.ERROR, "Bledna skompresowana ramka od " + peer + ": " + e.getMessage());
+				close();
+				return;
+			}
+			flags &= ~(Frame.COMPRESSED | Frame.DICTIONARY);
+		}
+		if(type != Frame.PING && type != Frame.PONG)
+			lastActivity = System.nanoTime();
+		switch(type){
+		case Frame.MESSAGE:
+			// nadawca liczy wiadomosc podzielona na fragmenty raz, przy pierwszym fragmencie
+			if(((flags & Frame.FRAGMENT) == 0 || fragments == null) && !consumeCredit())
+				return;
+			byte[] bytes;
+			boolean reliable = (flags & Frame.RELIABLE) != 0;
+			if(reliable){
+				if(payload.remaining() < 8 && (flags & Frame.FRAGMENT) == 0){
+					model.updateLog(Log.Level.ERROR, "Bledna wiadomosc od " + peer + ".");
+					close();
+					return;
+				}
+				flags &= ~Frame.RELIABLE;
+			}
+			if((flags & Frame.FRAGMENT) != 0){
+				if(!appendFragment(payload)){
+					model.updateLog(Log.Level.ERROR, "Zbyt duza wiadomosc od " + peer + ".");
+					close();
+					return;
+				}
+				if((flags & Frame.MORE) != 0)
+					break;
+				if(reliable){
+					if(fragmentLength < 8){
+						model.updateLog(Log.Level.ERROR, "Bledna wiadomosc od " + peer + ".");
+						close();
+						return;
+					}
+					if(!received(ByteBuffer.wrap(fragments).getLong())){
+						fragments = null;
+						fragmentLength = 0;
+						break;
+					}
+					bytes = Arrays.copyOfRange(fragments, 8, fragmentLength);
+				}
+				else
+					bytes = fragmentLength == fragments.length ? fragments : Arrays.copyOf(fragments, fragmentLength);
+				fragments = null;
+				fragmentLength = 0;
+				flags &= ~(Frame.FRAGMENT | Frame.MORE);
+			}
+			else if(reliable){
+				int position = payload.position();
+				if(!received(payload.getLong(position)))
+					break;
+				payload.position(position + 8);
+				bytes = bytes(payload);
+				payload.position(position);
+			}
+			else
+				bytes = bytes(payload);
+			metrics.messageIn();
+			if((flags & Frame.ROOM) != 0){
+				int length = bytes.length == 0 ? -1 : bytes[0] & 0xFF;
+				if(length < 0 || bytes.length < 1 + length){
+					model.updateLog(Log.Level.ERROR, "Bledna wiadomosc do pokoju od " + peer + ".");
+					close();
+					return;
+				}
+				String room = new String(bytes, 1, length, StandardCharsets.UTF_8);
+				model.roomMessageReceived(room, new Message(peer + " @" + room, ++receivedSequence,
+					System.currentTimeMillis(), Arrays.copyOfRange(bytes, 1 + length, bytes.length),
+					(byte) (flags & ~Frame.ROOM)));
+				break;
+			}
+			model.messageReceived(new Message(peer, ++receivedSequence, System.currentTimeMillis(),
+				bytes, flags));
+			break;
+		case Frame.HELLO:
+			onHello(payload);
+			break;
+		case Frame.FILE_OFFER:
+			onFileOffer(payload);
+			break;
+		case Frame.FILE_ACCEPT:
+			onFileAccept(payload);
+			break;
+		case Frame.FILE_CHUNK:
+			onFileChunk(payload);
+			break;
+		case Frame.FILE_ACK:
+			onFileAck(payload);
+			break;
+		case Frame.FILE_CANCEL:
+			onFileCancel(payload);
+			break;
+		case Frame.ACK:
+			onAck(payload);
+			break;
+		case Frame.ROOM_JOIN:
+			model.roomJoined(this, new String(bytes(payload), StandardCharsets.UTF_8));
+			break;
+		case Frame.ROOM_LEAVE:
+			model.roomLeft(this, new String(bytes(payload), StandardCharsets.UTF_8));
+			break;
+		case Frame.GOSSIP:
+			if(peerNode != 0 && !model.getRouter().onGossip(this, payload)){
+				model.updateLog(Log.Level.ERROR, "Bledna plotka od " + peer + ".");
+				close();
+			}
+			break;
+		case Frame.ROUTED:
+			if(!model.getRouter().onRouted(this, payload)){
+				model.updateLog(Log.Level.ERROR, "Bledna wiadomosc trasowana od " + peer + ".");
+				close();
+			}
+			break;
+		case Frame.CREDIT:
+			onCredit(payload);
+			break;
+		case Frame.PING:
+		case Frame.PONG:
+			if(payload.remaining() != 8){
+				model.updateLog(Log.Level.ERROR, "Bledne bicie serca od " + peer + ".");
+				close();
+				return;
+			}
+			if(type == Frame.PING)
+				control(Frame.heartbeat(Frame.PONG, payload.getLong(payload.position())));
+			else
+				onPong(payload.getLong(payload.position()));
+			break;
+		default:
+			model.updateLog(Log.Level.WARN, "Nieznany typ ramki " + type + " od " + peer + ".");
+		}
+	}
+
+	/** Dopisuje fragment duzej wiadomosci do bufora skladania. Fragmenty jednej wiadomosci przychodza
+	 *  kolejno - strumien BULK nadawcy wysyla nastepna wiadomosc dopiero po ostatnim fragmencie poprzedniej.
+	 * @param payload Dane fragmentu.
+	 * @return false jesli wiadomosc przekracza Frame.MAX_PAYLOAD.
+	 */
+	private boolean appendFragment(ByteBuffer payload){
+
+		int n = payload.remaining();
+		if(fragmentLength + n > Frame.MAX_PAYLOAD)
+			return false;
+		if(fragments == null)
+			fragments = new byte[Math.max(4 * n, 64 * 1024)];
+		else if(fragmentLength + n > fragments.length)
+			fragments = Arrays.copyOf(fragments, Math.max(fragmentLength + n, Math.min(2 * fragments.length, Frame.MAX_PAYLOAD)));
+		payload.get(payload.position(), fragments, fragmentLength, n);
+		fragmentLength += n;
+		return true;
+	}
+
+	/** Zapisuje odebranie wiadomosci z flaga RELIABLE i planuje jej potwierdzenie. Potwierdzenia
+	 *  zbierane sa w przedzialy i wysylane jedna ramka ACK po ACK_BATCH wiadomosciach lub po
+	 *  ACK_DELAY_MILLIS. Powtorzenia tez sa potwierdzane - poprzednie potwierdzenie moglo nie dotrzec.
+	 * @param sequence Numer wiadomosci w dzienniku nadawcy.
+	 * @return false jesli wiadomosc zostala juz odebrana i nalezy ja pominac.
+	 */
+	private boolean received(long sequence){
+
+		int last = 2 * (ackCount - 1);
+		if(ackCount > 0 && sequence == ackRanges[last + 1] + 1)
+			ackRanges[last + 1] = sequence;
+		else{
+			if(ackCount == MAX_ACK_RANGES)
+				sendAcks();
+			ackRanges[2 * ackCount] = sequence;
+			ackRanges[2 * ackCount + 1] = sequence;
+			ackCount++;
+		}
+		if(++ackPending >= ACK_BATCH)
+			sendAcks();
+		else if(!ackScheduled){
+			ackScheduled = true;
+			loop.schedule(flushAcks, ACK_DELAY_MILLIS);
+		}
+		if(peerNode != 0 && !model.received(peerNode, sequence)){
+			model.getMetricsRegistry().duplicate();
+			return false;
+		}
+		return true;
+	}
+
+	/** Wysyla zebrane potwierdzenia. Wywolywane tylko w watku petli. */
+	private void sendAcks(){
+
+		if(ackCount == 0)
+			return;
+		// zamkniete polaczenie nie wysle juz potwierdzen - zakresy sa porzucane, by nie przepelnic ackRanges
+		if(!isClosed())
+			control(Frame.ack(ackRanges, ackCount));
+		ackCount = 0;
+		ackPending = 0;
+	}
+
+	/** Przyjmuje potwierdzenie wiadomosci wyslanych z dziennika Modelu.
+	 * @param payload Dane ramki ACK.
+	 */
+	private void onAck(ByteBuffer payload){
+
+		int position = payload.position();
+		if(payload.remaining() < 2 || payload.remaining() != 2 + 16 * (payload.getShort(position) & 0xFFFF)){
+			model.updateLog(Log.Level.WARN, "Bledna ramka ACK od " + peer + ".");
+			close();
+			return;
+		}
+		int count = payload.getShort(position) & 0xFFFF;
+		if(peerNode == 0)
+			return;
+		for(int i = 0; i < count; i++)
+			model.acknowledged(peerNode, payload.getLong(position + 2 + 16 * i), payload.getLong(position + 10 + 16 * i));
+	}
+
+	/** Obsluguje powitanie peer'a: wlacza kompresje, jesli obie strony ja maja, oraz slownik,
+	 *  jesli obie strony maja ten sam. Identyfikator wezla peer'a przekazywany jest Modelowi,
+	 *  ktory wysyla ponownie niepotwierdzone wiadomosci.
+	 * @param payload Dane ramki HELLO.
+	 */
+	private void onHello(ByteBuffer payload){
+
+		if(payload.remaining() < 6){
+			model.updateLog(Log.Level.WARN, "Bledne powitanie od " + peer + ".");
+			close();
+			return;
+		}
+		int position = payload.position();
+		byte capabilities = payload.get(position + 1);
+		int peerDictionaryId = payload.getInt(position + 2);
+		if(compressor != null && (capabilities & Compressor.DEFLATE) != 0){
+			compress = true;
+			compressor.setUseDictionary(dictionaryId != 0 && peerDictionaryId == dictionaryId);
+		}
+		if(payload.remaining() >= 14 && payload.getLong(position + 6) != 0){
+			peerNode = payload.getLong(position + 6);
+			model.peerIdentified(this, peerNode);
+		}
+		peerFlowControl = (capabilities & Frame.FLOW_CONTROL) != 0;
+		if(!peerFlowControl){
+			sendCredits = -1;
+			requestWrite();
+		}
+		else if(creditWindow > Frame.INITIAL_CREDITS){
+			// peer zaczyna z INITIAL_CREDITS - reszte przydzialu dostaje od razu
+			receiveCredits += creditWindow - Frame.INITIAL_CREDITS;
+			control(Frame.credit(creditWindow - Frame.INITIAL_CREDITS));
+		}
+	}
+
+	/** Odlicza wiadomosc od peer'a, ktory nie przestrzega przydzialow (lub nie przyslal jeszcze HELLO),
+	 *  w wiadrze zetonow. Wiadomosc podzielona na fragmenty liczona jest raz, jak w consumeCredit().
+	 * @param flags Flagi ramki MESSAGE.
+	 * @return false jesli zabraklo zetonu - ramka czeka w buforze odczytu.
+	 */
+	private boolean admit(byte flags){
+
+		if(peerFlowControl || rateLimiter == null || ((flags & Frame.FRAGMENT) != 0 && fragments != null))
+			return true;
+		return rateLimiter.take(1) == 1;
+	}
+
+	/** Przestaje czytac od peer'a do czasu, az w wiadrze bedzie zeton - zbyt szybki peer bez przydzialow
+	 *  czeka w buforach TCP, nie zajmujac pamieci ani petli zdarzen. */
+	private void pauseReading(){
+
+		readPaused = true;
+		model.getMetricsRegistry().throttled();
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		loop.schedule(resumeReading, rateLimiter.millisUntil(1));
+	}
+
+	/** Dekoduje ramki czekajace w buforze odczytu i wznawia czytanie, chyba ze znow zabraknie zetonu. */
+	private void resumeReading(){
+
+		readPaused = false;
+		if(isClosed() || !decode() || readPaused)
+			return;
+		key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		if(tls != null && tls.hasBufferedInput())
+			onReadable();
+	}
+
+	/** Zapisuje odebranie wiadomosci w przydziale peer'a i oddaje przydzial, gdy uzbiera sie go
+	 *  creditWindow / 4 - peer dostaje nowy przydzial, zanim wyczerpie poprzedni.
+	 * @return false jesli peer przekroczyl przydzial - polaczenie jest zamykane.
+	 */
+	private boolean consumeCredit(){
+
+		if(!peerFlowControl)
+			return true;
+		if(--receiveCredits < 0){
+			model.updateLog(Log.Level.ERROR, "Peer " + peer + " przekroczyl przydzial wiadomosci - rozlaczam.");
+			close();
+			return false;
+		}
+		if(++ungranted >= creditWindow / 4)
+			grant();
+		return true;
+	}
+
+	/** Oddaje peer'owi przydzial za odebrane wiadomosci - tyle, na ile pozwala wiadro zetonow. Reszta
+	 *  czeka na zetony; peer, ktory wyczerpie przydzial, wstrzymuje wiadomosci do tego czasu.
+	 */
+	private void grant(){
+
+		if(grantScheduled || ungranted == 0 || isClosed())
+			return;
+		int n = rateLimiter == null ? ungranted : rateLimiter.take(ungranted);
+		if(n > 0){
+			ungranted -= n;
+			receiveCredits += n;
+			control(Frame.credit(n));
+		}
+		if(ungranted > 0){
+			grantScheduled = true;
+			model.getMetricsRegistry().throttled();
+			loop.schedule(grantCredits, rateLimiter.millisUntil(ungranted));
+		}
+	}
+
+	/** Obsluguje przydzial od peer'a i wznawia wysylanie wiadomosci.
+	 * @param payload Dane ramki CREDIT.
+	 */
+	private void onCredit(ByteBuffer payload){
+
+		int credits = payload.remaining() == 4 ? payload.getInt(payload.position()) : -1;
+		if(credits <= 0 || sendCredits < 0){
+			model.updateLog(Log.Level.ERROR, "Bledny przydzial od " + peer + ".");
+			close();
+			return;
+		}
+		sendCredits = (int) Math.min(Integer.MAX_VALUE, (long) sendCredits + credits);
+		creditStalled = false;
+		requestWrite();
+	}
+
+	/** Zwraca liczbe wiadomosci, ktore mozemy jeszcze wyslac.
+	 * @return Przydzial lub -1, jesli peer nie uzywa przydzialow.
+	 */
+	int getSendCredits(){
+		return sendCredits;
+	}
+
+	/** Zwraca liczbe wiadomosci, ktore peer moze jeszcze wyslac.
+	 * @return Przydzial lub -1, jesli peer nie uzywa przydzialow.
+	 */
+	int getReceiveCredits(){
+		return peerFlowControl ? receiveCredits : -1;
+	}
+
+	/** Obsluguje oferte pliku: przygotowuje plik czesciowy i odpowiada FILE_ACCEPT. Otwarcie pliku
+	 *  i policzenie sumy kontrolnej wznawianego poczatku odbywa sie poza petla zdarzen.
+	 * @param payload Dane ramki FILE_OFFER.
+	 */
+	private void onFileOffer(ByteBuffer payload){
+
+		if(payload.remaining() < 16){
+			model.updateLog(Log.Level.WARN, "Bledna ramka FILE_OFFER od " + peer + ".");
+			close();
+			return;
+		}
+		int position = payload.position();
+		final long id = payload.getLong(position);
+		final long size = payload.getLong(position + 8);
+		byte[] bytes = new byte[payload.remaining() - 16];
+		payload.get(position + 16, bytes);
+		final String name = new String(bytes, StandardCharsets.UTF_8);
+		final File directory = model.getDownloadDirectory();
+		model.execute(new Runnable(){
+			public void run(){
+				try {
+					final FileTransfer transfer = FileTransfer.incoming(directory, id, name, size);
+					final int checksum = transfer.checksum(transfer.getTransferred());
+					loop.execute(new Runnable(){
+						public void run(){
+							if(isClosed()){
+								transfer.fail();
+								return;
+							}
+							FileTransfer previous = incoming.put(id, transfer);
+							if(previous != null)
+								previous.fail();
+							model.updateLog("Odbieram plik " + transfer.getName() + " (" + size + " B) od " + peer
+								+ (transfer.getTransferred() > 0 ? ", wznawiam od " + transfer.getTransferred() : "") + ".");
+							control(transfer.accept(checksum));
+							if(transfer.isComplete())
+								completeIncoming(transfer);
+						}
+					});
+				} catch (IOException e) {
+					model.updateLog(Log.Level.ERROR, "Nie mozna odebrac pliku " + name + " od " + peer + ": " + e.getMessage());
+					loop.execute(new Runnable(){
+						public void run(){
+							control(FileTransfer.cancel(id));
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/** Obsluguje przyjecie pliku przez peer'a. Pierwsze FILE_ACCEPT rozpoczyna wysylanie - suma kontrolna
+	 *  wznawianego poczatku liczona jest poza petla zdarzen. Kolejne cofaja wysylanie.
+	 * @param payload Dane ramki FILE_ACCEPT.
+	 */
+	private void onFileAccept(ByteBuffer payload){
+
+		if(payload.remaining() != 20){
+			model.updateLog(Log.Level.WARN, "Bledna ramka FILE_ACCEPT od " + peer + ".");
+			close();
+			return;
+		}
+		int position = payload.position();
+		final FileTransfer transfer = findOutgoing(payload.getLong(position));
+		if(transfer == null)
+			return;
+		final long offset = payload.getLong(position + 8);
+		final int checksum = payload.getInt(position + 16);
+		if(transfer.getState() == FileTransfer.State.ACTIVE){
+			transfer.rewind(offset);
+			model.updateLog(Log.Level.WARN, "Bledny kawalek pliku " + transfer.getName() + ", ponawiam od " + offset + ".");
+			requestWrite();
+			return;
+		}
+		model.execute(new Runnable(){
+			public void run(){
+				int local = 0;
+				try {
+					if(offset > 0 && offset <= transfer.getSize())
+						local = transfer.checksum(offset);
+				} catch (IOException e) {
+					local = ~checksum;
+				}
+				final int localChecksum = local;
+				loop.execute(new Runnable(){
+					public void run(){
+						if(transfer.getState() != FileTransfer.State.OFFERED)
+							return;
+						boolean resumed = transfer.start(offset, checksum, localChecksum);
+						model.updateLog("Wysylam plik " + transfer.getName() + " do " + peer
+							+ (resumed ? ", wznawiam od " + offset : "") + ".");
+						if(transfer.acknowledged(transfer.getTransferred()))
+							outgoingDone(transfer);
+						requestWrite();
+					}
+				});
+			}
+		});
+	}
+
+	/** Zapisuje kawalek odbieranego pliku wprost z bufora odczytu.
+	 * @param payload Dane ramki FILE_CHUNK.
+	 */
+	private void onFileChunk(ByteBuffer payload){
+
+		if(payload.remaining() < FileTransfer.CHUNK_PREFIX){
+			model.updateLog(Log.Level.WARN, "Bledna ramka FILE_CHUNK od " + peer + ".");
+			close();
+			return;
+		}
+		int position = payload.position();
+		FileTransfer transfer = incoming.get(payload.getLong(position));
+		if(transfer == null)
+			return;
+		long offset = payload.getLong(position + 8);
+		int checksum = payload.getInt(position + 16);
+		payload.position(position + FileTransfer.CHUNK_PREFIX);
+		try {
+			long before = transfer.getTransferred();
+			if(!transfer.write(offset, checksum, payload)){
+				control(transfer.accept(0));
+				return;
+			}
+			model.getMetricsRegistry().fileBytesIn(transfer.getTransferred() - before);
+			if(transfer.isComplete())
+				completeIncoming(transfer);
+			else if(transfer.takeAck())
+				control(transfer.ack());
+		} catch (IOException e) {
+			model.updateLog(Log.Level.ERROR, "Blad zapisu pliku " + transfer.getName() + ": " + e.getMessage());
+			incoming.remove(transfer.getId());
+			transfer.fail();
+			model.getMetricsRegistry().fileFinished(false);
+			control(FileTransfer.cancel(transfer.getId()));
+		} finally {
+			payload.position(position);
+		}
+	}
+
+	/** Konczy odbior pliku i wysyla ostatnie potwierdzenie.
+	 * @param transfer Odebrany w calosci plik.
+	 */
+	private void completeIncoming(FileTransfer transfer){
+
+		incoming.remove(transfer.getId());
+		transfer.takeAck();
+		control(transfer.ack());
+		try {
+			File file = transfer.complete();
+			model.getMetricsRegistry().fileFinished(true);
+			model.updateLog("Odebrano plik " + file + " od " + peer + ".");
+		} catch (IOException e) {
+			model.getMetricsRegistry().fileFinished(false);
+			model.updateLog(Log.Level.ERROR, "Nie mozna zapisac pliku " + transfer.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/** Przyjmuje potwierdzenie odebranych danych pliku.
+	 * @param payload Dane ramki FILE_ACK.
+	 */
+	private void onFileAck(ByteBuffer payload){
+
+		if(payload.remaining() != 16){
+			model.updateLog(Log.Level.WARN, "Bledna ramka FILE_ACK od " + peer + ".");
+			close();
+			return;
+		}
+		int position = payload.position();
+		FileTransfer transfer = findOutgoing(payload.getLong(position));
+		if(transfer == null)
+			return;
+		if(transfer.acknowledged(payload.getLong(position + 8)))
+			outgoingDone(transfer);
+		else
+			requestWrite();
+	}
+
+	/** Obsluguje przerwanie przesylania przez peer'a.
+	 * @param payload Dane ramki FILE_CANCEL.
+	 */
+	private void onFileCancel(ByteBuffer payload){
+
+		if(payload.remaining() != 8){
+			model.updateLog(Log.Level.WARN, "Bledna ramka FILE_CANCEL od " + peer + ".");
+			close();
+			return;
+		}
+		long id = payload.getLong(payload.position());
+		FileTransfer transfer = findOutgoing(id);
+		if(transfer != null)
+			outgoing.remove(transfer);
+		else
+			transfer = incoming.remove(id);
+		if(transfer == null)
+			return;
+		transfer.fail();
+		model.getMetricsRegistry().fileFinished(false);
+		model.updateLog(Log.Level.WARN, "Peer " + peer + " przerwal przesylanie pliku " + transfer.getName() + ".");
+	}
+
+	private void outgoingDone(FileTransfer transfer){
+
+		outgoing.remove(transfer);
+		model.getMetricsRegistry().fileFinished(true);
+		model.updateLog("Wyslano plik " + transfer.getName() + " do " + peer + ".");
+	}
+
+	private FileTransfer findOutgoing(long id){
+
+		for(int i = 0; i < outgoing.size(); i++)
+			if(outgoing.get(i).getId() == id)
+				return outgoing.get(i);
+		return null;
+	}
+
+	/** Zwraca kolejny plik, ktorego kawalek mozna wyslac - pliki obslugiwane sa na zmiane.
+	 * @return Przesylanie lub null jesli zadne nie czeka na wyslanie.
+	 */
+	private FileTransfer nextTransfer(){
+
+		int n = outgoing.size();
+		for(int i = 0; i < n; i++){
+			FileTransfer transfer = outgoing.get((nextOutgoing + i) % n);
+			if(transfer.ready()){
+				nextOutgoing = (nextOutgoing + i + 1) % n;
+				return transfer;
+			}
+		}
+		return null;
+	}
+
+	/** Bicie serca, wykonywane w watku petli co Model.getHeartbeatMillis(). Liczy odstepy, w ktorych od peer'a
+	 *  nic nie przyszlo - po Model.getMaxMissedBeats() zamyka polaczenie, nawet jesli zapis wciaz sie udaje
+	 *  (peer zniknal bez zamykania TCP). W przeciwnym razie wysyla PING, jesli poprzedni doczekal sie PONG.
+	 */
+	private void beat(){
+
+		beat = null;
+		long interval = model.getHeartbeatMillis();
+		if(isClosed() || interval == 0)
+			return;
+		if(lastReceived == beatReceived)
+			missedBeats++;
+		else{
+			beatReceived = lastReceived;
+			missedBeats = 0;
+		}
+		if(missedBeats >= model.getMaxMissedBeats()){
+			model.updateLog(Log.Level.WARN, "Brak odpowiedzi od " + peer + " od " + missedBeats * interval + " ms - zamykam polaczenie.");
+			model.getMetricsRegistry().heartbeatTimeout();
+			close();
+			return;
+		}
+		if(!pinging && (tls == null || tls.isEstablished())){
+			pinging = true;
+			control(Frame.heartbeat(Frame.PING, System.nanoTime()));
+		}
+		beat = model.getTimers().schedule(heartbeatDue, interval);
+	}
+
+	/** Obsluguje odpowiedz na bicie serca: wygladzony RTT wg RFC 6298 (wspolczynnik 1/8) i zmiennosc
+	 *  wg RFC 3550 (1/16 roznicy kolejnych pomiarow). Czas PING pochodzi z tego samego zegara.
+	 * @param sent Czas wyslania PING z jego danych.
+	 */
+	private void onPong(long sent){
+
+		pinging = false;
+		long rtt = System.nanoTime() - sent;
+		if(rtt < 0)
+			return;
+		model.getMetricsRegistry().rtt(rtt);
+		long srtt = smoothedRtt;
+		if(srtt < 0){
+			smoothedRtt = rtt;
+			jitter = 0;
+		}
+		else{
+			smoothedRtt = srtt + (rtt - srtt) / 8;
+			jitter = jitter + (Math.abs(rtt - lastRtt) - jitter) / 16;
+		}
+		lastRtt = rtt;
+	}
+
+	/** Zwraca wygladzony czas podrozy PING - PONG.
+	 * @return Czas w nanosekundach lub -1 przed pierwszym pomiarem.
+	 */
+	long getSmoothedRtt(){
+		return smoothedRtt;
+	}
+
+	/** Zwraca zmiennosc czasu podrozy PING - PONG.
+	 * @return Czas w nanosekundach lub -1 przed pierwszym pomiarem.
+	 */
+	long getJitter(){
+		return jitter;
+	}
+
+	/** Wstawia ramke kontrolna i wlacza OP_WRITE. Wywolywane tylko w watku petli.
+	 * @param frame Ramka do wyslania przed wiadomosciami.
+	 */
+	private void control(Frame frame){
+
+		if(!streams[Stream.CONTROL].getQueue().offer(frame)){
+			model.updateLog(Log.Level.ERROR, "Przepelniona kolejka ramek kontrolnych do " + peer + ".");
+			close();
+			return;
+		}
+		requestWrite();
+	}
+
+	/** Wlacza OP_WRITE z watku petli. */
+	private void requestWrite(){
+
+		writeScheduled.set(true);
+		enableWrite.run();
+	}
+
+	/** Sprawdza, czy jest cos do wyslania. Wywolywane tylko w watku petli.
+	 * @return true jesli czekaja ramki lub kawalki plikow.
+	 */
+	private boolean hasOutput(){
+
+		for(int i = 0; i < Stream.COUNT; i++)
+			if(ready(streams[i]))
+				return true;
+		return false;
+	}
+
+	/** Sprawdza, czy strumien ma cos do wyslania. Wywolywane tylko w watku petli.
+	 * @param stream Strumien.
+	 * @return true jesli w strumieniu czekaja ramki lub, dla FILES, plik moze wyslac kawalek.
+	 */
+	private boolean ready(Stream stream){
+
+		if(stream.getId() != Stream.FILES)
+			return stream.hasFrames() && !awaitingCredit(stream);
+		for(int i = 0; i < outgoing.size(); i++)
+			if(outgoing.get(i).ready())
+				return true;
+		return false;
+	}
+
+	/** Sprawdza, czy writer czeka na przydzial, by wyslac wiadomosc. Wywolywane tylko w watku petli.
+	 * @return true jesli przydzial sie skonczyl, a w INTERACTIVE lub BULK czeka wiadomosc.
+	 */
+	private boolean awaitingCredit(){
+		return awaitingCredit(streams[Stream.INTERACTIVE]) || awaitingCredit(streams[Stream.BULK]);
+	}
+
+	/** Sprawdza, czy nastepna ramka strumienia to wiadomosc, ktorej nie obejmuje przydzial peer'a.
+	 *  Rozpoczeta wiadomosc podzielona na fragmenty jest wysylana do konca.
+	 * @param stream Strumien.
+	 * @return true jesli strumien musi czekac na przydzial.
+	 */
+	private boolean awaitingCredit(Stream stream){
+
+		if(sendCredits != 0 || stream.getId() == Stream.CONTROL || stream.getFragmentOffset() > 0)
+			return false;
+		Frame frame = stream.peek();
+		return frame != null && frame.getType() == Frame.MESSAGE;
+	}
+
+	/** Zwraca dane ramki jako tablice. Dane duzej ramki, czytanej bezposrednio do tablicy,
+	 *  nie sa kopiowane.
+	 * @param payload Dane ramki (position..limit).
+	 * @return Tablica z danymi ramki.
+	 */
+	private static byte[] bytes(ByteBuffer payload){
+
+		if(payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0
+				&& payload.remaining() == payload.array().length)
+			return payload.array();
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(payload.position(), bytes);
+		return bytes;
+	}
+
+	/** Wysyla ze strumieni tyle, ile przyjmie kanal. Wsad (do maksymalnego rozmiaru) trafia do kanalu
+	 *  jednym zapisem zbierajacym. Gdy strumienie sie oproznia, wylacza OP_WRITE i oddaje bufor do puli.
+	 *  Przy TLS najpierw wysyla zaszyfrowane rekordy i komunikaty uzgadniania; do jego zakonczenia ramki
+	 *  czekaja w strumieniach.
+	 */
+	private void onWritable(){
+
+		if(outputShutdown){
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			return;
+		}
+		try {
+			if(tls != null && !tls.flush())
+				return;
+			while(true){
+				if(gatherCount == 0){
+					if(!hasOutput() || !established())
+						break;
+					batch();
+					if(gatherCount == 0)
+						break;
+				}
+				metrics.written(tls != null ? tls.write(gather, gatherIndex, gatherCount - gatherIndex)
+					: channel.write(gather, gatherIndex, gatherCount - gatherIndex));
+				while(gatherIndex < gatherCount && !gather[gatherIndex].hasRemaining())
+					gather[gatherIndex++] = null;
+				if(gatherIndex < gatherCount)
+					return;
+				gatherIndex = gatherCount = 0;
+				writeBuffer.clear();
+				if(!hasOutput()){
+					model.getBufferPool().release(writeBuffer);
+					writeBuffer = null;
+				}
+			}
+			if(tls != null && !tls.flush())
+				return;
+		} catch (SSLException e) {
+			model.updateLog(Log.Level.ERROR, "Blad TLS w polaczeniu z " + peer + ": " + e.getMessage());
+			close();
+			return;
+		} catch (IOException e) {
+			model.updateLog(Log.Level.ERROR, "Blad podczas wysylania wiadomosci do " + peer + ".");
+			close();
+			return;
+		}
+		if(!hasOutput() && resendFrom.get() != 0)
+			model.resendDropped(this, resendFrom.getAndSet(0));
+		if(!creditStalled && awaitingCredit()){
+			creditStalled = true;
+			model.getMetricsRegistry().creditStalled();
+		}
+		if(state.get() == State.DRAINING && gatherCount == 0 && !hasOutput() && !awaitingCredit()){
+			shutdownOutput();
+			return;
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		writeScheduled.set(false);
+		if(hasOutput() && established() && writeScheduled.compareAndSet(false, true))
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		if(tls != null && tls.hasBufferedInput())
+			onReadable();
+	}
+
+	/** Konczy oproznianie: zamyka strone zapisu (FIN, przy TLS najpierw close_notify) i zostawia odczyt, az peer
+	 *  zamknie polaczenie po swojej stronie. Zamkniecie socket'a z nieodczytanymi danymi - np. przydzialem, ktory
+	 *  peer oddal za ostatnie wiadomosci - wyslaloby RST, a peer porzucilby wiadomosci jeszcze nie odczytane
+	 *  z kanalu. Na zamkniecie przez peer'a polaczenie czeka najwyzej do terminu oprozniania.
+	 *  Wywolywane tylko w watku petli.
+	 */
+	private void shutdownOutput(){
+
+		try {
+			if(tls != null && !tls.closeOutbound())
+				return;
+			channel.shutdownOutput();
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		outputShutdown = true;
+		model.getMetricsRegistry().drained(true);
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/** Sprawdza, czy mozna wysylac ramki.
+	 * @return false do zakonczenia uzgadniania TLS.
+	 */
+	private boolean established(){
+		return tls == null || tls.isEstablished();
+	}
+
+	/** Buduje wsad z ramek wybranych przez harmonogram strumieni (zob. select()). Naglowki i male ramki
+	 *  kopiowane sa do writeBuffer, dane duzych ramek i kawalki plikow dolaczane sa do wsadu bez kopiowania.
+	 *  Duze wiadomosci strumienia BULK wysylane sa fragmentami, przeplatanymi z ramkami innych strumieni.
+	 *  Konczy na pelnym wsadzie, MAX_BATCH_BYTES bajtach, pustych strumieniach lub ramce, ktora nie miesci sie
+	 *  juz w buforze - zostaje ona w swoim strumieniu do nastepnego wsadu.
+	 */
+	private void batch(){
+
+		int maxBatch = model.getMaxBatchSize();
+		if(gather.length < 2 * maxBatch + 1)
+			gather = new ByteBuffer[2 * maxBatch + 1];
+		if(writeBuffer == null)
+			writeBuffer = model.getBufferPool().acquire();
+		segmentStart = 0;
+		bulkCompressed = false;
+		int frames = 0;
+		int messages = 0;
+		long bytes = 0;
+		long now = System.nanoTime();
+		Metrics registry = model.getMetricsRegistry();
+		Stream stream;
+		while(frames < maxBatch && bytes < MAX_BATCH_BYTES && (stream = select()) != null){
+			int wire;
+			if(stream.getId() == Stream.FILES){
+				if(writeBuffer.remaining() < FileTransfer.CHUNK_HEADER)
+					break;
+				wire = appendChunk();
+				if(wire < 0)
+					continue;
+				registry.fileBytesOut(wire - FileTransfer.CHUNK_HEADER);
+				lastActivity = now;
+			}
+			else{
+				Frame frame = stream.peek();
+				// producent zajal juz miejsce w kolejce, ale jeszcze nie wstawil ramki - onWritable() wznowi zapis
+				if(frame == null)
+					break;
+				int offset = stream.getFragmentOffset();
+				int length = frame.length() - offset;
+				byte flags = frame.getFlags();
+				if(stream.getId() == Stream.BULK && (offset > 0 || length > Stream.FRAGMENT_SIZE)){
+					flags |= Frame.FRAGMENT;
+					if(length > Stream.FRAGMENT_SIZE){
+						length = Stream.FRAGMENT_SIZE;
+						flags |= Frame.MORE;
+					}
+				}
+				ByteBuffer payload = frame.getPayload();
+				if(length < payload.remaining())
+					payload = payload.slice(payload.position() + offset, length);
+				wire = append(frame, payload, flags);
+				if(wire < 0)
+					break;
+				if(offset == 0){
+					if(frame.getType() == Frame.MESSAGE && sendCredits > 0)
+						sendCredits--;
+					long wait = now - frame.getCreated();
+					stream.started(wait);
+					registry.enqueueToWire(wait);
+					registry.streamWait(stream.getId(), wait);
+				}
+				if(stream.advance(length) && frame.getType() == Frame.MESSAGE)
+					messages++;
+				if(frame.getType() != Frame.PING && frame.getType() != Frame.PONG)
+					lastActivity = now;
+			}
+			stream.charge(wire);
+			frames++;
+			bytes += wire;
+		}
+		if(writeBuffer.position() > segmentStart)
+			gather[gatherCount++] = writeBuffer.slice(segmentStart, writeBuffer.position() - segmentStart);
+		model.getBatchStats().record(frames, bytes);
+		metrics.messagesOut(messages);
+	}
+
+	/** Wybiera strumien, z ktorego pochodzi nastepna ramka wsadu. CONTROL ma bezwzgledne pierwszenstwo.
+	 *  Pozostale strumienie obslugiwane sa po kolei (deficit round robin): strumien dostaje na runde
+	 *  przydzial waga * Stream.QUANTUM bajtow i wysyla, dopoki go nie wyczerpie; nadwyzke oddaje w nastepnej
+	 *  rundzie. Pusty strumien traci niewykorzystany przydzial.
+	 * @return Strumien lub null jesli nie ma nic do wyslania.
+	 */
+	private Stream select(){
+
+		if(streams[Stream.CONTROL].hasFrames())
+			return streams[Stream.CONTROL];
+		boolean any = false;
+		for(int i = Stream.INTERACTIVE; i < Stream.COUNT && !any; i++)
+			any = ready(streams[i]);
+		if(!any)
+			return null;
+		while(true){
+			Stream stream = streams[round];
+			if(ready(stream)){
+				if(!visiting){
+					visiting = true;
+					stream.refill();
+				}
+				if(stream.hasDeficit())
+					return stream;
+			}
+			else
+				stream.idle();
+			visiting = false;
+			round = round == Stream.COUNT - 1 ? Stream.INTERACTIVE : round + 1;
+		}
+	}
+
+	/** Dopisuje ramke lub jej fragment do wsadu. Dane od Model.getCompressionThreshold() bajtow sa kompresowane:
+	 *  wprost do writeBuffer, jesli jest w nim miejsce na dane bez kompresji, lub do bufora kompresora,
+	 *  ktory moze byc uzyty tylko raz na wsad. Dane wieksze niz 1/4 bufora dolaczane sa bez kopiowania.
+	 * @param frame Ramka - zrodlo typu naglowka.
+	 * @param payload Dane ramki lub fragmentu (position..limit); bufor nie jest zmieniany.
+	 * @param flags Flagi ramki.
+	 * @return Liczba bajtow na drodze razem z naglowkiem lub -1 jesli ramka nie zmiesci sie juz w tym wsadzie.
+	 */
+	private int append(Frame frame, ByteBuffer payload, byte flags){
+
+		int length = payload.remaining();
+		int start = writeBuffer.position();
+		boolean fits = writeBuffer.remaining() >= Frame.HEADER_SIZE + length;
+		boolean zeroCopy = length > writeBuffer.capacity() / 4;
+		if(compress && length >= compressionThreshold){
+			if(fits){
+				writeBuffer.position(start + Frame.HEADER_SIZE);
+				if(compressor.compress(payload, writeBuffer)){
+					int wire = writeBuffer.position() - start - Frame.HEADER_SIZE;
+					frame.writeHeader(writeBuffer, start, wire, compressedFlags(flags));
+					model.getMetricsRegistry().compressed(length, wire);
+					return Frame.HEADER_SIZE + wire;
+				}
+				writeBuffer.position(start);
+			}
+			else if(zeroCopy && writeBuffer.remaining() >= Frame.HEADER_SIZE){
+				if(bulkCompressed)
+					return -1;
+				ByteBuffer data = compressor.compress(payload);
+				if(data != null){
+					bulkCompressed = true;
+					frame.writeHeader(writeBuffer, start, data.remaining(), compressedFlags(flags));
+					writeBuffer.position(start + Frame.HEADER_SIZE);
+					model.getMetricsRegistry().compressed(length, data.remaining());
+					flushSegment();
+					gather[gatherCount++] = data;
+					return Frame.HEADER_SIZE + data.remaining();
+				}
+			}
+		}
+		if(zeroCopy){
+			if(writeBuffer.remaining() < Frame.HEADER_SIZE)
+				return -1;
+			frame.writeHeader(writeBuffer, start, length, flags);
+			writeBuffer.position(start + Frame.HEADER_SIZE);
+			flushSegment();
+			gather[gatherCount++] = payload.duplicate();
+			return Frame.HEADER_SIZE + length;
+		}
+		if(!fits)
+			return -1;
+		frame.writeHeader(writeBuffer, start, length, flags);
+		writeBuffer.put(start + Frame.HEADER_SIZE, payload, payload.position(), length);
+		writeBuffer.position(start + Frame.HEADER_SIZE + length);
+		return Frame.HEADER_SIZE + length;
+	}
+
+	/** Dopisuje do wsadu kawalek kolejnego wysylanego pliku.
+	 * @return Liczba bajtow na drodze razem z naglowkiem lub -1 jesli odczyt pliku sie nie powiodl.
+	 */
+	private int appendChunk(){
+
+		FileTransfer transfer = nextTransfer();
+		ByteBuffer data;
+		try {
+			data = transfer.nextChunk(writeBuffer);
+		} catch (IOException e) {
+			model.updateLog(Log.Level.ERROR, "Blad odczytu pliku " + transfer.getName() + ": " + e.getMessage());
+			outgoing.remove(transfer);
+			transfer.fail();
+			model.getMetricsRegistry().fileFinished(false);
+			control(FileTransfer.cancel(transfer.getId()));
+			return -1;
+		}
+		flushSegment();
+		gather[gatherCount++] = data;
+		return FileTransfer.CHUNK_HEADER + data.remaining();
+	}
+
+	/** Dolacza do wsadu zapisana dotad czesc writeBuffer - przed danymi dolaczanymi bez kopiowania. */
+	private void flushSegment(){
+
+		gather[gatherCount++] = writeBuffer.slice(segmentStart, writeBuffer.position() - segmentStart);
+		segmentStart = writeBuffer.position();
+	}
+
+	private byte compressedFlags(byte flags){
+
+		flags |= Frame.COMPRESSED;
+		if(compressor.usesDictionary())
+			flags |= Frame.DICTIONARY;
+		return flags;
+	}
+
+	/** Zamyka polaczenie po wyslaniu ramek czekajacych w kolejkach. Od wywolania nowe ramki sa odrzucane;
+	 *  odczyt trwa dalej, wiec peer moze jeszcze potwierdzic wiadomosci. Jesli kolejki nie oproznia sie
+	 *  w zadanym czasie (wolny peer, niezakonczone uzgadnianie TLS, duzy plik), polaczenie jest zamykane
+	 *  z pozostalymi ramkami. Moze byc wywolane z dowolnego watku, wielokrotnie.
+	 * @param timeoutMillis Maksymalny czas oprozniania kolejek.
+	 * @return Zamkniecie polaczenia (getCloseFuture()).
+	 */
+	CompletableFuture<Void> drain(final long timeoutMillis){
+
+		State current = state.get();
+		while(current.compareTo(State.DRAINING) < 0 && !state.compareAndSet(current, State.DRAINING))
+			current = state.get();
+		if(current.compareTo(State.DRAINING) >= 0)
+			return closeFuture;
+		loop.schedule(new Runnable(){
+			public void run(){
+				if(state.get() != State.DRAINING)
+					return;
+				if(!outputShutdown){
+					model.updateLog(Log.Level.WARN, "Nie wyslano wszystkich ramek do " + peer + " w " + timeoutMillis + " ms - zamykam polaczenie.");
+					model.getMetricsRegistry().drained(false);
+				}
+				close();
+			}
+		}, timeoutMillis);
+		loop.execute(new Runnable(){
+			public void run(){
+				if(state.get() == State.DRAINING)
+					requestWrite();
+			}
+		});
+		return closeFuture;
+	}
+
+	/** Zamyka polaczenie od razu: wyrejestrowuje kanal z petli, zamyka socket i usuwa sesje z Modelu.
+	 *  Ramki czekajace w kolejkach sa porzucane. Moze byc wywolane z dowolnego watku, wielokrotnie.
+	 * @return Zamkniecie polaczenia (getCloseFuture()).
+	 */
+	CompletableFuture<Void> close(){
+
+		State previous = state.getAndSet(State.CLOSED);
+		if(previous == State.CLOSED)
+			return closeFuture;
+		loop.execute(new Runnable(){
+			public void run(){
+				if(key != null)
+					key.cancel();
+				if(beat != null)
+					beat.cancel();
+				if(tls != null)
+					tls.close();
+				try {
+					channel.close();
+				} catch (IOException e) {
+					model.updateLog(Log.Level.ERROR, "Blad podczas zamykania socket'a.");
+				}
+				for(int i = 0; i < Stream.COUNT; i++)
+					streams[i].clear();
+				fragments = null;
+				model.getBufferPool().release(readBuffer);
+				model.getBufferPool().release(writeBuffer);
+				readBuffer = null;
+				writeBuffer = null;
+				for(int i = 0; i < gatherCount; i++)
+					gather[i] = null;
+				gatherIndex = gatherCount = 0;
+				largeFrame = null;
+				if(compressor != null)
+					compressor.end();
+				closeTransfers();
+				model.connectionClosed(Connection.this);
+				closeFuture.complete(null);
+			}
+		});
+		return closeFuture;
+	}
+
+	/** Przerywa wszystkie przesylania plikow zamykanego polaczenia. Pliki czesciowe zostaja,
+	 *  wiec ponowne wyslanie pliku po nawiazaniu polaczenia wznowi odbior.
+	 */
+	private void closeTransfers(){
+
+		for(int i = 0; i < outgoing.size(); i++)
+			abort(outgoing.get(i));
+		for(FileTransfer transfer : incoming.values())
+			abort(transfer);
+		outgoing.clear();
+		incoming.clear();
+	}
+
+	private void abort(FileTransfer transfer){
+
+		transfer.fail();
+		model.getMetricsRegistry().fileFinished(false);
+		model.updateLog(Log.Level.WARN, "Przerwano przesylanie pliku " + transfer.getName() + " - zamknieto polaczenie z " + peer + ".");
+	}
+}
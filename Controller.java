@@ -1,5 +1,7 @@
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.beans.*;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -9,7 +11,10 @@ import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import javax.swing.*;
 
 import javax.swing.JOptionPane;
@@ -32,6 +37,25 @@ public class Controller {
 	/** Watek wyswietlajacy w View wiadomosci odebrane przez socket w Modelu. */
 	private Thread receivedMessagesThread;
 
+	/** Watek odczytu historii i wyszukiwania - odczyt z dysku nie zatrzymuje watku EDT. */
+	private final ExecutorService historyReader;
+
+	/** Numer ostatniego zleconego odczytu historii; wynik starszego odczytu jest pomijany. Dostepne tylko
+	 *  w watku EDT. */
+	private int historyRequest;
+
+	/** Minimalny odstep miedzy kolejnymi odswiezeniami listy wiadomosci (ok. 60 Hz). */
+	private static final long FRAME_MILLIS = 16;
+
+	/** Maksymalna liczba wiadomosci przekazywanych do View w jednym odswiezeniu. */
+	private static final int MAX_FRAME_MESSAGES = 4096;
+
+	/** Liczba wiadomosci wczytywanych z historii naraz. */
+	private static final int HISTORY_PAGE = 200;
+
+	/** Maksymalna liczba wyswietlanych wynikow wyszukiwania. */
+	private static final int SEARCH_RESULTS = 500;
+
 	/** Tworzy Controller polaczony z podanym Modelem i podanym View.
 	 * @param _model Referencja na Model, ktory ma byc kontrolowany przez Controller.
 	 * @param _view Referencja na View, ktore ma byc kontrolowane przez Controller. */
@@ -39,34 +63,127 @@ public class Controller {
 		
 		view = _view;
 		model = _model;
+		historyReader = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable task){
+				Thread thread = new Thread(task, "historia-widoku");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 		setListeners();
-		view.getFrame().setVisible(true);
 		receivedMessagesThread = newReceivedMessagesThread();
-		receivedMessagesThread.start();
-		view.getLogTextField().setText(model.getConnectionLog());
+		final String log = model.getConnectionLog();
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+				view.getLogTextField().setText(log);
+				view.getSearchTextField().setEnabled(model.isHistoryOpen());
+				view.getFrame().setVisible(true);
+			}
+		});
+		// najnowsza strona historii jest wyswietlana przed pierwszymi nowymi wiadomosciami
+		historyReader.execute(new Runnable(){
+			public void run(){
+				final List<Message> newest = model.getHistory(Long.MAX_VALUE, HISTORY_PAGE);
+				SwingUtilities.invokeLater(new Runnable(){
+					public void run(){
+						view.resetMessages(newest);
+						receivedMessagesThread.start();
+					}
+				});
+			}
+		});
+	}
+
+	/** 
+	 * Odczyt historii lub wyszukiwanie zlecone z watku EDT: read() wykonywane jest w watku historyReader,
+	 * a show() z wynikiem - w watku EDT, o ile w miedzyczasie nie zlecono kolejnego odczytu.
+	 * */
+	private abstract class HistoryRead implements Runnable{
+
+		private final int request = ++historyRequest;
+
+		/** Czyta wiadomosci z historii. Wywolywane w watku odczytu historii. */
+		abstract List<Message> read();
+
+		/** Wyswietla odczytane wiadomosci. Wywolywane w watku EDT. */
+		abstract void show(List<Message> messages);
+
+		public void run(){
+
+			final List<Message> messages = read();
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run(){
+					if(request == historyRequest)
+						show(messages);
+				}
+			});
+		}
 	}
 
 	/** 
 	 * Nowy watek przesylania do View wiadomosci odebranych przez socket w Modelu.
+	 * Watek czeka na pierwsza wiadomosc, zabiera wszystkie pozostale oczekujace i przekazuje je
+	 * do View jednym zadaniem w watku EDT, nie czesciej niz co FRAME_MILLIS.
 	 * @return Nowy watek przesylania do View wiadomosci odebranych przez socket w Modelu.
 	 * */
 	private Thread newReceivedMessagesThread() {
 		
 		return new Thread(
 				new Runnable(){
+					private final Message[] batch = new Message[MAX_FRAME_MESSAGES];
+					private int count;
+
+					private final Runnable print = new Runnable(){
+						public void run(){
+							view.printReceivedMessages(batch, count);
+						}
+					};
+
 					public synchronized void run(){
 						while(true){
 							try {
-								view.printReceivedMessage(model.getNextMessage());
+								batch[0] = model.getNextMessage();
+								count = 1;
+								Message msg;
+								while(count < batch.length && (msg = model.pollMessage()) != null)
+									batch[count++] = msg;
+								long start = System.nanoTime();
+								SwingUtilities.invokeAndWait(print);
+								model.messagesDisplayed(batch, count);
+								Arrays.fill(batch, 0, count, null);
+								long left = FRAME_MILLIS - (System.nanoTime() - start) / 1000000L;
+								if(left > 0)
+									Thread.sleep(left);
+							}
+							catch(InterruptedException e){
+								model.updateLog("Koncze przekazywanie wiadomosci z Modelu do Widoku.");
+								return;
+							}
+							catch(Exception e){
+								model.updateLog(Log.Level.ERROR, "Blad podczas przekazywania wiadomosci do Widoku.");
 							}
-						catch(Exception e){
-							model.updateLog("Koncze przekazywanie wiadomosci z Modelu do Widoku.");
 						}
 					}
 				}
+			);
+	}
+	/** 
+	 * Tworzy odczyt najnowszej strony historii, ktora zastapi wyswietlane wiadomosci. Wywolywane w watku EDT.
+	 * @return Odczyt do wykonania w watku odczytu historii.
+	 * */
+	private HistoryRead newNewestRead(){
+
+		return new HistoryRead(){
+			List<Message> read(){
+				return model.getHistory(Long.MAX_VALUE, HISTORY_PAGE);
 			}
-		);
+
+			void show(List<Message> newest){
+				view.resetMessages(newest);
+			}
+		};
 	}
+
 	/** 
 	 * Ustawianie sluchaczy zdarzen.
 	 * */
@@ -77,9 +194,11 @@ public class Controller {
 		final JMenuItem connectButton = view.getConnectButton();
 		final JMenuItem startListeningButton = view.getStartListeningButton();
 		final JMenuItem stopListeningButton = view.getStopListeningButton();
+		final JMenuItem sendFileButton = view.getSendFileButton();
 		final JButton applyButton = view.getApplyButton();
-		final JTextArea logTextField = view.getLogTextField();
 		final JTextArea inputTextField = view.getInputTextField();
+		final JScrollBar outputScrollBar = view.getOutputScrollBar();
+		final JTextField searchTextField = view.getSearchTextField();
 		
 		/** 
 		 * Obsluga zamkniecia aplikacji przez nacisniecie x w prawym gornym rogu.
@@ -90,7 +209,7 @@ public class Controller {
 		            "Are you sure to close this window?", "Really Closing?", 
 		            JOptionPane.YES_NO_OPTION,
 		            JOptionPane.QUESTION_MESSAGE) == JOptionPane.YES_OPTION){
-		        	model.closeConnection();
+		        	model.shutdown(1000);
 		            System.exit(0);
 		        }
 		    }
@@ -102,24 +221,35 @@ public class Controller {
 		model.changeSupport.addPropertyChangeListener("connection",
 				new PropertyChangeListener(){
 					public void propertyChange(PropertyChangeEvent event){
-						if(event.getOldValue() == null){
-							disconnectButton.setEnabled(true);
-							connectButton.setEnabled(false);
-							startListeningButton.setEnabled(false);
-							stopListeningButton.setEnabled(false);
-							applyButton.setEnabled(true);
-						}
+						if(event.getOldValue() != null)
+							return;
+						// zdarzenie przychodzi z watku petli zdarzen Modelu
+						SwingUtilities.invokeLater(new Runnable(){
+							public void run(){
+								disconnectButton.setEnabled(true);
+								connectButton.setEnabled(true);
+								startListeningButton.setEnabled(!model.isListening());
+								stopListeningButton.setEnabled(model.isListening());
+								applyButton.setEnabled(true);
+								sendFileButton.setEnabled(true);
+							}
+						});
 					}
 				}
 		);
 
 		/** 
-		 * Odswiezanie loga.
+		 * Odswiezanie loga - dopisywany jest tylko nowy wpis.
 		 * */
 		model.changeSupport.addPropertyChangeListener("log",
 			new PropertyChangeListener(){
 				public void propertyChange(PropertyChangeEvent event){
-					logTextField.setText(model.getConnectionLog());
+					final String entry = event.getNewValue().toString();
+					SwingUtilities.invokeLater(new Runnable(){
+						public void run(){
+							view.appendLog(entry);
+						}
+					});
 				}
 			}
 		);
@@ -130,13 +260,20 @@ public class Controller {
 		model.changeSupport.addPropertyChangeListener("connection",
 				new PropertyChangeListener(){
 					public void propertyChange(PropertyChangeEvent event){
-						if(event.getNewValue() == null){
-							disconnectButton.setEnabled(false);
-							connectButton.setEnabled(true);
-							startListeningButton.setEnabled(true);
-							stopListeningButton.setEnabled(false);
-							applyButton.setEnabled(false);
-						}
+						if(event.getNewValue() != null)
+							return;
+						SwingUtilities.invokeLater(new Runnable(){
+							public void run(){
+								if(model.getSessionCount() > 0)
+									return;
+								disconnectButton.setEnabled(false);
+								connectButton.setEnabled(true);
+								startListeningButton.setEnabled(!model.isListening());
+								stopListeningButton.setEnabled(model.isListening());
+								applyButton.setEnabled(false);
+								sendFileButton.setEnabled(false);
+							}
+						});
 					}
 				}
 			);
@@ -149,8 +286,8 @@ public class Controller {
 				model.closeConnection();
 				disconnectButton.setEnabled(false);
 				connectButton.setEnabled(true);
-				startListeningButton.setEnabled(true);
-				stopListeningButton.setEnabled(false);
+				startListeningButton.setEnabled(!model.isListening());
+				stopListeningButton.setEnabled(model.isListening());
 			}
 		});
 
@@ -159,17 +296,22 @@ public class Controller {
 		 * */
 		connectButton.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent arg0) {
-				String IP = JOptionPane.showInputDialog("Podaj adres");
+				String IP = JOptionPane.showInputDialog("Podaj adres[:port]");
 				try {
 					if(IP != null){
-						model.newConnection(InetAddress.getByName(IP));
+						int colon = IP.lastIndexOf(':');
+						if(colon > 0 && IP.indexOf(':') == colon)
+							model.newConnection(InetAddress.getByName(IP.substring(0, colon)),
+								Integer.parseInt(IP.substring(colon + 1).trim()));
+						else
+							model.newConnection(InetAddress.getByName(IP));
 						disconnectButton.setEnabled(true);
-						connectButton.setEnabled(false);
-						startListeningButton.setEnabled(false);
-						stopListeningButton.setEnabled(false);
+						connectButton.setEnabled(true);
+						startListeningButton.setEnabled(!model.isListening());
+						stopListeningButton.setEnabled(model.isListening());
 					}
 				}
-				catch (IOException e) {
+				catch (IOException | NumberFormatException e) {
 					JOptionPane.showMessageDialog(frame, "Nie udalo sie polaczyc do podanego adresu: " + IP);
 					//e.printStackTrace();
 				}
@@ -182,14 +324,14 @@ public class Controller {
 		startListeningButton.addActionListener(new ActionListener(){
 			public synchronized void actionPerformed(ActionEvent arg0) {
 				JOptionPane.showMessageDialog(frame, "Przechodze w tryb nasluchiwania polaczen.");
-				disconnectButton.setEnabled(false);
 				startListeningButton.setEnabled(false);
 				stopListeningButton.setEnabled(true);
-				connectButton.setEnabled(false);
 				try {
 					model.listen();
 					stopListeningButton.setEnabled(true);
 				} catch (IOException e) {
+					startListeningButton.setEnabled(true);
+					stopListeningButton.setEnabled(false);
 					JOptionPane.showMessageDialog(null, "Wystapil blad podczas nasluchiwania.");
 				}
 			}
@@ -203,19 +345,100 @@ public class Controller {
 				model.stopListening();
 				startListeningButton.setEnabled(true);
 				connectButton.setEnabled(true);
-				disconnectButton.setEnabled(false);
 				stopListeningButton.setEnabled(false);
 			}
 
 		});
 
+		/** 
+		 * Wybor pliku i wyslanie go do wszystkich peer'ow.
+		 * */
+		sendFileButton.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent arg0) {
+				JFileChooser chooser = new JFileChooser();
+				if(chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION)
+					return;
+				try {
+					model.sendFile(chooser.getSelectedFile());
+				} catch (IOException e) {
+					JOptionPane.showMessageDialog(frame, "Nie mozna otworzyc pliku: " + chooser.getSelectedFile());
+				}
+			}
+		});
+
+		/** 
+		 * Stronicowanie historii: po przewinieciu listy na poczatek wczytywana jest starsza strona,
+		 * a po przewinieciu na koniec - najnowsze wiadomosci, jesli zostaly usuniete z listy.
+		 * Strona czytana jest w watku odczytu historii.
+		 * */
+		outputScrollBar.addAdjustmentListener(new AdjustmentListener(){
+			public void adjustmentValueChanged(AdjustmentEvent event){
+				if(event.getValueIsAdjusting() || view.isSearching())
+					return;
+				if(outputScrollBar.getValue() == outputScrollBar.getMinimum() && view.getFirstMessageId() != Long.MAX_VALUE){
+					final long firstId = view.getFirstMessageId();
+					historyReader.execute(new HistoryRead(){
+						List<Message> read(){
+							return model.getHistory(firstId, HISTORY_PAGE);
+						}
+
+						void show(List<Message> older){
+							if(view.getFirstMessageId() == firstId)
+								view.prependMessages(older);
+						}
+					});
+				}
+				else if(view.isNewestDropped() && view.isScrolledToEnd())
+					historyReader.execute(newNewestRead());
+			}
+		});
+
+		/** 
+		 * Wyszukiwanie w historii po nacisnieciu Enter: lista pokazuje najnowsze pasujace wiadomosci,
+		 * a puste pole przywraca rozmowe - najnowsza strone historii. Wyszukiwanie i odczyt wynikow
+		 * odbywaja sie w watku odczytu historii.
+		 * */
+		searchTextField.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent arg0) {
+				final String query = searchTextField.getText().trim();
+				view.setSearching(!query.isEmpty());
+				if(query.isEmpty()){
+					historyReader.execute(newNewestRead());
+					return;
+				}
+				historyReader.execute(new HistoryRead(){
+					List<Message> read(){
+						return model.search(query, SEARCH_RESULTS);
+					}
+
+					void show(List<Message> results){
+						view.resetMessages(results);
+					}
+				});
+			}
+		});
+
 		/** 
 		 * Obsluga z poziomu View wyslania wiadomosci - przekazanie jej do Modelu.
+		 * Polecenia pokoi: "/join pokoj", "/leave pokoj" i "#pokoj tresc" - wiadomosc do pokoju.
 		 * */
 		applyButton.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent arg0) {
 				String message = inputTextField.getText();
-				model.sendMessage(message);
+				int space = message.indexOf(' ');
+				try {
+					if(message.startsWith("/join ") && message.length() > 6)
+						model.joinRoom(message.substring(6).trim());
+					else if(message.startsWith("/leave ") && message.length() > 7)
+						model.leaveRoom(message.substring(7).trim());
+					else if(message.startsWith("#") && space > 1)
+						model.sendToRoom(message.substring(1, space), message.substring(space + 1));
+					else
+						model.sendMessage(message);
+				} catch (IllegalArgumentException e) {
+					JOptionPane.showMessageDialog(frame, e.getMessage());
+					return;
+				}
 				inputTextField.setText("");
 			}
 		});
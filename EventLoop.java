@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Petla zdarzen oparta na Selector'ze. Jeden watek obsluguje wejscie i wyjscie wielu polaczen naraz,
+ * dzieki czemu liczba watkow nie zalezy od liczby podlaczonych peer'ow.
+ * Wszystkie operacje na kanalach zarejestrowanych w petli wykonywane sa w jej watku - inne watki
+ * zlecaja je przez execute() lub, z opoznieniem, przez schedule().
+ * @author Kuba Jalowiec
+ */
+class EventLoop implements Runnable{
+
+	/** Selector obslugujacy zarejestrowane kanaly. */
+	private final Selector selector;
+
+	/** Zadania zlecone przez inne watki, wykonywane w watku petli. */
+	private final Queue<Runnable> tasks;
+
+	/** Zadania opoznione, posortowane wg terminu. Dostepne tylko z watku petli. */
+	private final PriorityQueue<Delayed> timers;
+
+	/** Licznik zachowujacy kolejnosc zadan o tym samym terminie. */
+	private long timerSequence;
+
+	/** Watek petli - ustawiany przy starcie run(). */
+	private volatile Thread thread;
+
+	private final String name;
+
+	/** Model, do ktorego logu trafiaja bledy petli. */
+	private final Model model;
+
+	private volatile boolean running;
+
+	/** Tworzy petle zdarzen. Petla zaczyna dzialac po start().
+	 * @param _model Model wlasciciel petli.
+	 * @param _name Nazwa watku petli.
+	 */
+	EventLoop(Model _model, String _name) throws IOException{
+
+		model = _model;
+		name = _name;
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		timers = new PriorityQueue<Delayed>();
+		running = true;
+	}
+
+	/** Uruchamia petle w watku dostarczonym przez executor Modelu.
+	 * @param executor Executor, w ktorym petla bedzie dzialac az do shutdown().
+	 */
+	void start(Executor executor){
+		executor.execute(this);
+	}
+
+	/** Zleca wykonanie zadania w watku petli i budzi selector.
+	 * @param task Zadanie do wykonania.
+	 */
+	void execute(Runnable task){
+
+		tasks.add(task);
+		if(Thread.currentThread() != thread)
+			selector.wakeup();
+	}
+
+	/** Zleca wykonanie zadania w watku petli po uplywie podanego czasu.
+	 * @param task Zadanie do wykonania.
+	 * @param delayMillis Opoznienie w milisekundach.
+	 */
+	void schedule(final Runnable task, long delayMillis){
+
+		final long deadline = System.nanoTime() + delayMillis * 1000000L;
+		if(inLoop()){
+			timers.add(new Delayed(deadline, timerSequence++, task));
+			return;
+		}
+		execute(new Runnable(){
+			public void run(){
+				timers.add(new Delayed(deadline, timerSequence++, task));
+			}
+		});
+	}
+
+	/** Sprawdza, czy wywolanie nastepuje z watku petli.
+	 * @return true jesli biezacy watek jest watkiem petli.
+	 */
+	boolean inLoop(){
+		return Thread.currentThread() == thread;
+	}
+
+	/** Rejestruje kanal w selectorze. Musi byc wywolane w watku petli.
+	 * @param channel Kanal nieblokujacy.
+	 * @param ops Poczatkowy zbior operacji.
+	 * @param handler Obiekt obslugujacy zdarzenia kanalu.
+	 * @return Klucz rejestracji.
+	 */
+	SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException{
+		return channel.register(selector, ops, handler);
+	}
+
+	/** Zatrzymuje petle i zamyka selector. Zadania zlecone wczesniej zostana jeszcze wykonane. */
+	void shutdown(){
+
+		execute(new Runnable(){
+			public void run(){
+				running = false;
+			}
+		});
+	}
+
+	public void run(){
+
+		thread = Thread.currentThread();
+		thread.setName(name);
+		while(running){
+			try {
+				Delayed next = timers.peek();
+				if(!tasks.isEmpty())
+					selector.selectNow();
+				else if(next == null)
+					selector.select();
+				else{
+					long millis = (next.deadline - System.nanoTime() + 999999L) / 1000000L;
+					if(millis > 0)
+						selector.select(millis);
+					else
+						selector.selectNow();
+				}
+			} catch (IOException e) {
+				model.updateLog(Log.Level.ERROR, "Blad selectora: " + e.getMessage());
+				break;
+			}
+			runTasks();
+			runTimers();
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()){
+				SelectionKey key = it.next();
+				it.remove();
+				Handler handler = (Handler) key.attachment();
+				try {
+					handler.handle(key);
+				} catch (CancelledKeyException e) {
+					//kanal zostal zamkniety w trakcie obslugi - nic do zrobienia
+				} catch (RuntimeException e) {
+					// blad jednego kanalu nie moze zatrzymac petli obslugujacej pozostale
+					model.updateLog(Log.Level.ERROR, "Blad w petli zdarzen: " + e);
+					handler.failed(e);
+				}
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			model.updateLog(Log.Level.ERROR, "Blad podczas zamykania selectora.");
+		}
+	}
+
+	private void runTasks(){
+
+		Runnable task;
+		while((task = tasks.poll()) != null){
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				model.updateLog(Log.Level.ERROR, "Blad w petli zdarzen: " + e);
+			}
+		}
+	}
+
+	private void runTimers(){
+
+		long now = System.nanoTime();
+		Delayed next;
+		while((next = timers.peek()) != null && next.deadline - now <= 0){
+			timers.poll();
+			try {
+				next.task.run();
+			} catch (RuntimeException e) {
+				model.updateLog(Log.Level.ERROR, "Blad w petli zdarzen: " + e);
+			}
+		}
+	}
+
+	/** Zadanie opoznione. */
+	private static final class Delayed implements Comparable<Delayed>{
+
+		final long deadline;
+		final long sequence;
+		final Runnable task;
+
+		Delayed(long _deadline, long _sequence, Runnable _task){
+
+			deadline = _deadline;
+			sequence = _sequence;
+			task = _task;
+		}
+
+		public int compareTo(Delayed other){
+
+			long d = deadline - other.deadline;
+			if(d != 0)
+				return d < 0 ? -1 : 1;
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/** Obsluga gotowosci kanalu zarejestrowanego w petli. */
+	interface Handler{
+
+		/** Wywolywane w watku petli, gdy kanal jest gotowy do jednej z zarejestrowanych operacji.
+		 * @param key Klucz kanalu.
+		 */
+		void handle(SelectionKey key);
+
+		/** Wywolywane w watku petli, gdy handle() rzucilo wyjatek. Obiekt zamyka swoj kanal - petla
+		 *  obsluguje dalej pozostale kanaly.
+		 * @param e Wyjatek z handle().
+		 */
+		void failed(RuntimeException e);
+	}
+}
@@ -0,0 +1,383 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * Przesylanie pliku przez polaczenie z peer'em, w kawalkach przeplatanych z wiadomosciami czatu.
+ * <p>
+ * Przebieg: nadawca wysyla FILE_OFFER (identyfikator, rozmiar, nazwa). Odbiorca odpowiada FILE_ACCEPT
+ * z przesunieciem, od ktorego chce dane - dlugoscia pliku czesciowego z poprzedniej, przerwanej proby -
+ * i suma CRC32C tego poczatku. Jesli suma zgadza sie z plikiem nadawcy, przesylanie jest wznawiane,
+ * w przeciwnym razie zaczyna sie od zera. Kazdy kawalek (FILE_CHUNK) niesie przesuniecie i sume CRC32C
+ * swoich danych:
+ * <pre>
+ * | identyfikator (long) | przesuniecie (long) | CRC32C (int) | dane |
+ * </pre>
+ * Odbiorca potwierdza zapisane dane ramkami FILE_ACK; nadawca nie wysyla wiecej niz WINDOW bajtow
+ * bez potwierdzenia. Kawalek z bledna suma powoduje FILE_ACCEPT z przesunieciem ostatniego dobrego
+ * bajtu - nadawca cofa sie do niego.
+ * <p>
+ * Nadawca czyta plik przez mapowanie pamieci - kawalki sa wycinkami zmapowanego bufora, dolaczanymi
+ * do zapisu zbierajacego polaczenia bez kopiowania. Odbiorca zapisuje dane wprost z bufora odczytu
+ * polaczenia do pliku (FileChannel.write(ByteBuffer, long)).
+ * <p>
+ * Stan przesylania zmieniany jest tylko w watku petli zdarzen polaczenia, poza getState()
+ * i getTransferred(), ktore mozna czytac z dowolnego watku.
+ * @author Kuba Jalowiec
+ */
+final class FileTransfer{
+
+	/** Rozmiar danych przed danymi kawalka: identyfikator, przesuniecie, suma kontrolna. */
+	static final int CHUNK_PREFIX = 20;
+
+	/** Naglowek ramki razem z prefiksem kawalka. */
+	static final int CHUNK_HEADER = Frame.HEADER_SIZE + CHUNK_PREFIX;
+
+	/** Rozmiar danych kawalka - cala ramka miesci sie w buforze odczytu polaczenia. */
+	static final int CHUNK_SIZE = 16 * 1024 - CHUNK_HEADER;
+
+	/** Maksymalna liczba bajtow wyslanych bez potwierdzenia. */
+	static final int WINDOW = 1024 * 1024;
+
+	/** Odbiorca potwierdza dane co tyle bajtow. */
+	static final int ACK_INTERVAL = WINDOW / 4;
+
+	/** Rozmiar jednorazowo mapowanego fragmentu pliku. */
+	private static final long MAP_SEGMENT = 64L * 1024 * 1024;
+
+	enum State { OFFERED, ACTIVE, DONE, FAILED }
+
+	private final long id;
+	private final String name;
+	private final long size;
+	private final boolean outgoing;
+
+	/** Plik zrodlowy nadawcy lub plik czesciowy odbiorcy. */
+	private final File file;
+	private final FileChannel channel;
+
+	private volatile State state;
+
+	/** Nadawca: bajty potwierdzone przez odbiorce. Odbiorca: bajty zapisane do pliku. */
+	private volatile long transferred;
+
+	/** Nadawca: przesuniecie nastepnego kawalka. */
+	private long sent;
+
+	/** Nadawca: zmapowany fragment pliku i jego poczatek. */
+	private MappedByteBuffer segment;
+	private long segmentStart;
+
+	/** Odbiorca: przesuniecie ostatniego wyslanego potwierdzenia. */
+	private long acked;
+
+	private final CRC32C crc;
+
+	private FileTransfer(long _id, String _name, long _size, boolean _outgoing, File _file, FileChannel _channel){
+
+		id = _id;
+		name = _name;
+		size = _size;
+		outgoing = _outgoing;
+		file = _file;
+		channel = _channel;
+		state = State.OFFERED;
+		crc = new CRC32C();
+	}
+
+	/** Przygotowuje wysylanie pliku. Identyfikator zalezy od nazwy, rozmiaru i daty modyfikacji pliku,
+	 *  wiec ponowne wyslanie tego samego pliku wznawia przerwane przesylanie.
+	 * @param file Plik do wyslania.
+	 * @return Przesylanie w stanie OFFERED.
+	 * @throws IOException Jesli pliku nie mozna otworzyc.
+	 */
+	static FileTransfer outgoing(File file) throws IOException{
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		long size = channel.size();
+		String key = file.getName() + '/' + size + '/' + file.lastModified();
+		long id = UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+		return new FileTransfer(id, file.getName(), size, true, file, channel);
+	}
+
+	/** Przygotowuje odbior pliku do pliku czesciowego w podanym katalogu. Jesli plik czesciowy
+	 *  zostal po poprzedniej probie, odbior zostanie wznowiony od jego konca (zob. getTransferred()).
+	 * @param directory Katalog docelowy.
+	 * @param id Identyfikator przesylania.
+	 * @param name Nazwa pliku podana przez nadawce.
+	 * @param size Rozmiar pliku.
+	 * @return Przesylanie w stanie OFFERED.
+	 * @throws IOException Jesli nazwa jest niedozwolona lub pliku nie mozna utworzyc.
+	 */
+	static FileTransfer incoming(File directory, long id, String name, long size) throws IOException{
+
+		String safe = new File(name).getName();
+		if(safe.isEmpty() || safe.equals(".") || safe.equals("..") || safe.indexOf('\0') >= 0)
+			throw new IOException("niedozwolona nazwa pliku: " + name);
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("nie mozna utworzyc katalogu " + directory);
+		File part = new File(directory, safe + "." + Long.toHexString(id) + ".part");
+		FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileTransfer transfer = new FileTransfer(id, safe, size, false, part, channel);
+		// ostatni kawalek zawsze jest przesylany - odbior konczy sie po jego zapisaniu
+		long resume = Math.min(channel.size(), Math.max(size - 1, 0));
+		resume -= resume % CHUNK_SIZE;
+		channel.truncate(resume);
+		transfer.transferred = resume;
+		transfer.acked = resume;
+		return transfer;
+	}
+
+	long getId(){
+		return id;
+	}
+
+	String getName(){
+		return name;
+	}
+
+	long getSize(){
+		return size;
+	}
+
+	boolean isOutgoing(){
+		return outgoing;
+	}
+
+	State getState(){
+		return state;
+	}
+
+	/** Zwraca postep: dla nadawcy bajty potwierdzone, dla odbiorcy bajty zapisane.
+	 * @return Liczba bajtow.
+	 */
+	long getTransferred(){
+		return transferred;
+	}
+
+	/** Liczy sume CRC32C poczatku pliku. Moze trwac dlugo - wywolywane poza petla zdarzen.
+	 * @param length Dlugosc poczatku pliku.
+	 * @return Suma kontrolna.
+	 * @throws IOException Jesli odczyt sie nie powiodl.
+	 */
+	int checksum(long length) throws IOException{
+
+		CRC32C prefix = new CRC32C();
+		for(long position = 0; position < length; position += MAP_SEGMENT)
+			prefix.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SEGMENT, length - position)));
+		return (int) prefix.getValue();
+	}
+
+	/** Nadawca: rozpoczyna wysylanie po odebraniu FILE_ACCEPT.
+	 * @param offset Przesuniecie podane przez odbiorce.
+	 * @param prefixChecksum Suma kontrolna poczatku pliku u odbiorcy.
+	 * @param localChecksum Suma kontrolna tego samego poczatku u nadawcy.
+	 * @return true jesli przesylanie jest wznawiane od offset, false jesli zaczyna sie od zera.
+	 */
+	boolean start(long offset, int prefixChecksum, int localChecksum){
+
+		boolean resume = offset > 0 && offset <= size && prefixChecksum == localChecksum;
+		sent = resume ? offset : 0;
+		transferred = sent;
+		state = State.ACTIVE;
+		return resume;
+	}
+
+	/** Nadawca: sprawdza, czy mozna wyslac kolejny kawalek.
+	 * @return true jesli sa dane do wyslania i okno nie jest pelne.
+	 */
+	boolean ready(){
+		return state == State.ACTIVE && sent < size && sent - transferred < WINDOW;
+	}
+
+	/** Nadawca: zapisuje naglowek ramki i prefiks nastepnego kawalka do bufora i zwraca dane kawalka.
+	 * @param out Bufor z co najmniej CHUNK_HEADER wolnymi bajtami.
+	 * @return Wycinek zmapowanego pliku z danymi kawalka.
+	 * @throws IOException Jesli mapowanie pliku sie nie powiodlo.
+	 */
+	ByteBuffer nextChunk(ByteBuffer out) throws IOException{
+
+		if(segment == null || sent < segmentStart || sent >= segmentStart + segment.capacity()){
+			segmentStart = sent - sent % MAP_SEGMENT;
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(MAP_SEGMENT, size - segmentStart));
+		}
+		int offset = (int) (sent - segmentStart);
+		int n = Math.min(CHUNK_SIZE, segment.capacity() - offset);
+		ByteBuffer data = segment.slice(offset, n);
+		crc.reset();
+		crc.update(data);
+		data.rewind();
+		out.putInt(CHUNK_PREFIX + n);
+		out.put(Frame.FILE_CHUNK);
+		out.put((byte) 0);
+		out.putLong(id);
+		out.putLong(sent);
+		out.putInt((int) crc.getValue());
+		sent += n;
+		return data;
+	}
+
+	/** Nadawca: przyjmuje potwierdzenie odbiorcy.
+	 * @param offset Liczba bajtow zapisanych przez odbiorce.
+	 * @return true jesli caly plik zostal potwierdzony.
+	 */
+	boolean acknowledged(long offset){
+
+		if(offset > transferred && offset <= sent)
+			transferred = offset;
+		if(transferred < size)
+			return false;
+		finish(State.DONE);
+		return true;
+	}
+
+	/** Nadawca: cofa wysylanie do podanego przesuniecia po odrzuceniu kawalka przez odbiorce.
+	 * @param offset Przesuniecie ostatniego dobrego bajtu u odbiorcy.
+	 */
+	void rewind(long offset){
+
+		if(offset >= 0 && offset <= sent){
+			sent = offset;
+			transferred = Math.min(transferred, offset);
+		}
+	}
+
+	/** Odbiorca: zapisuje kawalek do pliku czesciowego. Kawalki spoza kolejnosci sa pomijane - po cofnieciu
+	 *  nadawcy nadchodza jeszcze kawalki wyslane przed nim. Kawalek od zera, gdy plik czesciowy nie jest pusty,
+	 *  oznacza, ze nadawca nie przyjal wznowienia - plik czesciowy jest wtedy obcinany.
+	 * @param offset Przesuniecie kawalka.
+	 * @param checksum Suma kontrolna podana przez nadawce.
+	 * @param data Dane kawalka (position..limit). Pozycja bufora nie jest zmieniana.
+	 * @return false jesli suma kontrolna sie nie zgadza - nalezy poprosic nadawce o cofniecie.
+	 * @throws IOException Jesli zapis sie nie powiodl.
+	 */
+	boolean write(long offset, int checksum, ByteBuffer data) throws IOException{
+
+		if(offset == 0 && transferred > 0){
+			channel.truncate(0);
+			transferred = acked = 0;
+		}
+		if(offset != transferred)
+			return true;
+		int position = data.position();
+		int n = data.remaining();
+		if(transferred + n > size)
+			throw new IOException("dane poza koncem pliku");
+		crc.reset();
+		crc.update(data);
+		data.position(position);
+		if((int) crc.getValue() != checksum)
+			return false;
+		long at = offset;
+		while(data.hasRemaining())
+			at += channel.write(data, at);
+		data.position(position);
+		transferred += n;
+		state = State.ACTIVE;
+		return true;
+	}
+
+	/** Odbiorca: sprawdza, czy nalezy wyslac potwierdzenie, i jesli tak - zapamietuje je jako wyslane.
+	 * @return true jesli od ostatniego potwierdzenia zapisano ACK_INTERVAL bajtow lub caly plik.
+	 */
+	boolean takeAck(){
+
+		if(transferred - acked < ACK_INTERVAL && transferred < size)
+			return false;
+		acked = transferred;
+		return true;
+	}
+
+	/** Odbiorca: sprawdza, czy caly plik zostal zapisany.
+	 * @return true jesli zapisano size bajtow.
+	 */
+	boolean isComplete(){
+		return transferred == size;
+	}
+
+	/** Odbiorca: konczy odbior - zamyka plik czesciowy i zmienia jego nazwe na docelowa. Jesli plik
+	 *  o tej nazwie juz istnieje, do nazwy dopisywany jest numer.
+	 * @return Odebrany plik.
+	 * @throws IOException Jesli nie udalo sie zamknac pliku lub zmienic jego nazwy.
+	 */
+	File complete() throws IOException{
+
+		channel.force(false);
+		finish(State.DONE);
+		File target = new File(file.getParentFile(), name);
+		for(int i = 1; target.exists(); i++)
+			target = new File(file.getParentFile(), name + " (" + i + ")");
+		if(!file.renameTo(target))
+			throw new IOException("nie mozna zmienic nazwy " + file + " na " + target);
+		return target;
+	}
+
+	/** Przerywa przesylanie. Plik czesciowy odbiorcy zostaje - pozwala wznowic odbior.
+	 */
+	void fail(){
+		finish(State.FAILED);
+	}
+
+	private void finish(State _state){
+
+		if(state == State.DONE || state == State.FAILED)
+			return;
+		state = _state;
+		segment = null;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//plik i tak nie bedzie juz uzywany
+		}
+	}
+
+	/** Tworzy ramke z oferta wyslania pliku.
+	 * @return Ramka FILE_OFFER.
+	 */
+	Frame offer(){
+
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(16 + bytes.length);
+		payload.putLong(id).putLong(size).put(bytes).flip();
+		return new Frame(Frame.FILE_OFFER, (byte) 0, payload);
+	}
+
+	/** Tworzy ramke przyjecia pliku lub prosby o cofniecie.
+	 * @param checksum Suma kontrolna poczatku pliku do getTransferred().
+	 * @return Ramka FILE_ACCEPT.
+	 */
+	Frame accept(int checksum){
+
+		ByteBuffer payload = ByteBuffer.allocate(20);
+		payload.putLong(id).putLong(transferred).putInt(checksum).flip();
+		return new Frame(Frame.FILE_ACCEPT, (byte) 0, payload);
+	}
+
+	/** Tworzy ramke potwierdzenia zapisanych danych.
+	 * @return Ramka FILE_ACK.
+	 */
+	Frame ack(){
+
+		ByteBuffer payload = ByteBuffer.allocate(16);
+		payload.putLong(id).putLong(transferred).flip();
+		return new Frame(Frame.FILE_ACK, (byte) 0, payload);
+	}
+
+	/** Tworzy ramke przerwania przesylania.
+	 * @param id Identyfikator przesylania.
+	 * @return Ramka FILE_CANCEL.
+	 */
+	static Frame cancel(long id){
+
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putLong(id).flip();
+		return new Frame(Frame.FILE_CANCEL, (byte) 0, payload);
+	}
+}
@@ -0,0 +1,254 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ramka protokolu przesylana miedzy peer'ami. Na drodze ramka ma postac:
+ * <pre>
+ * | dlugosc danych (int) | typ (byte) | flagi (byte) | dane (dlugosc bajtow) |
+ * </pre>
+ * Dane ramki nie sa kopiowane przy wysylaniu wielu odbiorcom - writer czyta je
+ * operacjami bezwzglednymi, wiec jedna ramka moze stac w kolejkach wielu polaczen.
+ * @author Kuba Jalowiec
+ */
+final class Frame{
+
+	/** Rozmiar naglowka ramki w bajtach. */
+	static final int HEADER_SIZE = 6;
+
+	/** Maksymalny rozmiar danych jednej ramki. */
+	static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+	/** Wiadomosc tekstowa czatu (UTF-8). */
+	static final byte MESSAGE = 1;
+
+	/** Powitanie wysylane jako pierwsza ramka polaczenia - mozliwosci strony:
+	 *  | wersja (byte) | mozliwosci (byte) | identyfikator slownika (int) | identyfikator wezla (long) |. */
+	static final byte HELLO = 2;
+
+	/** Przesylanie plikow - zob. FileTransfer. */
+	static final byte FILE_OFFER = 3;
+	static final byte FILE_ACCEPT = 4;
+	static final byte FILE_CHUNK = 5;
+	static final byte FILE_ACK = 6;
+	static final byte FILE_CANCEL = 7;
+
+	/** Potwierdzenie odebranych wiadomosci z flaga RELIABLE - przedzialy numerow:
+	 *  | liczba przedzialow (short) | od (long) | do (long) | ... |. */
+	static final byte ACK = 8;
+
+	/** Plotka o wezlach nakladki - zob. Router:
+	 *  | liczba wpisow (short) | wezel (long) | heartbeat (long) | odleglosc (byte) | port (short) | dlugosc adresu (byte) | adres | ... |. */
+	static final byte GOSSIP = 9;
+
+	/** Wiadomosc trasowana przez nakladke - zob. Router:
+	 *  | nadawca (long) | odbiorca (long, 0 - wszyscy) | identyfikator (long) | pozostale skoki (byte) | tresc (UTF-8) |. */
+	static final byte ROUTED = 10;
+
+	/** Dolaczenie peer'a do pokoju i wyjscie z pokoju - zob. Room: | nazwa pokoju (UTF-8) |. */
+	static final byte ROOM_JOIN = 11;
+	static final byte ROOM_LEAVE = 12;
+
+	/** Bicie serca i odpowiedz na nie - do pomiaru RTT i wykrywania martwych peer'ow:
+	 *  | czas nadawcy PING (long, System.nanoTime()) |. PONG odsyla dane PING bez zmian. */
+	static final byte PING = 13;
+	static final byte PONG = 14;
+
+	/** Przydzial kolejnych wiadomosci (MESSAGE) od odbiorcy dla nadawcy: | liczba wiadomosci (int) |. */
+	static final byte CREDIT = 15;
+
+	/** Bit mozliwosci w HELLO: strona przestrzega przydzialow wiadomosci i sama je przydziela (CREDIT).
+	 *  Kazda strona zaczyna z przydzialem INITIAL_CREDITS. */
+	static final byte FLOW_CONTROL = 0x02;
+
+	/** Przydzial wiadomosci na poczatku polaczenia - przed pierwsza ramka CREDIT. */
+	static final int INITIAL_CREDITS = 256;
+
+	/** Flaga: dane ramki sa skompresowane (zob. Compressor). */
+	static final byte COMPRESSED = 0x01;
+
+	/** Flaga: dane skompresowano ze slownikiem. */
+	static final byte DICTIONARY = 0x02;
+
+	/** Flaga: ramka jest fragmentem wiadomosci podzielonej na czesci (zob. Stream.BULK). */
+	static final byte FRAGMENT = 0x04;
+
+	/** Flaga: po tym fragmencie nastepuja kolejne; ostatni fragment ma tylko FRAGMENT. */
+	static final byte MORE = 0x08;
+
+	/** Flaga: wiadomosc z dziennika wysylania nadawcy (zob. Outbox) - dane zaczynaja sie od numeru
+	 *  wiadomosci (long), ktory odbiorca potwierdza ramka ACK. */
+	static final byte RELIABLE = 0x10;
+
+	/** Flaga: wiadomosc do pokoju - dane zaczynaja sie od | dlugosc nazwy (byte) | nazwa pokoju (UTF-8) |. */
+	static final byte ROOM = 0x20;
+
+	/** Wersja protokolu ogloszona w HELLO. */
+	static final byte VERSION = 1;
+
+	private final byte type;
+	private final byte flags;
+	private final ByteBuffer payload;
+
+	/** Chwila utworzenia ramki (System.nanoTime()) - do pomiaru czasu oczekiwania w kolejce. */
+	private final long created;
+
+	/** Tworzy ramke.
+	 * @param _type Typ ramki.
+	 * @param _flags Flagi ramki.
+	 * @param _payload Dane ramki - od position do limit. Bufor nie jest modyfikowany.
+	 */
+	Frame(byte _type, byte _flags, ByteBuffer _payload){
+
+		if(_payload.remaining() > MAX_PAYLOAD)
+			throw new IllegalArgumentException("Zbyt duza ramka: " + _payload.remaining());
+		type = _type;
+		flags = _flags;
+		payload = _payload;
+		created = System.nanoTime();
+	}
+
+	/** Tworzy ramke z wiadomoscia tekstowa.
+	 * @param msg Tresc wiadomosci.
+	 * @return Ramka typu MESSAGE.
+	 */
+	static Frame message(String msg){
+		return message(msg.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Tworzy ramke z wiadomoscia tekstowa zakodowana w UTF-8.
+	 * @param payload Tresc wiadomosci. Tablica nie jest kopiowana i nie moze byc dalej zmieniana.
+	 * @return Ramka typu MESSAGE.
+	 */
+	static Frame message(byte[] payload){
+		return new Frame(MESSAGE, (byte) 0, ByteBuffer.wrap(payload));
+	}
+
+	/** Tworzy ramke z wiadomoscia z dziennika wysylania, potwierdzana przez odbiorce.
+	 * @param sequence Numer wiadomosci w dzienniku.
+	 * @param payload Tresc wiadomosci w UTF-8.
+	 * @return Ramka typu MESSAGE z flaga RELIABLE.
+	 */
+	static Frame message(long sequence, byte[] payload){
+
+		ByteBuffer data = ByteBuffer.allocate(8 + payload.length);
+		data.putLong(sequence).put(payload).flip();
+		return new Frame(MESSAGE, RELIABLE, data);
+	}
+
+	/** Tworzy wiadomosc do pokoju. Dane ramki sa tylko do odczytu - ta sama ramka trafia do kolejek
+	 *  wszystkich czlonkow pokoju.
+	 * @param room Nazwa pokoju, najwyzej Room.MAX_NAME bajtow w UTF-8.
+	 * @param payload Tresc wiadomosci w UTF-8.
+	 * @return Ramka typu MESSAGE z flaga ROOM.
+	 * @throws IllegalArgumentException Jesli nazwa pokoju jest za dluga.
+	 */
+	static Frame roomMessage(String room, byte[] payload){
+
+		byte[] name = room.getBytes(StandardCharsets.UTF_8);
+		if(name.length > Room.MAX_NAME)
+			throw new IllegalArgumentException("Zbyt dluga nazwa pokoju: " + room);
+		ByteBuffer data = ByteBuffer.allocate(1 + name.length + payload.length);
+		data.put((byte) name.length).put(name).put(payload).flip();
+		return new Frame(MESSAGE, ROOM, data.asReadOnlyBuffer());
+	}
+
+	/** Tworzy ogloszenie dolaczenia do pokoju lub wyjscia z niego.
+	 * @param type ROOM_JOIN lub ROOM_LEAVE.
+	 * @param room Nazwa pokoju.
+	 * @return Ramka podanego typu.
+	 */
+	static Frame room(byte type, String room){
+		return new Frame(type, (byte) 0, ByteBuffer.wrap(room.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** Tworzy potwierdzenie odebranych wiadomosci.
+	 * @param ranges Przedzialy numerow: pary od, do (wlacznie).
+	 * @param count Liczba przedzialow.
+	 * @return Ramka typu ACK.
+	 */
+	static Frame ack(long[] ranges, int count){
+
+		ByteBuffer payload = ByteBuffer.allocate(2 + 16 * count);
+		payload.putShort((short) count);
+		for(int i = 0; i < 2 * count; i++)
+			payload.putLong(ranges[i]);
+		payload.flip();
+		return new Frame(ACK, (byte) 0, payload);
+	}
+
+	/** Tworzy bicie serca lub odpowiedz na nie.
+	 * @param type PING lub PONG.
+	 * @param time Czas wyslania PING (System.nanoTime() nadawcy).
+	 * @return Ramka podanego typu.
+	 */
+	static Frame heartbeat(byte type, long time){
+
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putLong(time).flip();
+		return new Frame(type, (byte) 0, payload);
+	}
+
+	/** Tworzy przydzial wiadomosci.
+	 * @param credits Liczba kolejnych wiadomosci, ktore peer moze wyslac.
+	 * @return Ramka typu CREDIT.
+	 */
+	static Frame credit(int credits){
+
+		ByteBuffer payload = ByteBuffer.allocate(4);
+		payload.putInt(credits).flip();
+		return new Frame(CREDIT, (byte) 0, payload);
+	}
+
+	/** Tworzy ramke powitalna.
+	 * @param capabilities Bity mozliwosci (np. Compressor.DEFLATE, FLOW_CONTROL).
+	 * @param dictionaryId Identyfikator slownika kompresji lub 0.
+	 * @param nodeId Identyfikator wezla - staly miedzy polaczeniami, jesli Model ma dziennik wysylania.
+	 * @return Ramka typu HELLO.
+	 */
+	static Frame hello(byte capabilities, int dictionaryId, long nodeId){
+
+		ByteBuffer payload = ByteBuffer.allocate(14);
+		payload.put(VERSION).put(capabilities).putInt(dictionaryId).putLong(nodeId).flip();
+		return new Frame(HELLO, (byte) 0, payload);
+	}
+
+	byte getType(){
+		return type;
+	}
+
+	byte getFlags(){
+		return flags;
+	}
+
+	long getCreated(){
+		return created;
+	}
+
+	/** Zwraca dane ramki. Wywolujacy nie moze zmieniac position/limit zwroconego bufora.
+	 * @return Dane ramki.
+	 */
+	ByteBuffer getPayload(){
+		return payload;
+	}
+
+	/** Zwraca dlugosc danych ramki.
+	 * @return Liczba bajtow danych.
+	 */
+	int length(){
+		return payload.remaining();
+	}
+
+	/** Zapisuje naglowek ramki pod wskazanym indeksem bufora, bez zmiany jego pozycji.
+	 *  Dlugosc i flagi podaje wywolujacy - dane na drodze moga byc skompresowane lub byc fragmentem ramki.
+	 * @param out Bufor docelowy.
+	 * @param index Indeks poczatku naglowka.
+	 * @param length Dlugosc danych.
+	 * @param _flags Flagi ramki.
+	 */
+	void writeHeader(ByteBuffer out, int index, int length, byte _flags){
+
+		out.putInt(index, length);
+		out.put(index + 4, type);
+		out.put(index + 5, _flags);
+	}
+}
@@ -0,0 +1,138 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram wartosci nieujemnych (np. opoznien w nanosekundach) o stalej wzglednej dokladnosci,
+ * w stylu HdrHistogram: kazdy przedzial potegi dwojki dzielony jest na 32 rowne czesci, wiec blad
+ * odczytu percentyla nie przekracza ok. 3%. Zapis nie alokuje i nie blokuje - moze go wykonywac
+ * wiele watkow naraz.
+ * @author Kuba Jalowiec
+ */
+class Histogram{
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR = 2 * SUB_COUNT;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_COUNT;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong total;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	Histogram(){
+
+		counts = new AtomicLongArray(BUCKETS);
+		total = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	private static int index(long value){
+
+		if(value < LINEAR)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int top = (int) (value >>> (exponent - SUB_BITS));
+		return LINEAR + (exponent - SUB_BITS - 1) * SUB_COUNT + (top - SUB_COUNT);
+	}
+
+	/** Zwraca najwieksza wartosc nalezaca do przedzialu.
+	 * @param index Numer przedzialu.
+	 * @return Gorna granica przedzialu.
+	 */
+	private static long highestValue(int index){
+
+		if(index < LINEAR)
+			return index;
+		int k = index - LINEAR;
+		int exponent = SUB_BITS + 1 + k / SUB_COUNT;
+		long top = SUB_COUNT + k % SUB_COUNT;
+		int shift = exponent - SUB_BITS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/** Zapisuje wartosc. Wartosci ujemne traktowane sa jak 0.
+	 * @param value Wartosc do zapisania.
+	 */
+	void record(long value){
+
+		if(value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while((m = max.get()) < value && !max.compareAndSet(m, value));
+	}
+
+	/** Dodaje do histogramu wszystkie wartosci z innego histogramu.
+	 * @param other Histogram zrodlowy.
+	 */
+	void add(Histogram other){
+
+		for(int i = 0; i < BUCKETS; i++){
+			long n = other.counts.get(i);
+			if(n != 0)
+				counts.addAndGet(i, n);
+		}
+		total.addAndGet(other.total.get());
+		sum.addAndGet(other.sum.get());
+		long m, o = other.max.get();
+		while((m = max.get()) < o && !max.compareAndSet(m, o));
+	}
+
+	/** Zeruje histogram. Wartosci zapisywane rownoczesnie moga zostac czesciowo utracone. */
+	void reset(){
+
+		for(int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	long getCount(){
+		return total.get();
+	}
+
+	long getMax(){
+		return max.get();
+	}
+
+	double getMean(){
+
+		long n = total.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/** Zwraca wartosc, ponizej ktorej lezy podany procent zapisanych wartosci.
+	 * @param percentile Percentyl z zakresu 0-100, np. 99.9.
+	 * @return Gorna granica przedzialu zawierajacego percentyl (0 dla pustego histogramu).
+	 */
+	long getPercentile(double percentile){
+
+		long n = total.get();
+		if(n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += counts.get(i);
+			if(seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/** Zwraca krotkie podsumowanie histogramu z wartosciami przeskalowanymi przez divisor.
+	 * @param divisor Dzielnik wartosci (np. 1000 dla wyniku w mikrosekundach z nanosekund).
+	 * @return Tekst z liczba probek, srednia, p50, p99, p99.9 i maksimum.
+	 */
+	String summary(double divisor){
+
+		return String.format("n=%d srednia=%.1f p50=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+			getCount(), getMean() / divisor, getPercentile(50) / divisor, getPercentile(99) / divisor,
+			getPercentile(99.9) / divisor, getMax() / divisor);
+	}
+}
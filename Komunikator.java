@@ -1,3 +1,7 @@
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
 /**
  * Klasa opakowujaca komponenty Model, View i Controller.
  * @author Kuba Jalowiec
@@ -7,11 +11,40 @@ public class Komunikator{
 	
 	/**
 	 * Tworzy nowy Model, View i Controller. Uruchamia aplikacje.
-	 * @param args Argumenty wywolania (ignorowane).
+	 * @param args Argumenty wywolania: "--virtual-threads" uruchamia Model na watkach wirtualnych (Java 21+;
+	 * petle zdarzen i zadania polaczen sa nieliczne, wiec nie zmienia to wydajnosci w mierzalny sposob),
+	 * "--tls=plik" szyfruje polaczenia kluczem z magazynu PKCS12 (haslo w zmiennej srodowiska KOMUNIKATOR_TLS_PASSWORD).
+	 * @throws IOException Jesli nie udalo sie utworzyc petli zdarzen Modelu.
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		
-		Model model = new Model();
+		Model.ExecutionMode mode = Model.ExecutionMode.PLATFORM;
+		String keyStore = null;
+		for(String arg : args){
+			if(arg.equals("--virtual-threads"))
+				mode = Model.ExecutionMode.VIRTUAL;
+			else if(arg.startsWith("--tls="))
+				keyStore = arg.substring("--tls=".length());
+		}
+		Model model = new Model(mode);
+		if(keyStore != null){
+			String password = System.getenv("KOMUNIKATOR_TLS_PASSWORD");
+			try {
+				model.setTls(Model.tlsContext(new File(keyStore), password == null ? new char[0] : password.toCharArray()));
+			} catch (IOException | GeneralSecurityException e) {
+				model.updateLog(Log.Level.ERROR, "Nie mozna wlaczyc szyfrowania: " + e.getMessage());
+			}
+		}
+		try {
+			model.openHistory(new File(model.getDownloadDirectory(), "historia"));
+		} catch (IOException e) {
+			model.updateLog(Log.Level.WARN, "Historia wiadomosci jest niedostepna: " + e.getMessage());
+		}
+		try {
+			model.openOutbox(new File(model.getDownloadDirectory(), "outbox"));
+		} catch (IOException e) {
+			model.updateLog(Log.Level.WARN, "Dziennik wysylania jest niedostepny: " + e.getMessage());
+		}
 		View widok = new View();
 		new Controller(model, widok);
 	}
@@ -0,0 +1,117 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Log aplikacji w postaci bufora cyklicznego ostatnich wpisow. Dopisanie wpisu kosztuje tyle samo
+ * niezaleznie od dlugosci logu - najstarsze wpisy sa nadpisywane.
+ * @author Kuba Jalowiec
+ */
+class Log{
+
+	/** Poziom waznosci wpisu. */
+	enum Level{
+		INFO, WARN, ERROR
+	}
+
+	/** Niezmienny wpis logu. */
+	static final class Entry{
+
+		private static final DateTimeFormatter TIME_FORMAT =
+			DateTimeFormatter.ofPattern("HH.mm.ss").withZone(ZoneId.systemDefault());
+
+		private final Level level;
+		private final long timestamp;
+		private final String text;
+
+		Entry(Level _level, long _timestamp, String _text){
+
+			level = _level;
+			timestamp = _timestamp;
+			text = _text;
+		}
+
+		Level getLevel(){
+			return level;
+		}
+
+		long getTimestamp(){
+			return timestamp;
+		}
+
+		String getText(){
+			return text;
+		}
+
+		/** Dopisuje wpis w postaci do wyswietlenia, zakonczony znakiem nowej linii.
+		 * @param out Bufor docelowy.
+		 */
+		void format(StringBuilder out){
+
+			TIME_FORMAT.formatTo(Instant.ofEpochMilli(timestamp), out);
+			out.append(' ');
+			if(level != Level.INFO)
+				out.append(level).append(": ");
+			out.append(text).append('\n');
+		}
+
+		public String toString(){
+
+			StringBuilder sb = new StringBuilder();
+			format(sb);
+			return sb.toString();
+		}
+	}
+
+	private final Entry[] entries;
+	private int first;
+	private int size;
+
+	/** Tworzy pusty log.
+	 * @param capacity Maksymalna liczba przechowywanych wpisow.
+	 */
+	Log(int capacity){
+		entries = new Entry[capacity];
+	}
+
+	/** Dopisuje wpis, nadpisujac najstarszy jesli log jest pelny.
+	 * @param level Poziom wpisu.
+	 * @param text Tresc wpisu.
+	 * @return Dopisany wpis.
+	 */
+	Entry append(Level level, String text){
+
+		Entry entry = new Entry(level, System.currentTimeMillis(), text);
+		synchronized(this){
+			if(size < entries.length)
+				entries[(first + size++) % entries.length] = entry;
+			else{
+				entries[first] = entry;
+				first = (first + 1) % entries.length;
+			}
+		}
+		return entry;
+	}
+
+	/** Zwraca kopie wpisow od najstarszego.
+	 * @return Tablica wpisow.
+	 */
+	synchronized Entry[] snapshot(){
+
+		Entry[] copy = new Entry[size];
+		for(int i = 0; i < size; i++)
+			copy[i] = entries[(first + i) % entries.length];
+		return copy;
+	}
+
+	/** Zwraca caly log jako tekst.
+	 * @return Wpisy od najstarszego, kazdy w osobnej linii.
+	 */
+	public String toString(){
+
+		StringBuilder sb = new StringBuilder();
+		for(Entry entry : snapshot())
+			entry.format(sb);
+		return sb.toString();
+	}
+}
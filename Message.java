@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Niezmienna wiadomosc przekazywana przez Model: identyfikator w historii, nadawca, numer kolejny, czas,
+ * surowe bajty tresci (UTF-8) i flagi. Model nie zamienia wiadomosci na tekst - robi to dopiero MessageRenderer
+ * przy wyswietlaniu.
+ * @author Kuba Jalowiec
+ */
+final class Message{
+
+	/** Flaga wiadomosci wyslanej przez nas. */
+	static final byte OUTGOING = 1;
+
+	/** Identyfikator wiadomosci w historii (MessageStore) lub 0 jesli wiadomosc nie trafila do historii. */
+	private final long id;
+
+	private final String sender;
+	private final long sequence;
+	private final long timestamp;
+	private final byte[] payload;
+	private final byte flags;
+
+	/** Chwila utworzenia wiadomosci (System.nanoTime()); dla odebranych - chwila odczytu z kanalu. */
+	private final long created;
+
+	/** Tworzy wiadomosc.
+	 * @param _sender Identyfikator nadawcy (sesji) - dla wiadomosci wyslanych "ja".
+	 * @param _sequence Numer kolejny wiadomosci u danego nadawcy.
+	 * @param _timestamp Czas nadania lub odebrania (System.currentTimeMillis()).
+	 * @param _payload Tresc w UTF-8. Tablica nie jest kopiowana i nie moze byc dalej zmieniana.
+	 * @param _flags Flagi wiadomosci.
+	 */
+	Message(String _sender, long _sequence, long _timestamp, byte[] _payload, byte _flags){
+		this(0, _sender, _sequence, _timestamp, _payload, _flags, System.nanoTime());
+	}
+
+	/** Tworzy wiadomosc odczytana z historii.
+	 * @param _id Identyfikator wiadomosci w historii.
+	 * @param _sender Identyfikator nadawcy (sesji) - dla wiadomosci wyslanych "ja".
+	 * @param _sequence Numer kolejny wiadomosci u danego nadawcy.
+	 * @param _timestamp Czas nadania lub odebrania (System.currentTimeMillis()).
+	 * @param _payload Tresc w UTF-8. Tablica nie jest kopiowana i nie moze byc dalej zmieniana.
+	 * @param _flags Flagi wiadomosci.
+	 */
+	Message(long _id, String _sender, long _sequence, long _timestamp, byte[] _payload, byte _flags){
+		this(_id, _sender, _sequence, _timestamp, _payload, _flags, System.nanoTime());
+	}
+
+	private Message(long _id, String _sender, long _sequence, long _timestamp, byte[] _payload, byte _flags,
+			long _created){
+
+		id = _id;
+		sender = _sender;
+		sequence = _sequence;
+		timestamp = _timestamp;
+		payload = _payload;
+		flags = _flags;
+		created = _created;
+	}
+
+	/** Zwraca kopie wiadomosci z nadanym identyfikatorem w historii. Tresc nie jest kopiowana.
+	 * @param _id Identyfikator wiadomosci w historii.
+	 * @return Nowa wiadomosc.
+	 */
+	Message withId(long _id){
+		return new Message(_id, sender, sequence, timestamp, payload, flags, created);
+	}
+
+	long getId(){
+		return id;
+	}
+
+	String getSender(){
+		return sender;
+	}
+
+	long getSequence(){
+		return sequence;
+	}
+
+	long getTimestamp(){
+		return timestamp;
+	}
+
+	byte getFlags(){
+		return flags;
+	}
+
+	long getCreated(){
+		return created;
+	}
+
+	boolean isOutgoing(){
+		return (flags & OUTGOING) != 0;
+	}
+
+	/** Zwraca tresc wiadomosci tylko do odczytu.
+	 * @return Bufor z trescia w UTF-8.
+	 */
+	ByteBuffer getPayload(){
+		return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+	}
+
+	/** Zwraca dlugosc tresci w bajtach.
+	 * @return Dlugosc tresci.
+	 */
+	int getPayloadLength(){
+		return payload.length;
+	}
+
+	/** Zwraca bajt tresci.
+	 * @param i Indeks bajtu.
+	 * @return Bajt tresci.
+	 */
+	byte getPayloadByte(int i){
+		return payload[i];
+	}
+}
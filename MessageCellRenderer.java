@@ -0,0 +1,41 @@
+import java.awt.Component;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+
+/**
+ * Renderer wierszy listy wiadomosci. Tekst wiersza powstaje przy pierwszym wyswietleniu
+ * i jest zapamietywany w MessageListModel.
+ * @author Kuba Jalowiec
+ */
+class MessageCellRenderer extends DefaultListCellRenderer{
+
+	private static final long serialVersionUID = 1L;
+
+	private final MessageListModel model;
+	private final MessageRenderer renderer;
+	private final StringBuilder line;
+
+	MessageCellRenderer(MessageListModel _model){
+
+		model = _model;
+		renderer = new MessageRenderer();
+		line = new StringBuilder();
+	}
+
+	public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+			boolean isSelected, boolean cellHasFocus){
+
+		String text = model.getRendered(index);
+		if(text == null){
+			line.setLength(0);
+			renderer.render((Message) value, line);
+			line.setLength(line.length() - 1);
+			for(int i = 0; i < line.length(); i++)
+				if(line.charAt(i) == '\n')
+					line.setCharAt(i, ' ');
+			text = line.toString();
+			model.setRendered(index, text);
+		}
+		return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+	}
+}
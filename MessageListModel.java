@@ -0,0 +1,165 @@
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * Model listy wiadomosci dla JList w View. Przechowuje okno co najwyzej capacity wiadomosci
+ * w buforze cyklicznym - nowe wiadomosci usuwaja najstarsze, a starsze strony wczytane z historii
+ * (prependAll()) usuwaja najnowsze. JList renderuje tylko widoczne wiersze, wiec koszt wyswietlania
+ * nie zalezy od dlugosci historii. Uzywany wylacznie w watku EDT.
+ * @author Kuba Jalowiec
+ */
+class MessageListModel extends AbstractListModel<Message>{
+
+	private static final long serialVersionUID = 1L;
+
+	private final Message[] messages;
+
+	/** Tekst wierszy wyrenderowanych juz przez MessageCellRenderer, rownolegle do messages. */
+	private final String[] rendered;
+
+	/** Indeks najstarszej wiadomosci w tablicy. */
+	private int first;
+	private int size;
+
+	/** Czy przy wczytywaniu starszych wiadomosci usunieto najnowsze. Lista nie konczy sie wtedy
+	 *  na najnowszej wiadomosci i nie przyjmuje nowych az do reset(). */
+	private boolean tailDropped;
+
+	/** Tworzy pusty model.
+	 * @param capacity Maksymalna liczba przechowywanych wiadomosci.
+	 */
+	MessageListModel(int capacity){
+
+		messages = new Message[capacity];
+		rendered = new String[capacity];
+	}
+
+	/** Dodaje wiadomosci na koniec listy, usuwajac najstarsze ponad pojemnosc. Wiadomosci
+	 *  z historii o identyfikatorze nie wiekszym niz ostatnia wiadomosc listy sa pomijane - zostaly
+	 *  juz wczytane z historii. Sluchacze dostaja jedno zdarzenie usuniecia i jedno dodania na cala paczke.
+	 * @param batch Wiadomosci do dodania.
+	 * @param count Liczba wiadomosci z poczatku batch do dodania.
+	 */
+	void addAll(Message[] batch, int count){
+
+		if(count == 0 || tailDropped)
+			return;
+		int from = Math.max(0, count - messages.length);
+		long last = size == 0 ? 0 : getElementAt(size - 1).getId();
+		while(from < count && batch[from].getId() != 0 && batch[from].getId() <= last)
+			from++;
+		if(from == count)
+			return;
+		int evicted = Math.max(0, size + count - from - messages.length);
+		if(evicted > 0){
+			for(int i = 0; i < evicted; i++){
+				int index = (first + i) % messages.length;
+				messages[index] = null;
+				rendered[index] = null;
+			}
+			first = (first + evicted) % messages.length;
+			size -= evicted;
+			fireIntervalRemoved(this, 0, evicted - 1);
+		}
+		int start = size;
+		for(int i = from; i < count; i++){
+			int index = (first + size) % messages.length;
+			messages[index] = batch[i];
+			rendered[index] = null;
+			size++;
+		}
+		fireIntervalAdded(this, start, size - 1);
+	}
+
+	/** Dodaje starsze wiadomosci na poczatek listy. Jesli lista przekroczy pojemnosc, usuwane sa
+	 *  najnowsze wiadomosci.
+	 * @param older Wiadomosci poprzedzajace pierwsza wiadomosc listy, od najstarszej.
+	 * @return Liczba dodanych wiadomosci.
+	 */
+	int prependAll(List<Message> older){
+
+		int count = Math.min(older.size(), messages.length);
+		if(count == 0)
+			return 0;
+		int dropped = Math.max(0, size + count - messages.length);
+		if(dropped > 0){
+			for(int i = size - dropped; i < size; i++){
+				int index = (first + i) % messages.length;
+				messages[index] = null;
+				rendered[index] = null;
+			}
+			size -= dropped;
+			tailDropped = true;
+			fireIntervalRemoved(this, size, size + dropped - 1);
+		}
+		for(int i = older.size() - 1; i >= older.size() - count; i--){
+			first = (first + messages.length - 1) % messages.length;
+			messages[first] = older.get(i);
+			rendered[first] = null;
+			size++;
+		}
+		fireIntervalAdded(this, 0, count - 1);
+		return count;
+	}
+
+	/** Zastepuje zawartosc listy podanymi wiadomosciami, np. najnowsza strona historii.
+	 * @param newest Wiadomosci od najstarszej; zachowywane jest co najwyzej capacity ostatnich.
+	 */
+	void reset(List<Message> newest){
+
+		if(size > 0){
+			int removed = size;
+			Arrays.fill(messages, null);
+			Arrays.fill(rendered, null);
+			first = 0;
+			size = 0;
+			fireIntervalRemoved(this, 0, removed - 1);
+		}
+		tailDropped = false;
+		int count = Math.min(newest.size(), messages.length);
+		for(int i = newest.size() - count; i < newest.size(); i++)
+			messages[size++] = newest.get(i);
+		if(size > 0)
+			fireIntervalAdded(this, 0, size - 1);
+	}
+
+	/** Sprawdza, czy lista nie konczy sie na najnowszej wiadomosci (zob. prependAll()).
+	 * @return true jesli najnowsze wiadomosci trzeba wczytac ponownie przez reset().
+	 */
+	boolean isTailDropped(){
+		return tailDropped;
+	}
+
+	/** Zwraca identyfikator pierwszej wiadomosci listy - poczatek kolejnej strony historii.
+	 * @return Identyfikator lub Long.MAX_VALUE jesli lista jest pusta.
+	 */
+	long getFirstId(){
+		return size == 0 ? Long.MAX_VALUE : messages[first].getId();
+	}
+
+	public int getSize(){
+		return size;
+	}
+
+	public Message getElementAt(int i){
+		return messages[(first + i) % messages.length];
+	}
+
+	/** Zwraca zapamietany tekst wiersza.
+	 * @param i Numer wiersza.
+	 * @return Tekst lub null jesli wiersz nie byl jeszcze renderowany.
+	 */
+	String getRendered(int i){
+		return rendered[(first + i) % messages.length];
+	}
+
+	/** Zapamietuje tekst wiersza, by nie renderowac go przy kazdym odmalowaniu.
+	 * @param i Numer wiersza.
+	 * @param text Tekst wiersza.
+	 */
+	void setRendered(int i, String text){
+		rendered[(first + i) % messages.length] = text;
+	}
+}
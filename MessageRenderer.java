@@ -0,0 +1,85 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Zamienia Message na linie tekstu do wyswietlenia ("HH.mm.ss, nadawca: tresc").
+ * Dekoder i bufory sa uzywane wielokrotnie, wiec jeden obiekt moze uzywac tylko jeden watek naraz.
+ * @author Kuba Jalowiec
+ */
+class MessageRenderer{
+
+	/** Format czasu wiadomosci. DateTimeFormatter jest niezmienny i bezpieczny dla wielu watkow. */
+	private static final DateTimeFormatter TIME_FORMAT =
+		DateTimeFormatter.ofPattern("HH.mm.ss").withZone(ZoneId.systemDefault());
+
+	private final CharsetDecoder decoder;
+	private final StringBuilder line;
+	private CharBuffer chars;
+
+	MessageRenderer(){
+
+		decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		line = new StringBuilder();
+		chars = CharBuffer.allocate(256);
+	}
+
+	/** Dopisuje wiadomosc w postaci do wyswietlenia do podanego bufora.
+	 * @param msg Wiadomosc.
+	 * @param out Bufor docelowy.
+	 */
+	void render(Message msg, StringBuilder out){
+
+		TIME_FORMAT.formatTo(Instant.ofEpochMilli(msg.getTimestamp()), out);
+		out.append(", ").append(msg.getSender()).append(": ");
+		appendText(msg, out);
+		out.append('\n');
+	}
+
+	/** Zwraca wiadomosc w postaci do wyswietlenia.
+	 * @param msg Wiadomosc.
+	 * @return Linia tekstu zakonczona znakiem nowej linii.
+	 */
+	String render(Message msg){
+
+		line.setLength(0);
+		render(msg, line);
+		return line.toString();
+	}
+
+	/** Dekoduje tresc wiadomosci i dopisuje ja do bufora.
+	 * @param msg Wiadomosc.
+	 * @param out Bufor docelowy.
+	 */
+	void appendText(Message msg, StringBuilder out){
+
+		ByteBuffer payload = msg.getPayload();
+		int max = (int) (payload.remaining() * (double) decoder.maxCharsPerByte());
+		if(chars.capacity() < max)
+			chars = CharBuffer.allocate(max);
+		chars.clear();
+		decoder.reset();
+		decoder.decode(payload, chars, true);
+		decoder.flush(chars);
+		chars.flip();
+		out.append(chars);
+	}
+
+	/** Zwraca tresc wiadomosci jako tekst.
+	 * @param msg Wiadomosc.
+	 * @return Tresc wiadomosci.
+	 */
+	String text(Message msg){
+
+		line.setLength(0);
+		appendText(msg, line);
+		return line.toString();
+	}
+}
@@ -0,0 +1,798 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Historia wiadomosci na dysku: dziennik tylko do dopisywania, podzielony na segmenty - pliki
+ * zmapowane w pamieci, nazwane identyfikatorem pierwszej wiadomosci (np. 00000000000000000001.log).
+ * Rekord wiadomosci ma postac:
+ * <pre>
+ * | dlugosc rekordu (int) | CRC32C reszty rekordu (int) | identyfikator (long) | czas (long) |
+ * | numer kolejny (long) | flagi (byte) | dlugosc nadawcy (short) | nadawca (UTF-8) | tresc |
+ * </pre>
+ * Wiadomosci trafiaja do historii przez kolejke; osobny watek writer'a zabiera z niej wszystkie
+ * oczekujace wiadomosci i zapisuje je jednym wsadem, wiec watki petli zdarzen nigdy nie czekaja na dysk.
+ * Identyfikatory rosna w kolejnosci zapisu, a czasy zapisanych wiadomosci nie maleja - dzieki temu
+ * indeksy segmentu (identyfikator i czas -&gt; polozenie rekordu oraz lista rekordow kazdego nadawcy)
+ * sa posortowane i wyszukiwanie w nich jest binarne. Indeksy trzymane sa w pamieci i odtwarzane
+ * przy otwarciu przez przejrzenie segmentow; niepelny rekord na koncu segmentu (np. po awarii)
+ * jest wykrywany przez CRC i obcinany.
+ * <p>
+ * maintain() wywolywane okresowo w tle zrzuca aktywny segment na dysk, usuwa najstarsze segmenty
+ * ponad limit wieku lub rozmiaru i laczy sasiednie male segmenty (np. z krotkich uruchomien aplikacji)
+ * w jeden.
+ * <p>
+ * Katalog historii jest blokowany - moze go uzywac tylko jeden Model naraz.
+ * @author Kuba Jalowiec
+ */
+final class MessageStore{
+
+	/** Domyslny rozmiar segmentu. */
+	static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/** Rozmiar rekordu bez nadawcy i tresci. */
+	static final int RECORD_HEADER = 4 + 4 + 8 + 8 + 8 + 1 + 2;
+
+	/** Pojemnosc kolejki wiadomosci czekajacych na zapis. */
+	static final int QUEUE_CAPACITY = 65536;
+
+	/** Maksymalna liczba wiadomosci zapisywanych jednym wsadem. */
+	static final int MAX_BATCH = 1024;
+
+	private static final String SUFFIX = ".log";
+
+	/** Znacznik konca pracy writer'a. */
+	private static final Message STOP = new Message("", 0, 0, new byte[0], (byte) 0);
+
+	/** Lista rekordow jednego nadawcy w segmencie - numery rekordow w kolejnosci rosnacej. */
+	private static final class Postings{
+
+		private int[] records = new int[16];
+		private int size;
+
+		void add(int record){
+
+			if(size == records.length)
+				records = Arrays.copyOf(records, size * 2);
+			records[size++] = record;
+		}
+	}
+
+	/** Segment dziennika: plik zmapowany w pamieci i indeksy jego rekordow. */
+	private static final class Segment{
+
+		final File file;
+		final MappedByteBuffer map;
+
+		/** Liczba zajetych bajtow. */
+		int size;
+
+		/** Liczba rekordow. */
+		int count;
+
+		/** Indeksy rekordow: identyfikator, polozenie i czas, wedlug numeru rekordu. */
+		long[] ids = new long[1024];
+		int[] offsets = new int[1024];
+		long[] times = new long[1024];
+
+		/** Indeks nadawcow: nadawca -&gt; numery jego rekordow. */
+		final Map<String, Postings> senders = new HashMap<String, Postings>();
+
+		Segment(File _file, MappedByteBuffer _map){
+
+			file = _file;
+			map = _map;
+		}
+
+		int capacity(){
+			return map.capacity();
+		}
+
+		void add(long id, int offset, long time, String sender){
+
+			if(count == ids.length){
+				ids = Arrays.copyOf(ids, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+				times = Arrays.copyOf(times, count * 2);
+			}
+			ids[count] = id;
+			offsets[count] = offset;
+			times[count] = time;
+			Postings postings = senders.get(sender);
+			if(postings == null)
+				senders.put(sender, postings = new Postings());
+			postings.add(count);
+			count++;
+		}
+
+		long firstId(){
+			return ids[0];
+		}
+
+		long lastId(){
+			return ids[count - 1];
+		}
+
+		long lastTime(){
+			return times[count - 1];
+		}
+
+		/** Zwraca numer pierwszego rekordu o identyfikatorze nie mniejszym niz podany.
+		 * @param id Identyfikator.
+		 * @return Numer rekordu lub count jesli wszystkie rekordy maja mniejszy identyfikator.
+		 */
+		int lowerId(long id){
+
+			int low = 0, high = count;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(ids[mid] < id)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		/** Zwraca pozycje na liscie pierwszego rekordu z czasem nie mniejszym niz podany.
+		 * @param records Numery rekordow lub null dla wszystkich rekordow segmentu.
+		 * @param size Dlugosc listy.
+		 * @param time Czas.
+		 * @return Pozycja na liscie lub size jesli wszystkie rekordy sa wczesniejsze.
+		 */
+		int lowerTime(int[] records, int size, long time){
+
+			int low = 0, high = size;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(times[records == null ? mid : records[mid]] < time)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+
+	/** Blokada katalogu historii. */
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+
+	/** Wiadomosci czekajace na zapis. */
+	private final RingBuffer<Message> queue;
+
+	/** Segmenty od najstarszego; ostatni jest aktywny. Lista i indeksy chronione sa monitorem obiektu. */
+	private final List<Segment> segments;
+
+	/** Segment, do ktorego dopisywane sa wiadomosci. */
+	private Segment active;
+
+	/** Identyfikator ostatniej wiadomosci przyjetej do historii. */
+	private final AtomicLong lastId;
+
+	/** Czas ostatniego zapisanego rekordu - czasy w historii nie maleja. Uzywany tylko przez writer. */
+	private long lastTime;
+
+	/** Suma CRC32C liczona przez writer. */
+	private final CRC32C crc;
+
+	/** Zakodowane identyfikatory nadawcow. Uzywane tylko przez writer. */
+	private final Map<String, byte[]> senderBytes;
+
+	/** Limity retencji; 0 oznacza brak limitu. */
+	private volatile long maxAgeMillis, maxBytes;
+
+	private final LongAdder written, batches, dropped;
+
+	/** Blad, ktory zatrzymal writer, lub null. */
+	private volatile IOException failure;
+
+	/** Czy aktywny segment ma zapisy nie zrzucone jeszcze na dysk. */
+	private volatile boolean dirty;
+
+	private volatile boolean closed;
+	private final CountDownLatch stopped;
+
+	/** Otwiera historie w podanym katalogu, tworzac go w razie potrzeby, i odtwarza indeksy segmentow.
+	 * @param _directory Katalog historii.
+	 * @param _segmentSize Rozmiar nowych segmentow w bajtach.
+	 * @throws IOException Jesli nie udalo sie otworzyc katalogu lub katalog jest uzywany przez inny Model.
+	 */
+	MessageStore(File _directory, int _segmentSize) throws IOException{
+
+		directory = _directory;
+		segmentSize = _segmentSize;
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Nie mozna utworzyc katalogu " + directory);
+		lockChannel = FileChannel.open(new File(directory, "lock").toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock acquired = null;
+		try {
+			acquired = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// katalog zablokowany juz w tej maszynie wirtualnej
+		}
+		if(acquired == null){
+			lockChannel.close();
+			throw new IOException("Historia " + directory + " jest uzywana przez inny proces");
+		}
+		lock = acquired;
+		queue = new RingBuffer<Message>(QUEUE_CAPACITY, RingBuffer.Policy.DROP_NEWEST);
+		segments = new ArrayList<Segment>();
+		lastId = new AtomicLong();
+		crc = new CRC32C();
+		senderBytes = new HashMap<String, byte[]>();
+		written = new LongAdder();
+		batches = new LongAdder();
+		dropped = new LongAdder();
+		maxAgeMillis = 0;
+		maxBytes = 0;
+		stopped = new CountDownLatch(1);
+		try {
+			recover();
+			active = create(lastId.get() + 1, segmentSize);
+			segments.add(active);
+		} catch (IOException e) {
+			lock.release();
+			lockChannel.close();
+			throw e;
+		}
+	}
+
+	/** Odtwarza segmenty i ich indeksy z plikow katalogu. Segmenty, ktorych rekordy powtarzaja sie
+	 *  w poprzednim segmencie (przerwane laczenie segmentow), sa usuwane. */
+	private void recover() throws IOException{
+
+		File[] files = directory.listFiles();
+		if(files == null)
+			throw new IOException("Nie mozna odczytac katalogu " + directory);
+		Arrays.sort(files);
+		for(File file : files){
+			String name = file.getName();
+			if(name.endsWith(SUFFIX + ".tmp")){
+				Files.deleteIfExists(file.toPath());
+				continue;
+			}
+			if(!name.endsWith(SUFFIX))
+				continue;
+			Segment segment = open(file);
+			if(segment.count == 0 || segment.firstId() <= lastId.get()){
+				Files.deleteIfExists(file.toPath());
+				continue;
+			}
+			segments.add(segment);
+			lastId.set(segment.lastId());
+			lastTime = segment.lastTime();
+		}
+	}
+
+	/** Otwiera istniejacy segment tylko do odczytu i buduje jego indeksy. Plik jest obcinany
+	 *  do ostatniego poprawnego rekordu.
+	 * @param file Plik segmentu.
+	 * @return Segment.
+	 */
+	private static Segment open(File file) throws IOException{
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long length = channel.size();
+			if(length > Integer.MAX_VALUE)
+				throw new IOException("Za duzy segment " + file);
+			Segment segment = new Segment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+			CRC32C check = new CRC32C();
+			ByteBuffer in = segment.map.duplicate();
+			int position = 0;
+			while(position + RECORD_HEADER <= length){
+				int recordLength = in.getInt(position);
+				if(recordLength < RECORD_HEADER || position + (long) recordLength > length)
+					break;
+				ByteBuffer body = in.duplicate();
+				body.limit(position + recordLength).position(position + 8);
+				check.reset();
+				check.update(body);
+				if((int) check.getValue() != in.getInt(position + 4))
+					break;
+				int senderLength = in.getShort(position + 33) & 0xFFFF;
+				if(RECORD_HEADER + senderLength > recordLength)
+					break;
+				segment.add(in.getLong(position + 8), position, in.getLong(position + 16),
+					decode(in, position + RECORD_HEADER, senderLength));
+				position += recordLength;
+			}
+			segment.size = position;
+			if(position < length){
+				try {
+					channel.truncate(position);
+				} catch (IOException e) {
+					// np. Windows nie pozwala obciac zmapowanego pliku - reszta zostanie pominieta przy odczycie
+				}
+			}
+			return segment;
+		}
+	}
+
+	/** Tworzy nowy segment do zapisu.
+	 * @param firstId Identyfikator pierwszej wiadomosci segmentu.
+	 * @param capacity Rozmiar pliku.
+	 * @return Segment.
+	 */
+	private Segment create(long firstId, int capacity) throws IOException{
+
+		File file = new File(directory, String.format("%020d", firstId) + SUFFIX);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(capacity);
+			return new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+		}
+	}
+
+	private static String decode(ByteBuffer in, int position, int length){
+
+		byte[] bytes = new byte[length];
+		ByteBuffer source = in.duplicate();
+		source.position(position);
+		source.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Uruchamia watek writer'a w podanym executorze.
+	 * @param executor Executor Modelu.
+	 */
+	void start(ExecutorService executor){
+
+		executor.execute(new Runnable(){
+			public void run(){
+				try {
+					writeLoop();
+				} finally {
+					stopped.countDown();
+				}
+			}
+		});
+	}
+
+	/** Przyjmuje wiadomosc do historii i nadaje jej identyfikator. Wywolujacy musi zapewnic, ze
+	 *  wywolania nie nakladaja sie - identyfikatory rosna wtedy w kolejnosci zapisu.
+	 * @param msg Wiadomosc.
+	 * @return Wiadomosc z nadanym identyfikatorem. Gdy kolejka zapisu jest pelna, wiadomosc
+	 *  nie trafia do historii, ale i tak dostaje identyfikator.
+	 */
+	Message append(Message msg){
+
+		Message stored = msg.withId(lastId.incrementAndGet());
+		if(closed || !queue.offer(stored))
+			dropped.increment();
+		return stored;
+	}
+
+	/** Petla writer'a: czeka na wiadomosc, zabiera pozostale oczekujace i zapisuje je jednym wsadem. */
+	private void writeLoop(){
+
+		Message[] batch = new Message[MAX_BATCH];
+		boolean stop = false;
+		while(!stop){
+			int count = 0;
+			try {
+				batch[count++] = queue.take();
+				Message msg;
+				while(count < batch.length && (msg = queue.poll()) != null)
+					batch[count++] = msg;
+			} catch (InterruptedException e) {
+				stop = true;
+				count = 0;
+			}
+			for(int i = 0; i < count; i++){
+				if(batch[i] == STOP){
+					stop = true;
+					Arrays.fill(batch, i, count, null);
+					count = i;
+				}
+			}
+			synchronized(this){
+				try {
+					for(int i = 0; i < count; i++)
+						write(batch[i]);
+				} catch (IOException e) {
+					failure = e;
+					stop = true;
+				}
+			}
+			if(count > 0){
+				written.add(count);
+				batches.increment();
+				dirty = true;
+			}
+			Arrays.fill(batch, 0, count, null);
+		}
+	}
+
+	/** Dopisuje rekord do aktywnego segmentu, zaczynajac nowy segment jesli rekord sie nie miesci.
+	 *  Wywolywane przez writer z monitorem obiektu.
+	 * @param msg Wiadomosc z identyfikatorem.
+	 */
+	private void write(Message msg) throws IOException{
+
+		byte[] sender = senderBytes.get(msg.getSender());
+		if(sender == null){
+			if(senderBytes.size() > 4096)
+				senderBytes.clear();
+			sender = msg.getSender().getBytes(StandardCharsets.UTF_8);
+			senderBytes.put(msg.getSender(), sender);
+		}
+		int length = RECORD_HEADER + sender.length + msg.getPayloadLength();
+		if(active.capacity() - active.size < length)
+			roll(msg.getId(), length);
+		long time = Math.max(msg.getTimestamp(), lastTime);
+		lastTime = time;
+		int start = active.size;
+		ByteBuffer out = active.map.duplicate();
+		out.position(start + 8);
+		out.putLong(msg.getId());
+		out.putLong(time);
+		out.putLong(msg.getSequence());
+		out.put(msg.getFlags());
+		out.putShort((short) sender.length);
+		out.put(sender);
+		out.put(msg.getPayload());
+		out.flip().position(start + 8);
+		crc.reset();
+		crc.update(out);
+		out.putInt(start + 4, (int) crc.getValue());
+		out.putInt(start, length);
+		active.add(msg.getId(), start, time, msg.getSender());
+		active.size += length;
+	}
+
+	/** Zamyka aktywny segment i zaczyna nowy.
+	 * @param firstId Identyfikator pierwszej wiadomosci nowego segmentu.
+	 * @param length Dlugosc pierwszego rekordu - duzy rekord dostaje wiekszy segment.
+	 */
+	private void roll(long firstId, int length) throws IOException{
+
+		if(active.count == 0){
+			segments.remove(active);
+			Files.deleteIfExists(active.file.toPath());
+		}
+		else
+			active.map.force();
+		active = create(firstId, Math.max(segmentSize, length));
+		segments.add(active);
+	}
+
+	/** Zwraca wiadomosci poprzedzajace podana - do stronicowania historii wstecz.
+	 * @param beforeId Identyfikator wiadomosci; Long.MAX_VALUE zwraca najnowsze wiadomosci.
+	 * @param limit Maksymalna liczba wiadomosci.
+	 * @return Co najwyzej limit wiadomosci o mniejszym identyfikatorze, od najstarszej.
+	 */
+	synchronized List<Message> readBefore(long beforeId, int limit){
+
+		List<Message> out = new ArrayList<Message>(Math.min(limit, 1024));
+		for(int s = segments.size() - 1; s >= 0 && out.size() < limit; s--){
+			Segment segment = segments.get(s);
+			if(segment.count == 0 || segment.firstId() >= beforeId)
+				continue;
+			for(int i = segment.lowerId(beforeId) - 1; i >= 0 && out.size() < limit; i--)
+				out.add(read(segment, i));
+		}
+		Collections.reverse(out);
+		return out;
+	}
+
+	/** Zwraca wiadomosci nastepujace po podanej - do przegladania historii od poczatku, np. przy odtwarzaniu
+	 *  indeksu wyszukiwania.
+	 * @param afterId Identyfikator wiadomosci; 0 zwraca najstarsze wiadomosci.
+	 * @param limit Maksymalna liczba wiadomosci.
+	 * @return Co najwyzej limit wiadomosci o wiekszym identyfikatorze, od najstarszej.
+	 */
+	synchronized List<Message> readAfter(long afterId, int limit){
+
+		List<Message> out = new ArrayList<Message>(Math.min(limit, 1024));
+		for(int s = 0; s < segments.size() && out.size() < limit; s++){
+			Segment segment = segments.get(s);
+			if(segment.count == 0 || segment.lastId() <= afterId)
+				continue;
+			for(int i = segment.lowerId(afterId + 1); i < segment.count && out.size() < limit; i++)
+				out.add(read(segment, i));
+		}
+		return out;
+	}
+
+	/** Zwraca wiadomosci o podanych identyfikatorach, np. wyniki wyszukiwania. Identyfikatory, ktorych nie ma
+	 *  w historii (usuniete przez retencje lub pominiete przy pelnej kolejce zapisu), sa pomijane.
+	 * @param ids Identyfikatory wiadomosci, rosnaco.
+	 * @return Znalezione wiadomosci, od najstarszej.
+	 */
+	synchronized List<Message> read(long[] ids){
+
+		List<Message> out = new ArrayList<Message>(ids.length);
+		int s = 0;
+		for(long id : ids){
+			while(s < segments.size() && (segments.get(s).count == 0 || segments.get(s).lastId() < id))
+				s++;
+			if(s == segments.size())
+				break;
+			Segment segment = segments.get(s);
+			int record = segment.lowerId(id);
+			if(segment.ids[record] == id)
+				out.add(read(segment, record));
+		}
+		return out;
+	}
+
+	/** Zwraca wiadomosci z przedzialu czasu, opcjonalnie tylko od jednego nadawcy.
+	 * @param sender Identyfikator nadawcy ("ja" dla wyslanych) lub null dla wszystkich.
+	 * @param from Poczatek przedzialu (System.currentTimeMillis()), wlacznie.
+	 * @param to Koniec przedzialu, wylacznie.
+	 * @param limit Maksymalna liczba wiadomosci.
+	 * @return Co najwyzej limit pierwszych wiadomosci z przedzialu, od najstarszej.
+	 */
+	synchronized List<Message> read(String sender, long from, long to, int limit){
+
+		List<Message> out = new ArrayList<Message>(Math.min(limit, 1024));
+		for(int s = 0; s < segments.size() && out.size() < limit; s++){
+			Segment segment = segments.get(s);
+			if(segment.count == 0 || segment.lastTime() < from)
+				continue;
+			if(segment.times[0] >= to)
+				break;
+			int[] records = null;
+			int size = segment.count;
+			if(sender != null){
+				Postings postings = segment.senders.get(sender);
+				if(postings == null)
+					continue;
+				records = postings.records;
+				size = postings.size;
+			}
+			for(int i = segment.lowerTime(records, size, from); i < size && out.size() < limit; i++){
+				int record = records == null ? i : records[i];
+				if(segment.times[record] >= to)
+					break;
+				out.add(read(segment, record));
+			}
+		}
+		return out;
+	}
+
+	/** Odczytuje rekord segmentu.
+	 * @param segment Segment.
+	 * @param record Numer rekordu.
+	 * @return Wiadomosc.
+	 */
+	private static Message read(Segment segment, int record){
+
+		ByteBuffer in = segment.map.duplicate();
+		int position = segment.offsets[record];
+		int length = in.getInt(position);
+		int senderLength = in.getShort(position + 33) & 0xFFFF;
+		String sender = decode(in, position + RECORD_HEADER, senderLength);
+		byte[] payload = new byte[length - RECORD_HEADER - senderLength];
+		in.position(position + RECORD_HEADER + senderLength);
+		in.get(payload);
+		return new Message(segment.ids[record], sender, in.getLong(position + 24), segment.times[record],
+			payload, in.get(position + 32));
+	}
+
+	/** Ustawia limity retencji, stosowane przy kolejnym maintain().
+	 * @param _maxAgeMillis Maksymalny wiek wiadomosci; 0 - bez limitu.
+	 * @param _maxBytes Maksymalny rozmiar historii; 0 - bez limitu.
+	 */
+	void setRetention(long _maxAgeMillis, long _maxBytes){
+
+		maxAgeMillis = _maxAgeMillis;
+		maxBytes = _maxBytes;
+	}
+
+	/** Prace w tle: zrzuca aktywny segment na dysk, usuwa segmenty ponad limity retencji i laczy
+	 *  sasiednie male segmenty. Wywolywane okresowo przez Model, nigdy rownolegle z samym soba.
+	 * @throws IOException Jesli nie udalo sie polaczyc segmentow.
+	 */
+	void maintain() throws IOException{
+
+		if(closed)
+			return;
+		if(dirty){
+			dirty = false;
+			Segment segment;
+			synchronized(this){
+				segment = active;
+			}
+			segment.map.force();
+		}
+		List<File> deleted = new ArrayList<File>();
+		synchronized(this){
+			long limit = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+			long total = getBytes();
+			while(segments.size() > 1){
+				Segment oldest = segments.get(0);
+				boolean expired = oldest.count == 0 || oldest.lastTime() < limit;
+				if(!expired && (maxBytes <= 0 || total <= maxBytes))
+					break;
+				segments.remove(0);
+				total -= oldest.size;
+				deleted.add(oldest.file);
+			}
+		}
+		for(File file : deleted)
+			Files.deleteIfExists(file.toPath());
+		compact();
+	}
+
+	/** Laczy pierwszy ciag sasiednich zamknietych segmentow zajetych w mniej niz polowie,
+	 *  ktore razem mieszcza sie w jednym segmencie. Dane sa kopiowane bez monitora - zamkniete segmenty
+	 *  sie nie zmieniaja - a podmiana segmentow na liscie odbywa sie z monitorem. Po awarii w trakcie
+	 *  laczenia powtorzone segmenty usuwa recover(). */
+	private void compact() throws IOException{
+
+		List<Segment> run = new ArrayList<Segment>();
+		synchronized(this){
+			long total = 0;
+			for(int s = 0; s < segments.size() - 1; s++){
+				Segment segment = segments.get(s);
+				boolean small = segment.size < segmentSize / 2;
+				if(small && total + segment.size <= segmentSize){
+					run.add(segment);
+					total += segment.size;
+					continue;
+				}
+				if(run.size() > 1)
+					break;
+				run.clear();
+				total = 0;
+				if(small){
+					run.add(segment);
+					total = segment.size;
+				}
+			}
+		}
+		if(run.size() < 2)
+			return;
+		File target = run.get(0).file;
+		File tmp = new File(directory, target.getName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for(Segment segment : run){
+				ByteBuffer data = segment.map.duplicate();
+				data.position(0).limit(segment.size);
+				while(data.hasRemaining())
+					out.write(data);
+			}
+			out.force(true);
+		}
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Segment merged = open(target);
+		synchronized(this){
+			int index = segments.indexOf(run.get(0));
+			segments.removeAll(run);
+			segments.add(index, merged);
+		}
+		for(int i = 1; i < run.size(); i++)
+			Files.deleteIfExists(run.get(i).file.toPath());
+	}
+
+	/** Konczy prace writer'a po zapisaniu oczekujacych wiadomosci, zrzuca historie na dysk,
+	 *  obcina aktywny segment i zwalnia blokade katalogu.
+	 * @param timeoutMillis Maksymalny czas oczekiwania na writer.
+	 */
+	void close(long timeoutMillis){
+
+		if(closed)
+			return;
+		closed = true;
+		try {
+			long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+			while(!queue.offer(STOP) && System.nanoTime() < deadline)
+				Thread.sleep(1);
+			stopped.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized(this){
+			try {
+				active.map.force();
+				if(active.count == 0)
+					Files.deleteIfExists(active.file.toPath());
+				else{
+					try (FileChannel channel = FileChannel.open(active.file.toPath(), StandardOpenOption.WRITE)) {
+						channel.truncate(active.size);
+					} catch (IOException e) {
+						// obciety zostanie przy kolejnym otwarciu
+					}
+				}
+			} catch (IOException e) {
+				// segment zostanie uporzadkowany przy kolejnym otwarciu
+			}
+			try {
+				lock.release();
+				lockChannel.close();
+			} catch (IOException e) {
+				// blokada i tak znika z zamknieciem procesu
+			}
+		}
+	}
+
+	File getDirectory(){
+		return directory;
+	}
+
+	/** Zwraca identyfikator najstarszej wiadomosci w historii - wczesniejsze zostaly usuniete przez retencje.
+	 * @return Identyfikator lub identyfikator nastepnej wiadomosci jesli historia jest pusta.
+	 */
+	synchronized long getFirstId(){
+
+		for(Segment segment : segments)
+			if(segment.count > 0)
+				return segment.firstId();
+		return lastId.get() + 1;
+	}
+
+	/** Zwraca identyfikator ostatniej wiadomosci przyjetej do historii.
+	 * @return Identyfikator lub 0 jesli historia jest pusta.
+	 */
+	long getLastId(){
+		return lastId.get();
+	}
+
+	/** Zwraca liczbe zajetych bajtow wszystkich segmentow.
+	 * @return Rozmiar historii.
+	 */
+	synchronized long getBytes(){
+
+		long total = 0;
+		for(Segment segment : segments)
+			total += segment.size;
+		return total;
+	}
+
+	synchronized int getSegmentCount(){
+		return segments.size();
+	}
+
+	long getWritten(){
+		return written.sum();
+	}
+
+	long getBatches(){
+		return batches.sum();
+	}
+
+	/** Zwraca liczbe wiadomosci pominietych, bo kolejka zapisu byla pelna.
+	 * @return Liczba pominietych wiadomosci.
+	 */
+	long getDropped(){
+		return dropped.sum();
+	}
+
+	/** Zwraca blad zapisu, ktory zatrzymal writer.
+	 * @return Blad lub null jesli writer dziala.
+	 */
+	IOException getFailure(){
+		return failure;
+	}
+
+	int getQueueDepth(){
+		return queue.size();
+	}
+}
@@ -0,0 +1,433 @@
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejestr metryk Modelu: liczniki bajtow i wiadomosci dla kazdego peer'a, liczniki polaczen i porzuconych
+ * wiadomosci oraz histogramy opoznien (od wstawienia do kolejki do zapisu w kanale i od odczytu z kanalu
+ * do wyswietlenia). Wartosci sa zbierane bez blokad; snapshot() sklada je w plaska mape nazwa -> wartosc,
+ * uzywana przez eksportery HTTP i JMX.
+ * @author Kuba Jalowiec
+ */
+class Metrics{
+
+	/** Liczniki jednego peer'a. Kazda zmiana trafia tez do licznikow lacznych. */
+	final class Peer{
+
+		private final LongAdder bytesIn = new LongAdder();
+		private final LongAdder bytesOut = new LongAdder();
+		private final LongAdder messagesIn = new LongAdder();
+		private final LongAdder messagesOut = new LongAdder();
+
+		void read(long bytes){
+
+			bytesIn.add(bytes);
+			totalBytesIn.add(bytes);
+		}
+
+		void written(long bytes){
+
+			bytesOut.add(bytes);
+			totalBytesOut.add(bytes);
+		}
+
+		void messageIn(){
+
+			messagesIn.increment();
+			totalMessagesIn.increment();
+		}
+
+		void messagesOut(int n){
+
+			messagesOut.add(n);
+			totalMessagesOut.add(n);
+		}
+	}
+
+	private final Map<String, Peer> peers;
+
+	private final LongAdder totalBytesIn, totalBytesOut, totalMessagesIn, totalMessagesOut;
+	private final LongAdder opened, closed, reconnects;
+
+	/** Polaczenia zamkniete po oproznieniu kolejek i po uplywie terminu oprozniania. */
+	private final LongAdder drained, drainExpired;
+
+	/** Porzucone i odrzucone ramki z kolejek wysylania polaczen juz zamknietych. */
+	private final LongAdder closedSendDropped, closedSendRejected;
+
+	/** Ramki wyslane w postaci skompresowanej i ich rozmiar przed i po kompresji. */
+	private final LongAdder compressedFrames, compressedRaw, compressedWire;
+
+	/** Bajty plikow wyslane i odebrane oraz zakonczone i przerwane przesylania. */
+	private final LongAdder fileBytesIn, fileBytesOut, filesCompleted, filesFailed;
+
+	/** Wiadomosci wyslane ponownie z dziennika i odebrane powtorzenia pominiete przez odbiorce. */
+	private final LongAdder resent, duplicates;
+
+	/** Zakonczone uzgadniania TLS, w tym wznowienia sesji, i ich czas. */
+	private final LongAdder tlsHandshakes, tlsResumed;
+	private final Histogram tlsHandshake;
+
+	/** Wstrzymania writer'a z braku przydzialu wiadomosci i przydzialy dla peer'ow wstrzymane przez limit predkosci. */
+	private final LongAdder creditStalls, throttled;
+
+	/** Polaczenia zamkniete po braku odpowiedzi na bicie serca i czasy podrozy PING-PONG. */
+	private final LongAdder heartbeatTimeouts;
+	private final Histogram rtt;
+
+	private final Histogram enqueueToWire;
+
+	/** Czas oczekiwania ramek wg strumienia (zob. Stream). */
+	private final Histogram[] streamWait;
+	private final Histogram wireToDisplay;
+
+	/** Adresy, z ktorymi juz sie laczylismy - ponowne polaczenie liczone jest jako reconnect. */
+	private final Map<String, Boolean> dialed;
+
+	Metrics(){
+
+		peers = new ConcurrentHashMap<String, Peer>();
+		totalBytesIn = new LongAdder();
+		totalBytesOut = new LongAdder();
+		totalMessagesIn = new LongAdder();
+		totalMessagesOut = new LongAdder();
+		opened = new LongAdder();
+		closed = new LongAdder();
+		reconnects = new LongAdder();
+		drained = new LongAdder();
+		drainExpired = new LongAdder();
+		closedSendDropped = new LongAdder();
+		closedSendRejected = new LongAdder();
+		compressedFrames = new LongAdder();
+		compressedRaw = new LongAdder();
+		compressedWire = new LongAdder();
+		fileBytesIn = new LongAdder();
+		fileBytesOut = new LongAdder();
+		filesCompleted = new LongAdder();
+		filesFailed = new LongAdder();
+		resent = new LongAdder();
+		duplicates = new LongAdder();
+		tlsHandshakes = new LongAdder();
+		tlsResumed = new LongAdder();
+		tlsHandshake = new Histogram();
+		heartbeatTimeouts = new LongAdder();
+		creditStalls = new LongAdder();
+		throttled = new LongAdder();
+		rtt = new Histogram();
+		enqueueToWire = new Histogram();
+		streamWait = new Histogram[Stream.COUNT];
+		for(int i = 0; i < Stream.COUNT; i++)
+			streamWait[i] = new Histogram();
+		wireToDisplay = new Histogram();
+		dialed = new ConcurrentHashMap<String, Boolean>();
+	}
+
+	/** Rejestruje nowa sesje.
+	 * @param peer Identyfikator sesji.
+	 * @return Liczniki sesji.
+	 */
+	Peer opened(String peer){
+
+		Peer metrics = new Peer();
+		peers.put(peer, metrics);
+		opened.increment();
+		return metrics;
+	}
+
+	/** Wyrejestrowuje zamknieta sesje. Jej liczniki pozostaja w wartosciach lacznych.
+	 * @param peer Identyfikator sesji.
+	 * @param streams Strumienie sesji - liczniki porzuconych ramek ich kolejek przechodza do lacznych.
+	 */
+	void closed(String peer, Stream[] streams){
+
+		peers.remove(peer);
+		closed.increment();
+		for(int i = 0; i < streams.length; i++){
+			RingBuffer<Frame> queue = streams[i].getQueue();
+			if(queue != null){
+				closedSendDropped.add(queue.getDropped());
+				closedSendRejected.add(queue.getRejected());
+			}
+		}
+	}
+
+	/** Zapisuje nawiazanie polaczenia wychodzacego; kolejne polaczenie z tym samym adresem to reconnect.
+	 * @param address Adres docelowy (host:port).
+	 */
+	void dialed(String address){
+
+		if(dialed.put(address, Boolean.TRUE) != null)
+			reconnects.increment();
+	}
+
+	/** Zapisuje wyslanie skompresowanej ramki.
+	 * @param raw Rozmiar danych przed kompresja.
+	 * @param wire Rozmiar danych po kompresji.
+	 */
+	void compressed(int raw, int wire){
+
+		compressedFrames.increment();
+		compressedRaw.add(raw);
+		compressedWire.add(wire);
+	}
+
+	void fileBytesIn(long bytes){
+		fileBytesIn.add(bytes);
+	}
+
+	void fileBytesOut(long bytes){
+		fileBytesOut.add(bytes);
+	}
+
+	/** Zapisuje zakonczenie przesylania pliku.
+	 * @param completed true jesli plik zostal przeslany w calosci.
+	 */
+	void fileFinished(boolean completed){
+
+		if(completed)
+			filesCompleted.increment();
+		else
+			filesFailed.increment();
+	}
+
+	void resent(int n){
+		resent.add(n);
+	}
+
+	void duplicate(){
+		duplicates.increment();
+	}
+
+	/** Zapisuje zakonczenie uzgadniania TLS.
+	 * @param nanos Czas od rozpoczecia uzgadniania.
+	 * @param resumed true jesli sesja zostala wznowiona bez pelnego uzgadniania.
+	 */
+	void handshake(long nanos, boolean resumed){
+
+		tlsHandshakes.increment();
+		if(resumed)
+			tlsResumed.increment();
+		tlsHandshake.record(nanos);
+	}
+
+	/** Zapisuje wstrzymanie wiadomosci do peer'a, ktory nie dal jeszcze kolejnego przydzialu. */
+	void creditStalled(){
+		creditStalls.increment();
+	}
+
+	/** Zapisuje wstrzymanie przydzialu dla peer'a, ktory przekracza limit predkosci. */
+	void throttled(){
+		throttled.increment();
+	}
+
+	/** Zapisuje koniec oprozniania kolejek zamykanego polaczenia.
+	 * @param complete true jesli wyslano wszystkie ramki, false jesli minal termin.
+	 */
+	void drained(boolean complete){
+
+		if(complete)
+			drained.increment();
+		else
+			drainExpired.increment();
+	}
+
+	/** Zapisuje pomiar czasu podrozy w obie strony (PING - PONG).
+	 * @param nanos Czas w nanosekundach.
+	 */
+	void rtt(long nanos){
+		rtt.record(nanos);
+	}
+
+	/** Zapisuje zamkniecie polaczenia, od ktorego przez kilka odstepow bicia serca nic nie przyszlo. */
+	void heartbeatTimeout(){
+		heartbeatTimeouts.increment();
+	}
+
+	/** Zapisuje czas od utworzenia ramki do przekazania jej do kanalu.
+	 * @param nanos Opoznienie w nanosekundach.
+	 */
+	void enqueueToWire(long nanos){
+		enqueueToWire.record(nanos);
+	}
+
+	/** Zapisuje czas od utworzenia ramki do rozpoczecia jej wysylania w danym strumieniu.
+	 * @param stream Identyfikator strumienia.
+	 * @param nanos Opoznienie w nanosekundach.
+	 */
+	void streamWait(int stream, long nanos){
+		streamWait[stream].record(nanos);
+	}
+
+	/** Zapisuje czas od odczytu wiadomosci z kanalu do jej wyswietlenia.
+	 * @param nanos Opoznienie w nanosekundach.
+	 */
+	void wireToDisplay(long nanos){
+		wireToDisplay.record(nanos);
+	}
+
+	Histogram getEnqueueToWire(){
+		return enqueueToWire;
+	}
+
+	Histogram getWireToDisplay(){
+		return wireToDisplay;
+	}
+
+	Histogram getTlsHandshake(){
+		return tlsHandshake;
+	}
+
+	Histogram getRtt(){
+		return rtt;
+	}
+
+	/** Sklada wszystkie metryki w mape nazwa -> wartosc. Wskazniki kolejek dostarcza Model.
+	 * @param model Model, ktorego kolejki i sesje sa odczytywane.
+	 * @return Posortowana mapa metryk. Opoznienia w nanosekundach.
+	 */
+	SortedMap<String, Long> snapshot(Model model){
+
+		SortedMap<String, Long> out = new TreeMap<String, Long>();
+		out.put("bytes.in", totalBytesIn.sum());
+		out.put("bytes.out", totalBytesOut.sum());
+		out.put("messages.in", totalMessagesIn.sum());
+		out.put("messages.out", totalMessagesOut.sum());
+		out.put("connections.opened", opened.sum());
+		out.put("connections.closed", closed.sum());
+		out.put("connections.reconnects", reconnects.sum());
+		out.put("connections.drained", drained.sum());
+		out.put("connections.drainExpired", drainExpired.sum());
+		out.put("sessions", (long) model.getSessionCount());
+
+		long sendDepth = 0, sendDropped = closedSendDropped.sum(), sendRejected = closedSendRejected.sum();
+		long[] streamDepth = new long[Stream.COUNT];
+		for(String peer : model.getSessions()){
+			Stream[] streams = model.getStreams(peer);
+			if(streams == null)
+				continue;
+			long smoothedRtt = model.getSmoothedRtt(peer), jitter = model.getJitter(peer);
+			long depth = 0;
+			for(int i = 0; i < streams.length; i++){
+				streamDepth[i] += streams[i].getDepth();
+				RingBuffer<Frame> queue = streams[i].getQueue();
+				if(queue == null)
+					continue;
+				depth += queue.size();
+				sendDropped += queue.getDropped();
+				sendRejected += queue.getRejected();
+			}
+			sendDepth += depth;
+			Peer metrics = peers.get(peer);
+			if(metrics != null){
+				String prefix = "peer." + peer + ".";
+				out.put(prefix + "bytes.in", metrics.bytesIn.sum());
+				out.put(prefix + "bytes.out", metrics.bytesOut.sum());
+				out.put(prefix + "messages.in", metrics.messagesIn.sum());
+				out.put(prefix + "messages.out", metrics.messagesOut.sum());
+				out.put(prefix + "queue.send.depth", depth);
+				out.put(prefix + "credits.send", (long) model.getCredits(peer, true));
+				out.put(prefix + "credits.receive", (long) model.getCredits(peer, false));
+				if(smoothedRtt >= 0){
+					out.put(prefix + "rtt.smoothed", smoothedRtt);
+					out.put(prefix + "rtt.jitter", jitter);
+				}
+				for(int i = 0; i < streams.length; i++){
+					String stream = prefix + "stream." + streams[i].getName() + ".";
+					out.put(stream + "depth", (long) streams[i].getDepth());
+					out.put(stream + "bytes", streams[i].getBytes());
+					out.put(stream + "wait.mean", streams[i].getMeanWait());
+					out.put(stream + "wait.max", streams[i].getMaxWait());
+				}
+			}
+		}
+		for(int i = 0; i < Stream.COUNT; i++){
+			out.put("stream." + Stream.NAMES[i] + ".depth", streamDepth[i]);
+			putHistogram(out, "stream." + Stream.NAMES[i] + ".wait", streamWait[i]);
+		}
+		out.put("queue.send.depth", sendDepth);
+		out.put("queue.send.dropped", sendDropped);
+		out.put("queue.send.rejected", sendRejected);
+		RingBuffer<Message> view = model.getViewQueue();
+		out.put("queue.view.depth", (long) view.size());
+		out.put("queue.view.dropped", view.getDropped());
+		out.put("queue.view.rejected", view.getRejected());
+		putHistogram(out, "latency.enqueueToWire", enqueueToWire);
+		putHistogram(out, "latency.wireToDisplay", wireToDisplay);
+		putHistogram(out, "latency.tlsHandshake", tlsHandshake);
+		out.put("tls.handshakes", tlsHandshakes.sum());
+		out.put("tls.resumed", tlsResumed.sum());
+		putHistogram(out, "latency.rtt", rtt);
+		out.put("heartbeat.timeouts", heartbeatTimeouts.sum());
+		out.put("flow.stalls", creditStalls.sum());
+		out.put("flow.throttled", throttled.sum());
+		BatchStats batches = model.getBatchStats();
+		out.put("writer.batches", batches.getBatches());
+		out.put("writer.frames", batches.getFrames());
+		out.put("writer.maxBatch", batches.getMaxFrames());
+		out.put("compression.frames", compressedFrames.sum());
+		out.put("compression.bytes.raw", compressedRaw.sum());
+		out.put("compression.bytes.wire", compressedWire.sum());
+		out.put("files.bytes.in", fileBytesIn.sum());
+		out.put("files.bytes.out", fileBytesOut.sum());
+		out.put("files.completed", filesCompleted.sum());
+		out.put("files.failed", filesFailed.sum());
+		MessageStore history = model.getMessageStore();
+		if(history != null){
+			out.put("history.written", history.getWritten());
+			out.put("history.batches", history.getBatches());
+			out.put("history.dropped", history.getDropped());
+			out.put("history.queue.depth", (long) history.getQueueDepth());
+			out.put("history.bytes", history.getBytes());
+			out.put("history.segments", (long) history.getSegmentCount());
+		}
+		SearchIndex index = model.getSearchIndex();
+		if(index != null){
+			out.put("search.documents", (long) index.getDocumentCount());
+			out.put("search.terms", (long) index.getTermCount());
+			out.put("search.bytes", index.getBytes());
+			out.put("search.queue.depth", (long) index.getQueueDepth());
+			out.put("search.dropped", index.getDropped());
+		}
+		Outbox outbox = model.getOutbox();
+		if(outbox != null){
+			out.put("outbox.pending", (long) outbox.getPendingCount());
+			out.put("outbox.acked", outbox.getAcked());
+			out.put("outbox.syncs", outbox.getSyncs());
+			out.put("outbox.expired", outbox.getExpired());
+		}
+		out.put("outbox.resent", resent.sum());
+		long roomMessages = 0, roomDeliveries = 0, roomDropped = 0, roomLaggards = 0;
+		for(Room room : model.getRoomRegistry()){
+			roomLaggards += room.getLaggardCount();
+			roomMessages += room.getMessages();
+			roomDeliveries += room.getDeliveries();
+			roomDropped += room.getDropped();
+		}
+		out.put("rooms", (long) model.getRooms().size());
+		out.put("room.messages", roomMessages);
+		out.put("room.deliveries", roomDeliveries);
+		out.put("room.dropped", roomDropped);
+		out.put("room.laggards", roomLaggards);
+		Router router = model.getRouter();
+		out.put("overlay.nodes", (long) router.getNodeCount());
+		out.put("route.forwarded", router.getForwarded());
+		out.put("route.delivered", router.getDelivered());
+		out.put("route.duplicate", router.getDuplicates());
+		out.put("route.unreachable", router.getUnreachable());
+		out.put("route.expired", router.getExpired());
+		out.put("route.dropped", router.getDropped());
+		out.put("messages.duplicate", duplicates.sum());
+		return out;
+	}
+
+	private static void putHistogram(Map<String, Long> out, String name, Histogram histogram){
+
+		out.put(name + ".count", histogram.getCount());
+		out.put(name + ".p50", histogram.getPercentile(50));
+		out.put(name + ".p99", histogram.getPercentile(99));
+		out.put(name + ".p999", histogram.getPercentile(99.9));
+		out.put(name + ".max", histogram.getMax());
+	}
+}
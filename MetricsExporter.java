@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.SortedMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Udostepnia metryki Modelu na zewnatrz: przez lokalny serwer HTTP (GET /metrics, linie "nazwa wartosc")
+ * oraz jako MBean JMX, ktorego atrybutami sa wszystkie wartosci z Model.getMetrics().
+ * @author Kuba Jalowiec
+ */
+class MetricsExporter{
+
+	private final Model model;
+	private HttpServer http;
+	private ObjectName mbeanName;
+
+	MetricsExporter(Model _model){
+		model = _model;
+	}
+
+	/** Uruchamia serwer HTTP nasluchujacy tylko na adresie petli zwrotnej.
+	 * @param port Port serwera, 0 oznacza dowolny wolny port.
+	 * @return Port, na ktorym dziala serwer.
+	 */
+	synchronized int startHttp(int port) throws IOException{
+
+		if(http != null)
+			return http.getAddress().getPort();
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException{
+				StringBuilder sb = new StringBuilder();
+				for(Map.Entry<String, Long> e : model.getMetrics().entrySet())
+					sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+				byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		http.start();
+		return http.getAddress().getPort();
+	}
+
+	/** Rejestruje MBean z metrykami w platformowym serwerze MBean.
+	 * @param name Nazwa rozrozniajaca Model, np. port nasluchu.
+	 */
+	synchronized void registerMBean(String name) throws JMException{
+
+		if(mbeanName != null)
+			return;
+		ObjectName objectName = new ObjectName("Komunikator:type=Metrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), objectName);
+		mbeanName = objectName;
+	}
+
+	/** Zatrzymuje serwer HTTP i wyrejestrowuje MBean. */
+	synchronized void stop(){
+
+		if(http != null){
+			http.stop(0);
+			http = null;
+		}
+		if(mbeanName != null){
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				server.unregisterMBean(mbeanName);
+			} catch (JMException e) {
+				model.updateLog(Log.Level.WARN, "Nie powiodlo sie wyrejestrowanie MBean metryk.");
+			}
+			mbeanName = null;
+		}
+	}
+
+	/** MBean tylko do odczytu - kazda metryka jest atrybutem typu Long. */
+	private class MetricsMBean implements DynamicMBean{
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException{
+
+			Long value = model.getMetrics().get(attribute);
+			if(value == null)
+				throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes){
+
+			SortedMap<String, Long> metrics = model.getMetrics();
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes){
+				Long value = metrics.get(attribute);
+				if(value != null)
+					list.add(new Attribute(attribute, value));
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException{
+			throw new AttributeNotFoundException("Metryki sa tylko do odczytu: " + attribute.getName());
+		}
+
+		public AttributeList setAttributes(AttributeList attributes){
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature){
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		public MBeanInfo getMBeanInfo(){
+
+			SortedMap<String, Long> metrics = model.getMetrics();
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+			int i = 0;
+			for(String name : metrics.keySet())
+				attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+			return new MBeanInfo(Model.class.getName(), "Metryki komunikatora", attributes, null, null, null);
+		}
+	}
+}
@@ -1,11 +1,34 @@
 import java.net.*;
-import java.util.Calendar;
-import java.text.SimpleDateFormat;
 import java.beans.PropertyChangeSupport;
 import java.io.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
 
 /**
  * Komponent Model wzorca MVC aplikacji.
@@ -16,270 +39,1777 @@ import java.util.concurrent.TimeUnit;
  */
 public class Model{
 
-	/** Obsluga istniejacego polaczenia.  */
-	private Connection connection;
-	
+	/** Domyslny port, na ktorym nasluchujemy i do ktorego sie laczymy. */
+	static final int PORT = 5000;
+
+	/** Domyslna dlugosc kolejki polaczen oczekujacych na przyjecie. */
+	static final int BACKLOG = 128;
+
+	/** Domyslny czas, przez jaki zamykane polaczenie wysyla jeszcze ramki czekajace w kolejkach. */
+	static final long DRAIN_MILLIS = 2000;
+
+	/** Otwarte sesje z peer'ami, kluczem jest adres peer'a.  */
+	private final Map<String, Connection> sessions;
+
+	/** Liczba otwartych sesji z kazdym adresem IP - do limitu sesji na peer'a. */
+	private final Map<InetAddress, AtomicInteger> sessionsPerHost;
+
+	/** Rodzaj watkow, na ktorych Model wykonuje swoje zadania. */
+	enum ExecutionMode{
+		/** Zwykle watki systemowe. */
+		PLATFORM,
+		/** Watki wirtualne (Java 21+; na starszej Javie Model uzywa zwyklych watkow). Executor wykonuje
+		 *  tylko petle zdarzen i krotkie zadania obslugi polaczen, wiec rodzaj watkow nie wplywa
+		 *  w mierzalny sposob na wydajnosc. */
+		VIRTUAL
+	}
+
+	/** Executor, w ktorym dzialaja wszystkie watki Modelu: petle zdarzen i zadania zwiazane z polaczeniami. */
+	private final ExecutorService executor;
+
+	/** Petle zdarzen obslugujace wejscie i wyjscie wszystkich polaczen. */
+	private final EventLoop[] loops;
+
+	/** Licznik do rozdzielania nowych polaczen miedzy petle zdarzen. */
+	private final AtomicInteger nextLoop;
+
+	/** Numer kolejny ostatniej wyslanej wiadomosci. */
+	private final AtomicLong sentSequence;
+
+	/** Pula buforow direct do odczytu i zapisu ramek. */
+	private final BufferPool bufferPool;
+
+	/** Rejestr metryk. */
+	private final Metrics metrics;
+
+	/** Eksport metryk przez HTTP i JMX. */
+	private final MetricsExporter metricsExporter;
+
+	/** Statystyki wsadow wysylanych przez polaczenia. */
+	private final BatchStats batchStats;
+
+	/** Maksymalna liczba ramek wysylanych jednym zapisem. */
+	private volatile int maxBatchSize;
+
+	/** Maksymalny czas, przez jaki writer czeka na kolejne ramki, zanim wysle niepelny wsad. */
+	private volatile long maxLingerMillis;
+
+	/** Minimalny rozmiar wiadomosci kompresowanej przed wyslaniem. 0 wylacza kompresje. */
+	private volatile int compressionThreshold;
+
+	/** Wspolny slownik kompresji lub null. */
+	private volatile byte[] compressionDictionary;
+
+	/** Kontekst TLS nowych polaczen lub null, jesli polaczenia nie sa szyfrowane. */
+	private volatile SSLContext tlsContext;
+
+	/** Pula buforow rekordow TLS - tworzona przez setTls(). Bufory sa na stercie: SSLEngine szyfruje bufory direct
+	 *  przez tymczasowe tablice. */
+	private volatile BufferPool tlsBufferPool;
+
+	/** Katalog, do ktorego zapisywane sa odebrane pliki. */
+	private volatile File downloadDirectory;
+
 	/** Nasluch. */
-	private ServerSocket listener;
-	
-	/** Kolejka wiadomosci do wyslania.  */
-	private BlockingQueue<String> sendQueue;
-	
-	/** Kolejka wiadomosci do wyswietlenia. */
-	private BlockingQueue<String> toViewQueue;
-	
+	private volatile Acceptor listener;
+
+	/** Maksymalna liczba otwartych sesji. */
+	private volatile int maxSessions;
+
+	/** Maksymalna liczba sesji z jednego adresu IP. */
+	private volatile int maxSessionsPerHost;
+
+	/** Czas bezczynnosci, po ktorym sesja jest zamykana. 0 wylacza usuwanie bezczynnych sesji. */
+	private volatile long idleTimeoutMillis;
+
+	/** Odstep bicia serca (0 wylacza) i liczba kolejnych bic bez odpowiedzi, po ktorej polaczenie jest zamykane. */
+	private volatile long heartbeatMillis;
+	private volatile int maxMissedBeats;
+
+	/** Przydzial wiadomosci utrzymywany dla kazdego peer'a oraz srednia predkosc (wiadomosci na sekunde,
+	 *  0 - bez ograniczenia) i seria, do ktorych ograniczane sa nowe przydzialy. */
+	private volatile int creditWindow;
+	private volatile double rateLimit;
+	private volatile int rateBurst;
+
+	/** Odstep tickow kola czasowego. */
+	private static final long TIMER_TICK_MILLIS = 50;
+
+	/** Kolo czasowe dla zadan wszystkich polaczen, obslugiwane przez pierwsza petle. */
+	private final TimerWheel timers;
+
+	/** Ograniczona kolejka wiadomosci do wyswietlenia. */
+	private RingBuffer<Message> toViewQueue;
+
+	/** Historia wiadomosci na dysku lub null jesli nie zostala otwarta. */
+	private volatile MessageStore history;
+
+	/** Indeks wyszukiwania historii lub null jesli historia nie zostala otwarta. */
+	private volatile SearchIndex searchIndex;
+
+	/** Porzadkuje przekazywanie wiadomosci do historii i do widoku - zob. deliver(). */
+	private final Object deliveryLock;
+
+	/** Limity retencji historii: maksymalny wiek wiadomosci i rozmiar; 0 - bez limitu. */
+	private volatile long historyMaxAgeMillis, historyMaxBytes;
+
+	/** Identyfikator tego wezla przedstawiany peer'om w HELLO; staly miedzy uruchomieniami, jesli dziennik wysylania jest otwarty. */
+	private volatile long nodeId;
+
+	/** Dziennik wysylania lub null jesli nie zostal otwarty. */
+	private volatile Outbox outbox;
+
+	/** Okna odebranych numerow wiadomosci wg identyfikatora wezla nadawcy - do pomijania powtorzen. */
+	private final Map<Long, Outbox.Window> windows;
+
+	/** Polaczenia nawiazywane ponownie po zerwaniu. */
+	private final Set<Redial> redials;
+
+	/** Odstep przed pierwsza i maksymalny odstep przed kolejna proba ponownego polaczenia. */
+	private volatile long reconnectBaseMillis, reconnectMaxMillis;
+
+	/** Nakladka peer-to-peer: tablica wezlow i trasowanie wiadomosci. */
+	private final Router router;
+
+	/** Pokoje, do ktorych nalezymy my lub nasi peer'y, wg nazwy. */
+	private final Map<String, Room> rooms;
+
+	/** Pokoje, do ktorych dolaczylismy - ogloszone kazdemu nowemu peer'owi. */
+	private final Set<String> joinedRooms;
+
+	/** Ustawiane przez shutdown() - zamykane polaczenia nie sa juz nawiazywane ponownie. */
+	private volatile boolean shuttingDown;
+
+	/** Minimalny rozmiar wiadomosci wysylanej strumieniem BULK. */
+	private volatile int bulkThreshold;
+
+	/** Wagi strumieni w harmonogramie writer'a, indeksowane identyfikatorem strumienia. */
+	private volatile int[] streamWeights;
+
+	/** Pojemnosc kolejek wysylania tworzonych dla nowych polaczen. */
+	private volatile int sendQueueCapacity;
+
+	/** Polityka kolejek wysylania tworzonych dla nowych polaczen. */
+	private volatile RingBuffer.Policy sendQueuePolicy;
+
 	/** Obsluga zdarzen. Wykorzystywane w Controller.  */
 	public PropertyChangeSupport changeSupport;
-	
+
+	/** Maksymalna liczba wpisow w logu. */
+	static final int LOG_SIZE = 1000;
+
 	/** Log aplikacji - sluzy do komunikowania uzytkownikowi zmian stanu polaczenia, bledow itp. */
-	private String log;
-	
-	/** Klasa do obslugi nawiazanego polaczenia. Watki wysylania i odbierania wiadomosci,
-	 *  zamykanie polaczenia itp. */
-	class Connection{
-
-		private Socket socket;
-		private Thread outputThread, inputThread;
-		private Boolean closeConnectionFlag, outputRunFlag;
-		private PrintWriter socketOutput;
-		private BufferedReader socketInput;
-		private String nazwa = "przychodzace";
-
-		/** Konstruktor na podstawie istniejacego socket'a, powstalego w funkcji listen() lub newConnection() */
-		Connection(Socket _s){
-			
-			socket = _s;
-			try {
-				socketInput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				socketOutput = new PrintWriter(socket.getOutputStream(), true);
-				closeConnectionFlag = false;
-				outputRunFlag = true;
-				outputThread = newOutputThread();
-				outputThread.start();
-				inputThread = newInputThread();
-				inputThread.start();
-			}
-			catch(Exception e){
-				updateLog("Nie powiodlo sie zapisanie polaczenia.");
-				socketInput = null;
-				socketOutput = null;
-				closeConnectionFlag = false;
-				outputRunFlag = false;
-			}
-		}
-		
-		/** Tworzy i zwraca watek odpowiedzialny za wysylanie wiadomosci. Watek pobiera wiadomosci z kolejki sendQueue
-		 * i je wysyla.
-		 * @return Watek wyjsciowy.
-		 */
-		private Thread newOutputThread(){
-			
-			return new Thread(
-				new Runnable(){
-					public synchronized void run(){
-						while(outputRunFlag == true){
-							
-							String msg = null;
-							try {
-								msg = sendQueue.poll(100, TimeUnit.MILLISECONDS);
-							} catch (InterruptedException e) {
-								updateLog("Przerywam wysylanie wiadomosci.");
-							}
-							if(msg != null)
-							socketOutput.println(msg);
-						}
-						updateLog("Zamknieto wyjscie.");
-					}
-				}
-			);
-		}
-
-		/** Tworzy i zwraca watek odpowiedzialny za odbieranie wiadomosci. Watek nasluchuje na socket'cie i wstawia odebrane
-		 * wiadomosci do kolejki toViewQueue.
-		 * @return Watek wejsciowy.
-		 */
-		private Thread newInputThread(){
-		
-			return new Thread(
-				
-				new Runnable(){
-					public synchronized void run(){
-						String msg = null;
-							try {
-								while((msg = socketInput.readLine()) != null){
-									String timeStamp = new SimpleDateFormat("HH.mm.ss").format(Calendar.getInstance().getTime());
-									try {
-										toViewQueue.put(timeStamp + ", " + nazwa  + ": " + msg + "\n");
-									} catch (InterruptedException e) {
-										updateLog("Blad podczas przesylania wiadomosci do widoku.");
-									}
-								}
-							} catch (IOException e) {
-								//nie rob nic - ewentualny wyjatek lub ewentualne pojawienie sie nulla jest obsluzone w finally
-							}
-							finally{
-								if(closeConnectionFlag == false){
-									updateLog("Rozlaczono po drugiej stronie...");
-									close();
-								}
-							}
-							updateLog("Zamknieto wejscie.");
-					}
-				}
-			);
-		}
-
-		/** Zamyka polaczenie, tzn. konczy watki obslugi wejscia oraz wyjscia,
-		 *  zamyka socket i czysci po connection.
-		 */
-		private synchronized void close(){
-			new Thread(
-				new Runnable(){
-					public synchronized void run(){
-						if(connection != null){
-							closeConnectionFlag = true;
-							try {
-								socket.close();
-							} catch (IOException e) {
-								updateLog("Blad podczas zamykania socket'a.");
-							}
-							try {
-								inputThread.join();
-							} catch (InterruptedException e) {
-								updateLog("Blad podczas oczekiwania na zamkniecie watku wejsciowego.");
-							}
-							outputRunFlag = false;
-							try {
-								outputThread.join();
-							} catch (InterruptedException e) {
-								updateLog("Blad podczas oczekiwania na zamkniecie watku wyjsciowego.");
-							}
-							updateLog("Zamknieto polaczenie.");
-							Connection old = connection;
-							connection = null;
-							changeSupport.firePropertyChange("connection", old, connection);
-							closeConnectionFlag = false;
-						}
-					}
-				}
-			).start();
-		}
+	private final Log log;
+
+	/** Tworzy czysty model bez zadnych polaczen oraz bez nasluchiwania. Liczba petli zdarzen
+	 * zalezy od liczby dostepnych procesorow.
+	 */
+	Model() throws IOException{
+		this(ExecutionMode.PLATFORM);
+	}
+
+	/** Tworzy czysty model bez zadnych polaczen oraz bez nasluchiwania. Liczba petli zdarzen
+	 * zalezy od liczby dostepnych procesorow.
+	 * @param mode Rodzaj watkow Modelu.
+	 */
+	Model(ExecutionMode mode) throws IOException{
+		this(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), mode);
+	}
+
+	/** Tworzy czysty model bez zadnych polaczen oraz bez nasluchiwania, na zwyklych watkach.
+	 * @param _loops Liczba petli zdarzen (watkow wejscia/wyjscia).
+	 */
+	Model(int _loops) throws IOException{
+		this(_loops, ExecutionMode.PLATFORM);
 	}
 
 	/** Tworzy czysty model bez zadnych polaczen oraz bez nasluchiwania.
+	 * @param _loops Liczba petli zdarzen (watkow wejscia/wyjscia).
+	 * @param mode Rodzaj watkow Modelu.
 	 */
-	Model(){
+	Model(int _loops, ExecutionMode mode) throws IOException{
 
 		listener = null;
-		connection = null;
-		sendQueue = new LinkedBlockingQueue<String>();
-		toViewQueue = new LinkedBlockingQueue<String>();
+		sessions = new ConcurrentHashMap<String, Connection>();
+		sessionsPerHost = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+		maxSessions = 10000;
+		maxSessionsPerHost = 16;
+		idleTimeoutMillis = 0;
+		heartbeatMillis = 1000;
+		maxMissedBeats = 3;
+		creditWindow = 1024;
+		timers = new TimerWheel(TIMER_TICK_MILLIS, 512);
+		toViewQueue = new RingBuffer<Message>(65536, RingBuffer.Policy.DROP_OLDEST);
+		deliveryLock = new Object();
+		historyMaxAgeMillis = 90L * 24 * 3600 * 1000;
+		historyMaxBytes = 1024L * 1024 * 1024;
+		long id = 0;
+		while(id == 0)
+			id = UUID.randomUUID().getMostSignificantBits();
+		nodeId = id;
+		windows = new ConcurrentHashMap<Long, Outbox.Window>();
+		redials = Collections.newSetFromMap(new ConcurrentHashMap<Redial, Boolean>());
+		reconnectBaseMillis = 500;
+		reconnectMaxMillis = 30000;
+		router = new Router(this);
+		rooms = new ConcurrentHashMap<String, Room>();
+		joinedRooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		sendQueueCapacity = 1024;
+		sendQueuePolicy = RingBuffer.Policy.BLOCK;
+		bulkThreshold = 4 * 1024;
+		streamWeights = new int[]{ 0, 8, 2, 1 };
 		changeSupport = new PropertyChangeSupport(this);
-		log = new String();
+		log = new Log(LOG_SIZE);
+		nextLoop = new AtomicInteger();
+		sentSequence = new AtomicLong();
+		bufferPool = new BufferPool(16 * 1024, 1024);
+		batchStats = new BatchStats();
+		metrics = new Metrics();
+		metricsExporter = new MetricsExporter(this);
+		maxBatchSize = 64;
+		maxLingerMillis = 0;
+		compressionThreshold = 256;
+		compressionDictionary = null;
+		downloadDirectory = new File(System.getProperty("user.home"), "Komunikator");
+		executor = newExecutor(mode);
+		loops = new EventLoop[_loops];
+		for(int i = 0; i < _loops; i++){
+			loops[i] = new EventLoop(this, "io-" + i);
+			loops[i].start(executor);
+		}
+		loops[0].schedule(newIdleSweep(), IDLE_SWEEP_MILLIS);
+		loops[0].schedule(newTimerTick(), TIMER_TICK_MILLIS);
+		loops[0].schedule(newGossip(), Router.GOSSIP_MILLIS);
+	}
+
+	/** Tworzy executor dla podanego rodzaju watkow. Watki wirtualne pobierane sa przez refleksje,
+	 * tak by aplikacja kompilowala sie i dzialala takze na starszych wersjach Javy; jesli nie sa
+	 * dostepne, Model uzywa zwyklych watkow.
+	 * @param mode Rodzaj watkow.
+	 * @return Nowy executor.
+	 */
+	private ExecutorService newExecutor(ExecutionMode mode){
+
+		if(mode == ExecutionMode.VIRTUAL){
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				updateLog(Log.Level.WARN, "Watki wirtualne wymagaja Javy 21 lub nowszej, Model uzywa zwyklych watkow.");
+			}
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/** Wykonuje zadanie w executorze Modelu.
+	 * @param task Zadanie do wykonania.
+	 */
+	void execute(Runnable task){
+		executor.execute(task);
+	}
+
+	/** Zamyka Model: konczy nasluch, zamyka wszystkie polaczenia po wyslaniu ich kolejek, zatrzymuje petle
+	 * zdarzen i czeka na zakonczenie watkow Modelu.
+	 * @param timeoutMillis Maksymalny czas oprozniania kolejek polaczen i, osobno, oczekiwania na zakonczenie watkow.
+	 * @return true jesli wszystkie watki zakonczyly sie w zadanym czasie.
+	 */
+	public boolean shutdown(long timeoutMillis){
+
+		shuttingDown = true;
+		redials.clear();
+		if(isListening())
+			stopListening();
+		try {
+			closeConnection(timeoutMillis).get(timeoutMillis + IDLE_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			updateLog(Log.Level.WARN, "Nie wszystkie polaczenia zostaly zamkniete.");
+		}
+		metricsExporter.stop();
+		MessageStore store = history;
+		if(store != null){
+			history = null;
+			searchIndex.close(timeoutMillis);
+			searchIndex = null;
+			store.close(timeoutMillis);
+		}
+		Outbox box = outbox;
+		if(box != null){
+			outbox = null;
+			box.close(timeoutMillis);
+		}
+		for(EventLoop loop : loops)
+			loop.shutdown();
+		executor.shutdown();
+		try {
+			if(executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+				return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+		return false;
 	}
 
 	/** Wyswietla w logu nowa informacje.
 	 * @param _s Komunikat do dolaczenia do logu.
 	 */
-	public synchronized void updateLog(String _s){
-		String old = log;
-		log = log + _s + "\n";
-		changeSupport.firePropertyChange("log", old, log);
+	public void updateLog(String _s){
+		updateLog(Log.Level.INFO, _s);
+	}
+
+	/** Dopisuje wpis do logu. Sluchacze wlasciwosci "log" dostaja tylko nowy wpis (Log.Entry)
+	 * jako nowa wartosc, bez calej historii.
+	 * @param level Poziom wpisu.
+	 * @param _s Komunikat do dolaczenia do logu.
+	 */
+	public void updateLog(Log.Level level, String _s){
+
+		Log.Entry entry = log.append(level, _s);
+		changeSupport.firePropertyChange("log", null, entry);
 	}
 
 	/** Rozpoczyna nasluchiwanie na porcie 5000.
 	 */
 	void listen() throws IOException{
-		
-		new Thread(new Runnable(){
-			public synchronized void run(){
-				Socket tmp = null;
-				try {
-					listener = new ServerSocket(5000);
-					updateLog("Nasluchuje na porcie " + listener.getLocalPort());
-					tmp = listener.accept();
-					updateLog("Polaczono do " + tmp.getInetAddress());
-				} catch (IOException e) {
-					updateLog("Blad podczas odbierania polaczenia.");
-					stopListening();
-					return;
-				}
-				stopListening();
-				Connection old = connection;
-				connection = new Connection(tmp);
-				changeSupport.firePropertyChange("connection", old, connection);
-			}
-		}).start();
+		listen(PORT, BACKLOG);
 	}
 
-	/** Konczy nasluchiwanie na porcie 5000.
+	/** Rozpoczyna nasluchiwanie na podanym porcie. Nasluch trwa do wywolania stopListening(),
+	 * kazde przyjete polaczenie staje sie nowa sesja.
+	 * @param port Port nasluchu, 0 oznacza dowolny wolny port.
+	 * @param backlog Dlugosc kolejki polaczen oczekujacych na przyjecie.
 	 */
-	void stopListening(){
-		
-		updateLog("Przestaje nasluchiwac.");
+	synchronized void listen(int port, int backlog) throws IOException{
+
 		if(listener != null)
-			try {
-				listener.close();
-				
-			} catch (IOException e) {
+			return;
+		Acceptor acceptor;
+		try {
+			acceptor = new Acceptor(this, loops[0], port, backlog);
+		} catch (IOException e) {
+			updateLog(Log.Level.ERROR, "Blad podczas odbierania polaczenia.");
+			throw e;
+		}
+		acceptor.open();
+		listener = acceptor;
+		updateLog("Nasluchuje na porcie " + acceptor.getPort());
+	}
+
+	/** Konczy nasluchiwanie.
+	 */
+	synchronized void stopListening(){
+
+		updateLog("Przestaje nasluchiwac.");
+		if(listener != null){
+			listener.close();
+			listener = null;
+		}
+	}
+
+	/** Sprawdza, czy model nasluchuje polaczen.
+	 * @return true jesli nasluch jest aktywny.
+	 */
+	public boolean isListening(){
+		return listener != null;
+	}
+
+	/** Zwraca port nasluchu.
+	 * @return Numer portu lub -1 jesli model nie nasluchuje.
+	 */
+	public int getListenPort(){
+
+		Acceptor acceptor = listener;
+		return acceptor == null ? -1 : acceptor.getPort();
+	}
+
+	/** Wywolywane przez Acceptor dla kazdego przyjetego polaczenia.
+	 * @param channel Przyjety kanal.
+	 */
+	void accepted(SocketChannel channel){
 
-				updateLog("Blad podczas zamykania ServerSocket.");
-			};
+		try {
+			register(channel, null, false);
+			updateLog("Polaczono do " + channel.getRemoteAddress());
+		} catch (IOException e) {
+			updateLog(Log.Level.WARN, "Odrzucono polaczenie: " + e.getMessage());
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				updateLog(Log.Level.ERROR, "Blad podczas zamykania socket'a.");
+			}
+		}
 	}
 
-	/** Laczy z podanym adresem IP.
-	 * @throws IOException 
+	/** Laczy z podanym adresem IP. Kolejne wywolania otwieraja kolejne sesje.
+	 * @throws IOException
 	 */
 	void newConnection(InetAddress IP) throws IOException{
+		newConnection(IP, PORT);
+	}
+
+	/** Laczy z podanym adresem IP i portem. Zerwane polaczenie jest nawiazywane ponownie
+	 * (zob. Redial), dopoki nie zostanie zamkniete przez closeConnection().
+	 * @throws IOException
+	 */
+	void newConnection(InetAddress IP, int port) throws IOException{
+		connect(IP, port, true);
+	}
+
+	/** Laczy z wezlem poznanym z plotek nakladki. Zerwane polaczenie nie jest nawiazywane ponownie.
+	 * @param IP Adres wezla.
+	 * @param port Port nasluchu wezla.
+	 * @throws IOException
+	 */
+	void dial(InetAddress IP, int port) throws IOException{
+		connect(IP, port, false);
+	}
 
-		Connection old = connection;
+	private void connect(InetAddress IP, int port, boolean reconnect) throws IOException{
+
+		SocketChannel channel = null;
 		try {
-			connection = new Connection(new Socket(IP, 5000));
+			channel = SocketChannel.open(new InetSocketAddress(IP, port));
+			register(channel, reconnect ? new Redial(IP, port) : null, true);
+			metrics.dialed(IP.getHostAddress() + ":" + port);
 		} catch (IOException e) {
-			connection = null;
-			updateLog("Blad podczas nawiazywania polaczenia.");
+			if(channel != null)
+				channel.close();
+			updateLog(Log.Level.ERROR, "Blad podczas nawiazywania polaczenia.");
 			throw e;
 		}
-		changeSupport.firePropertyChange("connection", old, connection);
 		updateLog("Polaczono do " + IP);
 	}
 
-	/** Wysyla przez socket wiadomosc tekstowa.
+	/** Tworzy sesje dla polaczonego kanalu i przydziela ja jednej z petli zdarzen.
+	 * @param channel Polaczony kanal.
+	 * @param redial Ponowne nawiazywanie polaczenia wychodzacego lub null.
+	 * @param client true dla polaczenia wychodzacego - strona rozpoczynajaca uzgadnianie TLS.
+	 * @throws IOException Takze gdy przekroczono limit sesji.
+	 */
+	private void register(SocketChannel channel, Redial redial, boolean client) throws IOException{
+
+		InetAddress host = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+		if(sessions.size() >= maxSessions)
+			throw new IOException("Osiagnieto limit " + maxSessions + " sesji.");
+		AtomicInteger perHost = sessionsPerHost.get(host);
+		if(perHost == null){
+			AtomicInteger fresh = new AtomicInteger();
+			perHost = sessionsPerHost.putIfAbsent(host, fresh);
+			if(perHost == null)
+				perHost = fresh;
+		}
+		if(perHost.incrementAndGet() > maxSessionsPerHost){
+			perHost.decrementAndGet();
+			throw new IOException("Osiagnieto limit " + maxSessionsPerHost + " sesji z " + host + ".");
+		}
+		EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+		Connection connection;
+		try {
+			connection = new Connection(this, loop, channel, client);
+		} catch (IOException e) {
+			perHost.decrementAndGet();
+			throw e;
+		}
+		sessions.put(connection.getPeer(), connection);
+		if(redial != null){
+			redial.connection = connection;
+			redials.add(redial);
+		}
+		connection.open();
+		for(String room : joinedRooms)
+			connection.offer(Frame.room(Frame.ROOM_JOIN, room), Stream.CONTROL);
+		changeSupport.firePropertyChange("connection", null, connection);
+	}
+
+	/** Wywolywane przez Connection po zamknieciu kanalu - usuwa sesje z rejestru.
+	 * @param connection Zamkniete polaczenie.
+	 */
+	void connectionClosed(Connection connection){
+
+		if(sessions.remove(connection.getPeer(), connection)){
+			AtomicInteger perHost = sessionsPerHost.get(connection.getAddress());
+			if(perHost != null)
+				perHost.decrementAndGet();
+			metrics.closed(connection.getPeer(), connection.getStreams());
+			updateLog("Zamknieto polaczenie z " + connection.getPeer() + ".");
+			changeSupport.firePropertyChange("connection", connection, null);
+		}
+		router.disconnected(connection);
+		for(Room room : rooms.values())
+			room.remove(connection);
+		Redial redial = redialOf(connection);
+		if(redial != null && !shuttingDown)
+			redial.schedule();
+	}
+
+	/** Wylacza ponowne nawiazywanie polaczenia zamykanego celowo.
+	 * @param connection Polaczenie.
+	 */
+	private void forget(Connection connection){
+
+		Redial redial = redialOf(connection);
+		if(redial != null)
+			redials.remove(redial);
+	}
+
+	/** Zwraca ponowne nawiazywanie polaczenia, ktore otworzylo podana sesje.
+	 * @param connection Polaczenie.
+	 * @return Redial lub null dla polaczen przychodzacych i zamknietych przez uzytkownika.
+	 */
+	private Redial redialOf(Connection connection){
+
+		for(Redial redial : redials)
+			if(redial.connection == connection)
+				return redial;
+		return null;
+	}
+
+	/**
+	 * Ponowne nawiazywanie zerwanego polaczenia wychodzacego. Kolejne proby odlegle sa o coraz dluzszy
+	 * czas - podwajany od reconnectBaseMillis do reconnectMaxMillis, z losowym rozrzutem, tak by peer'y
+	 * nie laczyly sie ponownie wszystkie w tej samej chwili. Licznik prob zerowany jest, gdy peer
+	 * przedstawi sie na nowym polaczeniu. Proby trwaja do zamkniecia polaczenia przez uzytkownika.
+	 */
+	private final class Redial implements Runnable{
+
+		final InetAddress host;
+		final int port;
+
+		/** Adres host:port zapisywany w dzienniku wysylania. */
+		final String address;
+
+		/** Ostatnie polaczenie nawiazane pod tym adresem. */
+		volatile Connection connection;
+
+		/** Liczba nieudanych prob od ostatniego udanego polaczenia. */
+		volatile int attempts;
+
+		Redial(InetAddress _host, int _port){
+
+			host = _host;
+			port = _port;
+			address = host.getHostAddress() + ":" + port;
+		}
+
+		/** Planuje kolejna probe w petli zdarzen. */
+		void schedule(){
+
+			long delay = Math.min(reconnectMaxMillis, reconnectBaseMillis << Math.min(attempts, 20));
+			delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+			loops[0].schedule(this, delay);
+		}
+
+		/** Przekazuje probe polaczenia do executora - laczenie blokuje watek. */
+		public void run(){
+
+			if(shuttingDown || !redials.contains(this))
+				return;
+			execute(new Runnable(){
+				public void run(){
+					dial();
+				}
+			});
+		}
+
+		private void dial(){
+
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open(new InetSocketAddress(host, port));
+				register(channel, this, true);
+				metrics.dialed(address);
+				updateLog("Ponownie polaczono do " + address + ".");
+			} catch (IOException e) {
+				if(channel != null){
+					try {
+						channel.close();
+					} catch (IOException e1) {
+						updateLog(Log.Level.ERROR, "Blad podczas zamykania socket'a.");
+					}
+				}
+				if(attempts++ == 0)
+					updateLog(Log.Level.WARN, "Nie mozna polaczyc ponownie z " + address + ": " + e.getMessage()
+						+ ". Kolejne proby w tle.");
+				if(!shuttingDown && redials.contains(this))
+					schedule();
+			}
+		}
+	}
+
+	/** Tworzy zadanie obslugujace kolo czasowe. Zadanie planuje samo siebie ponownie.
+	 * @return Zadanie do wykonania w petli zdarzen.
+	 */
+	private Runnable newTimerTick(){
+
+		return new Runnable(){
+			public void run(){
+				timers.tick();
+				loops[0].schedule(this, TIMER_TICK_MILLIS);
+			}
+		};
+	}
+
+	TimerWheel getTimers(){
+		return timers;
+	}
+
+	/** Co tyle milisekund sprawdzamy, czy sa sesje do zamkniecia z powodu bezczynnosci. */
+	private static final long IDLE_SWEEP_MILLIS = 1000;
+
+	/** Tworzy zadanie zamykajace bezczynne sesje. Zadanie planuje samo siebie ponownie.
+	 * @return Zadanie do wykonania w petli zdarzen.
+	 */
+	private Runnable newIdleSweep(){
+
+		return new Runnable(){
+			public void run(){
+				long timeout = idleTimeoutMillis;
+				if(timeout > 0){
+					long now = System.nanoTime();
+					for(Connection connection : sessions.values()){
+						if(now - connection.getLastActivity() > timeout * 1000000L){
+							updateLog(Log.Level.WARN, "Zamykam bezczynne polaczenie z " + connection.getPeer() + ".");
+							forget(connection);
+							connection.close();
+						}
+					}
+				}
+				loops[0].schedule(this, IDLE_SWEEP_MILLIS);
+			}
+		};
+	}
+
+	/** Tworzy zadanie wysylajace plotki nakladki. Zadanie planuje samo siebie ponownie.
+	 * @return Zadanie do wykonania w petli zdarzen.
+	 */
+	private Runnable newGossip(){
+
+		return new Runnable(){
+			public void run(){
+				if(shuttingDown)
+					return;
+				router.tick(sessions.values());
+				loops[0].schedule(this, Router.GOSSIP_MILLIS);
+			}
+		};
+	}
+
+	/** Wywolywane przez Connection dla kazdej odebranej wiadomosci. Przy pelnej kolejce do widoku
+	 * stosowana jest jej polityka - domyslnie porzucane sa najstarsze wiadomosci, tak by petla zdarzen
+	 * nigdy nie czekala na widok.
+	 * @param msg Wiadomosc do wyswietlenia.
+	 */
+	void messageReceived(Message msg){
+
+		try {
+			deliver(msg);
+		} catch (InterruptedException e) {
+			updateLog(Log.Level.ERROR, "Blad podczas przesylania wiadomosci do widoku.");
+		} catch (IllegalStateException e) {
+			updateLog(Log.Level.WARN, "Kolejka do widoku jest pelna - odrzucono wiadomosc.");
+		}
+	}
+
+	/** Wywolywane przez Connection dla wiadomosci do pokoju. Wiadomosci do pokoi, z ktorych wyszlismy, sa pomijane.
+	 * @param room Nazwa pokoju.
+	 * @param msg Wiadomosc; nadawca ma postac "peer @pokoj".
+	 */
+	void roomMessageReceived(String room, Message msg){
+
+		if(joinedRooms.contains(room))
+			messageReceived(msg);
+	}
+
+	/** Wywolywane przez Router dla wiadomosci trasowanej do tego wezla lub do wszystkich.
+	 * @param msg Wiadomosc; nadawca to nazwa wezla (zob. Router.name()).
+	 */
+	void routedMessageReceived(Message msg){
+		messageReceived(msg);
+	}
+
+	/** Przekazuje wiadomosc do historii, indeksu wyszukiwania i do kolejki widoku. Historia nadaje identyfikatory
+	 * w tej samej kolejnosci, w jakiej wiadomosci trafiaja do kolejki widoku, wiec View moze po identyfikatorze
+	 * pominac wiadomosci wczytane juz z historii. Indeks tylko przyjmuje wiadomosc do kolejki - indeksuje ja
+	 * osobny watek.
+	 * @param msg Wiadomosc.
+	 * @throws InterruptedException Jesli watek zostal przerwany w czasie czekania na kolejke widoku.
+	 * @throws IllegalStateException Jesli kolejka widoku jest pelna (polityka REJECT).
+	 */
+	private void deliver(Message msg) throws InterruptedException{
+
+		MessageStore store = history;
+		if(store == null){
+			toViewQueue.put(msg);
+			return;
+		}
+		synchronized(deliveryLock){
+			Message stored = store.append(msg);
+			SearchIndex index = searchIndex;
+			if(index != null)
+				index.add(stored);
+			toViewQueue.put(stored);
+		}
+	}
+
+	/** Wysyla wiadomosc tekstowa do wszystkich otwartych sesji. Jesli dziennik wysylania jest otwarty,
+	 * wiadomosc trafia tez do niego i jest wysylana ponownie peer'om, ktore nie potwierdzily jej odbioru,
+	 * gdy polacza sie ponownie - takze tym, ktore nie sa teraz polaczone. Rozsylanie nigdy nie czeka na miejsce
+	 * w kolejce: peer z pelna kolejka nie dostaje wiadomosci (queue.send.dropped lub, przy polityce REJECT,
+	 * queue.send.rejected w metrykach), a pozostali dostaja ja bez opoznienia - wywolanie z watku EDT
+	 * nie zamraza interfejsu. Wiadomosc z dziennika wysylania jest wysylana temu peer'owi ponownie,
+	 * gdy jego kolejka sie oprozni (zob. resendDropped()).
 	 * @param msg Wiadomosc do wyslania.
+	 * @return Numer wiadomosci w dzienniku wysylania (zob. isDelivered()) lub 0, jesli dziennik nie jest otwarty.
 	 */
-	public synchronized void sendMessage(String msg){
-		
-		String timeStamp = new SimpleDateFormat("HH.mm.ss").format(Calendar.getInstance().getTime());
+	public synchronized long sendMessage(String msg){
+
+		byte[] payload = msg.getBytes(StandardCharsets.UTF_8);
+		Outbox box = outbox;
+		long sequence = box != null ? box.add(payload, 0) : 0;
+		Frame frame = sequence != 0 ? Frame.message(sequence, payload) : Frame.message(payload);
 		try {
-			sendQueue.put(msg);
-			toViewQueue.put(timeStamp + ", ja: " + msg + "\n");
+			for(Connection connection : sessions.values())
+				if(!sendNow(connection, frame) && sequence != 0 && connection.getPeerNode() != 0)
+					connection.resendLater(sequence);
+			deliver(new Message("ja", sentSequence.incrementAndGet(), System.currentTimeMillis(),
+				payload, Message.OUTGOING));
 		} catch (InterruptedException e) {
-			updateLog("Blad podczas wysylania wiadomosci.");
+			updateLog(Log.Level.ERROR, "Blad podczas wysylania wiadomosci.");
+		} catch (IllegalStateException e) {
+			updateLog(Log.Level.WARN, "Kolejka do widoku jest pelna - odrzucono wiadomosc.");
 		}
+		return sequence;
 	}
 
-	/** Zamyka polaczenie.
+	/** Wysyla wiadomosc tekstowa do jednego peer'a. Jesli dziennik wysylania jest otwarty, a peer
+	 * przedstawil sie identyfikatorem wezla, wiadomosc jest wysylana ponownie az do potwierdzenia.
+	 * @param peer Identyfikator sesji (zob. getSessions()).
+	 * @param msg Wiadomosc do wyslania.
+	 * @return false jesli nie ma sesji z podanym peer'em.
 	 */
-	public void closeConnection(){
+	public boolean sendMessage(String peer, String msg){
 
-		if(connection != null){
-			connection.close();
+		Connection connection = sessions.get(peer);
+		if(connection == null)
+			return false;
+		Outbox box = outbox;
+		long node = connection.getPeerNode();
+		try {
+			if(box != null && node != 0){
+				byte[] payload = msg.getBytes(StandardCharsets.UTF_8);
+				return send(connection, Frame.message(box.add(payload, node), payload));
+			}
+			return send(connection, Frame.message(msg));
+		} catch (InterruptedException e) {
+			updateLog(Log.Level.ERROR, "Blad podczas wysylania wiadomosci.");
+			return false;
 		}
 	}
 
-	/** Zwraca referencje na log.
-	 * @return Referencja na log.
+	/** Wysyla wiadomosc tekstowa do wezla nakladki, takze takiego, z ktorym nie mamy bezposredniego
+	 * polaczenia - wiadomosc przechodzi przez co najwyzej Router.MAX_HOPS wezlow.
+	 * @param node Identyfikator wezla (zob. getOverlay()).
+	 * @param msg Wiadomosc do wyslania.
+	 * @return false jesli trasa do wezla nie jest znana.
 	 */
-	public String getConnectionLog(){
-		return log;
+	public boolean sendMessage(long node, String msg){
+
+		Connection next = router.route(node);
+		if(next == null)
+			return false;
+		try {
+			return send(next, router.routed(node, msg.getBytes(StandardCharsets.UTF_8)));
+		} catch (InterruptedException e) {
+			updateLog(Log.Level.ERROR, "Blad podczas wysylania wiadomosci.");
+			return false;
+		}
 	}
 
-	/** Zwraca wiadomosc odebrana przez socket. Jesli kolejka jest pusta
-	 * to metoda ta blokuje sie do czasu pojawienia sie nowej wiadomosci.
-	 * @return Wiadomosc odebrana z zewnatrz.
-	 * @throws InterruptedException Jesli pojawi sie interrupt() na watku zablokwanym na tej metodzie.
+	/** Wysyla wiadomosc tekstowa do wszystkich wezlow nakladki. Kazdy wezel przekazuje ja dalej
+	 * swoim sasiadom najwyzej raz. Jak sendMessage(String), rozsylanie nie czeka na miejsce w kolejce:
+	 * sasiad z pelna kolejka nie dostaje wiadomosci i nie przekazuje jej dalej.
+	 * @param msg Wiadomosc do wyslania.
+	 * @return Liczba sasiadow, w ktorych kolejkach wiadomosc zostala umieszczona - nie oznacza dostarczenia.
 	 */
-	public String getNextMessage() throws InterruptedException {
-		return toViewQueue.take();
+	public synchronized int broadcast(String msg){
+
+		byte[] payload = msg.getBytes(StandardCharsets.UTF_8);
+		Frame frame = router.routed(0, payload);
+		int n = 0;
+		try {
+			for(Connection connection : sessions.values())
+				if(sendNow(connection, frame))
+					n++;
+			deliver(new Message("ja", sentSequence.incrementAndGet(), System.currentTimeMillis(),
+				payload, Message.OUTGOING));
+		} catch (InterruptedException e) {
+			updateLog(Log.Level.ERROR, "Blad podczas wysylania wiadomosci.");
+		} catch (IllegalStateException e) {
+			updateLog(Log.Level.WARN, "Kolejka do widoku jest pelna - odrzucono wiadomosc.");
+		}
+		return n;
+	}
+
+	/** Dolacza do pokoju: oglasza to wszystkim peer'om, ktorzy od tej chwili przysylaja nam wiadomosci
+	 * wyslane do pokoju.
+	 * @param room Nazwa pokoju, najwyzej Room.MAX_NAME bajtow w UTF-8.
+	 * @throws IllegalArgumentException Jesli nazwa jest pusta lub za dluga.
+	 */
+	public void joinRoom(String room){
+
+		if(room.isEmpty() || room.getBytes(StandardCharsets.UTF_8).length > Room.MAX_NAME)
+			throw new IllegalArgumentException("Bledna nazwa pokoju: " + room);
+		if(!joinedRooms.add(room))
+			return;
+		room(room);
+		Frame frame = Frame.room(Frame.ROOM_JOIN, room);
+		for(Connection connection : sessions.values())
+			connection.offer(frame, Stream.CONTROL);
+		updateLog("Dolaczono do pokoju " + room + ".");
+	}
+
+	/** Wychodzi z pokoju i oglasza to wszystkim peer'om.
+	 * @param room Nazwa pokoju.
+	 */
+	public void leaveRoom(String room){
+
+		if(!joinedRooms.remove(room))
+			return;
+		Frame frame = Frame.room(Frame.ROOM_LEAVE, room);
+		for(Connection connection : sessions.values())
+			connection.offer(frame, Stream.CONTROL);
+		updateLog("Opuszczono pokoj " + room + ".");
+	}
+
+	/** Wysyla wiadomosc do wszystkich czlonkow pokoju. Wiadomosc kodowana jest raz, a ta sama ramka trafia
+	 * do kolejek wszystkich czlonkow. Na miejsce w pelnych kolejkach czekamy najwyzej Room.LAG_MILLIS;
+	 * czlonek, ktory nie nadaza, traci kolejne wiadomosci (zob. metryki room.dropped i room.laggards),
+	 * ale nie opoznia pozostalych.
+	 * @param room Nazwa pokoju.
+	 * @param msg Wiadomosc do wyslania.
+	 * @return Liczba czlonkow, do ktorych kolejek trafila wiadomosc.
+	 * @throws IllegalArgumentException Jesli nazwa pokoju jest za dluga.
+	 */
+	public int sendToRoom(String room, String msg){
+
+		byte[] payload = msg.getBytes(StandardCharsets.UTF_8);
+		Frame frame = Frame.roomMessage(room, payload);
+		Room members = rooms.get(room);
+		int n = members == null ? 0 : members.send(frame);
+		try {
+			deliver(new Message("ja @" + room, sentSequence.incrementAndGet(), System.currentTimeMillis(),
+				payload, Message.OUTGOING));
+		} catch (InterruptedException e) {
+			updateLog(Log.Level.ERROR, "Blad podczas wysylania wiadomosci.");
+		} catch (IllegalStateException e) {
+			updateLog(Log.Level.WARN, "Kolejka do widoku jest pelna - odrzucono wiadomosc.");
+		}
+		return n;
+	}
+
+	/** Wywolywane przez Connection, gdy peer dolaczy do pokoju.
+	 * @param connection Polaczenie z peer'em.
+	 * @param room Nazwa pokoju.
+	 */
+	void roomJoined(Connection connection, String room){
+
+		if(!room.isEmpty() && room(room).add(connection))
+			changeSupport.firePropertyChange("room", null, room);
+	}
+
+	/** Wywolywane przez Connection, gdy peer wyjdzie z pokoju.
+	 * @param connection Polaczenie z peer'em.
+	 * @param room Nazwa pokoju.
+	 */
+	void roomLeft(Connection connection, String room){
+
+		Room members = rooms.get(room);
+		if(members != null && members.remove(connection))
+			changeSupport.firePropertyChange("room", room, null);
+	}
+
+	/** Zwraca pokoj o podanej nazwie, tworzac go w razie potrzeby.
+	 * @param name Nazwa pokoju.
+	 * @return Pokoj.
+	 */
+	private Room room(String name){
+
+		Room room = rooms.get(name);
+		if(room == null){
+			Room fresh = new Room(name);
+			room = rooms.putIfAbsent(name, fresh);
+			if(room == null)
+				room = fresh;
+		}
+		return room;
+	}
+
+	/** Zwraca pokoje, do ktorych dolaczylismy.
+	 * @return Niemodyfikowalna lista nazw.
+	 */
+	public List<String> getRooms(){
+		return Collections.unmodifiableList(new ArrayList<String>(joinedRooms));
+	}
+
+	/** Zwraca peer'ow, ktorzy dolaczyli do pokoju.
+	 * @param room Nazwa pokoju.
+	 * @return Niemodyfikowalna lista identyfikatorow sesji.
+	 */
+	public List<String> getRoomMembers(String room){
+
+		Room members = rooms.get(room);
+		if(members == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(members.getMembers());
+	}
+
+	/** Zwraca wszystkie pokoje znane Modelowi - do metryk.
+	 * @return Widok na pokoje.
+	 */
+	Collection<Room> getRoomRegistry(){
+		return rooms.values();
+	}
+
+	/** Zwraca wezly nakladki poznane z plotek.
+	 * @return Mapa identyfikator wezla -> liczba skokow, -1 dla wezlow chwilowo nieosiagalnych.
+	 */
+	public SortedMap<Long, Integer> getOverlay(){
+		return router.getNodes();
+	}
+
+	/** Ustawia liczbe sesji, ktora Model utrzymuje, laczac sie z wezlami poznanymi z plotek.
+	 * @param degree Liczba sesji; 0 (domyslnie) - tylko polaczenia nawiazane przez uzytkownika.
+	 */
+	public void setOverlayDegree(int degree){
+
+		if(degree < 0)
+			throw new IllegalArgumentException("degree < 0");
+		router.setDegree(degree);
+	}
+
+	/** Wysyla plik do jednego peer'a. Plik przesylany jest w kawalkach tym samym polaczeniem co wiadomosci,
+	 * ktore maja pierwszenstwo. Ponowne wyslanie tego samego pliku po zerwaniu polaczenia wznawia przesylanie.
+	 * @param peer Identyfikator sesji (zob. getSessions()).
+	 * @param file Plik do wyslania.
+	 * @return false jesli nie ma sesji z podanym peer'em.
+	 * @throws IOException Jesli pliku nie mozna otworzyc.
+	 */
+	public boolean sendFile(String peer, File file) throws IOException{
+
+		Connection connection = sessions.get(peer);
+		if(connection == null)
+			return false;
+		connection.sendFile(FileTransfer.outgoing(file));
+		return true;
+	}
+
+	/** Wysyla plik do wszystkich peer'ow.
+	 * @param file Plik do wyslania.
+	 * @return Liczba sesji, do ktorych plik jest wysylany.
+	 * @throws IOException Jesli pliku nie mozna otworzyc.
+	 */
+	public int sendFile(File file) throws IOException{
+
+		int n = 0;
+		for(Connection connection : sessions.values()){
+			connection.sendFile(FileTransfer.outgoing(file));
+			n++;
+		}
+		return n;
+	}
+
+	/** Ustawia katalog, do ktorego zapisywane sa odebrane pliki. Dotyczy kolejnych przesylan.
+	 * @param directory Katalog; zostanie utworzony przy pierwszym odbiorze.
+	 */
+	public void setDownloadDirectory(File directory){
+		downloadDirectory = directory;
+	}
+
+	public File getDownloadDirectory(){
+		return downloadDirectory;
+	}
+
+	/** Odstep miedzy kolejnymi porzadkowaniami historii. */
+	private static final long HISTORY_MAINTENANCE_MILLIS = 10000;
+
+	/** Otwiera historie wiadomosci w podanym katalogu. Od tej chwili odebrane i wyslane wiadomosci
+	 * zapisywane sa na dysku, a widok moze wczytywac je strona po stronie przez getHistory() i wyszukiwac
+	 * przez search(). Indeks wyszukiwania odtwarzany jest z historii w tle.
+	 * @param directory Katalog historii; zostanie utworzony w razie potrzeby.
+	 * @throws IOException Jesli nie udalo sie otworzyc historii lub katalog jest uzywany przez inny proces.
+	 * @throws IllegalStateException Jesli historia jest juz otwarta.
+	 */
+	public synchronized void openHistory(File directory) throws IOException{
+
+		if(history != null)
+			throw new IllegalStateException("Historia jest juz otwarta.");
+		MessageStore store = new MessageStore(directory, MessageStore.SEGMENT_SIZE);
+		store.setRetention(historyMaxAgeMillis, historyMaxBytes);
+		store.start(executor);
+		SearchIndex index = new SearchIndex(store);
+		index.start(executor);
+		searchIndex = index;
+		history = store;
+		loops[0].schedule(newHistoryMaintenance(store), HISTORY_MAINTENANCE_MILLIS);
+		updateLog("Historia wiadomosci: " + directory + ".");
+	}
+
+	/** Tworzy zadanie porzadkujace historie. Zadanie w petli zdarzen przekazuje porzadkowanie
+	 * do executora, a ten po jego zakonczeniu planuje zadanie ponownie - porzadkowania nigdy
+	 * nie nakladaja sie na siebie.
+	 * @param store Historia.
+	 * @return Zadanie do wykonania w petli zdarzen.
+	 */
+	private Runnable newHistoryMaintenance(final MessageStore store){
+
+		return new Runnable(){
+			private boolean failureLogged;
+
+			public void run(){
+				if(history != store)
+					return;
+				final Runnable self = this;
+				execute(new Runnable(){
+					public void run(){
+						try {
+							store.maintain();
+						} catch (IOException e) {
+							updateLog(Log.Level.WARN, "Blad porzadkowania historii: " + e.getMessage());
+						}
+						if(store.getFailure() != null && !failureLogged){
+							failureLogged = true;
+							updateLog(Log.Level.ERROR, "Blad zapisu historii: " + store.getFailure().getMessage()
+								+ ". Nowe wiadomosci nie beda zapisywane.");
+						}
+						loops[0].schedule(self, HISTORY_MAINTENANCE_MILLIS);
+					}
+				});
+			}
+		};
+	}
+
+	/** Ustawia limity retencji historii. Najstarsze segmenty ponad limit usuwane sa przy
+	 * kolejnym porzadkowaniu.
+	 * @param maxAgeMillis Maksymalny wiek wiadomosci; 0 - bez limitu.
+	 * @param maxBytes Maksymalny rozmiar historii na dysku; 0 - bez limitu.
+	 */
+	public void setHistoryRetention(long maxAgeMillis, long maxBytes){
+
+		historyMaxAgeMillis = maxAgeMillis;
+		historyMaxBytes = maxBytes;
+		MessageStore store = history;
+		if(store != null)
+			store.setRetention(maxAgeMillis, maxBytes);
+	}
+
+	/** Zwraca wiadomosci z historii poprzedzajace podana - do stronicowania wstecz.
+	 * @param beforeId Identyfikator wiadomosci (Message.getId()); Long.MAX_VALUE zwraca najnowsze.
+	 * @param limit Maksymalna liczba wiadomosci.
+	 * @return Wiadomosci od najstarszej; pusta lista jesli historia nie jest otwarta.
+	 */
+	public List<Message> getHistory(long beforeId, int limit){
+
+		MessageStore store = history;
+		if(store == null)
+			return Collections.emptyList();
+		return store.readBefore(beforeId, limit);
+	}
+
+	/** Zwraca wiadomosci z historii z przedzialu czasu.
+	 * @param peer Identyfikator sesji nadawcy, "ja" dla wyslanych lub null dla wszystkich.
+	 * @param from Poczatek przedzialu (System.currentTimeMillis()), wlacznie.
+	 * @param to Koniec przedzialu, wylacznie.
+	 * @param limit Maksymalna liczba wiadomosci.
+	 * @return Pierwsze wiadomosci z przedzialu, od najstarszej; pusta lista jesli historia nie jest otwarta.
+	 */
+	public List<Message> getHistory(String peer, long from, long to, int limit){
+
+		MessageStore store = history;
+		if(store == null)
+			return Collections.emptyList();
+		return store.read(peer, from, to, limit);
+	}
+
+	/** Wyszukuje w historii wiadomosci zawierajace wszystkie terminy zapytania. Frazy w cudzyslowie musza
+	 * wystapic w podanej kolejnosci, np. <code>spotkanie "w piatek"</code>. Wielkosc liter i znaki diakrytyczne
+	 * nie maja znaczenia. Wiadomosci przyjete do historii przed chwila moga jeszcze nie byc zaindeksowane.
+	 * @param query Zapytanie.
+	 * @param peer Identyfikator sesji nadawcy, "ja" dla wyslanych lub null dla wszystkich.
+	 * @param from Poczatek przedzialu czasu (System.currentTimeMillis()), wlacznie.
+	 * @param to Koniec przedzialu, wylacznie.
+	 * @param limit Maksymalna liczba wiadomosci.
+	 * @return Najnowsze pasujace wiadomosci, od najstarszej; pusta lista jesli historia nie jest otwarta.
+	 */
+	public List<Message> search(String query, String peer, long from, long to, int limit){
+
+		MessageStore store = history;
+		SearchIndex index = searchIndex;
+		if(store == null || index == null)
+			return Collections.emptyList();
+		return store.read(index.search(query, peer, from, to, store.getFirstId(), limit));
+	}
+
+	/** Wyszukuje w calej historii wiadomosci pasujace do zapytania - zob. search(String, String, long, long, int).
+	 * @param query Zapytanie.
+	 * @param limit Maksymalna liczba wiadomosci.
+	 * @return Najnowsze pasujace wiadomosci, od najstarszej.
+	 */
+	public List<Message> search(String query, int limit){
+		return search(query, null, Long.MIN_VALUE, Long.MAX_VALUE, limit);
+	}
+
+	/** Sprawdza, czy historia jest otwarta - tylko wtedy dzialaja getHistory() i search().
+	 * @return true jesli historia jest otwarta.
+	 */
+	public boolean isHistoryOpen(){
+		return history != null;
+	}
+
+	/** Zwraca historie wiadomosci.
+	 * @return Historia lub null jesli nie zostala otwarta.
+	 */
+	MessageStore getMessageStore(){
+		return history;
+	}
+
+	/** Zwraca indeks wyszukiwania historii.
+	 * @return Indeks lub null jesli historia nie zostala otwarta.
+	 */
+	SearchIndex getSearchIndex(){
+		return searchIndex;
+	}
+
+	/** Otwiera dziennik wysylania w podanym katalogu i laczy ponownie z peer'ami, ktore nie potwierdzily
+	 * wiadomosci wyslanych przed zamknieciem aplikacji. Od tej chwili wiadomosci wysylane sa z numerem
+	 * i czekaja w dzienniku na potwierdzenie odbiorcy.
+	 * @param directory Katalog dziennika; zostanie utworzony w razie potrzeby.
+	 * @throws IOException Jesli nie udalo sie otworzyc dziennika lub katalog jest uzywany przez inny proces.
+	 * @throws IllegalStateException Jesli dziennik jest juz otwarty.
+	 */
+	public synchronized void openOutbox(File directory) throws IOException{
+
+		if(outbox != null)
+			throw new IllegalStateException("Dziennik wysylania jest juz otwarty.");
+		Outbox box = new Outbox(directory);
+		box.start(executor);
+		nodeId = box.getNodeId();
+		outbox = box;
+		updateLog("Dziennik wysylania: " + directory + ", niepotwierdzonych wiadomosci: " + box.getPendingCount() + ".");
+		for(String address : box.getUndeliveredAddresses()){
+			int colon = address.lastIndexOf(':');
+			try {
+				Redial redial = new Redial(InetAddress.getByName(address.substring(0, colon)),
+					Integer.parseInt(address.substring(colon + 1)));
+				redials.add(redial);
+				redial.run();
+			} catch (IOException | RuntimeException e) {
+				updateLog(Log.Level.WARN, "Bledny adres w dzienniku wysylania: " + address + ".");
+			}
+		}
+	}
+
+	/** Ustawia odstepy miedzy probami ponownego polaczenia.
+	 * @param baseMillis Odstep przed pierwsza proba; kolejne sa dwa razy dluzsze.
+	 * @param maxMillis Maksymalny odstep.
+	 */
+	public void setReconnect(long baseMillis, long maxMillis){
+
+		reconnectBaseMillis = Math.max(1, baseMillis);
+		reconnectMaxMillis = Math.max(reconnectBaseMillis, maxMillis);
+	}
+
+	/** Wywolywane przez Connection, gdy peer przedstawi sie identyfikatorem wezla. Niepotwierdzone
+	 * wiadomosci peer'a wysylane sa ponownie w executorze - kolejka wysylania moze blokowac.
+	 * @param connection Polaczenie.
+	 * @param node Identyfikator wezla peer'a.
+	 */
+	void peerIdentified(final Connection connection, long node){
+
+		Redial redial = redialOf(connection);
+		if(redial != null)
+			redial.attempts = 0;
+		// dziennik poznaje peer'a, zanim wezel pojawi sie w nakladce - wiadomosci wyslane po zobaczeniu
+		// go w getOverlay() sa juz sledzone
+		Outbox box = outbox;
+		final List<Outbox.Entry> pending = box == null ? null
+				: box.identified(node, redial != null ? redial.address : null);
+		router.connected(connection, node);
+		if(pending == null || pending.isEmpty())
+			return;
+		execute(new Runnable(){
+			public void run(){
+				int n = 0;
+				try {
+					for(Outbox.Entry entry : pending){
+						if(!send(connection, Frame.message(entry.sequence, entry.payload)))
+							break;
+						n++;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				metrics.resent(n);
+				updateLog("Ponownie wyslano " + n + " niepotwierdzonych wiadomosci do " + connection.getPeer() + ".");
+			}
+		});
+	}
+
+	/** Wysyla ponownie niepotwierdzone wiadomosci peer'a, z ktorych pierwsza nie zmiescila sie w jego kolejce
+	 * (zob. Connection.resendLater()). Wywolywane w watku petli po oproznieniu kolejek polaczenia, wiec
+	 * ramki sa tylko wstawiane, jesli jest miejsce - przy pelnej kolejce reszta czeka na kolejne oproznienie.
+	 * @param connection Polaczenie z peer'em.
+	 * @param from Najmniejszy numer porzuconej wiadomosci.
+	 */
+	void resendDropped(Connection connection, long from){
+
+		Outbox box = outbox;
+		long node = connection.getPeerNode();
+		if(box == null || node == 0)
+			return;
+		int n = 0;
+		for(Outbox.Entry entry : box.pending(node, from)){
+			if(!connection.offer(Frame.message(entry.sequence, entry.payload))){
+				if(connection.isAccepting())
+					connection.resendLater(entry.sequence);
+				break;
+			}
+			n++;
+		}
+		metrics.resent(n);
+	}
+
+	/** Wywolywane przez Connection dla kazdej odebranej wiadomosci z numerem.
+	 * @param node Identyfikator wezla nadawcy.
+	 * @param sequence Numer wiadomosci w dzienniku nadawcy.
+	 * @return false jesli wiadomosc zostala juz odebrana.
+	 */
+	boolean received(long node, long sequence){
+
+		Outbox.Window window = windows.get(node);
+		if(window == null){
+			Outbox.Window fresh = new Outbox.Window();
+			window = windows.putIfAbsent(node, fresh);
+			if(window == null)
+				window = fresh;
+		}
+		return window.add(sequence);
+	}
+
+	/** Wywolywane przez Connection dla kazdego przedzialu z ramki ACK.
+	 * @param node Identyfikator wezla peer'a.
+	 * @param from Pierwszy potwierdzony numer.
+	 * @param to Ostatni potwierdzony numer, wlacznie.
+	 */
+	void acknowledged(long node, long from, long to){
+
+		Outbox box = outbox;
+		if(box != null)
+			box.acknowledged(node, from, to);
+	}
+
+	/** Sprawdza, czy wszyscy odbiorcy potwierdzili odbior wiadomosci.
+	 * @param sequence Numer zwrocony przez sendMessage().
+	 * @return true jesli wiadomosc nie czeka na zadne potwierdzenie; false takze gdy dziennik nie jest otwarty.
+	 */
+	public boolean isDelivered(long sequence){
+
+		Outbox box = outbox;
+		return box != null && sequence != 0 && box.isDelivered(sequence);
+	}
+
+	/** Zwraca dziennik wysylania.
+	 * @return Dziennik lub null jesli nie zostal otwarty.
+	 */
+	Outbox getOutbox(){
+		return outbox;
+	}
+
+	long getNodeId(){
+		return nodeId;
+	}
+
+	Router getRouter(){
+		return router;
+	}
+
+	/** Zwraca otwarte polaczenia.
+	 * @return Widok na polaczenia; zmienia sie wraz z nimi.
+	 */
+	Collection<Connection> getConnections(){
+		return sessions.values();
+	}
+
+	/** Wstawia ramke do kolejki wysylania polaczenia. Pelna kolejka z polityka REJECT
+	 * jest zglaszana w logu i nie przerywa wysylania do pozostalych peer'ow.
+	 * @return false jesli ramka nie trafila do kolejki.
+	 */
+	private boolean send(Connection connection, Frame frame) throws InterruptedException{
+
+		try {
+			return connection.send(frame);
+		} catch (IllegalStateException e) {
+			updateLog(Log.Level.WARN, "Kolejka wysylania do " + connection.getPeer() + " jest pelna - odrzucono wiadomosc.");
+			return false;
+		}
+	}
+
+	/** Wstawia ramke do kolejki wysylania polaczenia bez czekania (zob. Connection.sendNow()). Pelna kolejka
+	 * z polityka REJECT jest zglaszana w logu i nie przerywa wysylania do pozostalych peer'ow.
+	 * @return false jesli ramka nie trafila do kolejki.
+	 */
+	private boolean sendNow(Connection connection, Frame frame){
+
+		try {
+			return connection.sendNow(frame);
+		} catch (IllegalStateException e) {
+			updateLog(Log.Level.WARN, "Kolejka wysylania do " + connection.getPeer() + " jest pelna - odrzucono wiadomosc.");
+			return false;
+		}
+	}
+
+	/** Zamyka wszystkie polaczenia po wyslaniu ramek czekajacych w ich kolejkach (najwyzej DRAIN_MILLIS).
+	 * @return Spelniane po zamknieciu wszystkich polaczen.
+	 */
+	public CompletableFuture<Void> closeConnection(){
+		return closeConnection(DRAIN_MILLIS);
+	}
+
+	/** Zamyka wszystkie polaczenia po wyslaniu ramek czekajacych w ich kolejkach.
+	 * @param drainMillis Maksymalny czas oprozniania kolejek.
+	 * @return Spelniane po zamknieciu wszystkich polaczen.
+	 */
+	private CompletableFuture<Void> closeConnection(long drainMillis){
+
+		redials.clear();
+		List<CompletableFuture<Void>> closed = new ArrayList<CompletableFuture<Void>>();
+		for(Connection connection : sessions.values())
+			closed.add(connection.drain(drainMillis));
+		return CompletableFuture.allOf(closed.toArray(new CompletableFuture<?>[0]));
+	}
+
+	/** Zamyka polaczenie z jednym peer'em po wyslaniu ramek czekajacych w kolejkach (najwyzej DRAIN_MILLIS).
+	 * @param peer Identyfikator sesji.
+	 * @return Spelniane po zamknieciu polaczenia; od razu, jesli nie ma takiej sesji.
+	 */
+	public CompletableFuture<Void> closeConnection(String peer){
+		return closeConnection(peer, DRAIN_MILLIS);
+	}
+
+	/** Zamyka polaczenie z jednym peer'em po wyslaniu ramek czekajacych w kolejkach. Od wywolania nowe
+	 * wiadomosci do peer'a sa odrzucane; po uplywie drainMillis polaczenie jest zamykane z pozostalymi ramkami.
+	 * @param peer Identyfikator sesji.
+	 * @param drainMillis Maksymalny czas oprozniania kolejek, 0 zamyka od razu.
+	 * @return Spelniane po zamknieciu polaczenia; od razu, jesli nie ma takiej sesji.
+	 */
+	public CompletableFuture<Void> closeConnection(String peer, long drainMillis){
+
+		Connection connection = sessions.get(peer);
+		if(connection == null)
+			return CompletableFuture.completedFuture(null);
+		forget(connection);
+		return drainMillis > 0 ? connection.drain(drainMillis) : connection.close();
+	}
+
+	/** Zwraca identyfikatory otwartych sesji.
+	 * @return Niemodyfikowalna lista adresow peer'ow.
+	 */
+	public List<String> getSessions(){
+		return Collections.unmodifiableList(new ArrayList<String>(sessions.keySet()));
+	}
+
+	/** Zwraca pule buforow wspoldzielona przez polaczenia.
+	 * @return Pula buforow.
+	 */
+	BufferPool getBufferPool(){
+		return bufferPool;
+	}
+
+	/** Wlacza szyfrowanie TLS nowych polaczen. Obie strony polaczenia musza miec TLS wlaczony i ufac
+	 * certyfikatom peer'a - peer bez TLS nie zostanie polaczony. Ponowne polaczenie z tym samym adresem
+	 * i portem wznawia sesje z pamieci podrecznej kontekstu, bez pelnego uzgadniania. Dotyczy nowych polaczen.
+	 * @param context Kontekst z kluczem tego wezla i zaufanymi certyfikatami (zob. tlsContext()) lub null,
+	 * co wylacza szyfrowanie.
+	 */
+	public synchronized void setTls(SSLContext context){
+
+		if(context != null){
+			SSLSession session = context.createSSLEngine().getSession();
+			int size = Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize());
+			if(tlsBufferPool == null || tlsBufferPool.getBufferSize() < size)
+				tlsBufferPool = new BufferPool(size, 1024, false);
+		}
+		tlsContext = context;
+	}
+
+	SSLContext getTlsContext(){
+		return tlsContext;
+	}
+
+	BufferPool getTlsBufferPool(){
+		return tlsBufferPool;
+	}
+
+	/** Tworzy kontekst TLS z magazynu kluczy PKCS12 lub JKS. Magazyn zawiera klucz tego wezla i sluzy tez
+	 * jako magazyn zaufanych certyfikatow - wezly z tym samym certyfikatem (lub podpisanym przez zaufany
+	 * urzad) ufaja sobie nawzajem.
+	 * @param keyStore Plik magazynu.
+	 * @param password Haslo magazynu i klucza.
+	 * @return Kontekst do przekazania setTls().
+	 * @throws IOException Jesli nie mozna odczytac magazynu.
+	 * @throws GeneralSecurityException Jesli magazyn lub klucz sa bledne.
+	 */
+	public static SSLContext tlsContext(File keyStore, char[] password) throws IOException, GeneralSecurityException{
+
+		KeyStore store = KeyStore.getInstance(keyStore, password);
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(store, password);
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(store);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+		return context;
+	}
+
+	/** Zwraca migawke wszystkich metryk: liczniki ruchu (lacznie i dla kazdej sesji), zajetosc kolejek,
+	 * liczniki porzuconych wiadomosci i polaczen oraz percentyle opoznien w nanosekundach.
+	 * @return Posortowana mapa nazwa metryki -> wartosc.
+	 */
+	public SortedMap<String, Long> getMetrics(){
+		return metrics.snapshot(this);
+	}
+
+	Metrics getMetricsRegistry(){
+		return metrics;
+	}
+
+	/** Udostepnia metryki przez HTTP pod adresem http://127.0.0.1:port/metrics.
+	 * @param port Port serwera, 0 oznacza dowolny wolny port.
+	 * @return Port, na ktorym dziala serwer.
+	 */
+	public int startMetricsHttp(int port) throws IOException{
+		return metricsExporter.startHttp(port);
+	}
+
+	/** Rejestruje metryki jako MBean JMX "Komunikator:type=Metrics,name=...".
+	 * @param name Nazwa rozrozniajaca ten Model.
+	 */
+	public void registerMetricsMBean(String name) throws javax.management.JMException{
+		metricsExporter.registerMBean(name);
+	}
+
+	/** Wywolywane przez Controller po wyswietleniu paczki wiadomosci - zapisuje opoznienie
+	 * od odczytu z kanalu do wyswietlenia.
+	 * @param batch Wyswietlone wiadomosci.
+	 * @param count Liczba wiadomosci z poczatku batch.
+	 */
+	void messagesDisplayed(Message[] batch, int count){
+
+		long now = System.nanoTime();
+		for(int i = 0; i < count; i++)
+			if(!batch[i].isOutgoing())
+				metrics.wireToDisplay(now - batch[i].getCreated());
+	}
+
+	/** Zwraca statystyki wsadow wysylanych przez polaczenia.
+	 * @return Statystyki wsadow.
+	 */
+	public BatchStats getBatchStats(){
+		return batchStats;
+	}
+
+	/** Ustawia maksymalna liczbe ramek wysylanych jednym zapisem.
+	 * @param _maxBatchSize Liczba ramek, co najmniej 1.
+	 */
+	public void setMaxBatchSize(int _maxBatchSize){
+
+		if(_maxBatchSize < 1)
+			throw new IllegalArgumentException("maxBatchSize < 1");
+		maxBatchSize = _maxBatchSize;
+	}
+
+	public int getMaxBatchSize(){
+		return maxBatchSize;
+	}
+
+	/** Ustawia maksymalna zwloke wysylania: writer czeka tyle na kolejne ramki, chyba ze wczesniej
+	 * uzbiera sie pelny wsad. 0 oznacza wysylanie od razu.
+	 * @param _maxLingerMillis Zwloka w milisekundach.
+	 */
+	public void setMaxLingerMillis(long _maxLingerMillis){
+
+		if(_maxLingerMillis < 0)
+			throw new IllegalArgumentException("maxLingerMillis < 0");
+		maxLingerMillis = _maxLingerMillis;
+	}
+
+	public long getMaxLingerMillis(){
+		return maxLingerMillis;
+	}
+
+	/** Ustawia kompresje wiadomosci. Kompresja jest negocjowana przy nawiazaniu polaczenia - dziala
+	 * tylko z peer'ami, ktorzy tez ja maja wlaczona; slownik jest uzywany tylko gdy peer ma ten sam.
+	 * Dotyczy nowych polaczen.
+	 * @param threshold Minimalny rozmiar wiadomosci w bajtach, od ktorego jest kompresowana; 0 wylacza kompresje.
+	 * @param dictionary Slownik kompresji (np. typowe fragmenty wiadomosci) lub null. Tablica nie jest kopiowana.
+	 */
+	public void setCompression(int threshold, byte[] dictionary){
+
+		if(threshold < 0)
+			throw new IllegalArgumentException("threshold < 0");
+		compressionThreshold = threshold;
+		compressionDictionary = dictionary == null || dictionary.length == 0 ? null : dictionary;
+	}
+
+	public int getCompressionThreshold(){
+		return compressionThreshold;
+	}
+
+	byte[] getCompressionDictionary(){
+		return compressionDictionary;
+	}
+
+	/** Ustawia limity sesji. Dotycza nowych polaczen, otwarte sesje nie sa zamykane.
+	 * @param _maxSessions Maksymalna liczba otwartych sesji.
+	 * @param _maxSessionsPerHost Maksymalna liczba sesji z jednego adresu IP.
+	 */
+	public void setSessionLimits(int _maxSessions, int _maxSessionsPerHost){
+
+		maxSessions = _maxSessions;
+		maxSessionsPerHost = _maxSessionsPerHost;
+	}
+
+	/** Ustawia czas bezczynnosci (brak wiadomosci i innych ramek poza biciem serca), po ktorym sesja jest zamykana.
+	 * @param _idleTimeoutMillis Czas w milisekundach, 0 wylacza zamykanie bezczynnych sesji.
+	 */
+	public void setIdleTimeoutMillis(long _idleTimeoutMillis){
+		idleTimeoutMillis = _idleTimeoutMillis;
+	}
+
+	/** Ustawia bicie serca: co intervalMillis kazde polaczenie wysyla PING, na ktory peer odpowiada PONG.
+	 * Odpowiedzi daja wygladzony RTT i jego zmiennosc (zob. getSmoothedRtt()). Jesli przez missedBeats
+	 * kolejnych odstepow od peer'a nie przyszlo nic, polaczenie jest zamykane - takze polowicznie otwarte
+	 * polaczenie TCP, na ktorym zapis wciaz sie udaje. Zerwane polaczenie wychodzace jest nawiazywane ponownie.
+	 * Wylaczenie dotyczy wszystkich polaczen od nastepnego bicia, wlaczenie - nowych polaczen.
+	 * @param intervalMillis Odstep bicia serca w milisekundach, 0 wylacza.
+	 * @param missedBeats Liczba odstepow bez odpowiedzi, po ktorej polaczenie jest zamykane.
+	 */
+	public void setHeartbeat(long intervalMillis, int missedBeats){
+
+		if(intervalMillis < 0 || missedBeats < 1)
+			throw new IllegalArgumentException("intervalMillis < 0 lub missedBeats < 1");
+		heartbeatMillis = intervalMillis;
+		maxMissedBeats = missedBeats;
+	}
+
+	/** Ustawia przydzial wiadomosci: najwieksza liczbe wiadomosci, ktore peer moze wyslac, zanim dostanie
+	 * kolejny przydzial (ramka CREDIT). Przydzialy oddawane sa w miare odbierania wiadomosci, wiec szybki
+	 * peer nie czeka, a writer peer'a, ktoremu skonczyl sie przydzial, wstrzymuje wiadomosci - ramki kontrolne
+	 * (potwierdzenia, bicie serca) plyna dalej. Peer, ktory przekroczy przydzial, jest rozlaczany.
+	 * Dotyczy nowych polaczen.
+	 * @param messages Liczba wiadomosci, co najmniej Frame.INITIAL_CREDITS.
+	 */
+	public void setCreditWindow(int messages){
+
+		if(messages < Frame.INITIAL_CREDITS)
+			throw new IllegalArgumentException("Przydzial mniejszy niz " + Frame.INITIAL_CREDITS + ": " + messages);
+		creditWindow = messages;
+	}
+
+	int getCreditWindow(){
+		return creditWindow;
+	}
+
+	/** Ogranicza predkosc wiadomosci od kazdego peer'a (wiadro zetonow - zob. TokenBucket). Nowe przydzialy
+	 * wiadomosci sa wstrzymywane, dopoki peer nie zmiesci sie w limicie, wiec zbyt szybki peer zwalnia,
+	 * nie zajmujac pamieci ani petli zdarzen kosztem innych. Od peer'a, ktory nie przestrzega przydzialow
+	 * (lub nie przyslal HELLO), polaczenie przestaje czytac, dopoki kolejna wiadomosc nie zmiesci sie w limicie.
+	 * Dotyczy nowych polaczen.
+	 * @param messagesPerSecond Srednia liczba wiadomosci na sekunde, 0 wylacza ograniczenie.
+	 * @param burst Liczba wiadomosci, ktore peer moze wyslac ponad srednia po okresie ciszy.
+	 */
+	public void setRateLimit(double messagesPerSecond, int burst){
+
+		if(messagesPerSecond < 0 || messagesPerSecond > 0 && burst < 1)
+			throw new IllegalArgumentException("messagesPerSecond < 0 lub burst < 1");
+		rateLimit = messagesPerSecond;
+		rateBurst = burst;
+	}
+
+	/** Tworzy wiadro zetonow dla nowego polaczenia.
+	 * @return Wiadro lub null, jesli predkosc nie jest ograniczona.
+	 */
+	TokenBucket newRateLimiter(){
+
+		double rate = rateLimit;
+		return rate > 0 ? new TokenBucket(rate, rateBurst) : null;
+	}
+
+	long getHeartbeatMillis(){
+		return heartbeatMillis;
+	}
+
+	int getMaxMissedBeats(){
+		return maxMissedBeats;
+	}
+
+	/** Zwraca wygladzony czas podrozy w obie strony do peer'a (SRTT wg RFC 6298).
+	 * @param peer Identyfikator sesji.
+	 * @return Czas w nanosekundach lub -1, jesli nie ma takiej sesji lub pomiaru.
+	 */
+	public long getSmoothedRtt(String peer){
+
+		Connection connection = sessions.get(peer);
+		return connection == null ? -1 : connection.getSmoothedRtt();
+	}
+
+	/** Zwraca przydzial wiadomosci polaczenia z peer'em.
+	 * @param peer Identyfikator sesji.
+	 * @param sending true - ile wiadomosci mozemy jeszcze wyslac, false - ile moze jeszcze wyslac peer.
+	 * @return Liczba wiadomosci lub -1, jesli nie ma takiej sesji lub peer nie uzywa przydzialow.
+	 */
+	int getCredits(String peer, boolean sending){
+
+		Connection connection = sessions.get(peer);
+		if(connection == null)
+			return -1;
+		return sending ? connection.getSendCredits() : connection.getReceiveCredits();
+	}
+
+	/** Zwraca zmiennosc czasu podrozy w obie strony do peer'a (jitter wg RFC 3550 - wygladzona roznica
+	 * kolejnych pomiarow).
+	 * @param peer Identyfikator sesji.
+	 * @return Czas w nanosekundach lub -1, jesli nie ma takiej sesji lub pomiaru.
+	 */
+	public long getJitter(String peer){
+
+		Connection connection = sessions.get(peer);
+		return connection == null ? -1 : connection.getJitter();
+	}
+
+	/** Ustawia pojemnosc i polityke kolejek wysylania. Dotyczy nowych polaczen.
+	 * @param capacity Pojemnosc kolejki jednego polaczenia, od 1 do 2^30.
+	 * @param policy Zachowanie przy pelnej kolejce.
+	 * @throws IllegalArgumentException Jesli pojemnosc jest spoza zakresu lub polityka to null.
+	 */
+	public void setSendQueue(int capacity, RingBuffer.Policy policy){
+
+		if(capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Bledna pojemnosc kolejki: " + capacity);
+		if(policy == null)
+			throw new IllegalArgumentException("policy == null");
+		sendQueueCapacity = capacity;
+		sendQueuePolicy = policy;
+	}
+
+	int getSendQueueCapacity(){
+		return sendQueueCapacity;
+	}
+
+	RingBuffer.Policy getSendQueuePolicy(){
+		return sendQueuePolicy;
+	}
+
+	/** Zwraca kolejke wysylania sesji - do odczytu zajetosci i licznikow porzuconych ramek.
+	 * @param peer Identyfikator sesji.
+	 * @return Kolejka lub null jesli nie ma takiej sesji.
+	 */
+	RingBuffer<Frame> getSendQueue(String peer){
+
+		Connection connection = sessions.get(peer);
+		return connection == null ? null : connection.getSendQueue();
+	}
+
+	/** Zwraca strumienie sesji - do odczytu zajetosci i czasow oczekiwania.
+	 * @param peer Identyfikator sesji.
+	 * @return Strumienie lub null jesli nie ma takiej sesji.
+	 */
+	Stream[] getStreams(String peer){
+
+		Connection connection = sessions.get(peer);
+		return connection == null ? null : connection.getStreams();
+	}
+
+	/** Ustawia rozmiar, od ktorego wiadomosci wysylane sa strumieniem BULK - dzielone na fragmenty
+	 * i przeplatane z krotkimi wiadomosciami, zamiast blokowac je do konca wysylania.
+	 * @param _bulkThreshold Rozmiar wiadomosci w bajtach.
+	 */
+	public void setBulkThreshold(int _bulkThreshold){
+
+		if(_bulkThreshold < 1)
+			throw new IllegalArgumentException("bulkThreshold < 1");
+		bulkThreshold = _bulkThreshold;
+	}
+
+	public int getBulkThreshold(){
+		return bulkThreshold;
+	}
+
+	/** Ustawia wagi strumieni: w kazdej rundzie harmonogramu strumien moze wyslac okolo
+	 * waga * Stream.QUANTUM bajtow. Ramki kontrolne zawsze maja pierwszenstwo. Dotyczy nowych polaczen.
+	 * @param interactive Waga krotkich wiadomosci.
+	 * @param bulk Waga duzych wiadomosci.
+	 * @param files Waga przesylanych plikow.
+	 */
+	public void setStreamWeights(int interactive, int bulk, int files){
+
+		if(interactive < 1 || bulk < 1 || files < 1)
+			throw new IllegalArgumentException("waga < 1");
+		streamWeights = new int[]{ 0, interactive, bulk, files };
+	}
+
+	int getStreamWeight(int stream){
+		return streamWeights[stream];
+	}
+
+	/** Ustawia polityke kolejki do widoku.
+	 * @param policy Zachowanie przy pelnej kolejce.
+	 */
+	public void setViewQueuePolicy(RingBuffer.Policy policy){
+		toViewQueue.setPolicy(policy);
+	}
+
+	/** Zwraca kolejke do widoku - do odczytu zajetosci i licznikow porzuconych wiadomosci.
+	 * @return Kolejka do widoku.
+	 */
+	RingBuffer<Message> getViewQueue(){
+		return toViewQueue;
+	}
+
+	/** Zwraca liczbe otwartych sesji.
+	 * @return Liczba sesji.
+	 */
+	public int getSessionCount(){
+		return sessions.size();
+	}
+
+	/** Zwraca caly log jako tekst.
+	 * @return Ostatnie wpisy logu.
+	 */
+	public String getConnectionLog(){
+		return log.toString();
+	}
+
+	/** Zwraca wiadomosc odebrana przez socket. Jesli kolejka jest pusta
+	 * to metoda ta blokuje sie do czasu pojawienia sie nowej wiadomosci.
+	 * @return Wiadomosc odebrana z zewnatrz.
+	 * @throws InterruptedException Jesli pojawi sie interrupt() na watku zablokwanym na tej metodzie.
+	 */
+	public Message getNextMessage() throws InterruptedException {
+		return toViewQueue.take();
+	}
+
+	/** Zwraca wiadomosc odebrana przez socket, nie czekajac na nia.
+	 * @return Wiadomosc lub null jesli kolejka jest pusta.
+	 */
+	public Message pollMessage(){
+		return toViewQueue.poll();
 	}
 }
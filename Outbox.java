@@ -0,0 +1,651 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Dziennik wysylania: wiadomosci wyslane do znanych peer'ow sa trzymane - w pamieci i w pliku
+ * zapisywanym przed dalszym dzialaniem (write-ahead log) - dopoki kazdy z nich nie potwierdzi odbioru.
+ * Peer jest znany od pierwszego polaczenia, na ktorym przedstawil sie identyfikatorem wezla (HELLO);
+ * wiadomosci do peer'a bez polaczenia czekaja w dzienniku i sa wysylane ponownie, gdy peer sie polaczy,
+ * takze po ponownym uruchomieniu aplikacji. Kazda wiadomosc ma numer, a odbiorca potwierdza przedzialy
+ * numerow zbiorczo (Frame.ACK), nie kazda wiadomosc osobno.
+ * <p>
+ * Rekordy dziennika maja postac:
+ * <pre>
+ * | dlugosc rekordu (int) | CRC32C reszty rekordu (int) | typ (byte) | dane |
+ * </pre>
+ * Osobny watek writer'a zapisuje wszystkie oczekujace rekordy jednym zapisem i wywoluje fsync raz
+ * na wsad, wiec koszt fsync rozklada sie na wszystkie wiadomosci wsadu. Gdy dziennik urosnie,
+ * writer przepisuje go, zostawiajac tylko stan: numer ostatniej wiadomosci, znanych peer'ow
+ * i niepotwierdzone wiadomosci. Przy otwarciu dziennik jest odtwarzany do pierwszego niepelnego rekordu.
+ * <p>
+ * Stan chroniony jest monitorem obiektu; rekordy powstaja pod monitorem, wiec ich kolejnosc
+ * w pliku odpowiada kolejnosci zmian stanu.
+ * @author Kuba Jalowiec
+ */
+final class Outbox{
+
+	/** Typy rekordow. */
+	private static final byte SEND = 1;
+	private static final byte ACK = 2;
+	private static final byte PEER = 3;
+	private static final byte CHECKPOINT = 4;
+
+	/** Rozmiar naglowka rekordu: dlugosc, CRC32C i typ. */
+	private static final int RECORD_HEADER = 4 + 4 + 1;
+
+	/** Maksymalna liczba niepotwierdzonych wiadomosci jednego peer'a - najstarsze ponad limit sa porzucane. */
+	static final int MAX_PENDING = 10000;
+
+	/** Rozmiar dziennika, od ktorego writer przepisuje go, jesli zajmuje wiecej niz dwa razy tyle co stan. */
+	static final long COMPACT_BYTES = 16 * 1024 * 1024;
+
+	private static final String LOG = "outbox.log";
+
+	/** Wiadomosc w dzienniku. */
+	static final class Entry{
+
+		final long sequence;
+		final long time;
+		final byte[] payload;
+
+		/** Liczba peer'ow, ktore nie potwierdzily jeszcze wiadomosci. Chroniona monitorem Outbox. */
+		private int remaining;
+
+		Entry(long _sequence, long _time, byte[] _payload){
+
+			sequence = _sequence;
+			time = _time;
+			payload = _payload;
+		}
+	}
+
+	/** Znany peer i jego niepotwierdzone wiadomosci. */
+	private static final class Peer{
+
+		final long node;
+
+		/** Adres (host:port), z ktorym sie laczylismy, lub null jesli peer laczyl sie do nas. */
+		String address;
+
+		final TreeMap<Long, Entry> pending = new TreeMap<Long, Entry>();
+
+		Peer(long _node){
+			node = _node;
+		}
+	}
+
+	/**
+	 * Okno numerow wiadomosci odebranych od jednego nadawcy - do pomijania wiadomosci wyslanych
+	 * ponownie po zerwaniu polaczenia. Pamieta SIZE ostatnich numerow; starsze traktowane sa
+	 * jako juz odebrane.
+	 */
+	static final class Window{
+
+		static final int SIZE = 65536;
+
+		private final long[] bits = new long[SIZE / 64];
+
+		/** Najwiekszy odebrany numer. */
+		private long max;
+
+		/** Zapisuje odebranie wiadomosci.
+		 * @param sequence Numer wiadomosci.
+		 * @return false jesli wiadomosc o tym numerze zostala juz odebrana.
+		 */
+		synchronized boolean add(long sequence){
+
+			if(sequence <= 0 || sequence <= max - SIZE)
+				return false;
+			if(sequence > max){
+				if(sequence - max >= SIZE)
+					Arrays.fill(bits, 0);
+				else
+					for(long s = max + 1; s < sequence; s++)
+						bits[index(s)] &= ~bit(s);
+				max = sequence;
+			}
+			else if((bits[index(sequence)] & bit(sequence)) != 0)
+				return false;
+			bits[index(sequence)] |= bit(sequence);
+			return true;
+		}
+
+		private static int index(long sequence){
+			return (int) (sequence & (SIZE - 1)) >>> 6;
+		}
+
+		private static long bit(long sequence){
+			return 1L << (sequence & 63);
+		}
+	}
+
+	private final File directory;
+	private final File file;
+
+	/** Blokada katalogu dziennika. */
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+
+	/** Kanal pliku dziennika; uzywany tylko przez writer. */
+	private FileChannel channel;
+
+	/** Identyfikator tego wezla - staly miedzy uruchomieniami. */
+	private final long nodeId;
+
+	/** Numer ostatniej wiadomosci. */
+	private long lastSequence;
+
+	/** Znani peer'y wg identyfikatora wezla. */
+	private final Map<Long, Peer> peers;
+
+	/** Niepotwierdzone wiadomosci wg numeru. */
+	private final Map<Long, Entry> unacked;
+
+	/** Laczny rozmiar tresci niepotwierdzonych wiadomosci. */
+	private long liveBytes;
+
+	/** Rekordy czekajace na zapis. */
+	private List<ByteBuffer> records;
+
+	private final CRC32C crc;
+
+	/** Rozmiar pliku dziennika; uzywany tylko przez writer. */
+	private long fileBytes;
+
+	private final LongAdder syncs, acked, expired;
+
+	/** Blad, ktory zatrzymal writer, lub null. */
+	private volatile IOException failure;
+
+	private boolean closed;
+	private final CountDownLatch stopped;
+
+	/** Otwiera dziennik w podanym katalogu, tworzac go w razie potrzeby, i odtwarza jego stan.
+	 * @param _directory Katalog dziennika.
+	 * @throws IOException Jesli nie udalo sie otworzyc dziennika lub katalog jest uzywany przez inny Model.
+	 */
+	Outbox(File _directory) throws IOException{
+
+		directory = _directory;
+		file = new File(directory, LOG);
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Nie mozna utworzyc katalogu " + directory);
+		lockChannel = FileChannel.open(new File(directory, "lock").toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock acquired = null;
+		try {
+			acquired = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// katalog zablokowany juz w tej maszynie wirtualnej
+		}
+		if(acquired == null){
+			lockChannel.close();
+			throw new IOException("Dziennik " + directory + " jest uzywany przez inny proces");
+		}
+		lock = acquired;
+		peers = new HashMap<Long, Peer>();
+		unacked = new HashMap<Long, Entry>();
+		records = new ArrayList<ByteBuffer>();
+		crc = new CRC32C();
+		syncs = new LongAdder();
+		acked = new LongAdder();
+		expired = new LongAdder();
+		stopped = new CountDownLatch(1);
+		try {
+			nodeId = loadNodeId(new File(directory, "node"));
+			if(file.exists())
+				recover(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+			records.clear();
+			compact();
+		} catch (IOException e) {
+			lock.release();
+			lockChannel.close();
+			throw e;
+		}
+	}
+
+	/** Wczytuje identyfikator wezla, tworzac go przy pierwszym uruchomieniu.
+	 * @param nodeFile Plik z identyfikatorem.
+	 * @return Identyfikator rozny od 0.
+	 */
+	private static long loadNodeId(File nodeFile) throws IOException{
+
+		if(nodeFile.length() == 8)
+			return ByteBuffer.wrap(Files.readAllBytes(nodeFile.toPath())).getLong();
+		long id = 0;
+		while(id == 0)
+			id = UUID.randomUUID().getMostSignificantBits();
+		ByteBuffer data = ByteBuffer.allocate(8);
+		data.putLong(id).flip();
+		try (FileChannel out = FileChannel.open(nodeFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while(data.hasRemaining())
+				out.write(data);
+			out.force(true);
+		}
+		return id;
+	}
+
+	/** Odtwarza stan z rekordow dziennika. Odtwarzanie konczy sie na pierwszym niepelnym lub
+	 *  uszkodzonym rekordzie. Powtorzone rekordy (zapisane przed i po przepisaniu dziennika) nie
+	 *  zmieniaja stanu.
+	 * @param data Zawartosc pliku.
+	 */
+	private void recover(ByteBuffer data){
+
+		CRC32C check = new CRC32C();
+		while(data.remaining() >= RECORD_HEADER){
+			int start = data.position();
+			int length = data.getInt(start);
+			if(length < RECORD_HEADER || length > data.remaining())
+				break;
+			ByteBuffer body = data.duplicate();
+			body.limit(start + length).position(start + 8);
+			check.reset();
+			check.update(body);
+			if((int) check.getValue() != data.getInt(start + 4))
+				break;
+			body.position(start + RECORD_HEADER);
+			switch(data.get(start + 8)){
+			case CHECKPOINT:
+				lastSequence = Math.max(lastSequence, body.getLong());
+				break;
+			case PEER:
+				Peer peer = peer(body.getLong());
+				int addressLength = body.getShort() & 0xFFFF;
+				if(addressLength > 0){
+					byte[] address = new byte[addressLength];
+					body.get(address);
+					peer.address = new String(address, StandardCharsets.UTF_8);
+				}
+				break;
+			case SEND:
+				long sequence = body.getLong();
+				long time = body.getLong();
+				int n = body.getShort() & 0xFFFF;
+				long[] nodes = new long[n];
+				for(int i = 0; i < n; i++)
+					nodes[i] = body.getLong();
+				lastSequence = Math.max(lastSequence, sequence);
+				if(unacked.containsKey(sequence))
+					break;
+				byte[] payload = new byte[body.remaining()];
+				body.get(payload);
+				Entry entry = new Entry(sequence, time, payload);
+				for(long node : nodes)
+					if(peer(node).pending.put(sequence, entry) == null)
+						entry.remaining++;
+				if(entry.remaining > 0){
+					unacked.put(sequence, entry);
+					liveBytes += payload.length;
+				}
+				break;
+			case ACK:
+				Peer acking = peers.get(body.getLong());
+				if(acking != null)
+					release(acking.pending.subMap(body.getLong(), true, body.getLong(), true));
+				break;
+			default:
+				break;
+			}
+			data.position(start + length);
+		}
+	}
+
+	/** Zwraca znanego peer'a, dodajac go w razie potrzeby. Wywolywane z monitorem.
+	 * @param node Identyfikator wezla.
+	 * @return Peer.
+	 */
+	private Peer peer(long node){
+
+		Peer peer = peers.get(node);
+		if(peer == null)
+			peers.put(node, peer = new Peer(node));
+		return peer;
+	}
+
+	/** Usuwa wiadomosci z listy niepotwierdzonych peer'a. Wywolywane z monitorem.
+	 * @param range Wiadomosci do usuniecia - widok na liste peer'a.
+	 * @return Liczba usunietych wiadomosci.
+	 */
+	private int release(SortedMap<Long, Entry> range){
+
+		int n = range.size();
+		for(Entry entry : range.values()){
+			if(--entry.remaining == 0){
+				unacked.remove(entry.sequence);
+				liveBytes -= entry.payload.length;
+			}
+		}
+		range.clear();
+		return n;
+	}
+
+	/** Dodaje rekord do zapisu. Wywolywane z monitorem.
+	 * @param type Typ rekordu.
+	 * @param body Dane rekordu (0..position).
+	 */
+	private void log(byte type, ByteBuffer body){
+
+		body.flip();
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + body.remaining());
+		record.putInt(record.capacity()).putInt(0).put(type).put(body).flip();
+		crc.reset();
+		record.position(8);
+		crc.update(record);
+		record.putInt(4, (int) crc.getValue()).position(0);
+		records.add(record);
+		notifyAll();
+	}
+
+	private void logSend(Entry entry, List<Peer> targets){
+
+		ByteBuffer body = ByteBuffer.allocate(8 + 8 + 2 + 8 * targets.size() + entry.payload.length);
+		body.putLong(entry.sequence).putLong(entry.time).putShort((short) targets.size());
+		for(Peer peer : targets)
+			body.putLong(peer.node);
+		body.put(entry.payload);
+		log(SEND, body);
+	}
+
+	private void logAck(long node, long from, long to){
+
+		ByteBuffer body = ByteBuffer.allocate(24);
+		body.putLong(node).putLong(from).putLong(to);
+		log(ACK, body);
+	}
+
+	private void logPeer(Peer peer){
+
+		byte[] address = peer.address == null ? new byte[0] : peer.address.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(8 + 2 + address.length);
+		body.putLong(peer.node).putShort((short) address.length).put(address);
+		log(PEER, body);
+	}
+
+	private void logCheckpoint(){
+
+		ByteBuffer body = ByteBuffer.allocate(8);
+		body.putLong(lastSequence);
+		log(CHECKPOINT, body);
+	}
+
+	/** Uruchamia watek writer'a w podanym executorze.
+	 * @param executor Executor Modelu.
+	 */
+	void start(ExecutorService executor){
+
+		executor.execute(new Runnable(){
+			public void run(){
+				try {
+					writeLoop();
+				} catch (IOException e) {
+					failure = e;
+				} catch (InterruptedException e) {
+					// zamkniecie Modelu
+				} finally {
+					stopped.countDown();
+				}
+			}
+		});
+	}
+
+	/** Petla writer'a: zabiera wszystkie oczekujace rekordy, zapisuje je jednym zapisem i wywoluje fsync. */
+	private void writeLoop() throws IOException, InterruptedException{
+
+		List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+		while(true){
+			synchronized(this){
+				while(records.isEmpty() && !closed)
+					wait();
+				if(records.isEmpty())
+					return;
+				List<ByteBuffer> swap = records;
+				records = batch;
+				batch = swap;
+			}
+			ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+			long n = 0;
+			for(ByteBuffer buffer : buffers)
+				n += buffer.remaining();
+			for(long left = n; left > 0; )
+				left -= channel.write(buffers);
+			channel.force(false);
+			syncs.increment();
+			fileBytes += n;
+			batch.clear();
+			boolean compact;
+			synchronized(this){
+				compact = fileBytes > COMPACT_BYTES && fileBytes > 2 * (liveBytes + COMPACT_BYTES / 4);
+			}
+			if(compact)
+				compact();
+		}
+	}
+
+	/** Przepisuje dziennik, zostawiajac tylko biezacy stan. Rekordy dodane w trakcie trafiaja
+	 *  do nowego pliku za stanem; te, ktore stan juz uwzglednia, nie zmienia go przy odtwarzaniu.
+	 *  Wywolywane przez konstruktor i writer. */
+	private void compact() throws IOException{
+
+		List<ByteBuffer> snapshot;
+		synchronized(this){
+			List<ByteBuffer> pending = records;
+			records = new ArrayList<ByteBuffer>();
+			logCheckpoint();
+			TreeMap<Long, List<Peer>> targets = new TreeMap<Long, List<Peer>>();
+			for(Peer peer : peers.values()){
+				logPeer(peer);
+				for(Long sequence : peer.pending.keySet()){
+					List<Peer> list = targets.get(sequence);
+					if(list == null)
+						targets.put(sequence, list = new ArrayList<Peer>());
+					list.add(peer);
+				}
+			}
+			for(Map.Entry<Long, List<Peer>> target : targets.entrySet())
+				logSend(unacked.get(target.getKey()), target.getValue());
+			snapshot = records;
+			records = pending;
+		}
+		File tmp = new File(directory, LOG + ".tmp");
+		long n = 0;
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for(ByteBuffer record : snapshot){
+				n += record.remaining();
+				while(record.hasRemaining())
+					out.write(record);
+			}
+			out.force(true);
+		}
+		if(channel != null)
+			channel.close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileBytes = n;
+	}
+
+	/** Dodaje wiadomosc do dziennika.
+	 * @param payload Tresc wiadomosci w UTF-8. Tablica nie jest kopiowana i nie moze byc dalej zmieniana.
+	 * @param node Identyfikator wezla odbiorcy lub 0 - wszyscy znani peer'y.
+	 * @return Numer wiadomosci.
+	 */
+	synchronized long add(byte[] payload, long node){
+
+		Entry entry = new Entry(++lastSequence, System.currentTimeMillis(), payload);
+		List<Peer> targets = new ArrayList<Peer>();
+		if(node != 0)
+			targets.add(peer(node));
+		else
+			targets.addAll(peers.values());
+		for(Peer peer : targets){
+			peer.pending.put(entry.sequence, entry);
+			entry.remaining++;
+		}
+		if(entry.remaining == 0){
+			logCheckpoint();
+			return entry.sequence;
+		}
+		unacked.put(entry.sequence, entry);
+		liveBytes += payload.length;
+		logSend(entry, targets);
+		for(Peer peer : targets){
+			while(peer.pending.size() > MAX_PENDING){
+				long oldest = peer.pending.firstKey();
+				expired.add(release(peer.pending.headMap(oldest, true)));
+				logAck(peer.node, oldest, oldest);
+			}
+		}
+		return entry.sequence;
+	}
+
+	/** Zapisuje przedstawienie sie peer'a na polaczeniu.
+	 * @param node Identyfikator wezla peer'a.
+	 * @param address Adres (host:port), z ktorym sie polaczylismy, lub null dla polaczen przychodzacych.
+	 * @return Niepotwierdzone wiadomosci peer'a do ponownego wyslania, od najstarszej.
+	 */
+	synchronized List<Entry> identified(long node, String address){
+
+		boolean known = peers.containsKey(node);
+		Peer peer = peer(node);
+		if(!known || (address != null && !address.equals(peer.address))){
+			if(address != null)
+				peer.address = address;
+			logPeer(peer);
+		}
+		return new ArrayList<Entry>(peer.pending.values());
+	}
+
+	/** Zwraca niepotwierdzone wiadomosci peer'a od podanego numeru - do ponownego wyslania na otwartym
+	 *  polaczeniu wiadomosci porzuconych przy pelnej kolejce.
+	 * @param node Identyfikator wezla peer'a.
+	 * @param from Najmniejszy numer.
+	 * @return Wiadomosci od najstarszej; pusta lista dla nieznanego peer'a.
+	 */
+	synchronized List<Entry> pending(long node, long from){
+
+		Peer peer = peers.get(node);
+		if(peer == null)
+			return new ArrayList<Entry>();
+		return new ArrayList<Entry>(peer.pending.tailMap(from, true).values());
+	}
+
+	/** Przyjmuje potwierdzenie przedzialu numerow od peer'a.
+	 * @param node Identyfikator wezla peer'a.
+	 * @param from Pierwszy potwierdzony numer.
+	 * @param to Ostatni potwierdzony numer, wlacznie.
+	 * @return Liczba potwierdzonych wiadomosci.
+	 */
+	synchronized int acknowledged(long node, long from, long to){
+
+		Peer peer = peers.get(node);
+		if(peer == null || from > to)
+			return 0;
+		int n = release(peer.pending.subMap(from, true, to, true));
+		if(n > 0){
+			acked.add(n);
+			logAck(node, from, to);
+		}
+		return n;
+	}
+
+	/** Sprawdza, czy wszyscy odbiorcy potwierdzili wiadomosc.
+	 * @param sequence Numer wiadomosci.
+	 * @return true jesli wiadomosc nie czeka na zadne potwierdzenie.
+	 */
+	synchronized boolean isDelivered(long sequence){
+		return sequence <= lastSequence && !unacked.containsKey(sequence);
+	}
+
+	/** Zwraca adresy peer'ow, z ktorymi sie laczylismy i ktore maja niepotwierdzone wiadomosci.
+	 * @return Adresy host:port.
+	 */
+	synchronized List<String> getUndeliveredAddresses(){
+
+		List<String> out = new ArrayList<String>();
+		for(Peer peer : peers.values())
+			if(peer.address != null && !peer.pending.isEmpty() && !out.contains(peer.address))
+				out.add(peer.address);
+		return out;
+	}
+
+	/** Konczy prace writer'a po zapisaniu oczekujacych rekordow i zwalnia blokade katalogu.
+	 * @param timeoutMillis Maksymalny czas oczekiwania na writer.
+	 */
+	void close(long timeoutMillis){
+
+		synchronized(this){
+			if(closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			stopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			channel.close();
+			lock.release();
+			lockChannel.close();
+		} catch (IOException e) {
+			// blokada i tak znika z zamknieciem procesu
+		}
+	}
+
+	long getNodeId(){
+		return nodeId;
+	}
+
+	/** Zwraca liczbe wiadomosci czekajacych na potwierdzenie.
+	 * @return Liczba niepotwierdzonych wiadomosci.
+	 */
+	synchronized int getPendingCount(){
+		return unacked.size();
+	}
+
+	long getSyncs(){
+		return syncs.sum();
+	}
+
+	long getAcked(){
+		return acked.sum();
+	}
+
+	/** Zwraca liczbe wiadomosci porzuconych po przekroczeniu MAX_PENDING.
+	 * @return Liczba porzuconych wiadomosci.
+	 */
+	long getExpired(){
+		return expired.sum();
+	}
+
+	/** Zwraca blad zapisu, ktory zatrzymal writer.
+	 * @return Blad lub null jesli writer dziala.
+	 */
+	IOException getFailure(){
+		return failure;
+	}
+}
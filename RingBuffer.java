@@ -0,0 +1,243 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ograniczona kolejka bez blokad oparta na tablicy (algorytm D. Vyukova: kazde pole ma wlasny numer
+ * sekwencyjny, producenci i konsument rezerwuja pola przez CAS). Przeznaczona dla wielu producentow
+ * i jednego konsumenta; poll() jest jednak bezpieczne takze dla producentow, co wykorzystuje polityka
+ * DROP_OLDEST. Zachowanie przy pelnej kolejce okresla Policy.
+ * @author Kuba Jalowiec
+ */
+class RingBuffer<E>{
+
+	/** Zachowanie put() przy pelnej kolejce. */
+	enum Policy{
+		/** Czekaj, az konsument zwolni miejsce. */
+		BLOCK,
+		/** Usun najstarszy element i wstaw nowy. */
+		DROP_OLDEST,
+		/** Odrzuc wstawiany element, put() zwraca false. */
+		DROP_NEWEST,
+		/** Odrzuc wstawiany element i zglos wyjatek. */
+		REJECT
+	}
+
+	/** Maksymalna przerwa miedzy probami wstawienia w polityce BLOCK. */
+	private static final long MAX_BACKOFF_NANOS = 1000000L;
+
+	private final Object[] buffer;
+	private final AtomicLongArray sequence;
+	private final int mask;
+	private final AtomicLong head;
+	private final AtomicLong tail;
+	private volatile Policy policy;
+
+	/** Konsument uspiony w take(), budzony przez producentow. */
+	private volatile Thread waiter;
+
+	private final LongAdder dropped;
+	private final LongAdder rejected;
+
+	/** Tworzy pusta kolejke.
+	 * @param capacity Pojemnosc, zaokraglana w gore do potegi dwojki.
+	 * @param _policy Zachowanie przy pelnej kolejce.
+	 */
+	RingBuffer(int capacity, Policy _policy){
+
+		if(capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Bledna pojemnosc kolejki: " + capacity);
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity)
+			size <<= 1;
+		buffer = new Object[size];
+		sequence = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++)
+			sequence.set(i, i);
+		mask = size - 1;
+		head = new AtomicLong();
+		tail = new AtomicLong();
+		policy = _policy;
+		dropped = new LongAdder();
+		rejected = new LongAdder();
+	}
+
+	/** Wstawia element, jesli jest miejsce. Nie blokuje i nie stosuje polityki.
+	 * @param e Element do wstawienia.
+	 * @return false jesli kolejka jest pelna.
+	 */
+	boolean offer(E e){
+
+		long pos = tail.get();
+		while(true){
+			int index = (int) pos & mask;
+			long diff = sequence.get(index) - pos;
+			if(diff == 0){
+				if(tail.compareAndSet(pos, pos + 1)){
+					buffer[index] = e;
+					// zapis ulotny, nie lazySet - odczyt waiter ponizej nie moze go wyprzedzic
+					sequence.set(index, pos + 1);
+					Thread w = waiter;
+					if(w != null)
+						LockSupport.unpark(w);
+					return true;
+				}
+				pos = tail.get();
+			}
+			else if(diff < 0)
+				return false;
+			else
+				pos = tail.get();
+		}
+	}
+
+	/** Wstawia element zgodnie z polityka kolejki.
+	 * @param e Element do wstawienia.
+	 * @return false jesli element zostal odrzucony (DROP_NEWEST).
+	 * @throws InterruptedException Jesli watek zostal przerwany w czasie czekania (BLOCK).
+	 * @throws IllegalStateException Jesli kolejka jest pelna (REJECT).
+	 */
+	boolean put(E e) throws InterruptedException{
+
+		if(offer(e))
+			return true;
+		if(policy != Policy.BLOCK)
+			return overflow(e);
+		long backoff = 1000;
+		while(!offer(e)){
+			if(Thread.interrupted())
+				throw new InterruptedException();
+			LockSupport.parkNanos(this, backoff);
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+		}
+		return true;
+	}
+
+	/** Wstawia element zgodnie z polityka kolejki, ale nigdy nie czeka: przy polityce BLOCK pelna kolejka
+	 *  odrzuca element i liczy go jako porzucony, jak przy DROP_NEWEST.
+	 * @param e Element do wstawienia.
+	 * @return false jesli element zostal odrzucony.
+	 * @throws IllegalStateException Jesli kolejka jest pelna (REJECT).
+	 */
+	boolean putNow(E e){
+
+		if(offer(e))
+			return true;
+		if(policy != Policy.BLOCK)
+			return overflow(e);
+		dropped.increment();
+		return false;
+	}
+
+	/** Stosuje polityke DROP_OLDEST, DROP_NEWEST lub REJECT do elementu, ktory nie zmiescil sie w kolejce. */
+	private boolean overflow(E e){
+
+		switch(policy){
+		case DROP_OLDEST:
+			do {
+				if(poll() != null)
+					dropped.increment();
+			} while(!offer(e));
+			return true;
+		case DROP_NEWEST:
+			dropped.increment();
+			return false;
+		default:
+			rejected.increment();
+			throw new IllegalStateException("Kolejka pelna (" + capacity() + ")");
+		}
+	}
+
+	/** Pobiera najstarszy element.
+	 * @return Element lub null jesli kolejka jest pusta.
+	 */
+	@SuppressWarnings("unchecked")
+	E poll(){
+
+		long pos = head.get();
+		while(true){
+			int index = (int) pos & mask;
+			long diff = sequence.get(index) - (pos + 1);
+			if(diff == 0){
+				if(head.compareAndSet(pos, pos + 1)){
+					E e = (E) buffer[index];
+					buffer[index] = null;
+					sequence.lazySet(index, pos + mask + 1);
+					return e;
+				}
+				pos = head.get();
+			}
+			else if(diff < 0)
+				return null;
+			else
+				pos = head.get();
+		}
+	}
+
+	/** Pobiera najstarszy element, czekajac na niego jesli kolejka jest pusta.
+	 *  Moze byc wywolywane tylko przez jednego konsumenta naraz.
+	 * @return Element kolejki.
+	 * @throws InterruptedException Jesli watek zostal przerwany w czasie czekania.
+	 */
+	E take() throws InterruptedException{
+
+		E e;
+		while((e = poll()) == null){
+			waiter = Thread.currentThread();
+			if((e = poll()) != null){
+				waiter = null;
+				return e;
+			}
+			LockSupport.park(this);
+			waiter = null;
+			if(Thread.interrupted())
+				throw new InterruptedException();
+		}
+		return e;
+	}
+
+	/** Zwraca liczbe elementow w kolejce.
+	 * @return Zajetosc kolejki.
+	 */
+	int size(){
+
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, buffer.length));
+	}
+
+	boolean isEmpty(){
+		return size() == 0;
+	}
+
+	/** Usuwa wszystkie elementy. */
+	void clear(){
+		while(poll() != null);
+	}
+
+	int capacity(){
+		return buffer.length;
+	}
+
+	Policy getPolicy(){
+		return policy;
+	}
+
+	void setPolicy(Policy _policy){
+		policy = _policy;
+	}
+
+	/** Zwraca liczbe elementow usunietych przez polityki DROP_OLDEST i DROP_NEWEST.
+	 * @return Liczba porzuconych elementow.
+	 */
+	long getDropped(){
+		return dropped.sum();
+	}
+
+	/** Zwraca liczbe elementow odrzuconych z wyjatkiem przez polityke REJECT.
+	 * @return Liczba odrzuconych elementow.
+	 */
+	long getRejected(){
+		return rejected.sum();
+	}
+}
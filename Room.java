@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pokoj rozmowy grupowej: polaczenia, ktorych peer'y oglosily dolaczenie do pokoju (Frame.ROOM_JOIN).
+ * Wiadomosc do pokoju kodowana jest raz (Frame.roomMessage()) i ta sama ramka, z danymi tylko do odczytu,
+ * trafia do kolejek wysylania wszystkich czlonkow. Kazdy czlonek ma wlasna ograniczona kolejke.
+ * Ramka wstawiana jest najpierw bez czekania (Connection.offer()); na miejsce w pelnych kolejkach
+ * nadawca czeka lacznie najwyzej LAG_MILLIS. Czlonek, ktorego kolejka pozostaje pelna, zostaje uznany
+ * za marudera: dopoki jego kolejka nie oprozni sie do polowy, wiadomosci sa dla niego porzucane bez
+ * czekania, wiec jeden wolny czlonek nie spowalnia calego pokoju, a szybcy czlonkowie nie traca
+ * wiadomosci przy chwilowym zatorze.
+ * <p>
+ * Lista czlonkow jest kopiowana przy kazdej zmianie, wiec rozsylanie nie bierze blokady.
+ * @author Kuba Jalowiec
+ */
+final class Room{
+
+	/** Maksymalna dlugosc nazwy pokoju w bajtach UTF-8. */
+	static final int MAX_NAME = 255;
+
+	/** Maksymalny czas, przez jaki nadawca czeka na miejsce w pelnych kolejkach czlonkow. */
+	static final long LAG_MILLIS = 100;
+
+	/** Przerwa miedzy kolejnymi probami wstawienia do pelnej kolejki. */
+	private static final long RETRY_NANOS = 50000;
+
+	private final String name;
+
+	/** Czlonkowie pokoju; tablica nie jest zmieniana po opublikowaniu. */
+	private volatile Connection[] members;
+
+	/** Czlonkowie, ktorych kolejka byla pelna dluzej niz LAG_MILLIS. */
+	private final Set<Connection> laggards;
+
+	/** Wiadomosci rozeslane, wstawione do kolejek czlonkow i porzucone przy pelnych kolejkach. */
+	private final LongAdder messages, deliveries, dropped;
+
+	Room(String _name){
+
+		name = _name;
+		members = new Connection[0];
+		laggards = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+		messages = new LongAdder();
+		deliveries = new LongAdder();
+		dropped = new LongAdder();
+	}
+
+	String getName(){
+		return name;
+	}
+
+	/** Dodaje czlonka.
+	 * @param connection Polaczenie z peer'em, ktory dolaczyl do pokoju.
+	 * @return false jesli polaczenie bylo juz czlonkiem.
+	 */
+	synchronized boolean add(Connection connection){
+
+		for(Connection member : members)
+			if(member == connection)
+				return false;
+		Connection[] grown = Arrays.copyOf(members, members.length + 1);
+		grown[members.length] = connection;
+		members = grown;
+		return true;
+	}
+
+	/** Usuwa czlonka.
+	 * @param connection Polaczenie.
+	 * @return false jesli polaczenie nie bylo czlonkiem.
+	 */
+	synchronized boolean remove(Connection connection){
+
+		Connection[] current = members;
+		for(int i = 0; i < current.length; i++){
+			if(current[i] == connection){
+				Connection[] shrunk = new Connection[current.length - 1];
+				System.arraycopy(current, 0, shrunk, 0, i);
+				System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+				members = shrunk;
+				laggards.remove(connection);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Wstawia ramke do kolejek wszystkich czlonkow. Moze byc wywolywane z dowolnego watku.
+	 * @param frame Ramka wiadomosci - wspolna dla wszystkich czlonkow.
+	 * @return Liczba czlonkow, do ktorych kolejek trafila ramka.
+	 */
+	int send(Frame frame){
+
+		Connection[] current = members;
+		int n = 0;
+		List<Connection> full = null;
+		for(Connection member : current){
+			if(member.offer(frame)){
+				n++;
+				if(!laggards.isEmpty() && laggards.contains(member)){
+					RingBuffer<Frame> queue = member.queueFor(frame);
+					if(queue.size() <= queue.capacity() / 2)
+						laggards.remove(member);
+				}
+			}
+			else if(member.isAccepting() && !laggards.contains(member)){
+				if(full == null)
+					full = new ArrayList<Connection>();
+				full.add(member);
+			}
+		}
+		if(full != null){
+			long deadline = System.nanoTime() + LAG_MILLIS * 1000000L;
+			while(!full.isEmpty() && System.nanoTime() < deadline){
+				LockSupport.parkNanos(RETRY_NANOS);
+				for(Iterator<Connection> it = full.iterator(); it.hasNext(); ){
+					Connection member = it.next();
+					if(member.offer(frame)){
+						n++;
+						it.remove();
+					}
+					else if(!member.isAccepting())
+						it.remove();
+				}
+			}
+			laggards.addAll(full);
+		}
+		messages.increment();
+		deliveries.add(n);
+		dropped.add(current.length - n);
+		return n;
+	}
+
+	/** Zwraca identyfikatory sesji czlonkow.
+	 * @return Lista peer'ow.
+	 */
+	List<String> getMembers(){
+
+		List<String> out = new ArrayList<String>();
+		for(Connection member : members)
+			out.add(member.getPeer());
+		return out;
+	}
+
+	int getMemberCount(){
+		return members.length;
+	}
+
+	/** Zwraca liczbe czlonkow, dla ktorych wiadomosci sa porzucane bez czekania.
+	 * @return Liczba maruderow.
+	 */
+	int getLaggardCount(){
+		return laggards.size();
+	}
+
+	long getMessages(){
+		return messages.sum();
+	}
+
+	long getDeliveries(){
+		return deliveries.sum();
+	}
+
+	/** Zwraca liczbe wiadomosci porzuconych dla czlonkow z pelna kolejka wysylania.
+	 * @return Liczba porzuconych kopii wiadomosci.
+	 */
+	long getDropped(){
+		return dropped.sum();
+	}
+}
@@ -0,0 +1,582 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Nakladka peer-to-peer: tablica znanych wezlow wypelniana plotkami (gossip) i trasowanie wiadomosci
+ * do wezlow, z ktorymi nie mamy bezposredniego polaczenia.
+ * <p>
+ * Co GOSSIP_MILLIS kazdy wezel wysyla sasiadom (Frame.GOSSIP) swoj wpis z rosnacym licznikiem
+ * heartbeat i portem nasluchu oraz wpisy znanych wezlow z odlegloscia w skokach. Odbiorca przyjmuje
+ * trase przez sasiada, jesli jest ona co najmniej tak swieza jak obecna i krotsza, idzie przez tego
+ * samego sasiada lub obecna trasa nie byla potwierdzona od ROUTE_STALE_NANOS. Wpisy nie sa odsylane
+ * sasiadowi, przez ktorego prowadzi trasa (split horizon), a trasy utracone ogloszone sa jako
+ * nieosiagalne (MAX_HOPS). Wezly, ktorych heartbeat nie rosnie przez PEER_TIMEOUT_NANOS, sa usuwane.
+ * <p>
+ * Wiadomosc trasowana (Frame.ROUTED) ma nadawce, odbiorce, identyfikator i limit skokow. Kazdy wezel
+ * przekazuje ja dalej najwyzej raz - powtorzenia odrzuca filtr Blooma ostatnio widzianych
+ * identyfikatorow - do sasiada z tablicy tras lub, dla odbiorcy 0, do wszystkich sasiadow poza
+ * nadawca ramki. Ostatnio uzyte trasy trzymane sa w pamieci podrecznej, czytanej bez blokady,
+ * i usuwane przy kazdej zmianie trasy. Wezel, od ktorego przyszla wiadomosc, a do ktorego nie znamy
+ * trasy, dostaje trase przez sasiada, od ktorego ja odebralismy - odpowiedz nie czeka na plotki.
+ * <p>
+ * Tablica chroniona jest monitorem obiektu. Ramki przekazywane dalej wstawiane sa do kolejek bez czekania
+ * (Connection.offer()) - petla zdarzen nie czeka na zadne polaczenie; przy pelnej kolejce ramka jest porzucana.
+ * @author Kuba Jalowiec
+ */
+final class Router{
+
+	/** Odstep miedzy kolejnymi plotkami. */
+	static final long GOSSIP_MILLIS = 1000;
+
+	/** Maksymalna liczba skokow wiadomosci i odleglosc oznaczajaca wezel nieosiagalny. */
+	static final int MAX_HOPS = 8;
+
+	/** Czas bez nowego heartbeat, po ktorym wezel jest usuwany z tablicy. */
+	private static final long PEER_TIMEOUT_NANOS = 10 * GOSSIP_MILLIS * 1000000L;
+
+	/** Czas bez potwierdzenia trasy, po ktorym przyjmowana jest dowolna inna. */
+	private static final long ROUTE_STALE_NANOS = 3 * GOSSIP_MILLIS * 1000000L;
+
+	/** Maksymalna liczba wpisow jednej plotki; przy wiekszej tablicy kolejne plotki niosa kolejne wpisy. */
+	static final int MAX_GOSSIP_ENTRIES = 512;
+
+	/** Rozmiar naglowka wiadomosci trasowanej. */
+	static final int ROUTED_HEADER = 8 + 8 + 8 + 1;
+
+	/** Maksymalny rozmiar wpisu plotki. */
+	private static final int MAX_ENTRY = 8 + 8 + 1 + 2 + 1 + 16;
+
+	/** Wpis tablicy wezlow. */
+	private static final class Node{
+
+		final long id;
+
+		/** Adres i port nasluchu wezla; port 0 jesli wezel nie nasluchuje lub adres nie jest znany. */
+		InetAddress address;
+		int port;
+
+		/** Najwiekszy znany heartbeat i chwila (System.nanoTime()), w ktorej wzrosl. */
+		long heartbeat, seen;
+
+		/** Sasiad, przez ktorego prowadzi trasa, lub null. */
+		Connection next;
+		int hops;
+
+		/** Heartbeat, z ktorym przyjeto trase, i chwila jej ostatniego potwierdzenia. */
+		long routeHeartbeat, routeUpdated;
+
+		Node(long _id, long now){
+
+			id = _id;
+			seen = now;
+			hops = MAX_HOPS + 1;
+		}
+	}
+
+	/**
+	 * Filtr Blooma identyfikatorow ostatnio widzianych wiadomosci. Dwie generacje: po ROTATE wpisach
+	 * biezaca staje sie poprzednia, a poprzednia jest czyszczona, wiec filtr pamieta od ROTATE do
+	 * 2 * ROTATE ostatnich wiadomosci. Przy BITS / ROTATE = 32 bitach na wpis i K = 8 funkcjach
+	 * prawdopodobienstwo falszywego powtorzenia nie przekracza okolo 1e-5.
+	 */
+	static final class Seen{
+
+		static final int BITS = 1 << 20;
+		static final int ROTATE = BITS / 32;
+		static final int K = 8;
+
+		private long[] current = new long[BITS / 64];
+		private long[] previous = new long[BITS / 64];
+		private int count;
+
+		/** Zapisuje wiadomosc.
+		 * @param origin Wezel nadawcy.
+		 * @param id Identyfikator wiadomosci.
+		 * @return false jesli wiadomosc byla juz widziana (lub falszywie tak wyglada).
+		 */
+		synchronized boolean add(long origin, long id){
+
+			long hash = mix(origin * 0x9E3779B97F4A7C15L ^ id);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			if(contains(current, h1, h2) || contains(previous, h1, h2))
+				return false;
+			for(int i = 0; i < K; i++){
+				int bit = (h1 + i * h2) & (BITS - 1);
+				current[bit >>> 6] |= 1L << bit;
+			}
+			if(++count == ROTATE){
+				long[] cleared = previous;
+				Arrays.fill(cleared, 0);
+				previous = current;
+				current = cleared;
+				count = 0;
+			}
+			return true;
+		}
+
+		private static boolean contains(long[] bits, int h1, int h2){
+
+			for(int i = 0; i < K; i++){
+				int bit = (h1 + i * h2) & (BITS - 1);
+				if((bits[bit >>> 6] & (1L << bit)) == 0)
+					return false;
+			}
+			return true;
+		}
+
+		/** Miesza bity klucza (finalizer MurmurHash3). */
+		private static long mix(long h){
+
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= h >>> 33;
+			h *= 0xC4CEB9FE1A85EC53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+
+	private final Model model;
+
+	/** Znane wezly wg identyfikatora. */
+	private final Map<Long, Node> nodes;
+
+	/** Pamiec podreczna tras: wezel -> sasiad. */
+	private final Map<Long, Connection> routes;
+
+	private final Seen seen;
+
+	/** Identyfikator ostatniej wyslanej wiadomosci trasowanej. */
+	private final AtomicLong lastId;
+
+	/** Numer kolejny ostatniej odebranej wiadomosci trasowanej. */
+	private final AtomicLong receivedSequence;
+
+	/** Heartbeat tego wezla i numer plotki; uzywane tylko przez zadanie plotek. */
+	private long heartbeat;
+	private int round;
+
+	/** Docelowa liczba sesji utrzymywana przez laczenie z wezlami z tablicy; 0 wylacza. */
+	private volatile int degree;
+
+	/** Trwa laczenie z wezlem z tablicy. */
+	private volatile boolean dialing;
+
+	private final LongAdder forwarded, delivered, duplicates, unreachable, expired, dropped;
+
+	/** Tworzy pusta tablice.
+	 * @param _model Model, ktorego polaczenia obsluguje nakladka.
+	 */
+	Router(Model _model){
+
+		model = _model;
+		nodes = new HashMap<Long, Node>();
+		routes = new ConcurrentHashMap<Long, Connection>();
+		seen = new Seen();
+		// losowy poczatek - identyfikatory nie powtarzaja sie po ponownym uruchomieniu z tym samym wezlem
+		lastId = new AtomicLong(ThreadLocalRandom.current().nextLong());
+		receivedSequence = new AtomicLong();
+		// heartbeat od zegara - wezel uruchomiony ponownie ma swiezsze wpisy niz przed zamknieciem
+		heartbeat = System.currentTimeMillis();
+		forwarded = new LongAdder();
+		delivered = new LongAdder();
+		duplicates = new LongAdder();
+		unreachable = new LongAdder();
+		expired = new LongAdder();
+		dropped = new LongAdder();
+	}
+
+	/** Wysyla plotki do wszystkich sasiadow, usuwa wezly bez nowego heartbeat i w razie potrzeby
+	 *  laczy z kolejnym wezlem z tablicy. Wywolywane co GOSSIP_MILLIS w petli zdarzen.
+	 * @param connections Otwarte polaczenia.
+	 */
+	void tick(Collection<Connection> connections){
+
+		long now = System.nanoTime();
+		long self = model.getNodeId();
+		int port = Math.max(0, model.getListenPort());
+		heartbeat = Math.max(heartbeat + 1, System.currentTimeMillis());
+		List<Connection> targets = new ArrayList<Connection>();
+		List<Frame> frames = new ArrayList<Frame>();
+		synchronized(this){
+			for(Iterator<Node> it = nodes.values().iterator(); it.hasNext(); ){
+				Node node = it.next();
+				if(now - node.seen > PEER_TIMEOUT_NANOS){
+					it.remove();
+					routes.remove(node.id);
+				}
+			}
+			List<Node> list = new ArrayList<Node>(nodes.values());
+			int start = list.isEmpty() ? 0 : Math.floorMod(round++ * MAX_GOSSIP_ENTRIES, list.size());
+			for(Connection connection : connections){
+				if(connection.getPeerNode() == 0)
+					continue;
+				targets.add(connection);
+				frames.add(gossip(connection, self, port, list, start));
+			}
+		}
+		for(int i = 0; i < targets.size(); i++)
+			targets.get(i).offer(frames.get(i), Stream.CONTROL);
+		if(degree > 0 && !dialing && model.getSessionCount() < degree)
+			dialSomeone();
+	}
+
+	/** Buduje plotke dla jednego sasiada. Wywolywane z monitorem.
+	 * @param connection Sasiad.
+	 * @param self Identyfikator tego wezla.
+	 * @param port Port nasluchu tego wezla lub 0.
+	 * @param list Znane wezly.
+	 * @param start Indeks pierwszego wpisu tej plotki.
+	 * @return Ramka GOSSIP.
+	 */
+	private Frame gossip(Connection connection, long self, int port, List<Node> list, int start){
+
+		int n = Math.min(list.size(), MAX_GOSSIP_ENTRIES);
+		ByteBuffer payload = ByteBuffer.allocate(2 + MAX_ENTRY * (1 + n));
+		payload.putShort((short) 0);
+		payload.putLong(self).putLong(heartbeat).put((byte) 0).putShort((short) port).put((byte) 0);
+		int count = 1;
+		for(int i = 0; i < n; i++){
+			Node node = list.get((start + i) % list.size());
+			if(node.next == connection)
+				continue;
+			byte[] address = node.address == null ? new byte[0] : node.address.getAddress();
+			payload.putLong(node.id).putLong(node.heartbeat).put((byte) (node.next == null ? MAX_HOPS : node.hops))
+				.putShort((short) node.port).put((byte) address.length).put(address);
+			count++;
+		}
+		payload.putShort(0, (short) count).flip();
+		return new Frame(Frame.GOSSIP, (byte) 0, payload);
+	}
+
+	/** Przyjmuje plotke od sasiada. Wywolywane w watku petli polaczenia.
+	 * @param from Polaczenie, ktorym przyszla plotka; peer przedstawil sie w HELLO.
+	 * @param payload Dane ramki GOSSIP.
+	 * @return false jesli ramka jest bledna.
+	 */
+	boolean onGossip(Connection from, ByteBuffer payload){
+
+		long now = System.nanoTime();
+		long self = model.getNodeId();
+		ByteBuffer data = payload.duplicate();
+		if(data.remaining() < 2)
+			return false;
+		int count = data.getShort() & 0xFFFF;
+		synchronized(this){
+			for(int i = 0; i < count; i++){
+				if(data.remaining() < MAX_ENTRY - 16)
+					return false;
+				long id = data.getLong();
+				long beat = data.getLong();
+				int hops = (data.get() & 0xFF) + 1;
+				int port = data.getShort() & 0xFFFF;
+				int length = data.get() & 0xFF;
+				if(data.remaining() < length || (length != 0 && length != 4 && length != 16))
+					return false;
+				InetAddress address = from.getAddress();
+				if(length > 0){
+					byte[] raw = new byte[length];
+					data.get(raw);
+					try {
+						address = InetAddress.getByAddress(raw);
+					} catch (UnknownHostException e) {
+						return false;
+					}
+				}
+				if(id != self && id != 0)
+					merge(from, id, beat, hops, address, port, now);
+			}
+		}
+		return true;
+	}
+
+	/** Uwzglednia jeden wpis plotki. Wywolywane z monitorem. */
+	private void merge(Connection from, long id, long beat, int hops, InetAddress address, int port, long now){
+
+		Node node = nodes.get(id);
+		if(hops > MAX_HOPS){
+			if(node != null && node.next == from){
+				node.next = null;
+				node.hops = MAX_HOPS + 1;
+				routes.remove(id);
+			}
+			return;
+		}
+		if(node == null)
+			nodes.put(id, node = new Node(id, now));
+		if(beat > node.heartbeat){
+			node.heartbeat = beat;
+			node.seen = now;
+		}
+		if(beat >= node.routeHeartbeat && (node.next == null || node.next == from || hops < node.hops
+				|| now - node.routeUpdated > ROUTE_STALE_NANOS)){
+			if(node.next != from)
+				routes.remove(id);
+			node.next = from;
+			node.hops = hops;
+			node.routeHeartbeat = beat;
+			node.routeUpdated = now;
+			if(port != 0){
+				node.address = address;
+				node.port = port;
+			}
+		}
+		else if(node.address == null && port != 0){
+			node.address = address;
+			node.port = port;
+		}
+	}
+
+	/** Wywolywane, gdy sasiad przedstawi sie w HELLO - sasiad jest o jeden skok.
+	 * @param connection Polaczenie z sasiadem.
+	 * @param id Identyfikator wezla sasiada.
+	 */
+	synchronized void connected(Connection connection, long id){
+
+		long now = System.nanoTime();
+		Node node = nodes.get(id);
+		if(node == null)
+			nodes.put(id, node = new Node(id, now));
+		node.seen = now;
+		node.next = connection;
+		node.hops = 1;
+		node.routeUpdated = now;
+		routes.remove(id);
+	}
+
+	/** Wywolywane po zamknieciu polaczenia - trasy przez nie staja sie nieosiagalne.
+	 * @param connection Zamkniete polaczenie.
+	 */
+	synchronized void disconnected(Connection connection){
+
+		for(Node node : nodes.values()){
+			if(node.next == connection){
+				node.next = null;
+				node.hops = MAX_HOPS + 1;
+			}
+		}
+		routes.clear();
+	}
+
+	/** Zwraca sasiada, przez ktorego prowadzi trasa do wezla.
+	 * @param id Identyfikator wezla.
+	 * @return Polaczenie lub null jesli trasa nie jest znana.
+	 */
+	Connection route(long id){
+
+		Connection next = routes.get(id);
+		if(next != null)
+			return next;
+		synchronized(this){
+			Node node = nodes.get(id);
+			if(node == null || node.next == null)
+				return null;
+			routes.put(id, node.next);
+			return node.next;
+		}
+	}
+
+	/** Tworzy wiadomosc trasowana wysylana z tego wezla.
+	 * @param destination Wezel odbiorcy lub 0 - wszystkie wezly.
+	 * @param message Tresc wiadomosci w UTF-8.
+	 * @return Ramka ROUTED.
+	 */
+	Frame routed(long destination, byte[] message){
+
+		ByteBuffer payload = ByteBuffer.allocate(ROUTED_HEADER + message.length);
+		payload.putLong(model.getNodeId()).putLong(destination).putLong(lastId.incrementAndGet())
+			.put((byte) MAX_HOPS).put(message).flip();
+		return new Frame(Frame.ROUTED, (byte) 0, payload);
+	}
+
+	/** Przyjmuje wiadomosc trasowana: dostarcza ja Modelowi, jesli jest do tego wezla lub do wszystkich,
+	 *  i przekazuje dalej. Wywolywane w watku petli polaczenia.
+	 * @param from Polaczenie, ktorym przyszla wiadomosc.
+	 * @param payload Dane ramki ROUTED.
+	 * @return false jesli ramka jest bledna.
+	 */
+	boolean onRouted(Connection from, ByteBuffer payload){
+
+		int position = payload.position();
+		if(payload.remaining() < ROUTED_HEADER)
+			return false;
+		long origin = payload.getLong(position);
+		long destination = payload.getLong(position + 8);
+		long id = payload.getLong(position + 16);
+		int ttl = payload.get(position + 24) & 0xFF;
+		long self = model.getNodeId();
+		if(origin == self || origin == 0 || !seen.add(origin, id)){
+			duplicates.increment();
+			return true;
+		}
+		learn(origin, from, Math.max(1, MAX_HOPS - ttl + 1));
+		if(destination == self || destination == 0){
+			byte[] message = new byte[payload.remaining() - ROUTED_HEADER];
+			payload.get(position + ROUTED_HEADER, message);
+			delivered.increment();
+			model.routedMessageReceived(new Message(name(origin), receivedSequence.incrementAndGet(),
+				System.currentTimeMillis(), message, (byte) 0));
+			if(destination == self)
+				return true;
+		}
+		if(ttl <= 1){
+			expired.increment();
+			return true;
+		}
+		byte[] copy = new byte[payload.remaining()];
+		payload.get(position, copy);
+		copy[24] = (byte) (ttl - 1);
+		Frame frame = new Frame(Frame.ROUTED, (byte) 0, ByteBuffer.wrap(copy));
+		if(destination == 0){
+			for(Connection connection : model.getConnections())
+				if(connection != from)
+					forward(connection, frame);
+			return true;
+		}
+		Connection next = route(destination);
+		if(next == null || next == from)
+			unreachable.increment();
+		else
+			forward(next, frame);
+		return true;
+	}
+
+	/** Zapisuje trase powrotna do nadawcy wiadomosci, jesli tablica nie zna innej.
+	 * @param origin Wezel nadawcy.
+	 * @param from Sasiad, od ktorego przyszla wiadomosc.
+	 * @param hops Liczba skokow przebytych przez wiadomosc.
+	 */
+	private synchronized void learn(long origin, Connection from, int hops){
+
+		Node node = nodes.get(origin);
+		if(node != null && node.next != null)
+			return;
+		long now = System.nanoTime();
+		if(node == null)
+			nodes.put(origin, node = new Node(origin, now));
+		node.next = from;
+		node.hops = hops;
+		node.routeUpdated = now;
+		routes.remove(origin);
+	}
+
+	private void forward(Connection connection, Frame frame){
+
+		if(connection.offer(frame, Stream.INTERACTIVE))
+			forwarded.increment();
+		else
+			dropped.increment();
+	}
+
+	/** Laczy z losowym wezlem z tablicy, z ktorym nie mamy bezposredniego polaczenia. */
+	private void dialSomeone(){
+
+		List<Node> candidates = new ArrayList<Node>();
+		synchronized(this){
+			for(Node node : nodes.values())
+				if(node.hops > 1 && node.port != 0 && node.address != null)
+					candidates.add(node);
+		}
+		if(candidates.isEmpty())
+			return;
+		Node node = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+		final InetAddress address;
+		final int port;
+		synchronized(this){
+			address = node.address;
+			port = node.port;
+		}
+		dialing = true;
+		model.execute(new Runnable(){
+			public void run(){
+				try {
+					model.dial(address, port);
+				} catch (IOException e) {
+					// wezel nieosiagalny - sprobujemy innego przy kolejnej plotce
+				} finally {
+					dialing = false;
+				}
+			}
+		});
+	}
+
+	/** Ustawia liczbe sesji, ktora nakladka utrzymuje, laczac sie z wezlami poznanymi z plotek.
+	 * @param _degree Liczba sesji; 0 wylacza laczenie.
+	 */
+	void setDegree(int _degree){
+		degree = _degree;
+	}
+
+	int getDegree(){
+		return degree;
+	}
+
+	/** Zwraca nazwe wezla wyswietlana jako nadawca wiadomosci trasowanych.
+	 * @param id Identyfikator wezla.
+	 * @return Nazwa postaci #identyfikator.
+	 */
+	static String name(long id){
+		return "#" + Long.toHexString(id);
+	}
+
+	/** Zwraca znane wezly i odleglosc do nich.
+	 * @return Mapa wezel -> liczba skokow, -1 dla wezlow chwilowo nieosiagalnych.
+	 */
+	synchronized SortedMap<Long, Integer> getNodes(){
+
+		SortedMap<Long, Integer> out = new TreeMap<Long, Integer>();
+		for(Node node : nodes.values())
+			out.put(node.id, node.next == null ? -1 : node.hops);
+		return out;
+	}
+
+	synchronized int getNodeCount(){
+		return nodes.size();
+	}
+
+	long getForwarded(){
+		return forwarded.sum();
+	}
+
+	long getDelivered(){
+		return delivered.sum();
+	}
+
+	long getDuplicates(){
+		return duplicates.sum();
+	}
+
+	long getUnreachable(){
+		return unreachable.sum();
+	}
+
+	/** Zwraca liczbe wiadomosci porzuconych po wyczerpaniu limitu skokow.
+	 * @return Liczba wiadomosci.
+	 */
+	long getExpired(){
+		return expired.sum();
+	}
+
+	/** Zwraca liczbe wiadomosci porzuconych przy pelnej kolejce sasiada.
+	 * @return Liczba wiadomosci.
+	 */
+	long getDropped(){
+		return dropped.sum();
+	}
+}
@@ -0,0 +1,581 @@
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Indeks pelnotekstowy historii wiadomosci (indeks odwrocony): term -&gt; lista wiadomosci, w ktorych
+ * wystepuje, z pozycjami wystapien. Wiadomosci w indeksie maja kolejne numery (dokumenty); tablica dokumentow
+ * przechowuje identyfikator w historii i czas, ktory - jak w MessageStore - nie maleje. Lista wystapien termu
+ * zakodowana jest w tablicy bajtow liczbami o zmiennej dlugosci (varint):
+ * <pre>
+ * | roznica numeru dokumentu | liczba wystapien | pozycja pierwszego wystapienia | roznice kolejnych pozycji |
+ * </pre>
+ * Co SKIP_INTERVAL dokumentow lista zapamietuje punkt wejscia, wiec przeciecie list przeskakuje dlugie fragmenty
+ * bez dekodowania. Nadawca indeksowany jest jak term (z przedrostkiem SENDER, ktorego nie ma w zadnym termie),
+ * wiec zapytanie o wiadomosci jednego peer'a to jeszcze jedna lista w przecieciu, a zakres czasu - zakres numerow
+ * dokumentow, znajdowany binarnie.
+ * <p>
+ * Model przekazuje wiadomosci do indeksu przez kolejke (add()) w tej samej kolejnosci, w jakiej dostaja
+ * identyfikatory w historii; indeksuje je osobny watek, wiec petle zdarzen nie czekaja na indeksowanie.
+ * Indeks trzymany jest w pamieci - przy uruchomieniu watek odtwarza go z historii, zanim zajmie sie kolejka.
+ * Wiadomosci usuniete z historii przez retencje pomijane sa przy wyszukiwaniu (zob. search()).
+ * <p>
+ * Terminy to ciagi liter i cyfr, zamienione na male litery i pozbawione znakow diakrytycznych ("Zolw" znajduje
+ * "zolw" z ogonkami). Indeks i wyszukiwanie chronione sa monitorem obiektu.
+ * @author Kuba Jalowiec
+ */
+final class SearchIndex{
+
+	/** Pojemnosc kolejki wiadomosci czekajacych na zaindeksowanie. */
+	static final int QUEUE_CAPACITY = 65536;
+
+	/** Maksymalna liczba wiadomosci indeksowanych jednym wsadem. */
+	static final int MAX_BATCH = 1024;
+
+	/** Maksymalna dlugosc termu w znakach; dluzsze sa obcinane. */
+	static final int MAX_TERM = 64;
+
+	/** Liczba dokumentow miedzy punktami wejscia listy wystapien. */
+	static final int SKIP_INTERVAL = 64;
+
+	/** Przedrostek termu nadawcy. */
+	private static final char SENDER = '\u0000';
+
+	/** Znacznik konca pracy watku indeksujacego. */
+	private static final Message STOP = new Message("", 0, 0, new byte[0], (byte) 0);
+
+	/** Lista wystapien termu. Zmieniana tylko przez watek indeksujacy z monitorem indeksu. */
+	private static final class Postings{
+
+		private byte[] data = new byte[16];
+		private int size;
+
+		/** Liczba dokumentow i numer ostatniego z nich. */
+		private int docs;
+		private int lastDoc = -1;
+
+		/** Punkty wejscia: numer dokumentu poprzedzajacego i polozenie nastepnego wpisu. */
+		private int[] skipDocs = new int[0];
+		private int[] skipOffsets = new int[0];
+		private int skips;
+
+		/** Dopisuje dokument.
+		 * @param doc Numer dokumentu - wiekszy niz poprzedni.
+		 * @param positions Pozycje wystapien, rosnaco.
+		 * @param count Liczba wystapien.
+		 * @return Liczba dopisanych bajtow.
+		 */
+		int add(int doc, int[] positions, int count){
+
+			int before = size;
+			if(docs % SKIP_INTERVAL == 0 && docs > 0){
+				if(skips == skipDocs.length){
+					skipDocs = Arrays.copyOf(skipDocs, Math.max(4, skips * 2));
+					skipOffsets = Arrays.copyOf(skipOffsets, skipDocs.length);
+				}
+				skipDocs[skips] = lastDoc;
+				skipOffsets[skips] = size;
+				skips++;
+			}
+			ensure(5 * (count + 2));
+			put(doc - lastDoc);
+			put(count);
+			int last = 0;
+			for(int i = 0; i < count; i++){
+				put(positions[i] - last);
+				last = positions[i];
+			}
+			lastDoc = doc;
+			docs++;
+			return size - before;
+		}
+
+		private void ensure(int n){
+
+			if(data.length - size < n)
+				data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+		}
+
+		private void put(int value){
+
+			while((value & ~0x7F) != 0){
+				data[size++] = (byte) (value & 0x7F | 0x80);
+				value >>>= 7;
+			}
+			data[size++] = (byte) value;
+		}
+	}
+
+	/** Kursor po liscie wystapien: dokument, na ktorym stoi, i jego pozycje. */
+	private static final class Cursor{
+
+		private final Postings postings;
+		private int offset;
+		private int doc;
+
+		/** Liczba wystapien w biezacym dokumencie i polozenie ich pozycji. */
+		private int freq;
+		private int positionsOffset;
+
+		/** Przesuniecie pozycji wzgledem pierwszego termu frazy. */
+		private final int shift;
+
+		Cursor(Postings _postings, int _shift){
+
+			postings = _postings;
+			shift = _shift;
+			doc = -1;
+		}
+
+		/** Przechodzi do pierwszego dokumentu o numerze nie mniejszym niz podany.
+		 * @param target Numer dokumentu.
+		 * @return Numer dokumentu lub Integer.MAX_VALUE jesli lista sie skonczyla.
+		 */
+		int advance(int target){
+
+			if(doc >= target)
+				return doc;
+			int low = 0, high = postings.skips;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(postings.skipDocs[mid] < target)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			if(low > 0 && postings.skipDocs[low - 1] > doc){
+				doc = postings.skipDocs[low - 1];
+				offset = postings.skipOffsets[low - 1];
+			}
+			byte[] data = postings.data;
+			while(doc < target){
+				if(offset >= postings.size)
+					return doc = Integer.MAX_VALUE;
+				doc += get();
+				freq = get();
+				positionsOffset = offset;
+				for(int i = 0; i < freq; i++)
+					while(data[offset++] < 0);
+			}
+			return doc;
+		}
+
+		/** Odczytuje pozycje biezacego dokumentu, przesuniete do pozycji pierwszego termu frazy.
+		 * @param out Tablica docelowa - co najmniej freq elementow.
+		 */
+		void positions(int[] out){
+
+			int saved = offset;
+			offset = positionsOffset;
+			int position = 0;
+			for(int i = 0; i < freq; i++){
+				position += get();
+				out[i] = position - shift;
+			}
+			offset = saved;
+		}
+
+		private int get(){
+
+			byte[] data = postings.data;
+			int value = 0;
+			for(int bits = 0; ; bits += 7){
+				byte b = data[offset++];
+				value |= (b & 0x7F) << bits;
+				if(b >= 0)
+					return value;
+			}
+		}
+	}
+
+	private final MessageStore store;
+
+	/** Wiadomosci czekajace na zaindeksowanie. */
+	private final RingBuffer<Message> queue;
+
+	/** Listy wystapien termow i nadawcow. */
+	private final Map<String, Postings> terms;
+
+	/** Tablica dokumentow: identyfikator w historii i czas, wedlug numeru dokumentu. */
+	private long[] ids, times;
+	private int docs;
+
+	/** Rozmiar list wystapien w bajtach. */
+	private long bytes;
+
+	/** Ostatnia wiadomosc historii w chwili otwarcia indeksu - do niej indeks odtwarzany jest z historii. */
+	private final long recoverTo;
+
+	private final LongAdder dropped;
+	private volatile boolean closed;
+	private final CountDownLatch stopped;
+
+	/** Tworzy pusty indeks historii; wiadomosci juz zapisane zaindeksuje watek uruchomiony przez start().
+	 * @param _store Historia wiadomosci.
+	 */
+	SearchIndex(MessageStore _store){
+
+		store = _store;
+		queue = new RingBuffer<Message>(QUEUE_CAPACITY, RingBuffer.Policy.DROP_NEWEST);
+		terms = new HashMap<String, Postings>();
+		ids = new long[1024];
+		times = new long[1024];
+		recoverTo = store.getLastId();
+		dropped = new LongAdder();
+		stopped = new CountDownLatch(1);
+	}
+
+	/** Uruchamia watek indeksujacy w podanym executorze.
+	 * @param executor Executor Modelu.
+	 */
+	void start(ExecutorService executor){
+
+		executor.execute(new Runnable(){
+			public void run(){
+				try {
+					recover();
+					indexLoop();
+				} finally {
+					stopped.countDown();
+				}
+			}
+		});
+	}
+
+	/** Przyjmuje wiadomosc do zaindeksowania. Wywolujacy musi zapewnic, ze wywolania nie nakladaja sie
+	 *  i nastepuja w kolejnosci identyfikatorow.
+	 * @param msg Wiadomosc z identyfikatorem w historii.
+	 */
+	void add(Message msg){
+
+		if(closed || !queue.offer(msg))
+			dropped.increment();
+	}
+
+	/** Indeksuje wiadomosci zapisane w historii przed otwarciem indeksu. */
+	private void recover(){
+
+		long last = 0;
+		while(!closed && last < recoverTo){
+			List<Message> page = store.readAfter(last, MAX_BATCH);
+			if(page.isEmpty())
+				break;
+			synchronized(this){
+				for(Message msg : page)
+					if(msg.getId() <= recoverTo)
+						index(msg);
+			}
+			last = page.get(page.size() - 1).getId();
+		}
+	}
+
+	/** Petla watku indeksujacego: czeka na wiadomosc, zabiera pozostale oczekujace i indeksuje je jednym wsadem. */
+	private void indexLoop(){
+
+		Message[] batch = new Message[MAX_BATCH];
+		boolean stop = false;
+		while(!stop){
+			int count = 0;
+			try {
+				batch[count++] = queue.take();
+				Message msg;
+				while(count < batch.length && (msg = queue.poll()) != null)
+					batch[count++] = msg;
+			} catch (InterruptedException e) {
+				stop = true;
+				count = 0;
+			}
+			synchronized(this){
+				for(int i = 0; i < count && !stop; i++){
+					if(batch[i] == STOP)
+						stop = true;
+					else if(batch[i].getId() > recoverTo)
+						index(batch[i]);
+				}
+			}
+			Arrays.fill(batch, 0, count, null);
+		}
+	}
+
+	/** Dodaje wiadomosc do indeksu. Wywolywane przez watek indeksujacy z monitorem obiektu.
+	 * @param msg Wiadomosc z identyfikatorem.
+	 */
+	private void index(Message msg){
+
+		if(docs > 0 && msg.getId() <= ids[docs - 1])
+			return;
+		if(docs == ids.length){
+			ids = Arrays.copyOf(ids, docs * 2);
+			times = Arrays.copyOf(times, docs * 2);
+		}
+		int doc = docs;
+		ids[doc] = msg.getId();
+		times[doc] = doc > 0 ? Math.max(msg.getTimestamp(), times[doc - 1]) : msg.getTimestamp();
+		docs++;
+		List<String> tokens = tokenize(StandardCharsets.UTF_8.decode(msg.getPayload()).toString());
+		Map<String, int[]> positions = new HashMap<String, int[]>();
+		for(int i = 0; i < tokens.size(); i++){
+			int[] list = positions.get(tokens.get(i));
+			if(list == null)
+				list = new int[2];
+			else if(list[0] == list.length - 1)
+				list = Arrays.copyOf(list, list.length * 2);
+			list[++list[0]] = i;
+			positions.put(tokens.get(i), list);
+		}
+		int[] buffer = new int[16];
+		for(Map.Entry<String, int[]> entry : positions.entrySet()){
+			int[] list = entry.getValue();
+			if(buffer.length < list[0])
+				buffer = new int[list.length];
+			System.arraycopy(list, 1, buffer, 0, list[0]);
+			postings(entry.getKey(), doc, buffer, list[0]);
+		}
+		postings(SENDER + msg.getSender(), doc, buffer, 0);
+	}
+
+	private void postings(String term, int doc, int[] positions, int count){
+
+		Postings postings = terms.get(term);
+		if(postings == null)
+			terms.put(term, postings = new Postings());
+		bytes += postings.add(doc, positions, count);
+	}
+
+	/** Dzieli tekst na terminy: ciagi liter i cyfr, male litery, bez znakow diakrytycznych.
+	 * @param text Tekst.
+	 * @return Terminy w kolejnosci wystapienia.
+	 */
+	static List<String> tokenize(String text){
+
+		String folded = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+		List<String> out = new ArrayList<String>();
+		StringBuilder term = new StringBuilder();
+		for(int i = 0; i <= folded.length(); i++){
+			char c = i < folded.length() ? folded.charAt(i) : ' ';
+			if(Character.getType(c) == Character.NON_SPACING_MARK)
+				continue;
+			if(Character.isLetterOrDigit(c)){
+				if(term.length() < MAX_TERM)
+					term.append(c == '\u0142' ? 'l' : c);
+			}
+			else if(term.length() > 0){
+				out.add(term.toString());
+				term.setLength(0);
+			}
+		}
+		return out;
+	}
+
+	/** Wyszukuje wiadomosci pasujace do zapytania. Zapytanie to terminy, z ktorych kazdy musi wystapic
+	 *  w wiadomosci, i frazy w cudzyslowie, ktorych terminy musza wystapic kolejno. Listy terminow przecinane sa
+	 *  od najkrotszej, tylko w zakresie dokumentow z przedzialu czasu.
+	 * @param query Zapytanie, np. <code>spotkanie "w piatek"</code>.
+	 * @param sender Identyfikator nadawcy ("ja" dla wyslanych) lub null dla wszystkich.
+	 * @param from Poczatek przedzialu czasu (System.currentTimeMillis()), wlacznie.
+	 * @param to Koniec przedzialu, wylacznie.
+	 * @param firstId Identyfikator najstarszej wiadomosci w historii - starsze zostaly usuniete przez retencje.
+	 * @param limit Maksymalna liczba wynikow.
+	 * @return Identyfikatory co najwyzej limit najnowszych pasujacych wiadomosci, rosnaco; pusta tablica
+	 *  jesli zapytanie nie zawiera zadnego termu.
+	 */
+	synchronized long[] search(String query, String sender, long from, long to, long firstId, int limit){
+
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		List<Cursor> phrases = new ArrayList<Cursor>();
+		String[] parts = query.split("\"", -1);
+		for(int p = 0; p < parts.length; p++){
+			List<String> tokens = tokenize(parts[p]);
+			boolean phrase = p % 2 == 1 && tokens.size() > 1;
+			for(int i = 0; i < tokens.size(); i++){
+				Postings postings = terms.get(tokens.get(i));
+				if(postings == null)
+					return new long[0];
+				Cursor cursor = new Cursor(postings, phrase ? i : 0);
+				cursors.add(cursor);
+				if(phrase)
+					phrases.add(cursor);
+			}
+			if(phrase)
+				phrases.add(null);
+		}
+		if(cursors.isEmpty() || limit <= 0)
+			return new long[0];
+		if(sender != null){
+			Postings postings = terms.get(SENDER + sender);
+			if(postings == null)
+				return new long[0];
+			cursors.add(new Cursor(postings, 0));
+		}
+		Cursor[] order = cursors.toArray(new Cursor[cursors.size()]);
+		Arrays.sort(order, new Comparator<Cursor>(){
+			public int compare(Cursor a, Cursor b){
+				return Integer.compare(a.postings.docs, b.postings.docs);
+			}
+		});
+		int low = Math.max(lowerTime(from), lowerId(firstId));
+		int high = lowerTime(to);
+		long[] found = new long[Math.min(limit, 1024)];
+		int count = 0;
+		int doc = low;
+		while(doc < high){
+			doc = order[0].advance(doc);
+			int matched = 1;
+			while(matched < order.length && doc < high){
+				int next = order[matched].advance(doc);
+				if(next == doc)
+					matched++;
+				else{
+					doc = order[0].advance(next);
+					matched = 1;
+				}
+			}
+			if(doc >= high)
+				break;
+			if(phrases.isEmpty() || matchesPhrases(phrases)){
+				if(count == found.length && count < limit)
+					found = Arrays.copyOf(found, Math.min(limit, count * 2));
+				found[count++ % found.length] = ids[doc];
+			}
+			doc++;
+		}
+		if(count <= found.length)
+			return Arrays.copyOf(found, count);
+		// najnowsze wyniki w buforze cyklicznym - od najstarszego
+		long[] out = new long[found.length];
+		int start = count % found.length;
+		System.arraycopy(found, start, out, 0, found.length - start);
+		System.arraycopy(found, 0, out, found.length - start, start);
+		return out;
+	}
+
+	/** Sprawdza frazy w biezacym dokumencie kursorow: czy ktoras pozycja pierwszego termu, po przesunieciu,
+	 *  jest pozycja wszystkich terminow frazy.
+	 * @param phrases Kursory terminow fraz; kazda fraza zakonczona null.
+	 * @return true jesli wszystkie frazy wystepuja w dokumencie.
+	 */
+	private static boolean matchesPhrases(List<Cursor> phrases){
+
+		int[] candidates = null;
+		int candidateCount = 0;
+		for(Cursor cursor : phrases){
+			if(cursor == null){
+				if(candidateCount == 0)
+					return false;
+				candidates = null;
+				continue;
+			}
+			int[] positions = new int[cursor.freq];
+			cursor.positions(positions);
+			if(candidates == null){
+				candidates = positions;
+				candidateCount = positions.length;
+				continue;
+			}
+			int kept = 0;
+			for(int i = 0, j = 0; i < candidateCount && j < positions.length; ){
+				if(candidates[i] < positions[j])
+					i++;
+				else if(candidates[i] > positions[j])
+					j++;
+				else{
+					candidates[kept++] = candidates[i];
+					i++;
+					j++;
+				}
+			}
+			candidateCount = kept;
+			if(candidateCount == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** Zwraca numer pierwszego dokumentu z czasem nie mniejszym niz podany. */
+	private int lowerTime(long time){
+
+		int low = 0, high = docs;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(times[mid] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/** Zwraca numer pierwszego dokumentu o identyfikatorze nie mniejszym niz podany. */
+	private int lowerId(long id){
+
+		int low = 0, high = docs;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(ids[mid] < id)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/** Konczy prace watku indeksujacego po zaindeksowaniu oczekujacych wiadomosci.
+	 * @param timeoutMillis Maksymalny czas oczekiwania na watek.
+	 */
+	void close(long timeoutMillis){
+
+		if(closed)
+			return;
+		closed = true;
+		try {
+			long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+			while(!queue.offer(STOP) && System.nanoTime() < deadline)
+				Thread.sleep(1);
+			stopped.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Zwraca liczbe zaindeksowanych wiadomosci.
+	 * @return Liczba dokumentow.
+	 */
+	synchronized int getDocumentCount(){
+		return docs;
+	}
+
+	/** Zwraca liczbe roznych terminow, lacznie z nadawcami.
+	 * @return Rozmiar slownika.
+	 */
+	synchronized int getTermCount(){
+		return terms.size();
+	}
+
+	/** Zwraca rozmiar zakodowanych list wystapien.
+	 * @return Liczba bajtow.
+	 */
+	synchronized long getBytes(){
+		return bytes;
+	}
+
+	/** Zwraca liczbe wiadomosci pominietych, bo kolejka indeksowania byla pelna.
+	 * @return Liczba pominietych wiadomosci.
+	 */
+	long getDropped(){
+		return dropped.sum();
+	}
+
+	int getQueueDepth(){
+		return queue.size();
+	}
+}
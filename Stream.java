@@ -0,0 +1,189 @@
+/**
+ * Strumien logiczny polaczenia - osobna kolejka jednego rodzaju ruchu. Writer polaczenia wybiera
+ * strumienie tak, by zaden rodzaj ruchu nie blokowal pozostalych (zob. Connection.select()):
+ * <ul>
+ * <li>CONTROL - ramki kontrolne, zawsze wysylane jako pierwsze,</li>
+ * <li>INTERACTIVE - krotkie wiadomosci czatu,</li>
+ * <li>BULK - duze wiadomosci, dzielone na fragmenty FRAGMENT_SIZE bajtow (flagi Frame.FRAGMENT i Frame.MORE),</li>
+ * <li>FILES - kawalki przesylanych plikow; strumien nie ma kolejki, dane pochodza z FileTransfer.</li>
+ * </ul>
+ * Strumienie INTERACTIVE, BULK i FILES dziela lacze wg wag algorytmem deficit round robin: w kazdej
+ * rundzie strumien moze wyslac okolo waga * QUANTUM bajtow.
+ * <p>
+ * Stan harmonogramu i ramka w trakcie wysylania dostepne sa tylko z watku petli; kolejka i liczniki -
+ * z dowolnego watku.
+ * @author Kuba Jalowiec
+ */
+final class Stream{
+
+	static final int CONTROL = 0;
+	static final int INTERACTIVE = 1;
+	static final int BULK = 2;
+	static final int FILES = 3;
+
+	/** Liczba strumieni polaczenia. */
+	static final int COUNT = 4;
+
+	/** Nazwy strumieni w metrykach. */
+	static final String[] NAMES = { "control", "interactive", "bulk", "files" };
+
+	/** Przydzial bajtow na jednostke wagi w jednej rundzie. */
+	static final int QUANTUM = 16 * 1024;
+
+	/** Maksymalny rozmiar fragmentu duzej wiadomosci - ramka miesci sie w buforze odczytu odbiorcy. */
+	static final int FRAGMENT_SIZE = 16 * 1024 - Frame.HEADER_SIZE;
+
+	private final int id;
+
+	/** Kolejka ramek lub null dla FILES. */
+	private final RingBuffer<Frame> queue;
+
+	private final int weight;
+
+	/** Ramka pobrana z kolejki, ktorej wysylanie sie zaczelo lub ktora nie zmiescila sie w poprzednim wsadzie. */
+	private Frame current;
+
+	/** Liczba bajtow danych biezacej ramki wyslanych juz we wczesniejszych fragmentach. */
+	private int fragmentOffset;
+
+	/** Niewykorzystany przydzial bajtow w biezacej rundzie; ujemny po przekroczeniu przydzialu. */
+	private int deficit;
+
+	/** Liczniki zapisywane tylko przez watek petli. */
+	private volatile long frames, bytes, waitNanos, maxWaitNanos;
+
+	/** Tworzy strumien.
+	 * @param _id Identyfikator strumienia (CONTROL ... FILES).
+	 * @param _queue Kolejka ramek lub null dla FILES.
+	 * @param _weight Waga strumienia w harmonogramie; ignorowana dla CONTROL.
+	 */
+	Stream(int _id, RingBuffer<Frame> _queue, int _weight){
+
+		id = _id;
+		queue = _queue;
+		weight = _weight;
+	}
+
+	int getId(){
+		return id;
+	}
+
+	String getName(){
+		return NAMES[id];
+	}
+
+	RingBuffer<Frame> getQueue(){
+		return queue;
+	}
+
+	int getWeight(){
+		return weight;
+	}
+
+	/** Zwraca liczbe ramek czekajacych w strumieniu.
+	 * @return Liczba ramek w kolejce, razem z ramka w trakcie wysylania.
+	 */
+	int getDepth(){
+		return (queue == null ? 0 : queue.size()) + (current != null ? 1 : 0);
+	}
+
+	long getFrames(){
+		return frames;
+	}
+
+	long getBytes(){
+		return bytes;
+	}
+
+	/** Zwraca sredni czas oczekiwania ramki od utworzenia do rozpoczecia wysylania.
+	 * @return Czas w nanosekundach.
+	 */
+	long getMeanWait(){
+
+		long n = frames;
+		return n == 0 ? 0 : waitNanos / n;
+	}
+
+	long getMaxWait(){
+		return maxWaitNanos;
+	}
+
+	/** Zwraca ramke, ktorej dane sa nastepne do wyslania, pobierajac ja z kolejki w razie potrzeby.
+	 *  Ramka pozostaje w strumieniu do advance() konczacego jej wysylanie.
+	 * @return Ramka lub null jesli strumien jest pusty.
+	 */
+	Frame peek(){
+
+		if(current == null && queue != null)
+			current = queue.poll();
+		return current;
+	}
+
+	/** Sprawdza, czy w kolejce strumienia sa ramki.
+	 * @return true jesli jest ramka do wyslania.
+	 */
+	boolean hasFrames(){
+		return current != null || (queue != null && !queue.isEmpty());
+	}
+
+	int getFragmentOffset(){
+		return fragmentOffset;
+	}
+
+	/** Zapisuje wyslanie danych biezacej ramki.
+	 * @param length Liczba bajtow danych ramki wyslanych w tym fragmencie.
+	 * @return true jesli wyslano juz cala ramke.
+	 */
+	boolean advance(int length){
+
+		fragmentOffset += length;
+		if(fragmentOffset < current.length())
+			return false;
+		current = null;
+		fragmentOffset = 0;
+		return true;
+	}
+
+	/** Zapisuje rozpoczecie wysylania ramki.
+	 * @param wait Czas od utworzenia ramki w nanosekundach.
+	 */
+	void started(long wait){
+
+		frames++;
+		waitNanos += wait;
+		if(wait > maxWaitNanos)
+			maxWaitNanos = wait;
+	}
+
+	/** Obciaza przydzial strumienia wyslanymi bajtami.
+	 * @param n Liczba bajtow na drodze, razem z naglowkiem.
+	 */
+	void charge(int n){
+
+		deficit -= n;
+		bytes += n;
+	}
+
+	/** Dodaje przydzial na kolejna runde. */
+	void refill(){
+		deficit += weight * QUANTUM;
+	}
+
+	boolean hasDeficit(){
+		return deficit > 0;
+	}
+
+	/** Zeruje przydzial pustego strumienia - bezczynny strumien nie gromadzi przydzialu na pozniej. */
+	void idle(){
+		deficit = 0;
+	}
+
+	/** Usuwa wszystkie ramki ze strumienia. Wywolywane w watku petli przy zamykaniu polaczenia. */
+	void clear(){
+
+		if(queue != null)
+			queue.clear();
+		current = null;
+		fragmentOffset = 0;
+	}
+}
@@ -0,0 +1,134 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Kolo czasowe (hashed wheel timer) dla zadan planowanych dla wielu polaczen naraz, np. bicia serca.
+ * Zadanie trafia do jednej z przegrodek kola wg chwili wykonania; tick(), wywolywany co tickMillis
+ * przez jedno zadanie petli wlasciciela, wykonuje zadania z biezacej przegrodki. Wstawienie i anulowanie
+ * kosztuja tyle samo niezaleznie od liczby zadan, a wszystkie polaczenia obsluguje jeden timer zamiast
+ * osobnego zadania petli dla kazdego z nich. Dokladnosc wykonania to jeden tick.
+ * <p>
+ * schedule() i Timeout.cancel() moga byc wywolywane z dowolnego watku; zadania wykonywane sa w watku
+ * wywolujacym tick() i powinny byc krotkie - zwykle przekazuja prace do petli swojego polaczenia.
+ * @author Kuba Jalowiec
+ */
+final class TimerWheel{
+
+	/** Zaplanowane zadanie. */
+	static final class Timeout{
+
+		private final Runnable task;
+		private final long deadline;
+
+		/** Liczba pelnych obrotow kola do wykonania. Dostepne tylko w watku tick(). */
+		private long rounds;
+
+		/** Sasiedzi w liscie przegrodki. Dostepne tylko w watku tick(). */
+		private Timeout prev, next;
+		private int slot;
+
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable _task, long _deadline){
+
+			task = _task;
+			deadline = _deadline;
+			slot = -1;
+		}
+
+		/** Anuluje zadanie. Zadanie juz wykonywane nie jest przerywane. */
+		void cancel(){
+			cancelled = true;
+		}
+	}
+
+	private final long tickNanos;
+	private final long start;
+
+	/** Poczatki list przegrodek. */
+	private final Timeout[] wheel;
+	private final int mask;
+
+	/** Zadania zaplanowane od ostatniego tick() - wstawiane do kola w watku tick(). */
+	private final Queue<Timeout> pending;
+
+	/** Numer nastepnego ticku do obsluzenia. */
+	private long tick;
+
+	/** Tworzy puste kolo.
+	 * @param tickMillis Odstep miedzy wywolaniami tick().
+	 * @param slots Liczba przegrodek - potega dwojki; jeden obrot kola to slots * tickMillis.
+	 */
+	TimerWheel(long tickMillis, int slots){
+
+		if(slots <= 0 || Integer.bitCount(slots) != 1)
+			throw new IllegalArgumentException("slots musi byc potega dwojki: " + slots);
+		tickNanos = tickMillis * 1000000L;
+		start = System.nanoTime();
+		wheel = new Timeout[slots];
+		mask = slots - 1;
+		pending = new ConcurrentLinkedQueue<Timeout>();
+	}
+
+	/** Planuje wykonanie zadania. Moze byc wywolywane z dowolnego watku.
+	 * @param task Zadanie - wykonywane w watku tick().
+	 * @param delayMillis Opoznienie w milisekundach.
+	 * @return Uchwyt do anulowania zadania.
+	 */
+	Timeout schedule(Runnable task, long delayMillis){
+
+		Timeout timeout = new Timeout(task, System.nanoTime() + delayMillis * 1000000L);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/** Wykonuje zadania, ktorych czas nadszedl - ze wszystkich tickow, ktore uplynely od poprzedniego wywolania. */
+	void tick(){
+
+		long now = (System.nanoTime() - start) / tickNanos;
+		Timeout timeout;
+		while((timeout = pending.poll()) != null){
+			if(timeout.cancelled)
+				continue;
+			long due = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos);
+			timeout.rounds = (due - tick) / wheel.length;
+			link(timeout, (int) (due & mask));
+		}
+		for(; tick <= now; tick++){
+			Timeout next;
+			for(timeout = wheel[(int) (tick & mask)]; timeout != null; timeout = next){
+				next = timeout.next;
+				if(timeout.cancelled)
+					unlink(timeout);
+				else if(timeout.rounds == 0){
+					unlink(timeout);
+					timeout.task.run();
+				}
+				else
+					timeout.rounds--;
+			}
+		}
+	}
+
+	private void link(Timeout timeout, int slot){
+
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = wheel[slot];
+		if(wheel[slot] != null)
+			wheel[slot].prev = timeout;
+		wheel[slot] = timeout;
+	}
+
+	private void unlink(Timeout timeout){
+
+		if(timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			wheel[timeout.slot] = timeout.next;
+		if(timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = timeout.next = null;
+		timeout.slot = -1;
+	}
+}
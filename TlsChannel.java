@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Szyfrowanie TLS nieblokujacego kanalu polaczenia (SSLEngine). Connection czyta i pisze przez read() i write()
+ * zamiast wprost przez kanal; rekordy TLS skladane sa w trzech buforach z puli Modelu (zob.
+ * Model.getTlsBufferPool()), trzymanych przez caly czas zycia polaczenia - szyfrowanie nie tworzy obiektow
+ * na wiadomosc. Odszyfrowane dane trafiaja wprost do bufora odczytu polaczenia, jesli jest w nim miejsce
+ * na caly rekord, a w przeciwnym razie do bufora posredniego.
+ * <p>
+ * Uzgadnianie prowadzone jest w watku petli przy okazji odczytu i zapisu - zadania SSLEngine (sprawdzenie
+ * certyfikatu, podpis) wykonywane sa w miejscu. Strona laczaca sie tworzy SSLEngine z adresem i portem peer'a,
+ * wiec ponowne polaczenie z tym samym wezlem wznawia sesje z pamieci podrecznej kontekstu (bilet sesji TLS 1.3)
+ * i pomija pelne uzgadnianie z wymiana certyfikatow. Obie strony wymagaja certyfikatu peer'a.
+ * Wszystkie metody wywolywane sa tylko w watku petli.
+ * @author Kuba Jalowiec
+ */
+class TlsChannel{
+
+	private static final ByteBuffer[] NO_DATA = new ByteBuffer[]{ ByteBuffer.allocate(0) };
+
+	private final Model model;
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+
+	/** Adres peer'a - do komunikatow w logu. */
+	private final String peer;
+
+	/** Rekordy odebrane z kanalu (tryb zapisu), odszyfrowane dane, ktore nie zmiescily sie w buforze
+	 *  polaczenia (tryb odczytu), i zaszyfrowane rekordy czekajace na zapis (tryb odczytu). */
+	private ByteBuffer netIn, appIn, netOut;
+
+	/** Rozmiar najwiekszego odszyfrowanego rekordu. */
+	private final int applicationSize;
+
+	/** Czas rozpoczecia uzgadniania: System.nanoTime() i zegar - sesja wznowiona ma wczesniejszy czas utworzenia. */
+	private final long started, startedMillis;
+
+	/** Ustawiona po zakonczeniu uzgadniania. */
+	private boolean established;
+
+	/** Ustawiona, gdy w netIn nie ma calego rekordu i trzeba czytac z kanalu. */
+	private boolean underflow;
+
+	/** Ustawiana, gdy odczyt wymaga zapisu: odpowiedzi w uzgadnianiu lub wyslania wiadomosci czekajacych
+	 *  na jego zakonczenie. */
+	private boolean wantsWrite;
+
+	/** Tworzy szyfrowanie kanalu i rozpoczyna uzgadnianie.
+	 * @param _model Model - zrodlo kontekstu TLS, puli buforow i metryk.
+	 * @param _channel Polaczony kanal.
+	 * @param context Kontekst TLS.
+	 * @param client true dla polaczenia wychodzacego.
+	 * @param remote Adres i port peer'a - klucz sesji do wznowienia.
+	 * @throws IOException Jesli nie udalo sie rozpoczac uzgadniania.
+	 */
+	TlsChannel(Model _model, SocketChannel _channel, SSLContext context, boolean client, InetSocketAddress remote) throws IOException{
+
+		model = _model;
+		channel = _channel;
+		peer = remote.toString();
+		engine = client ? context.createSSLEngine(remote.getAddress().getHostAddress(), remote.getPort()) : context.createSSLEngine();
+		engine.setUseClientMode(client);
+		if(!client)
+			engine.setNeedClientAuth(true);
+		SSLSession session = engine.getSession();
+		applicationSize = session.getApplicationBufferSize();
+		BufferPool pool = model.getTlsBufferPool();
+		if(pool.getBufferSize() < Math.max(applicationSize, session.getPacketBufferSize()))
+			throw new SSLException("Za maly bufor TLS: " + pool.getBufferSize());
+		netIn = pool.acquire();
+		appIn = pool.acquire();
+		appIn.limit(0);
+		netOut = pool.acquire();
+		netOut.limit(0);
+		underflow = true;
+		started = System.nanoTime();
+		startedMillis = System.currentTimeMillis();
+		engine.beginHandshake();
+	}
+
+	/** Sprawdza, czy uzgadnianie zostalo zakonczone i mozna wysylac wiadomosci.
+	 * @return true po zakonczeniu uzgadniania.
+	 */
+	boolean isEstablished(){
+		return established;
+	}
+
+	/** Zwraca i kasuje informacje, ze ostatni odczyt wymaga wlaczenia zapisu.
+	 * @return true jesli trzeba wlaczyc OP_WRITE.
+	 */
+	boolean takeWantsWrite(){
+
+		boolean wants = wantsWrite;
+		wantsWrite = false;
+		return wants;
+	}
+
+	/** Sprawdza, czy w buforach zostaly dane, ktore mozna odszyfrowac bez czytania z kanalu. Po odpowiedzi
+	 *  w uzgadnianiu moga to byc rekordy odebrane razem z poprzednim komunikatem peer'a.
+	 * @return true jesli nalezy wywolac read() ponownie.
+	 */
+	boolean hasBufferedInput(){
+		return appIn.hasRemaining() || !underflow && netIn.position() > 0
+			&& engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP;
+	}
+
+	/** Czyta z kanalu i odszyfrowuje tyle, ile zmiesci sie w buforze. Prowadzi uzgadnianie.
+	 * @param dst Bufor docelowy.
+	 * @return Liczba odszyfrowanych bajtow lub -1 jesli peer zamknal polaczenie.
+	 * @throws IOException Przy bledzie kanalu lub protokolu TLS.
+	 */
+	int read(ByteBuffer dst) throws IOException{
+
+		int n = transfer(appIn, dst);
+		while(dst.hasRemaining() && !appIn.hasRemaining()){
+			if(underflow){
+				int read = channel.read(netIn);
+				if(read < 0)
+					return n > 0 ? n : -1;
+				if(read == 0)
+					return n;
+				underflow = false;
+			}
+			SSLEngineResult result;
+			netIn.flip();
+			if(dst.remaining() >= applicationSize){
+				result = engine.unwrap(netIn, dst);
+				n += result.bytesProduced();
+			}
+			else{
+				appIn.clear();
+				result = engine.unwrap(netIn, appIn);
+				appIn.flip();
+				n += transfer(appIn, dst);
+			}
+			netIn.compact();
+			switch(result.getStatus()){
+			case CLOSED:
+				return n > 0 ? n : -1;
+			case BUFFER_OVERFLOW:
+				throw new SSLException("Przepelniony bufor odczytu TLS.");
+			case BUFFER_UNDERFLOW:
+				underflow = true;
+				continue;
+			default:
+			}
+			if(!handshake(result.getHandshakeStatus()))
+				break;
+		}
+		return n;
+	}
+
+	/** Szyfruje i zapisuje do kanalu dane z bufora zbierajacego. Przed zakonczeniem uzgadniania nic nie wysyla.
+	 * @param srcs Bufory z danymi.
+	 * @param offset Pierwszy bufor.
+	 * @param length Liczba buforow.
+	 * @return Liczba zaszyfrowanych bajtow danych; moga czekac w buforze na zapis (zob. flush()).
+	 * @throws IOException Przy bledzie kanalu lub protokolu TLS.
+	 */
+	long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+
+		long consumed = 0;
+		while(established && flush()){
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+			netOut.flip();
+			if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+				throw new SSLException("Sesja TLS zamknieta.");
+			if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+				throw new SSLException("Przepelniony bufor zapisu TLS.");
+			consumed += result.bytesConsumed();
+			if(result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+				break;
+			handshake(result.getHandshakeStatus());
+			if(result.bytesConsumed() == 0)
+				continue;
+			boolean more = false;
+			for(int i = offset; i < offset + length && !more; i++)
+				more = srcs[i].hasRemaining();
+			if(!more)
+				break;
+		}
+		flush();
+		return consumed;
+	}
+
+	/** Zapisuje zaszyfrowane rekordy czekajace w buforze i prowadzi uzgadnianie po stronie zapisu. Komunikaty
+	 *  uzgadniania jednej tury skladane sa w buforze i wysylane jednym zapisem.
+	 * @return true jesli nic nie czeka na zapis - mozna wylaczyc OP_WRITE.
+	 * @throws IOException Przy bledzie kanalu lub protokolu TLS.
+	 */
+	boolean flush() throws IOException{
+
+		while(true){
+			while(engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP){
+				netOut.compact();
+				SSLEngineResult result = engine.wrap(NO_DATA, netOut);
+				netOut.flip();
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW
+						|| result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0)
+					break;
+				handshake(result.getHandshakeStatus());
+			}
+			if(!netOut.hasRemaining())
+				return true;
+			while(netOut.hasRemaining())
+				if(channel.write(netOut) == 0)
+					return false;
+		}
+	}
+
+	/** Obsluguje stan uzgadniania po wywolaniu SSLEngine.
+	 * @param status Stan z wyniku wrap() lub unwrap().
+	 * @return true jesli mozna dalej odszyfrowywac.
+	 */
+	private boolean handshake(SSLEngineResult.HandshakeStatus status){
+
+		while(status == SSLEngineResult.HandshakeStatus.NEED_TASK){
+			Runnable task;
+			while((task = engine.getDelegatedTask()) != null)
+				task.run();
+			status = engine.getHandshakeStatus();
+		}
+		switch(status){
+		case FINISHED:
+			if(!established){
+				established = true;
+				SSLSession session = engine.getSession();
+				boolean resumed = session.getCreationTime() < startedMillis;
+				model.getMetricsRegistry().handshake(System.nanoTime() - started, resumed);
+				model.updateLog("Szyfrowane polaczenie z " + peer + ": " + session.getProtocol() + ", " + session.getCipherSuite()
+					+ (resumed ? ", sesja wznowiona." : "."));
+			}
+			wantsWrite = true;
+			return true;
+		case NEED_WRAP:
+			wantsWrite = true;
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/** Przenosi dane z bufora posredniego.
+	 * @return Liczba przeniesionych bajtow.
+	 */
+	private static int transfer(ByteBuffer from, ByteBuffer to){
+
+		int n = Math.min(from.remaining(), to.remaining());
+		if(n > 0){
+			to.put(to.position(), from, from.position(), n);
+			to.position(to.position() + n);
+			from.position(from.position() + n);
+		}
+		return n;
+	}
+
+	/** Zwraca uzgodniona sesje.
+	 * @return Sesja TLS - wersja protokolu, szyfr i certyfikat peer'a.
+	 */
+	SSLSession getSession(){
+		return engine.getSession();
+	}
+
+	/** Wysyla close_notify, nie oddajac buforow - odczyt trwa, az peer zamknie sesje po swojej stronie.
+	 * @return true jesli close_notify zostal zapisany do kanalu; w przeciwnym razie trzeba wywolac ponownie
+	 *  po wlaczeniu OP_WRITE.
+	 * @throws IOException Przy bledzie kanalu.
+	 */
+	boolean closeOutbound() throws IOException{
+
+		engine.closeOutbound();
+		return flush();
+	}
+
+	/** Wysyla bez czekania close_notify i oddaje bufory do puli. */
+	void close(){
+
+		engine.closeOutbound();
+		try {
+			flush();
+		} catch (IOException e) {
+			// peer i tak zostanie rozlaczony
+		}
+		BufferPool pool = model.getTlsBufferPool();
+		pool.release(netIn);
+		pool.release(appIn);
+		pool.release(netOut);
+		netIn = appIn = netOut = null;
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Wiadro zetonow: zetony przybywaja ze stala predkoscia, az do pojemnosci wiadra. Ogranicza srednia
+ * predkosc do rate na sekunde, pozwalajac na chwilowe serie do burst. Zetony doliczane sa leniwie
+ * przy kazdym pobraniu, wiec wiadro nie potrzebuje zegara ani watku.
+ * Nie jest bezpieczne dla wielu watkow - kazde polaczenie ma wlasne wiadro, uzywane w watku petli.
+ * @author Kuba Jalowiec
+ */
+final class TokenBucket{
+
+	private final double perNano;
+	private final int burst;
+
+	/** Dostepne zetony i czas (System.nanoTime()) ostatniego doliczenia. */
+	private double tokens;
+	private long refilled;
+
+	/** Tworzy pelne wiadro.
+	 * @param rate Liczba zetonow na sekunde.
+	 * @param _burst Pojemnosc wiadra.
+	 */
+	TokenBucket(double rate, int _burst){
+
+		if(rate <= 0 || _burst < 1)
+			throw new IllegalArgumentException("rate <= 0 lub burst < 1");
+		perNano = rate / 1e9;
+		burst = _burst;
+		tokens = burst;
+		refilled = System.nanoTime();
+	}
+
+	/** Pobiera najwyzej n zetonow.
+	 * @param n Liczba potrzebnych zetonow.
+	 * @return Liczba pobranych zetonow, od 0 do n.
+	 */
+	int take(int n){
+
+		refill();
+		int taken = (int) Math.min(n, Math.floor(tokens));
+		tokens -= taken;
+		return taken;
+	}
+
+	/** Zwraca czas, po ktorym w wiadrze bedzie n zetonow (najwyzej pojemnosc).
+	 * @param n Liczba zetonow.
+	 * @return Czas w milisekundach, co najmniej 1.
+	 */
+	long millisUntil(int n){
+
+		refill();
+		double missing = Math.min(n, burst) - tokens;
+		return Math.max(1, (long) Math.ceil(missing / perNano / 1e6));
+	}
+
+	private void refill(){
+
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilled) * perNano);
+		refilled = now;
+	}
+}
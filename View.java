@@ -1,5 +1,6 @@
 import javax.swing.*;
 import java.awt.*;
+import java.util.List;
 
 /**
  * Komponent View wzorca MVC aplikacji.
@@ -10,15 +11,29 @@ import java.awt.*;
  */
 public class View{
 
-	private JTextArea inputTextField, outputTextField, logTextField;
+	/** Maksymalna liczba wiadomosci przechowywanych w oknie rozmowy. Starsze wiadomosci wczytywane sa
+	 *  z historii Modelu przy przewijaniu. */
+	private static final int HISTORY_SIZE = 2000;
+
+	/** Maksymalna liczba linii wyswietlanych w polu logu. */
+	private static final int LOG_LINES = 1000;
+
+	private JTextArea inputTextField, logTextField;
+	private JTextField searchTextField;
+	private JList<Message> outputList;
+	private MessageListModel outputModel;
+	private JScrollPane outputScrollPane;
 	private JSplitPane downUp, upLeftRight, downLeftRight;
 	private JPanel upLeft, upRight, downLeft, downRight;
 	private JMenuBar menuBar;
 	private JFrame frame;
 	private JMenu listenerMenu, menu;
-	private JMenuItem startListeningButton, stopListeningButton, connectButton, disconnectButton;
+	private JMenuItem startListeningButton, stopListeningButton, connectButton, disconnectButton, sendFileButton;
 	private JButton applyButton;
 
+	/** Czy lista pokazuje wyniki wyszukiwania zamiast rozmowy. Dostepne tylko w watku EDT. */
+	private boolean searching;
+
 	/** 
 	 * Tworzy kompletny interfejs graficzny.
 	 */
@@ -42,9 +57,12 @@ public class View{
 					connectButton.setEnabled(true);
 					disconnectButton = new JMenuItem("Rozlacz");
 					disconnectButton.setEnabled(false);
+					sendFileButton = new JMenuItem("Wyslij plik");
+					sendFileButton.setEnabled(false);
 	
 					menu.add(connectButton);
 					menu.add(disconnectButton);
+					menu.add(sendFileButton);
 					
 					menu.add(listenerMenu);
 					listenerMenu.add(startListeningButton);
@@ -56,8 +74,10 @@ public class View{
 				
 					inputTextField = new JTextArea();
 					inputTextField.setLineWrap(true);
-					outputTextField = new JTextArea();
-					outputTextField.setLineWrap(true);
+					outputModel = new MessageListModel(HISTORY_SIZE);
+					outputList = new JList<Message>(outputModel);
+					outputList.setCellRenderer(new MessageCellRenderer(outputModel));
+					outputList.setFixedCellHeight(outputList.getFontMetrics(outputList.getFont()).getHeight() + 2);
 					logTextField = new JTextArea();
 					logTextField.setLineWrap(true);
 					
@@ -65,8 +85,14 @@ public class View{
 					upRight = new JPanel(new BorderLayout());
 					downLeft = new JPanel(new BorderLayout());
 					downRight = new JPanel(new FlowLayout());
-					upRight.add(outputTextField);
-					outputTextField.setEditable(false);
+					outputScrollPane = new JScrollPane(outputList);
+					upRight.add(outputScrollPane);
+					searchTextField = new JTextField();
+					searchTextField.setToolTipText("Szukaj w historii (Enter); frazy w cudzyslowie, puste pole wraca do rozmowy");
+					JPanel searchPanel = new JPanel(new BorderLayout());
+					searchPanel.add(new JLabel("Szukaj: "), BorderLayout.WEST);
+					searchPanel.add(searchTextField);
+					upRight.add(searchPanel, BorderLayout.NORTH);
 					
 					downLeft.add(inputTextField);
 					applyButton = new JButton("Wyslij");
@@ -101,14 +127,117 @@ public class View{
 	}
 
 	/** 
-	 * Wyswietlenie wiadomosci w View.
-	 * @param msg Wiadomosc do wyswietlenia w widoku.
+	 * Wyswietlenie paczki wiadomosci w View. Lista przewijana jest do nowych wiadomosci tylko wtedy,
+	 * gdy byla przewinieta do konca. W czasie wyswietlania wynikow wyszukiwania nowe wiadomosci sa pomijane -
+	 * po powrocie do rozmowy wczytywane sa z historii. Musi byc wywolane w watku EDT.
+	 * @param batch Wiadomosci do wyswietlenia w widoku.
+	 * @param count Liczba wiadomosci z poczatku batch do wyswietlenia.
+	 */
+	public void printReceivedMessages(Message[] batch, int count){
+		
+		if(searching)
+			return;
+		boolean atEnd = isScrolledToEnd();
+		outputModel.addAll(batch, count);
+		if(atEnd)
+			outputList.ensureIndexIsVisible(outputModel.getSize() - 1);
+	}
+
+	/** 
+	 * Wyswietla starsze wiadomosci z historii nad obecnymi, nie zmieniajac widocznego fragmentu listy.
+	 * Musi byc wywolane w watku EDT.
+	 * @param older Wiadomosci poprzedzajace pierwsza wyswietlana wiadomosc, od najstarszej.
+	 */
+	public void prependMessages(List<Message> older){
+		
+		int added = outputModel.prependAll(older);
+		if(added == 0)
+			return;
+		JScrollBar bar = outputScrollPane.getVerticalScrollBar();
+		int value = bar.getValue();
+		outputScrollPane.validate();
+		bar.setValue(value + added * outputList.getFixedCellHeight());
+	}
+
+	/** 
+	 * Zastepuje wyswietlane wiadomosci podanymi i przewija liste do konca. Musi byc wywolane w watku EDT.
+	 * @param newest Najnowsze wiadomosci z historii, od najstarszej.
+	 */
+	public void resetMessages(List<Message> newest){
+		
+		outputModel.reset(newest);
+		if(outputModel.getSize() > 0)
+			outputList.ensureIndexIsVisible(outputModel.getSize() - 1);
+	}
+
+	/** 
+	 * Przelacza liste miedzy wynikami wyszukiwania a rozmowa. Musi byc wywolane w watku EDT.
+	 * @param _searching true jesli lista bedzie pokazywac wyniki wyszukiwania.
+	 */
+	public void setSearching(boolean _searching){
+		searching = _searching;
+	}
+
+	/** 
+	 * Sprawdza, czy lista pokazuje wyniki wyszukiwania.
+	 * @return true w czasie wyswietlania wynikow wyszukiwania.
+	 */
+	public boolean isSearching(){
+		return searching;
+	}
+
+	/** 
+	 * Sprawdza, czy lista wiadomosci jest przewinieta do konca.
+	 * @return true jesli widoczny jest ostatni wiersz.
 	 */
-	public void printReceivedMessage(String msg){
+	public boolean isScrolledToEnd(){
 		
-		outputTextField.append(msg);
+		JScrollBar bar = outputScrollPane.getVerticalScrollBar();
+		return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - outputList.getFixedCellHeight();
+	}
+
+	/** 
+	 * Zwraca identyfikator pierwszej wyswietlanej wiadomosci - poczatek kolejnej strony historii.
+	 * @return Identyfikator lub Long.MAX_VALUE jesli lista jest pusta.
+	 */
+	public long getFirstMessageId(){
+		return outputModel.getFirstId();
+	}
+
+	/** 
+	 * Sprawdza, czy przy wczytywaniu historii usunieto z listy najnowsze wiadomosci.
+	 * @return true jesli najnowsze wiadomosci trzeba wczytac ponownie przez resetMessages().
+	 */
+	public boolean isNewestDropped(){
+		return outputModel.isTailDropped();
+	}
+
+	/** 
+	 * Zwraca pasek przewijania listy wiadomosci.
+	 * @return Pionowy pasek przewijania.
+	 */
+	public JScrollBar getOutputScrollBar(){
+		return outputScrollPane.getVerticalScrollBar();
 	}
 	
+	/** 
+	 * Dopisuje wpis na koniec logu, usuwajac najstarsze linie ponad LOG_LINES.
+	 * Musi byc wywolane w watku EDT.
+	 * @param entry Wpis logu zakonczony znakiem nowej linii.
+	 */
+	public void appendLog(String entry){
+		
+		logTextField.append(entry);
+		int excess = logTextField.getLineCount() - 1 - LOG_LINES;
+		if(excess > 0){
+			try {
+				logTextField.replaceRange(null, 0, logTextField.getLineEndOffset(excess - 1));
+			} catch (javax.swing.text.BadLocationException e) {
+				logTextField.setText(entry);
+			}
+		}
+	}
+
 	/** 
 	 * Zwraca referencje na glowna ramke programu.
 	 * @return Glowna ramka programu.
@@ -133,6 +262,14 @@ public class View{
 		return inputTextField;
 	}
 
+	/** 
+	 * Zwraca referencje na pole tekstowe wyszukiwania w historii.
+	 * @return Pole wyszukiwania.
+	 */
+	public JTextField getSearchTextField(){
+		return searchTextField;
+	}
+
 	/** 
 	 * Zwraca element menu odpowiedzialny za rozlaczenia.
 	 * @return Przycisk rozlaczenia.
@@ -149,6 +286,14 @@ public class View{
 		return connectButton;
 	}
 
+	/** 
+	 * Zwraca element menu odpowiedzialny za wyslanie pliku.
+	 * @return Przycisk wyslania pliku.
+	 */
+	public JMenuItem getSendFileButton(){
+		return sendFileButton;
+	}
+
 	/** 
 	 * Zwraca element menu odpowiedzialny za rozpoczecie nasluchiwania na nadchodzce polaczenia.
 	 * @return Przycisk rozpoczecia nasluchiwania.
@@ -0,0 +1,118 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Nawiazywanie i zamykanie polaczen na loopback'u. Klient laczy sie z hub'em, wysyla kilka wiadomosci,
+ * zamyka polaczenie z oproznieniem kolejek (Model.closeConnection(peer)) i czeka na zamkniecie po obu
+ * stronach - przez duration sekund. Mierzy liczbe polaczen na sekunde, czas zamykania i liczbe watkow.
+ * Konczy sie kodem 1, jesli liczba watkow wzrosla, jakas wiadomosc nie dotarla lub zostala sesja.
+ * <pre>
+ * java -cp out ChurnBenchmark duration=10 messages=10
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class ChurnBenchmark{
+
+	/** Przerwa w oczekiwaniu - aktywne czekanie zabieraloby procesor petlom zdarzen. */
+	private static final long PARK_NANOS = 20000;
+
+	private final long durationSeconds;
+	private final int messages;
+
+	private ChurnBenchmark(Map<String, String> options){
+
+		durationSeconds = Long.parseLong(option(options, "duration", "10"));
+		messages = Integer.parseInt(option(options, "messages", "10"));
+	}
+
+	/**
+	 * Uruchamia pomiar.
+	 * @param args Opcje w postaci klucz=wartosc: duration (s), messages (na polaczenie).
+	 */
+	public static void main(String[] args) throws Exception {
+
+		Map<String, String> options = new HashMap<String, String>();
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0){
+				System.err.println("Bledny argument: " + arg);
+				System.exit(2);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		System.exit(new ChurnBenchmark(options).run() ? 0 : 1);
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue){
+
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private boolean run() throws Exception {
+
+		Model hub = new Model(1);
+		hub.setSessionLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		hub.listen(0, Model.BACKLOG);
+		Model client = new Model(1);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		// pierwsze polaczenie uruchamia watki petli i executora
+		cycle(client, hub, new Histogram());
+		int threadsBefore = threads.getThreadCount();
+		int peakThreads = threadsBefore;
+		Histogram closing = new Histogram();
+		long start = System.nanoTime();
+		long end = start + durationSeconds * 1000000000L;
+		int cycles = 0, lost = 0;
+		while(System.nanoTime() < end){
+			lost += cycle(client, hub, closing);
+			cycles++;
+			peakThreads = Math.max(peakThreads, threads.getThreadCount());
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int threadsAfter = threads.getThreadCount();
+		SortedMap<String, Long> metrics = client.getMetrics();
+		System.out.printf("polaczen: %d (%.0f/s), zgubione wiadomosci: %d%n", cycles, cycles / seconds, lost);
+		System.out.println("zamykanie [us]: " + closing.summary(1000));
+		System.out.printf("watki: przed=%d po=%d maks.=%d, oproznione=%d po terminie=%d, sesje: klient=%d hub=%d%n",
+			threadsBefore, threadsAfter, peakThreads, metrics.get("connections.drained"),
+			metrics.get("connections.drainExpired"), client.getSessionCount(), hub.getSessionCount());
+		boolean ok = peakThreads <= threadsBefore && lost == 0 && client.getSessionCount() == 0 && hub.getSessionCount() == 0;
+		client.shutdown(1000);
+		hub.shutdown(1000);
+		System.out.println(ok ? "OK" : "BLAD");
+		return ok;
+	}
+
+	/** Jedno polaczenie: nawiazanie, wiadomosci, zamkniecie z oproznieniem kolejek.
+	 * @param histogram Histogram czasu od closeConnection() do zamkniecia po stronie klienta.
+	 * @return Liczba wiadomosci, ktore nie dotarly do hub'a.
+	 */
+	private int cycle(Model client, Model hub, Histogram histogram) throws Exception {
+
+		client.dial(InetAddress.getLoopbackAddress(), hub.getListenPort());
+		List<String> sessions;
+		while((sessions = client.getSessions()).isEmpty())
+			LockSupport.parkNanos(PARK_NANOS);
+		String peer = sessions.get(0);
+		for(int i = 0; i < messages; i++)
+			client.sendMessage(peer, "m" + i);
+		long started = System.nanoTime();
+		client.closeConnection(peer).get(Model.DRAIN_MILLIS * 2, TimeUnit.MILLISECONDS);
+		histogram.record(System.nanoTime() - started);
+		while(hub.getSessionCount() > 0)
+			LockSupport.parkNanos(PARK_NANOS);
+		int received = 0;
+		while(client.pollMessage() != null);
+		while(hub.pollMessage() != null)
+			received++;
+		return messages - received;
+	}
+}
@@ -0,0 +1,222 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator obciazenia i test dlugotrwaly (soak) dzialajacy bez interfejsu graficznego.
+ * Tworzy Model-hub nasluchujacy na loopback'u oraz Model z N sesjami do hub'a, wysyla wiadomosci
+ * o zadanym rozmiarze z zadana laczna czestotliwoscia i mierzy opoznienie dostarczenia do kolejki
+ * widoku hub'a. Co interval sekund wypisuje przepustowosc, histogram opoznien, zajetosc kolejek,
+ * liczbe watkow i zajetosc sterty. Na koniec sprawdza progi i konczy sie kodem 1, jesli ktorys
+ * zostal przekroczony.
+ * <pre>
+ * java -cp out LoadGenerator peers=100 rate=10000 size=200 duration=3600 interval=10 maxP99Micros=5000
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class LoadGenerator{
+
+	private final int peers;
+	private final int rate;
+	private final int size;
+	private final long durationSeconds;
+	private final long intervalSeconds;
+	private final long maxP99Micros;
+	private final long maxP999Micros;
+	private final double minDeliveryRatio;
+	private final long maxHeapMegabytes;
+
+	private final AtomicLong sent;
+	private final AtomicLong received;
+	private final Histogram interval;
+	private final Histogram total;
+
+	private LoadGenerator(Map<String, String> options){
+
+		peers = Integer.parseInt(option(options, "peers", "10"));
+		rate = Integer.parseInt(option(options, "rate", "1000"));
+		size = Integer.parseInt(option(options, "size", "100"));
+		durationSeconds = Long.parseLong(option(options, "duration", "60"));
+		intervalSeconds = Long.parseLong(option(options, "interval", "10"));
+		maxP99Micros = Long.parseLong(option(options, "maxP99Micros", "0"));
+		maxP999Micros = Long.parseLong(option(options, "maxP999Micros", "0"));
+		minDeliveryRatio = Double.parseDouble(option(options, "minDeliveryRatio", "0.99"));
+		maxHeapMegabytes = Long.parseLong(option(options, "maxHeapMB", "0"));
+		sent = new AtomicLong();
+		received = new AtomicLong();
+		interval = new Histogram();
+		total = new Histogram();
+	}
+
+	/**
+	 * Uruchamia test.
+	 * @param args Opcje w postaci klucz=wartosc: peers, rate (wiad/s lacznie), size (bajty), duration (s),
+	 * interval (s), maxP99Micros, maxP999Micros, minDeliveryRatio, maxHeapMB. Prog 0 oznacza brak sprawdzania.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		Map<String, String> options = new HashMap<String, String>();
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0){
+				System.err.println("Bledny argument: " + arg);
+				System.exit(2);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		System.exit(new LoadGenerator(options).run() ? 0 : 1);
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue){
+
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private boolean run() throws Exception {
+
+		final Model hub = new Model();
+		hub.setSessionLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		hub.listen(0, Math.max(Model.BACKLOG, peers));
+		final Model clients = new Model();
+		clients.setSessionLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		for(int i = 0; i < peers; i++)
+			clients.newConnection(InetAddress.getLoopbackAddress(), hub.getListenPort());
+		while(hub.getSessionCount() < peers)
+			Thread.sleep(1);
+		System.out.printf("start: peers=%d rate=%d/s size=%dB duration=%ds%n", peers, rate, size, durationSeconds);
+
+		Thread receiver = new Thread(new Runnable(){
+			public void run(){
+				try {
+					while(true){
+						Message msg = hub.getNextMessage();
+						long latency = System.nanoTime() - parseTimestamp(msg.getPayload());
+						interval.record(latency);
+						total.record(latency);
+						received.incrementAndGet();
+					}
+				} catch (InterruptedException e) {
+					//koniec testu
+				}
+			}
+		}, "load-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		Thread sender = newSender(clients);
+		sender.start();
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long start = System.nanoTime();
+		long end = start + durationSeconds * 1000000000L;
+		long lastSent = 0, lastReceived = 0, maxHeap = 0;
+		boolean ok = true;
+		while(System.nanoTime() < end){
+			Thread.sleep(Math.min(intervalSeconds * 1000, Math.max(1, (end - System.nanoTime()) / 1000000L)));
+			long s = sent.get(), r = received.get();
+			long heap = memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+			maxHeap = Math.max(maxHeap, heap);
+			int sendDepth = 0;
+			for(String peer : clients.getSessions()){
+				RingBuffer<Frame> queue = clients.getSendQueue(peer);
+				if(queue != null)
+					sendDepth += queue.size();
+			}
+			System.out.printf("%6ds wyslano=%d/s odebrano=%d/s opoznienie[us]: %s | kolejki: wysylanie=%d widok=%d porzucone=%d | watki=%d sterta=%dMB%n",
+				(System.nanoTime() - start) / 1000000000L, (s - lastSent) / intervalSeconds, (r - lastReceived) / intervalSeconds,
+				interval.summary(1000), sendDepth, hub.getViewQueue().size(), hub.getViewQueue().getDropped(),
+				threads.getThreadCount(), heap);
+			interval.reset();
+			lastSent = s;
+			lastReceived = r;
+		}
+		sender.interrupt();
+		sender.join();
+		Thread.sleep(1000);
+		receiver.interrupt();
+
+		long s = sent.get(), r = received.get();
+		double ratio = s == 0 ? 1 : (double) r / s;
+		System.out.println("razem opoznienie[us]: " + total.summary(1000));
+		System.out.printf("razem: wyslano=%d odebrano=%d (%.4f) sesje=%d/%d maks. sterta=%dMB wsady: %s%n",
+			s, r, ratio, hub.getSessionCount(), peers, maxHeap, clients.getBatchStats());
+		if(ratio < minDeliveryRatio){
+			System.out.printf("PROG: dostarczono %.4f < %.4f%n", ratio, minDeliveryRatio);
+			ok = false;
+		}
+		if(maxP99Micros > 0 && total.getPercentile(99) / 1000 > maxP99Micros){
+			System.out.printf("PROG: p99 %dus > %dus%n", total.getPercentile(99) / 1000, maxP99Micros);
+			ok = false;
+		}
+		if(maxP999Micros > 0 && total.getPercentile(99.9) / 1000 > maxP999Micros){
+			System.out.printf("PROG: p99.9 %dus > %dus%n", total.getPercentile(99.9) / 1000, maxP999Micros);
+			ok = false;
+		}
+		if(maxHeapMegabytes > 0 && maxHeap > maxHeapMegabytes){
+			System.out.printf("PROG: sterta %dMB > %dMB%n", maxHeap, maxHeapMegabytes);
+			ok = false;
+		}
+		if(hub.getSessionCount() != peers){
+			System.out.printf("PROG: utracono sesje (%d z %d)%n", hub.getSessionCount(), peers);
+			ok = false;
+		}
+		clients.shutdown(1000);
+		hub.shutdown(1000);
+		System.out.println(ok ? "OK" : "REGRESJA");
+		return ok;
+	}
+
+	/** Tworzy watek wysylajacy wiadomosci do kolejnych sesji z zadana laczna czestotliwoscia. */
+	private Thread newSender(final Model clients){
+
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				List<String> sessions = clients.getSessions();
+				StringBuilder padding = new StringBuilder(" ");
+				while(padding.length() < size)
+					padding.append('x');
+				String pad = padding.toString();
+				long start = System.nanoTime();
+				int next = 0;
+				try {
+					while(!Thread.currentThread().isInterrupted()){
+						long due = (System.nanoTime() - start) * rate / 1000000000L;
+						while(sent.get() < due){
+							String stamp = Long.toString(System.nanoTime());
+							String msg = stamp + pad.substring(0, Math.max(1, size - stamp.length()));
+							clients.sendMessage(sessions.get(next), msg);
+							next = (next + 1) % sessions.size();
+							sent.incrementAndGet();
+						}
+						Thread.sleep(1);
+					}
+				} catch (InterruptedException e) {
+					//koniec testu
+				}
+			}
+		}, "load-sender");
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/** Odczytuje znacznik czasu zapisany cyframi ASCII na poczatku wiadomosci. */
+	private static long parseTimestamp(ByteBuffer payload){
+
+		long value = 0;
+		for(int i = payload.position(); i < payload.limit(); i++){
+			byte b = payload.get(i);
+			if(b < '0' || b > '9')
+				break;
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+}
@@ -0,0 +1,202 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Mikrobenchmarki goracych sciezek Modelu, bez zaleznosci zewnetrznych. Kazdy pomiar ma faze
+ * rozgrzewki i kilka iteracji pomiarowych, a wynik wypisywany jest jako jedna linia tekstu,
+ * tak by mozna bylo porownywac liczby przed i po zmianie.
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -cp out ModelBenchmark [enqueue|latency|alloc|log ...]
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class ModelBenchmark{
+
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int ITERATIONS = 5;
+	private static final long ITERATION_MILLIS = 1000;
+	private static final String PAYLOAD = "benchmark message payload 0123456789";
+
+	/**
+	 * Uruchamia wybrane benchmarki.
+	 * @param args Nazwy benchmarkow; bez argumentow uruchamiane sa wszystkie.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if(args.length == 0)
+			args = new String[]{"enqueue", "latency", "alloc", "log"};
+		for(String name : args){
+			if(name.equals("enqueue"))
+				enqueue();
+			else if(name.equals("latency"))
+				latency();
+			else if(name.equals("alloc"))
+				alloc();
+			else if(name.equals("log"))
+				log();
+			else
+				System.err.println("Nieznany benchmark: " + name);
+		}
+		System.exit(0);
+	}
+
+	/** Para Modeli polaczonych przez loopback. */
+	private static final class Pair{
+
+		final Model sender, receiver;
+		final String peer;
+
+		Pair() throws Exception {
+
+			receiver = new Model(1);
+			receiver.listen(0, Model.BACKLOG);
+			sender = new Model(1);
+			sender.newConnection(InetAddress.getLoopbackAddress(), receiver.getListenPort());
+			peer = sender.getSessions().get(0);
+			while(receiver.getSessionCount() == 0)
+				Thread.sleep(1);
+		}
+
+		void close(){
+
+			sender.shutdown(1000);
+			receiver.shutdown(1000);
+		}
+	}
+
+	/** Przepustowosc Model.sendMessage(peer, msg) z odbiorca oprozniajacym kolejke widoku. */
+	private static void enqueue() throws Exception {
+
+		final Pair pair = new Pair();
+		Thread drain = startDrain(pair.receiver);
+		for(int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++){
+			long ops = 0;
+			long start = System.nanoTime();
+			long end = start + ITERATION_MILLIS * 1000000L;
+			while(System.nanoTime() < end){
+				for(int j = 0; j < 100; j++)
+					pair.sender.sendMessage(pair.peer, PAYLOAD);
+				ops += 100;
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			if(i >= WARMUP_ITERATIONS)
+				System.out.printf("enqueue iteracja %d: %.0f wiad/s%n", i - WARMUP_ITERATIONS, ops / seconds);
+		}
+		System.out.println("enqueue wsady: " + pair.sender.getBatchStats());
+		drain.interrupt();
+		pair.close();
+	}
+
+	/** Opoznienie od sendMessage do odebrania wiadomosci z kolejki widoku po drugiej stronie loopback'u. */
+	private static void latency() throws Exception {
+
+		Pair pair = new Pair();
+		Histogram histogram = new Histogram();
+		for(int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++){
+			histogram.reset();
+			long end = System.nanoTime() + ITERATION_MILLIS * 1000000L;
+			while(System.nanoTime() < end){
+				pair.sender.sendMessage(pair.peer, Long.toString(System.nanoTime()));
+				Message msg = pair.receiver.getNextMessage();
+				histogram.record(System.nanoTime() - parseLong(msg.getPayload()));
+			}
+			if(i >= WARMUP_ITERATIONS)
+				System.out.println("latency iteracja " + (i - WARMUP_ITERATIONS) + " [us]: " + histogram.summary(1000));
+		}
+		pair.close();
+	}
+
+	/** Liczba bajtow alokowanych na wiadomosc: po stronie wywolujacego sendMessage oraz lacznie we wszystkich watkach. */
+	private static void alloc() throws Exception {
+
+		Pair pair = new Pair();
+		Thread drain = startDrain(pair.receiver);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long self = Thread.currentThread().getId();
+		int messages = 200000;
+		for(int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++){
+			long allBefore = allocatedByAllThreads(threads);
+			long selfBefore = threads.getThreadAllocatedBytes(self);
+			for(int j = 0; j < messages; j++)
+				pair.sender.sendMessage(pair.peer, PAYLOAD);
+			long selfAfter = threads.getThreadAllocatedBytes(self);
+			while(pair.receiver.getViewQueue().size() > 0 || pair.sender.getSendQueue(pair.peer).size() > 0)
+				Thread.sleep(1);
+			long allAfter = allocatedByAllThreads(threads);
+			if(i >= WARMUP_ITERATIONS)
+				System.out.printf("alloc iteracja %d: wywolujacy %.1f B/wiad, wszystkie watki %.1f B/wiad%n",
+					i - WARMUP_ITERATIONS, (selfAfter - selfBefore) / (double) messages,
+					(allAfter - allBefore) / (double) messages);
+		}
+		drain.interrupt();
+		pair.close();
+	}
+
+	/** Koszt Model.updateLog w zaleznosci od liczby wpisow juz obecnych w logu. */
+	private static void log() throws Exception {
+
+		int[] sizes = {0, 100, 1000, 10000, 100000};
+		for(int size : sizes){
+			Model model = new Model(1);
+			for(int i = 0; i < size; i++)
+				model.updateLog("wpis " + i);
+			int n = 20000;
+			long best = Long.MAX_VALUE;
+			for(int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++){
+				long start = System.nanoTime();
+				for(int j = 0; j < n; j++)
+					model.updateLog("wpis pomiarowy");
+				long elapsed = System.nanoTime() - start;
+				if(i >= WARMUP_ITERATIONS)
+					best = Math.min(best, elapsed);
+			}
+			System.out.printf("log rozmiar %d: %.1f ns/wpis%n", size, best / (double) n);
+			model.shutdown(1000);
+		}
+	}
+
+	/** Uruchamia watek oprozniajacy kolejke widoku Modelu. */
+	private static Thread startDrain(final Model model){
+
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				try {
+					while(true)
+						model.getNextMessage();
+				} catch (InterruptedException e) {
+					//koniec pomiaru
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static long allocatedByAllThreads(com.sun.management.ThreadMXBean threads){
+
+		long sum = 0;
+		for(long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			if(bytes > 0)
+				sum += bytes;
+		return sum;
+	}
+
+	/** Odczytuje liczbe zapisana cyframi ASCII. */
+	private static long parseLong(ByteBuffer digits){
+
+		long value = 0;
+		boolean negative = false;
+		for(int i = digits.position(); i < digits.limit(); i++){
+			byte b = digits.get(i);
+			if(b == '-')
+				negative = true;
+			else
+				value = value * 10 + (b - '0');
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,171 @@
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+
+/**
+ * Symulacja nakladki peer-to-peer na loopback'u w jednej maszynie wirtualnej. Tworzy N Modeli
+ * polaczonych w losowe drzewo z dodatkowymi krawedziami (lub w lancuch), mierzy czas, po ktorym
+ * plotki rozniosa tablice wezlow, a nastepnie wysyla wiadomosci trasowane miedzy losowymi parami
+ * wezlow i jedna wiadomosc do wszystkich. Konczy sie kodem 1, jesli tablice nie zbiegly sie w czasie
+ * timeout sekund lub jakas wiadomosc nie dotarla.
+ * <pre>
+ * java -cp out OverlaySimulation nodes=50 extra=25 messages=1000 timeout=30
+ * java -cp out OverlaySimulation nodes=8 topology=line
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class OverlaySimulation{
+
+	private final int nodeCount;
+	private final int extraEdges;
+	private final int messageCount;
+	private final long timeoutSeconds;
+	private final boolean line;
+	private final Random random;
+
+	private OverlaySimulation(Map<String, String> options){
+
+		nodeCount = Integer.parseInt(option(options, "nodes", "50"));
+		extraEdges = Integer.parseInt(option(options, "extra", Integer.toString(nodeCount / 2)));
+		messageCount = Integer.parseInt(option(options, "messages", "1000"));
+		timeoutSeconds = Long.parseLong(option(options, "timeout", "30"));
+		line = option(options, "topology", "tree").equals("line");
+		random = new Random(Long.parseLong(option(options, "seed", "1")));
+	}
+
+	/**
+	 * Uruchamia symulacje.
+	 * @param args Opcje w postaci klucz=wartosc: nodes, extra (dodatkowe krawedzie), messages,
+	 * timeout (s), topology (tree lub line), seed.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		Map<String, String> options = new HashMap<String, String>();
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0){
+				System.err.println("Bledny argument: " + arg);
+				System.exit(2);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		System.exit(new OverlaySimulation(options).run() ? 0 : 1);
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue){
+
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private boolean run() throws Exception {
+
+		Model[] nodes = new Model[nodeCount];
+		for(int i = 0; i < nodeCount; i++){
+			nodes[i] = new Model(1);
+			nodes[i].listen(0, Model.BACKLOG);
+		}
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		int edges = 0;
+		for(int i = 1; i < nodeCount; i++, edges++)
+			nodes[i].dial(loopback, nodes[line ? i - 1 : random.nextInt(i)].getListenPort());
+		for(int k = 0; !line && k < extraEdges; k++, edges++){
+			int a = random.nextInt(nodeCount), b = random.nextInt(nodeCount);
+			if(a != b)
+				nodes[a].dial(loopback, nodes[b].getListenPort());
+		}
+		System.out.printf("start: nodes=%d edges=%d topology=%s%n", nodeCount, edges, line ? "line" : "tree");
+
+		long start = System.nanoTime();
+		long deadline = start + timeoutSeconds * 1000000000L;
+		int maxHops = 0;
+		boolean converged = false;
+		while(!converged && System.nanoTime() < deadline){
+			Thread.sleep(100);
+			converged = true;
+			maxHops = 0;
+			for(Model node : nodes){
+				SortedMap<Long, Integer> overlay = node.getOverlay();
+				int reachable = 0;
+				for(int hops : overlay.values()){
+					if(hops > 0)
+						reachable++;
+					maxHops = Math.max(maxHops, hops);
+				}
+				converged &= reachable >= nodeCount - 1;
+			}
+		}
+		long convergence = (System.nanoTime() - start) / 1000000L;
+		System.out.printf("tablice: %s po %d ms, najdalszy wezel o %d skokow%n",
+			converged ? "zbiezne" : "NIEZBIEZNE", convergence, maxHops);
+
+		for(Model node : nodes)
+			while(node.pollMessage() != null);
+		int[] expected = new int[nodeCount];
+		int sent = 0;
+		start = System.nanoTime();
+		for(int k = 0; k < messageCount; k++){
+			int from = random.nextInt(nodeCount), to = random.nextInt(nodeCount);
+			if(from == to)
+				continue;
+			if(nodes[from].sendMessage(nodes[to].getNodeId(), "m" + k)){
+				expected[to]++;
+				sent++;
+			}
+		}
+		int received = receive(nodes, expected, deadline);
+		System.out.printf("trasowane: wyslano=%d odebrano=%d w %d ms%n", sent, received, (System.nanoTime() - start) / 1000000L);
+
+		// nadawca tez dostaje swoja wiadomosc - jako wyslana
+		for(int i = 0; i < nodeCount; i++)
+			expected[i] = 1;
+		nodes[0].broadcast("do wszystkich");
+		int flooded = receive(nodes, expected, deadline);
+		System.out.printf("do wszystkich: odebralo %d z %d wezlow%n", flooded, nodeCount);
+
+		long forwarded = 0, duplicates = 0, unreachable = 0, dropped = 0;
+		for(Model node : nodes){
+			SortedMap<String, Long> metrics = node.getMetrics();
+			forwarded += metrics.get("route.forwarded");
+			duplicates += metrics.get("route.duplicate");
+			unreachable += metrics.get("route.unreachable");
+			dropped += metrics.get("route.dropped");
+		}
+		System.out.printf("razem: przekazano=%d powtorzenia=%d bez trasy=%d porzucone=%d%n",
+			forwarded, duplicates, unreachable, dropped);
+		for(Model node : nodes)
+			node.shutdown(1000);
+		boolean ok = converged && received == sent && flooded == nodeCount;
+		System.out.println(ok ? "OK" : "BLAD");
+		return ok;
+	}
+
+	/** Odbiera wiadomosci z kolejek widoku wszystkich wezlow.
+	 * @param nodes Wezly.
+	 * @param expected Liczba oczekiwanych wiadomosci kazdego wezla; zerowana po odebraniu.
+	 * @param deadline Chwila (System.nanoTime()), po ktorej przestajemy czekac.
+	 * @return Liczba odebranych wiadomosci.
+	 */
+	private static int receive(Model[] nodes, int[] expected, long deadline) throws InterruptedException {
+
+		int received = 0, missing = 0;
+		for(int n : expected)
+			missing += n;
+		while(missing > 0 && System.nanoTime() < deadline){
+			boolean any = false;
+			for(int i = 0; i < nodes.length; i++){
+				while(expected[i] > 0 && nodes[i].pollMessage() != null){
+					expected[i]--;
+					missing--;
+					received++;
+					any = true;
+				}
+			}
+			if(!any)
+				Thread.sleep(1);
+		}
+		return received;
+	}
+}
@@ -0,0 +1,201 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Koszt szyfrowania TLS na loopback'u. Mierzy czas od nawiazania polaczenia TCP do zakonczenia uzgadniania:
+ * pelnego (nowy kontekst klienta bez zapamietanych sesji) i wznowionego (ponowne polaczenie z tym samym
+ * wezlem), a nastepnie przepustowosc i liczbe bajtow alokowanych na wiadomosc - bez TLS i z TLS.
+ * Bez opcji keystore tworzy tymczasowy magazyn z certyfikatem samopodpisanym (keytool z JDK).
+ * <pre>
+ * java -cp out TlsBenchmark handshakes=200 messages=200000 size=100
+ * java -cp out TlsBenchmark keystore=wezel.p12 password=haslo
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class TlsBenchmark{
+
+	/** Przerwa w oczekiwaniu - aktywne czekanie zabieraloby procesor petlom zdarzen. */
+	private static final long PARK_NANOS = 20000;
+
+	private final int handshakes;
+	private final int messages;
+	private final int size;
+	private final String keyStore;
+	private final char[] password;
+
+	private TlsBenchmark(Map<String, String> options){
+
+		handshakes = Integer.parseInt(option(options, "handshakes", "200"));
+		messages = Integer.parseInt(option(options, "messages", "200000"));
+		size = Integer.parseInt(option(options, "size", "100"));
+		keyStore = options.get("keystore");
+		password = option(options, "password", "changeit").toCharArray();
+	}
+
+	/**
+	 * Uruchamia pomiary.
+	 * @param args Opcje w postaci klucz=wartosc: handshakes, messages, size (bajty), keystore, password.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		Map<String, String> options = new HashMap<String, String>();
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0){
+				System.err.println("Bledny argument: " + arg);
+				System.exit(2);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		System.exit(new TlsBenchmark(options).run() ? 0 : 1);
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue){
+
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private boolean run() throws Exception {
+
+		File store = keyStore != null ? new File(keyStore) : generateKeyStore();
+		SSLContext server = Model.tlsContext(store, password);
+
+		Model hub = new Model(1);
+		hub.setSessionLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		hub.setTls(server);
+		hub.listen(0, Model.BACKLOG);
+		Model client = new Model(1);
+		Histogram full = new Histogram();
+		for(int i = 0; i < handshakes; i++){
+			client.setTls(Model.tlsContext(store, password));
+			connect(client, hub, full);
+		}
+		Histogram resumed = new Histogram();
+		client.setTls(Model.tlsContext(store, password));
+		connect(client, hub, new Histogram());
+		long before = client.getMetrics().get("tls.resumed");
+		for(int i = 0; i < handshakes; i++)
+			connect(client, hub, resumed);
+		long resumedCount = client.getMetrics().get("tls.resumed") - before;
+		System.out.println("uzgadnianie pelne [us]: " + full.summary(1000));
+		System.out.println("uzgadnianie wznowione [us]: " + resumed.summary(1000));
+		System.out.printf("wznowiono %d z %d polaczen%n", resumedCount, handshakes);
+		client.shutdown(1000);
+		hub.shutdown(1000);
+
+		double plain = throughput(null, "bez TLS");
+		double encrypted = throughput(server, "TLS");
+		System.out.printf("TLS: %.0f%% przepustowosci bez szyfrowania%n", 100 * encrypted / plain);
+		boolean ok = resumedCount == handshakes;
+		System.out.println(ok ? "OK" : "BLAD");
+		return ok;
+	}
+
+	/** Laczy klienta z hub'em, czeka na zakonczenie uzgadniania i rozlacza. Przed rozlaczeniem czeka na HELLO
+	 *  hub'a - bilet sesji do wznowienia przychodzi zaraz po uzgadnianiu, przed pierwsza ramka.
+	 * @param histogram Histogram czasu od polaczenia TCP do zakonczenia uzgadniania po stronie klienta.
+	 */
+	private static void connect(Model client, Model hub, Histogram histogram) throws Exception {
+
+		Histogram handshakes = client.getMetricsRegistry().getTlsHandshake();
+		long count = handshakes.getCount();
+		long start = System.nanoTime();
+		client.dial(InetAddress.getLoopbackAddress(), hub.getListenPort());
+		while(handshakes.getCount() == count)
+			LockSupport.parkNanos(PARK_NANOS);
+		histogram.record(System.nanoTime() - start);
+		while(!helloReceived(client))
+			LockSupport.parkNanos(PARK_NANOS);
+		client.closeConnection();
+		while(hub.getSessionCount() > 0 || client.getSessionCount() > 0)
+			Thread.sleep(1);
+	}
+
+	private static boolean helloReceived(Model client){
+
+		for(Connection connection : client.getConnections())
+			if(connection.getPeerNode() == 0)
+				return false;
+		return true;
+	}
+
+	/** Mierzy przepustowosc jednej sesji: messages wiadomosci o rozmiarze size od wyslania do odebrania.
+	 * @param context Kontekst TLS obu stron lub null.
+	 * @param name Nazwa pomiaru.
+	 * @return Liczba wiadomosci na sekunde.
+	 */
+	private double throughput(SSLContext context, String name) throws Exception {
+
+		Model receiver = new Model(1);
+		receiver.setTls(context);
+		receiver.listen(0, Model.BACKLOG);
+		Model sender = new Model(1);
+		sender.setTls(context);
+		sender.dial(InetAddress.getLoopbackAddress(), receiver.getListenPort());
+		while(receiver.getSessionCount() == 0)
+			Thread.sleep(1);
+		String peer = sender.getSessions().get(0);
+		StringBuilder text = new StringBuilder();
+		while(text.length() < size)
+			text.append('x');
+		String msg = text.toString();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		double rate = 0;
+		for(int round = 0; round < 2; round++){
+			long allocated = allocatedByAllThreads(threads);
+			long start = System.nanoTime();
+			int received = 0;
+			for(int i = 0; i < messages; i++){
+				sender.sendMessage(peer, msg);
+				while(receiver.pollMessage() != null)
+					received++;
+			}
+			while(received < messages){
+				if(receiver.pollMessage() != null)
+					received++;
+				else
+					LockSupport.parkNanos(PARK_NANOS);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			rate = messages / seconds;
+			if(round > 0)
+				System.out.printf("%s: %.0f wiad/s, %.1f MB/s, %.1f B/wiad alokacji we wszystkich watkach, wsady: %s%n", name, rate,
+					rate * size / (1024 * 1024), (allocatedByAllThreads(threads) - allocated) / (double) messages,
+					sender.getBatchStats());
+		}
+		sender.shutdown(1000);
+		receiver.shutdown(1000);
+		return rate;
+	}
+
+	/** Tworzy tymczasowy magazyn PKCS12 z kluczem EC i certyfikatem samopodpisanym. */
+	private File generateKeyStore() throws Exception {
+
+		File file = File.createTempFile("tls", ".p12");
+		file.delete();
+		file.deleteOnExit();
+		String pass = new String(password);
+		Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+			"-genkeypair", "-alias", "wezel", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=Komunikator",
+			"-validity", "30", "-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", pass, "-keypass", pass)
+			.inheritIO().start();
+		if(keytool.waitFor() != 0)
+			throw new IllegalStateException("keytool zakonczyl sie kodem " + keytool.exitValue());
+		return file;
+	}
+
+	private static long allocatedByAllThreads(com.sun.management.ThreadMXBean threads){
+
+		long sum = 0;
+		for(long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			if(bytes > 0)
+				sum += bytes;
+		return sum;
+	}
+}
@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Egzekwowanie przydzialow i limitu predkosci: surowy socket udaje peer'a, ktory ogloszil przydzialy
+ * i wysyla ponad nie, peer'a bez przydzialow, peer'a, ktory nie przyslal HELLO, i zwykly Model.
+ * Sprawdza, ze przekroczenie przydzialu rozlacza peer'a, a limit predkosci spowalnia pozostalych
+ * - bez rozlaczania i bez gubienia wiadomosci.
+ * Konczy sie kodem 1, jesli ktorys warunek nie jest spelniony.
+ * <pre>
+ * java -cp out FlowControlTest
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class FlowControlTest{
+
+	/** Limit predkosci hub'a w wiadomosciach na sekunde i pojemnosc wiadra. */
+	private static final int RATE = 200;
+	private static final int BURST = 20;
+
+	/** Liczba wiadomosci w tescie limitu - wysylanie trwa ok. MESSAGES / RATE sekund. */
+	private static final int MESSAGES = 600;
+
+	/** Tolerancja pomiaru limitu w wiadomosciach - opoznienia planisty i petli zdarzen. */
+	private static final int SLACK = 40;
+
+	private static final long PARK_NANOS = 1000000;
+
+	private int failures;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean ok = new FlowControlTest().run();
+		System.out.println(ok ? "OK" : "BLAD");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private boolean run() throws Exception {
+
+		creditOverrun();
+		rateLimited("peer bez przydzialow", hello((byte) 0));
+		rateLimited("peer bez HELLO", new byte[0]);
+		rateLimited("peer z przydzialami", null);
+		return failures == 0;
+	}
+
+	/** Peer ogloszil przydzialy, ale wysyla wiecej niz dostal - zostaje rozlaczony. */
+	private void creditOverrun() throws Exception {
+
+		Model hub = hub();
+		// przydzial konczy sie na oknie, a wiadro jednej wiadomosci na sekunde wstrzymuje kolejne
+		hub.setCreditWindow(Frame.INITIAL_CREDITS);
+		hub.setRateLimit(1, 1);
+		try(Socket socket = connect(hub)){
+			OutputStream out = socket.getOutputStream();
+			out.write(hello(Frame.FLOW_CONTROL));
+			for(int i = 0; i < 2 * Frame.INITIAL_CREDITS; i++)
+				out.write(message(i));
+			out.flush();
+			if(!closedByPeer(socket))
+				fail("przekroczenie przydzialu: peer nie zostal rozlaczony");
+		} catch (IOException e) {
+			// hub zamknal polaczenie w trakcie wysylania
+		}
+		if(!hub.getConnectionLog().contains("przekroczyl przydzial"))
+			fail("przekroczenie przydzialu: brak wpisu w dzienniku");
+		hub.shutdown(1000);
+	}
+
+	/** Wysyla MESSAGES wiadomosci najszybciej jak sie da i sprawdza, ze hub przyjmuje je z predkoscia RATE.
+	 *  Peer z przydzialami moze najpierw wyslac caly przydzial poczatkowy, pozostali - BURST wiadomosci.
+	 * @param name Opis przypadku.
+	 * @param prefix Bajty wysylane przed wiadomosciami surowym socket'em lub null - wysyla zwykly Model.
+	 */
+	private void rateLimited(String name, byte[] prefix) throws Exception {
+
+		Model hub = hub();
+		hub.setCreditWindow(Frame.INITIAL_CREDITS);
+		hub.setRateLimit(RATE, BURST);
+		int allowance = prefix == null ? Frame.INITIAL_CREDITS : BURST;
+		Model client = null;
+		Socket socket = null;
+		try {
+			long start = System.nanoTime();
+			if(prefix != null){
+				socket = connect(hub);
+				final OutputStream out = socket.getOutputStream();
+				out.write(prefix);
+				// zapis blokuje sie, gdy hub przestaje czytac - osobny watek
+				final Socket raw = socket;
+				Thread writer = new Thread(new Runnable(){
+					public void run(){
+						try {
+							for(int i = 0; i < MESSAGES; i++)
+								out.write(message(i));
+							out.flush();
+						} catch (IOException e) {
+							if(!raw.isClosed())
+								fail("zapis przerwany: " + e);
+						}
+					}
+				});
+				writer.setDaemon(true);
+				writer.start();
+				drain(socket);
+			}
+			else{
+				client = new Model(1);
+				client.dial(InetAddress.getLoopbackAddress(), hub.getListenPort());
+				List<String> sessions;
+				while((sessions = client.getSessions()).isEmpty())
+					LockSupport.parkNanos(PARK_NANOS);
+				start = System.nanoTime();
+				for(int i = 0; i < MESSAGES; i++)
+					client.sendMessage(sessions.get(0), "m" + i);
+			}
+			int received = 0;
+			long deadline = start + 3L * MESSAGES * 1000000000L / RATE;
+			while(received < MESSAGES && System.nanoTime() < deadline){
+				if(hub.pollMessage() == null){
+					LockSupport.parkNanos(PARK_NANOS);
+					continue;
+				}
+				received++;
+				double seconds = (System.nanoTime() - start) / 1e9;
+				if(received > allowance + RATE * seconds + SLACK){
+					fail(name + ": " + received + " wiadomosci po " + String.format("%.2f", seconds) + " s przy limicie " + RATE + "/s");
+					return;
+				}
+			}
+			if(received < MESSAGES)
+				fail(name + ": dotarlo " + received + " z " + MESSAGES + " wiadomosci");
+			if(hub.getSessionCount() != 1)
+				fail(name + ": peer zostal rozlaczony");
+			if(hub.getMetrics().get("flow.throttled") == 0)
+				fail(name + ": limit nie wstrzymal peer'a");
+		} finally {
+			if(socket != null)
+				socket.close();
+			if(client != null)
+				client.shutdown(1000);
+			hub.shutdown(1000);
+		}
+	}
+
+	private static Model hub() throws IOException {
+
+		Model hub = new Model(1);
+		hub.listen(0, Model.BACKLOG);
+		return hub;
+	}
+
+	private static Socket connect(Model hub) throws IOException {
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), hub.getListenPort());
+		socket.setSoTimeout(2000);
+		return socket;
+	}
+
+	/** Czyta w tle wszystko, co przysyla hub, by jego zapis sie nie zatrzymal. */
+	private static void drain(final Socket socket){
+
+		Thread reader = new Thread(new Runnable(){
+			public void run(){
+				byte[] buffer = new byte[4096];
+				try {
+					InputStream in = socket.getInputStream();
+					while(true){
+						try {
+							if(in.read(buffer) < 0)
+								return;
+						} catch (SocketTimeoutException e) {
+							// czytamy do zamkniecia
+						}
+					}
+				} catch (IOException e) {
+					// socket zamkniety
+				}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/** Czyta do zamkniecia polaczenia przez hub.
+	 * @return true, jesli hub zamknal polaczenie przed uplywem czasu oczekiwania socket'a.
+	 */
+	private static boolean closedByPeer(Socket socket) throws IOException {
+
+		byte[] buffer = new byte[4096];
+		try {
+			while(socket.getInputStream().read(buffer) >= 0);
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private static byte[] hello(byte capabilities){
+		return frame(Frame.HELLO, ByteBuffer.allocate(14).put(Frame.VERSION).put(capabilities).putInt(0).putLong(0).array());
+	}
+
+	private static byte[] message(int i){
+		return frame(Frame.MESSAGE, ("m" + i).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static byte[] frame(byte type, byte[] payload){
+		return ByteBuffer.allocate(Frame.HEADER_SIZE + payload.length).putInt(payload.length).put(type).put((byte) 0)
+			.put(payload).array();
+	}
+
+	private synchronized void fail(String reason){
+
+		System.out.println("BLAD: " + reason);
+		failures++;
+	}
+}
@@ -0,0 +1,226 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+/**
+ * Odbior blednych ramek: surowy socket wysyla do Modelu ramki kazdego typu z danymi krotszymi od stalego
+ * naglowka oraz ramki z dlugoscia spoza zakresu. Sprawdza, ze Model zamyka takie polaczenie, petla zdarzen
+ * nie zglasza wyjatku, a zwykly peer moze sie potem polaczyc i wyslac wiadomosc.
+ * Konczy sie kodem 1, jesli ktorys warunek nie jest spelniony.
+ * <pre>
+ * java -cp out FrameParsingTest
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class FrameParsingTest{
+
+	/** Czas oczekiwania na zamkniecie polaczenia przez Model. */
+	private static final int CLOSE_TIMEOUT_MILLIS = 2000;
+
+	/** Najwieksza dlugosc danych w przebiegu po wszystkich typach ramek - dluzsza od kazdego stalego naglowka. */
+	private static final int MAX_FUZZ_LENGTH = 24;
+
+	private final Model hub;
+	private int failures;
+
+	private FrameParsingTest(Model _hub){
+		hub = _hub;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		Model hub = new Model(1);
+		File downloads = Files.createTempDirectory("frame-test").toFile();
+		hub.setDownloadDirectory(downloads);
+		hub.setCompression(64, null);
+		hub.listen(0, Model.BACKLOG);
+		boolean ok = new FrameParsingTest(hub).run();
+		hub.shutdown(1000);
+		for(File file : downloads.listFiles())
+			file.delete();
+		downloads.delete();
+		System.out.println(ok ? "OK" : "BLAD");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private boolean run() throws Exception {
+
+		// dane krotsze od stalego naglowka kazdego typu
+		expectClosed("HELLO", Frame.HELLO, (byte) 0, 5);
+		expectClosed("FILE_OFFER", Frame.FILE_OFFER, (byte) 0, 15);
+		expectClosed("FILE_ACCEPT", Frame.FILE_ACCEPT, (byte) 0, 19);
+		expectClosed("FILE_CHUNK", Frame.FILE_CHUNK, (byte) 0, FileTransfer.CHUNK_PREFIX - 1);
+		expectClosed("FILE_ACK", Frame.FILE_ACK, (byte) 0, 15);
+		expectClosed("FILE_CANCEL", Frame.FILE_CANCEL, (byte) 0, 7);
+		expectClosed("MESSAGE RELIABLE", Frame.MESSAGE, Frame.RELIABLE, 7);
+		expectClosed("PING", Frame.PING, (byte) 0, 7);
+		expectClosed("PONG", Frame.PONG, (byte) 0, 7);
+		expectClosed("CREDIT", Frame.CREDIT, (byte) 0, 3);
+		expectClosed("ACK", Frame.ACK, (byte) 0, 1);
+		// liczba przedzialow niezgodna z dlugoscia danych
+		expectClosed("ACK bez przedzialu", ByteBuffer.allocate(Frame.HEADER_SIZE + 2).putInt(2).put(Frame.ACK).put((byte) 0)
+			.putShort((short) 1).array());
+		expectClosed("ACK z nadmiarem", ByteBuffer.allocate(Frame.HEADER_SIZE + 18).putInt(18).put(Frame.ACK).put((byte) 0)
+			.putShort((short) 0).array());
+		// dlugosc spoza zakresu - Model nie czeka na dane, ktore nigdy nie przyjda
+		expectClosed("dlugosc MAX_PAYLOAD + 1", header(Frame.MAX_PAYLOAD + 1, Frame.MESSAGE, (byte) 0));
+		expectClosed("dlugosc ujemna", header(-1, Frame.MESSAGE, (byte) 0));
+		// kilka bajtow zapowiadajacych 16 MB po rozpakowaniu
+		expectClosed("skompresowana ramka z falszywa dlugoscia", ByteBuffer.allocate(Frame.HEADER_SIZE + 10).putInt(10)
+			.put(Frame.MESSAGE).put(Frame.COMPRESSED).putInt(Frame.MAX_PAYLOAD).array());
+		// kazdy typ z kazda krotka dlugoscia, takze typy nieznane
+		for(byte type = 0; type <= 16; type++){
+			for(int length = 0; length <= MAX_FUZZ_LENGTH; length++)
+				exchange(frame(type, (byte) 0, length), false);
+		}
+		String log = hub.getConnectionLog();
+		if(log.contains("Blad w petli zdarzen"))
+			fail("wyjatek w petli zdarzen:\n" + log);
+		roundTrip();
+		decompressLimits();
+		return failures == 0;
+	}
+
+	/** Wysyla ramke z danymi o podanej dlugosci i sprawdza, ze Model zamyka polaczenie.
+	 * @param name Opis przypadku.
+	 * @param length Najwieksza sprawdzana dlugosc danych; sprawdzane sa wszystkie od 0.
+	 */
+	private void expectClosed(String name, byte type, byte flags, int length) throws IOException {
+
+		for(int n = 0; n <= length; n++)
+			expectClosed(name + " (" + n + " B)", frame(type, flags, n));
+	}
+
+	private void expectClosed(String name, byte[] frame) throws IOException {
+
+		if(!exchange(frame, true))
+			fail(name + ": polaczenie nie zostalo zamkniete");
+	}
+
+	/** Laczy sie z Modelem, wysyla ramke i czyta odpowiedzi do zamkniecia polaczenia.
+	 * @param frame Ramka do wyslania.
+	 * @param keepOpen true - wysylajacy nie zamyka swojej strony, wiec polaczenie zamyka tylko Model.
+	 * @return true, jesli Model zamknal polaczenie przed uplywem CLOSE_TIMEOUT_MILLIS.
+	 */
+	private boolean exchange(byte[] frame, boolean keepOpen) throws IOException {
+
+		try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), hub.getListenPort())){
+			socket.setSoTimeout(CLOSE_TIMEOUT_MILLIS);
+			socket.getOutputStream().write(frame);
+			if(!keepOpen)
+				socket.shutdownOutput();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			try {
+				while(in.read(buffer) >= 0);
+				return true;
+			} catch (SocketTimeoutException e) {
+				return false;
+			} catch (IOException e) {
+				// reset zamiast zwyklego zamkniecia - polaczenie tez jest zamkniete
+				return true;
+			}
+		}
+	}
+
+	/** Zwykly peer laczy sie z Modelem po wszystkich blednych ramkach i wysyla wiadomosc. */
+	private void roundTrip() throws Exception {
+
+		Model client = new Model(1);
+		try {
+			client.dial(InetAddress.getLoopbackAddress(), hub.getListenPort());
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+			List<String> sessions;
+			while((sessions = client.getSessions()).isEmpty() && System.nanoTime() < deadline)
+				LockSupport.parkNanos(1000000);
+			if(sessions.isEmpty()){
+				fail("zwykly peer nie polaczyl sie z Modelem");
+				return;
+			}
+			while(hub.pollMessage() != null);
+			client.sendMessage(sessions.get(0), "po blednych ramkach");
+			Message message;
+			while((message = hub.pollMessage()) == null && System.nanoTime() < deadline)
+				LockSupport.parkNanos(1000000);
+			if(message == null || !StandardCharsets.UTF_8.decode(message.getPayload()).toString().equals("po blednych ramkach"))
+				fail("wiadomosc od zwyklego peer'a nie dotarla");
+		} finally {
+			client.shutdown(1000);
+		}
+	}
+
+	/** Compressor odrzuca zapowiedz dlugosci, ktorej skompresowane dane nie mogly dac, zanim cokolwiek
+	 *  zaalokuje, oraz dlugosc rozna od rozpakowanej; prawdziwe dane o duzym stopniu kompresji przyjmuje. */
+	private void decompressLimits(){
+
+		Compressor compressor = new Compressor(Deflater.BEST_COMPRESSION, null);
+		ByteBuffer forged = ByteBuffer.allocate(10).putInt(Frame.MAX_PAYLOAD);
+		forged.flip();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long self = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(self);
+		expectRejected("zapowiedz 16 MB w 6 bajtach", compressor, forged);
+		long allocated = threads.getThreadAllocatedBytes(self) - before;
+		if(allocated > 64 * 1024)
+			fail("falszywa zapowiedz dlugosci zaalokowala " + allocated + " B");
+		byte[] zeros = new byte[Frame.MAX_PAYLOAD - 1024];
+		ByteBuffer packed = ByteBuffer.allocate(zeros.length);
+		if(!compressor.compress(ByteBuffer.wrap(zeros), packed)){
+			fail("nie mozna skompresowac zer");
+			return;
+		}
+		packed.flip();
+		try {
+			if(compressor.decompress(packed.duplicate(), false).length != zeros.length)
+				fail("zle rozpakowane zera");
+		} catch (DataFormatException e) {
+			fail("odrzucone prawdziwe dane (" + zeros.length + " B w " + packed.remaining() + " B): " + e.getMessage());
+		}
+		for(int delta : new int[]{ -1, 1 }){
+			ByteBuffer wrong = packed.duplicate();
+			wrong.putInt(0, zeros.length + delta);
+			expectRejected("dlugosc rozna o " + delta, compressor, wrong);
+		}
+	}
+
+	private void expectRejected(String name, Compressor compressor, ByteBuffer payload){
+
+		try {
+			compressor.decompress(payload, false);
+			fail(name + ": dane przyjete");
+		} catch (DataFormatException e) {
+			// oczekiwane
+		}
+	}
+
+	private static byte[] frame(byte type, byte flags, int length){
+
+		byte[] header = header(length, type, flags);
+		byte[] frame = new byte[header.length + length];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		return frame;
+	}
+
+	private static byte[] header(int length, byte type, byte flags){
+
+		return ByteBuffer.allocate(Frame.HEADER_SIZE).putInt(length).put(type).put(flags).array();
+	}
+
+	private void fail(String reason){
+
+		System.out.println("BLAD: " + reason);
+		failures++;
+	}
+}
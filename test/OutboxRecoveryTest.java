@@ -0,0 +1,258 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Odtwarzanie dziennika wysylania (Outbox) po awarii: dziennik z urwanym lub uszkodzonym ostatnim rekordem,
+ * z uszkodzonym rekordem w srodku, ze smieciami na koncu, po przepisaniu (kompakcji) i z pozostalym plikiem
+ * tymczasowym przerwanego przepisywania. Sprawdza, ze dziennik sie otwiera, odtwarza stan do ostatniego
+ * dobrego rekordu, nie wydaje ponownie zuzytych numerow i dalej przyjmuje wiadomosci.
+ * Konczy sie kodem 1, jesli ktorys warunek nie jest spelniony.
+ * <pre>
+ * java -cp out OutboxRecoveryTest
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class OutboxRecoveryTest{
+
+	private static final long PEER = 42;
+	private static final String ADDRESS = "127.0.0.1:5000";
+	private static final int MESSAGES = 100;
+	private static final int ACKED = 40;
+
+	/** Wielkosc wiadomosci w tescie kompakcji - dziennik przekracza Outbox.COMPACT_BYTES po kilkuset wiadomosciach. */
+	private static final int LARGE = 64 * 1024;
+
+	private final ExecutorService executor;
+	private int failures;
+
+	private OutboxRecoveryTest(ExecutorService _executor){
+		executor = _executor;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		ExecutorService executor = Executors.newCachedThreadPool();
+		boolean ok;
+		try {
+			ok = new OutboxRecoveryTest(executor).run();
+		} finally {
+			executor.shutdownNow();
+		}
+		System.out.println(ok ? "OK" : "BLAD");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private boolean run() throws Exception {
+
+		cleanReopen();
+		tornTail();
+		corruptedTail();
+		corruptedMiddle();
+		garbageTail();
+		compaction();
+		interruptedCompaction();
+		return failures == 0;
+	}
+
+	/** Zamkniety i ponownie otwarty dziennik ma ten sam stan. */
+	private void cleanReopen() throws IOException {
+
+		File directory = filled();
+		Outbox outbox = open(directory);
+		check("ponowne otwarcie", outbox, MESSAGES - ACKED, ACKED + 1, MESSAGES);
+		close(outbox, directory);
+	}
+
+	/** Zapis ostatniego rekordu przerwany w polowie: rekord jest pomijany, poprzednie zostaja. */
+	private void tornTail() throws IOException {
+
+		File directory = filled();
+		List<Long> offsets = records(directory);
+		long last = offsets.get(offsets.size() - 1);
+		truncate(directory, last + (log(directory).length() - last) / 2);
+		Outbox outbox = open(directory);
+		check("urwany rekord", outbox, MESSAGES - ACKED - 1, ACKED + 1, MESSAGES - 1);
+		close(outbox, directory);
+	}
+
+	/** Ostatni rekord z bledna suma CRC32C jest pomijany. */
+	private void corruptedTail() throws IOException {
+
+		File directory = filled();
+		flip(directory, log(directory).length() - 1);
+		Outbox outbox = open(directory);
+		check("uszkodzony ostatni rekord", outbox, MESSAGES - ACKED - 1, ACKED + 1, MESSAGES - 1);
+		close(outbox, directory);
+	}
+
+	/** Uszkodzony rekord w srodku konczy odtwarzanie - dziennik otwiera sie ze stanem sprzed niego. */
+	private void corruptedMiddle() throws IOException {
+
+		File directory = filled();
+		List<Long> offsets = records(directory);
+		// rekordy po stanie z konstruktora (checkpoint i peer): wiadomosci 1..MESSAGES, potem potwierdzenie
+		int broken = 2 + MESSAGES / 2;
+		flip(directory, offsets.get(broken) + 9);
+		Outbox outbox = open(directory);
+		check("uszkodzony rekord w srodku", outbox, MESSAGES / 2, 1, MESSAGES / 2);
+		close(outbox, directory);
+	}
+
+	/** Smieci dopisane za ostatnim rekordem (np. niezapisana do konca strona) sa ignorowane. */
+	private void garbageTail() throws IOException {
+
+		File directory = filled();
+		try(RandomAccessFile file = new RandomAccessFile(log(directory), "rw")){
+			file.seek(file.length());
+			byte[] garbage = new byte[1000];
+			new Random(1).nextBytes(garbage);
+			file.write(garbage);
+			// naglowek z poprawna dlugoscia i zla suma
+			file.writeInt(16);
+			file.writeInt(0);
+			file.write(new byte[8]);
+		}
+		Outbox outbox = open(directory);
+		check("smieci na koncu", outbox, MESSAGES - ACKED, ACKED + 1, MESSAGES);
+		close(outbox, directory);
+	}
+
+	/** Writer przepisuje dziennik, gdy przekroczy Outbox.COMPACT_BYTES; stan po przepisaniu sie nie zmienia. */
+	private void compaction() throws IOException, InterruptedException {
+
+		File directory = Files.createTempDirectory("outbox-test").toFile();
+		Outbox outbox = open(directory);
+		outbox.identified(PEER, ADDRESS);
+		int n = (int) (2 * Outbox.COMPACT_BYTES / LARGE);
+		for(int i = 1; i <= n; i++){
+			outbox.add(new byte[LARGE], PEER);
+			if(i <= n - 10)
+				outbox.acknowledged(PEER, i, i);
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while(log(directory).length() > Outbox.COMPACT_BYTES && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		if(log(directory).length() > Outbox.COMPACT_BYTES)
+			fail("kompakcja: dziennik nie zostal przepisany (" + log(directory).length() + " B)");
+		outbox.close(1000);
+		outbox = open(directory);
+		check("kompakcja", outbox, 10, n - 9, n);
+		close(outbox, directory);
+	}
+
+	/** Plik tymczasowy przerwanego przepisywania nie zmienia stanu i jest nadpisywany. */
+	private void interruptedCompaction() throws IOException {
+
+		File directory = filled();
+		Files.write(new File(directory, "outbox.log.tmp").toPath(), new byte[]{ 1, 2, 3 });
+		Outbox outbox = open(directory);
+		check("przerwana kompakcja", outbox, MESSAGES - ACKED, ACKED + 1, MESSAGES);
+		close(outbox, directory);
+	}
+
+	/** Tworzy dziennik z MESSAGES wiadomosciami do PEER, z ktorych pierwsze ACKED sa potwierdzone
+	 *  jednym rekordem, a ostatni rekord jest wiadomoscia.
+	 * @return Katalog zamknietego dziennika.
+	 */
+	private File filled() throws IOException {
+
+		File directory = Files.createTempDirectory("outbox-test").toFile();
+		Outbox outbox = open(directory);
+		outbox.identified(PEER, ADDRESS);
+		for(int i = 0; i < MESSAGES - 1; i++)
+			outbox.add(("wiadomosc " + i).getBytes(StandardCharsets.UTF_8), PEER);
+		outbox.acknowledged(PEER, 1, ACKED);
+		outbox.add("ostatnia".getBytes(StandardCharsets.UTF_8), PEER);
+		outbox.close(1000);
+		return directory;
+	}
+
+	private Outbox open(File directory) throws IOException {
+
+		Outbox outbox = new Outbox(directory);
+		outbox.start(executor);
+		return outbox;
+	}
+
+	/** Sprawdza stan odtworzonego dziennika i to, ze przyjmuje kolejna wiadomosc.
+	 * @param pending Oczekiwana liczba niepotwierdzonych wiadomosci.
+	 * @param first Numer najstarszej niepotwierdzonej wiadomosci.
+	 * @param last Numer najnowszej wiadomosci zachowanej w dzienniku.
+	 */
+	private void check(String name, Outbox outbox, int pending, long first, long last) throws IOException {
+
+		if(outbox.getPendingCount() != pending)
+			fail(name + ": niepotwierdzonych " + outbox.getPendingCount() + ", oczekiwano " + pending);
+		List<Outbox.Entry> entries = outbox.identified(PEER, ADDRESS);
+		if(!entries.isEmpty() && (entries.get(0).sequence != first || entries.get(entries.size() - 1).sequence != last))
+			fail(name + ": wiadomosci " + entries.get(0).sequence + ".." + entries.get(entries.size() - 1).sequence
+				+ ", oczekiwano " + first + ".." + last);
+		if(first > 1 && !outbox.isDelivered(first - 1))
+			fail(name + ": potwierdzona wiadomosc " + (first - 1) + " czeka na potwierdzenie");
+		if(!outbox.getUndeliveredAddresses().contains(ADDRESS))
+			fail(name + ": brak adresu peer'a do ponownego polaczenia");
+		long next = outbox.add("po odtworzeniu".getBytes(StandardCharsets.UTF_8), PEER);
+		if(next <= last)
+			fail(name + ": ponownie wydany numer " + next);
+		if(outbox.getFailure() != null)
+			fail(name + ": blad zapisu " + outbox.getFailure());
+	}
+
+	private static void close(Outbox outbox, File directory){
+
+		outbox.close(1000);
+		for(File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	private static File log(File directory){
+		return new File(directory, "outbox.log");
+	}
+
+	/** Zwraca polozenia kolejnych rekordow pliku dziennika.
+	 * @return Przesuniecia poczatkow rekordow.
+	 */
+	private static List<Long> records(File directory) throws IOException {
+
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(log(directory).toPath()));
+		List<Long> offsets = new ArrayList<Long>();
+		while(data.remaining() >= 4){
+			offsets.add((long) data.position());
+			data.position(data.position() + data.getInt(data.position()));
+		}
+		return offsets;
+	}
+
+	private static void truncate(File directory, long length) throws IOException {
+
+		try(RandomAccessFile file = new RandomAccessFile(log(directory), "rw")){
+			file.setLength(length);
+		}
+	}
+
+	private static void flip(File directory, long offset) throws IOException {
+
+		try(RandomAccessFile file = new RandomAccessFile(log(directory), "rw")){
+			file.seek(offset);
+			int b = file.read();
+			file.seek(offset);
+			file.write(b ^ 0xFF);
+		}
+	}
+
+	private void fail(String reason){
+
+		System.out.println("BLAD: " + reason);
+		failures++;
+	}
+}
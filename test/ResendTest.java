@@ -0,0 +1,125 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ponowne wysylanie na otwartym polaczeniu: hub z dziennikiem wysylania i mala kolejka (polityka BLOCK)
+ * rozsyla wiadomosci szybciej, niz kolejka sie oproznia, wiec czesc z nich sendMessage(String) porzuca.
+ * Sprawdza, ze kazda wiadomosc zostaje mimo to potwierdzona i dociera do peer'a dokladnie raz - bez
+ * ponownego polaczenia.
+ * Konczy sie kodem 1, jesli ktorys warunek nie jest spelniony.
+ * <pre>
+ * java -cp out ResendTest
+ * </pre>
+ * @author Kuba Jalowiec
+ */
+public class ResendTest{
+
+	private static final int MESSAGES = 5000;
+	private static final int QUEUE = 16;
+
+	/** Czas na potwierdzenie wszystkich wiadomosci. */
+	private static final long TIMEOUT_MILLIS = 20000;
+
+	private static final long PARK_NANOS = 1000000;
+
+	private int failures;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean ok = new ResendTest().run();
+		System.out.println(ok ? "OK" : "BLAD");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private boolean run() throws Exception {
+
+		File directory = Files.createTempDirectory("resend-test").toFile();
+		Model hub = new Model(1);
+		Model client = new Model(1);
+		try {
+			hub.openOutbox(directory);
+			hub.setSendQueue(QUEUE, RingBuffer.Policy.BLOCK);
+			hub.listen(0, Model.BACKLOG);
+			client.dial(InetAddress.getLoopbackAddress(), hub.getListenPort());
+			// wiadomosci trafiaja do dziennika dla peer'a dopiero po jego przedstawieniu sie (HELLO) - wczesniejsze
+			// nie sa sledzone i isDelivered() zwraca dla nich od razu true
+			long probe = 0;
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while(System.currentTimeMillis() < deadline){
+				if(probe == 0 && hub.getOverlay().containsKey(client.getNodeId()))
+					probe = hub.sendMessage("proba");
+				if(probe != 0 && hub.isDelivered(probe))
+					break;
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+			if(probe == 0 || !hub.isDelivered(probe)){
+				fail("peer nie polaczyl sie lub nie potwierdzil pierwszej wiadomosci");
+				return false;
+			}
+			long[] sequences = new long[MESSAGES];
+			for(int i = 0; i < MESSAGES; i++)
+				sequences[i] = hub.sendMessage("m" + i);
+			SortedMap<String, Long> metrics = hub.getMetrics();
+			if(metrics.get("queue.send.dropped") == 0)
+				fail("kolejka sie nie zapelnila - test niczego nie sprawdza");
+			deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			int undelivered = MESSAGES;
+			while(undelivered > 0 && System.currentTimeMillis() < deadline){
+				undelivered = 0;
+				for(long sequence : sequences)
+					if(!hub.isDelivered(sequence))
+						undelivered++;
+				LockSupport.parkNanos(10 * PARK_NANOS);
+			}
+			if(undelivered > 0)
+				fail(undelivered + " z " + MESSAGES + " wiadomosci nie zostalo potwierdzonych");
+			Set<String> received = new HashSet<String>();
+			int duplicates = 0;
+			Message message;
+			while((message = client.pollMessage()) != null){
+				String text = StandardCharsets.UTF_8.decode(message.getPayload()).toString();
+				if(!received.add(text))
+					duplicates++;
+			}
+			for(int i = 0; i < MESSAGES; i++)
+				if(!received.contains("m" + i)){
+					fail("wiadomosc m" + i + " nie dotarla");
+					break;
+				}
+			if(duplicates > 0)
+				fail(duplicates + " wiadomosci dotarlo wiecej niz raz");
+			metrics = hub.getMetrics();
+			if(metrics.get("connections.reconnects") != 0 || hub.getSessionCount() != 1)
+				fail("polaczenie zostalo nawiazane ponownie");
+			System.out.println("porzucone: " + metrics.get("queue.send.dropped") + ", wyslane ponownie: "
+				+ metrics.get("outbox.resent"));
+		} finally {
+			client.shutdown(1000);
+			hub.shutdown(1000);
+			delete(directory);
+		}
+		return failures == 0;
+	}
+
+	private static void delete(File directory) throws IOException {
+
+		File[] files = directory.listFiles();
+		if(files != null)
+			for(File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	private void fail(String reason){
+
+		System.out.println("BLAD: " + reason);
+		failures++;
+	}
+}